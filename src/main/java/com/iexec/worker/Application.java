@@ -23,6 +23,7 @@ import com.iexec.worker.feign.LoginService;
 import com.iexec.worker.replicate.ReplicateRecoveryService;
 import com.iexec.worker.result.ResultService;
 import com.iexec.worker.utils.LoggingUtils;
+import com.iexec.worker.worker.OrphanContainerService;
 import com.iexec.worker.worker.WorkerService;
 
 import lombok.extern.slf4j.Slf4j;
@@ -68,20 +69,38 @@ public class Application implements CommandLineRunner {
     @Autowired
     private ResultService resultService;
 
+    @Autowired
+    private OrphanContainerService orphanContainerService;
+
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
 
+    /**
+     * One thread per @Scheduled method, so a slow method does not delay the
+     * others:
+     * <ul>
+     * <li>{@code PingService.pingScheduler}</li>
+     * <li>{@code StompClient.listenToSessionRequestEventsInTheQueue}, which
+     * blocks its thread</li>
+     * <li>{@code ReplicateDemandService.askForReplicate}</li>
+     * <li>{@code TaskDeadlineService.checkDeadlines}</li>
+     * <li>{@code RegistryMirrorService.checkMirrorsHealth}</li>
+     * <li>{@code DatasetPeerService.advertise}</li>
+     * </ul>
+     * Add a @Scheduled method to this list when adding one to the project.
+     */
+    static final int SCHEDULED_METHODS = 6;
+
     /**
      * IMPORTANT: By default the size of the ThreadPool that is managing all the @Scheduled methods is 1.
      * For us this is a problem since we want those methods to run in different threads in parallel, so we need to
-     * declare this method to set the size of the ThreadPoolTaskScheduler. If an @Scheduled method is added in the
-     * project, the pool size should be increased.
+     * declare this method to set the size of the ThreadPoolTaskScheduler (see {@link #SCHEDULED_METHODS}).
      */
     @Bean
     public TaskScheduler taskScheduler() {
         final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
-        scheduler.setPoolSize(2);
+        scheduler.setPoolSize(SCHEDULED_METHODS);
         return scheduler;
     }
 
@@ -96,6 +115,9 @@ public class Application implements CommandLineRunner {
             System.exit(0);
         }
 
+        // remove containers left by a previous session before accepting work
+        orphanContainerService.removeOrphanContainers();
+
         if (!StringUtils.hasText(loginService.login())) {
             String message = "Worker wasn't able to login, stopping...";
             LoggingUtils.printHighlightedMessage(message);
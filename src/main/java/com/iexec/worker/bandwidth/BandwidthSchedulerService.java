@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.bandwidth;
+
+import com.iexec.common.chain.ChainTask;
+import com.iexec.worker.chain.IexecHubService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker-wide bandwidth scheduler. Dataset and input file downloads, image
+ * pulls and result uploads share a token bucket per direction, so a big
+ * transfer does not starve transfers of tasks closer to their deadline.
+ * <p>
+ * Downloads and pulls of a task are prioritized by its contribution
+ * deadline, result uploads by its final deadline. Transfers which are not
+ * related to a task (e.g. image warmups) come last. Nothing is throttled
+ * when no rate is configured.
+ */
+@Slf4j
+@Service
+public class BandwidthSchedulerService {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final IexecHubService iexecHubService;
+    private final Map<TransferClass.Direction, TokenBucket> buckets;
+    // chainTaskId -> chain task holding the deadlines of the task
+    private final Map<String, ChainTask> chainTasks;
+    private final MeterRegistry meterRegistry;
+
+    public BandwidthSchedulerService(IexecHubService iexecHubService,
+                                     @Value("${worker.bandwidth.downlink}") double downlinkInMbps,
+                                     @Value("${worker.bandwidth.uplink}") double uplinkInMbps,
+                                     MeterRegistry meterRegistry) {
+        this.iexecHubService = iexecHubService;
+        this.buckets = new EnumMap<>(TransferClass.Direction.class);
+        this.buckets.put(TransferClass.Direction.DOWNLINK, new TokenBucket(downlinkInMbps * 1024 * 1024));
+        this.buckets.put(TransferClass.Direction.UPLINK, new TokenBucket(uplinkInMbps * 1024 * 1024));
+        this.chainTasks = new ConcurrentHashMap<>();
+        this.meterRegistry = meterRegistry;
+        buckets.forEach((direction, bucket) ->
+                Gauge.builder("iexec.worker.bandwidth.waiting", bucket, TokenBucket::getWaiting)
+                        .description("Transfers waiting for bandwidth")
+                        .tag("direction", direction.name().toLowerCase())
+                        .register(meterRegistry));
+        log.info("Bandwidth scheduler [downlinkMBps:{}, uplinkMBps:{}]",
+                downlinkInMbps > 0 ? downlinkInMbps : "unlimited",
+                uplinkInMbps > 0 ? uplinkInMbps : "unlimited");
+    }
+
+    public boolean isLimited(TransferClass transferClass) {
+        return buckets.get(transferClass.getDirection()).isLimited();
+    }
+
+    /**
+     * Wait for the turn of a transfer and take its bandwidth.
+     *
+     * @param chainTaskId   task of the transfer, null if not related to a task
+     * @param transferClass class of the transfer
+     * @param bytes         size of the transfer, 0 to only wait for its turn
+     */
+    public void acquire(String chainTaskId, TransferClass transferClass, long bytes)
+            throws InterruptedException {
+        acquire(chainTaskId != null ? List.of(chainTaskId) : List.of(), transferClass, bytes);
+    }
+
+    /**
+     * Wait for the turn of a transfer needed by several tasks (e.g. a dataset
+     * going to the cache), prioritized by the most urgent of them.
+     *
+     * @param chainTaskIds  tasks of the transfer, empty if not related to a task
+     * @param transferClass class of the transfer
+     * @param bytes         size of the transfer, 0 to only wait for its turn
+     */
+    public void acquire(Collection<String> chainTaskIds, TransferClass transferClass, long bytes)
+            throws InterruptedException {
+        TokenBucket bucket = buckets.get(transferClass.getDirection());
+        if (!bucket.isLimited()) {
+            return;
+        }
+        long start = System.nanoTime();
+        bucket.acquire(bytes, getDeadline(chainTaskIds, transferClass), transferClass);
+        meterRegistry.timer("iexec.worker.bandwidth.wait",
+                        "class", transferClass.name().toLowerCase())
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Account for bytes transferred outside of the worker (e.g. by the
+     * Docker daemon), later transfers wait for them to be paid back.
+     *
+     * @param transferClass class of the transfer
+     * @param bytes         transferred bytes
+     */
+    public void charge(TransferClass transferClass, long bytes) {
+        buckets.get(transferClass.getDirection()).charge(bytes);
+    }
+
+    /**
+     * Get the earliest deadline of the tasks of a transfer.
+     */
+    long getDeadline(Collection<String> chainTaskIds, TransferClass transferClass) {
+        return chainTaskIds.stream()
+                .mapToLong(chainTaskId -> getDeadline(chainTaskId, transferClass))
+                .min()
+                .orElse(NO_DEADLINE);
+    }
+
+    /**
+     * Get the deadline prioritizing a transfer. Chain tasks are cached until
+     * their final deadline.
+     */
+    long getDeadline(String chainTaskId, TransferClass transferClass) {
+        if (chainTaskId == null) {
+            return NO_DEADLINE;
+        }
+        ChainTask chainTask = chainTasks.get(chainTaskId);
+        if (chainTask == null) {
+            long now = System.currentTimeMillis();
+            chainTasks.values().removeIf(cached -> cached.getFinalDeadline() < now);
+            chainTask = iexecHubService.getChainTask(chainTaskId).orElse(null);
+            if (chainTask == null) {
+                return NO_DEADLINE;
+            }
+            chainTasks.put(chainTaskId, chainTask);
+        }
+        return transferClass == TransferClass.RESULT_UPLOAD
+                ? chainTask.getFinalDeadline()
+                : chainTask.getContributionDeadline();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.bandwidth;
+
+import java.util.PriorityQueue;
+
+/**
+ * Token bucket shared by all transfers of a direction. Tokens are bytes,
+ * refilled at the configured rate up to one second of burst.
+ * <p>
+ * A transfer may take more tokens than available, the bucket then goes in
+ * debt and later transfers wait for it to be refilled. Waiting transfers
+ * are served by priority: closest deadline first, then by class, then in
+ * arrival order.
+ */
+class TokenBucket {
+
+    private final double rate; // in bytes/s, unlimited if not positive
+    private final double capacity;
+    private final PriorityQueue<Waiter> waiters;
+    private double tokens;
+    private long lastRefill;
+    private long sequence;
+
+    TokenBucket(double rate) {
+        this.rate = rate;
+        this.capacity = rate;
+        this.waiters = new PriorityQueue<>();
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * Wait for the bucket to be out of debt and for no transfer of higher
+     * priority to be waiting, then take the tokens.
+     *
+     * @param bytes         tokens to take, 0 to only wait for the turn
+     * @param deadline      deadline of the transfer (ms)
+     * @param transferClass class of the transfer
+     */
+    void acquire(long bytes, long deadline, TransferClass transferClass)
+            throws InterruptedException {
+        if (!isLimited()) {
+            return;
+        }
+        synchronized (this) {
+            Waiter waiter = new Waiter(deadline, transferClass.ordinal(), sequence++);
+            waiters.add(waiter);
+            try {
+                while (true) {
+                    refill();
+                    if (waiters.peek() != waiter) {
+                        wait();
+                    } else if (tokens >= 0) {
+                        tokens -= bytes;
+                        return;
+                    } else {
+                        wait(Math.max(1, (long) Math.ceil(-tokens * 1000 / rate)));
+                    }
+                }
+            } finally {
+                waiters.remove(waiter);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Take tokens for bytes already transferred outside of the worker.
+     *
+     * @param bytes tokens to take
+     */
+    synchronized void charge(long bytes) {
+        if (!isLimited()) {
+            return;
+        }
+        refill();
+        tokens -= bytes;
+    }
+
+    synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+
+        private final long deadline;
+        private final int transferClass;
+        private final long sequence;
+
+        Waiter(long deadline, int transferClass, long sequence) {
+            this.deadline = deadline;
+            this.transferClass = transferClass;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (deadline != other.deadline) {
+                return Long.compare(deadline, other.deadline);
+            }
+            if (transferClass != other.transferClass) {
+                return Integer.compare(transferClass, other.transferClass);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
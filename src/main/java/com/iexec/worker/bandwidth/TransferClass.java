@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.bandwidth;
+
+/**
+ * Class of a network transfer. Transfers of the same task are ordered by
+ * deadline proximity first, the class only breaks ties (lowest ordinal
+ * first).
+ */
+public enum TransferClass {
+
+    RESULT_UPLOAD(Direction.UPLINK),
+    DOWNLOAD(Direction.DOWNLINK),
+    IMAGE_PULL(Direction.DOWNLINK);
+
+    public enum Direction {
+        UPLINK,
+        DOWNLINK
+    }
+
+    private final Direction direction;
+
+    TransferClass(Direction direction) {
+        this.direction = direction;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+}
@@ -30,6 +30,7 @@ import com.iexec.worker.compute.pre.PreComputeService;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.result.ResultService;
+import com.iexec.worker.task.TaskTmpfsService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -48,6 +49,7 @@ public class ComputeManagerService {
     private final PostComputeService postComputeService;
     private final WorkerConfigurationService workerConfigService;
     private final ResultService resultService;
+    private final TaskTmpfsService taskTmpfsService;
 
     public ComputeManagerService(
             DockerService dockerService,
@@ -55,7 +57,8 @@ public class ComputeManagerService {
             AppComputeService appComputeService,
             PostComputeService postComputeService,
             WorkerConfigurationService workerConfigService,
-            ResultService resultService
+            ResultService resultService,
+            TaskTmpfsService taskTmpfsService
     ) {
         this.dockerService = dockerService;
         this.preComputeService = preComputeService;
@@ -63,6 +66,7 @@ public class ComputeManagerService {
         this.postComputeService = postComputeService;
         this.workerConfigService = workerConfigService;
         this.resultService = resultService;
+        this.taskTmpfsService = taskTmpfsService;
     }
 
     public boolean downloadApp(TaskDescription taskDescription) {
@@ -74,8 +78,8 @@ public class ComputeManagerService {
         if (!isDockerType || taskDescription.getAppUri() == null) {
             return false;
         }
-        return dockerService.getClient(taskDescription.getAppUri())
-                .pullImage(taskDescription.getAppUri());
+        return dockerService.pullImage(taskDescription.getChainTaskId(),
+                taskDescription.getAppUri());
     }
 
     public boolean isAppDownloaded(String imageUri) {
@@ -83,7 +87,7 @@ public class ComputeManagerService {
     }
 
     /**
-     * Standard tasks: download secrets && decrypt dataset (TODO: rewritte or remove)
+     * Standard tasks: download secrets && decrypt dataset.
      * <p>
      * TEE tasks: download pre-compute and post-compute images,
      * create SCONE secure session, and run pre-compute container.
@@ -110,7 +114,8 @@ public class ComputeManagerService {
 
         return PreComputeResponse.builder()
                 .isSuccessful(
-                        preComputeService.runStandardPreCompute(taskDescription))
+                        preComputeService.runStandardPreCompute(taskDescription,
+                                workerpoolAuth))
                 .build();
     }
 
@@ -153,6 +158,10 @@ public class ComputeManagerService {
         PostComputeResponse postComputeResponse = PostComputeResponse.builder()
                 .isSuccessful(false)
                 .build();
+        // result is zipped and kept on disk
+        if (!taskTmpfsService.spill(chainTaskId)) {
+            return postComputeResponse;
+        }
 
         if (!taskDescription.isTeeTask()) {
             boolean isSuccessful = postComputeService.runStandardPostCompute(taskDescription);
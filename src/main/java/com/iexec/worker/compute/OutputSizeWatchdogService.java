@@ -0,0 +1,202 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.compute;
+
+import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
+import com.iexec.worker.task.TaskTmpfsService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watch the size of the iexec_out folder of a task while its app container
+ * runs. A runaway app filling the host disk through its iexec_out bind is
+ * stopped as soon as the configured limit is exceeded, so other replicates
+ * of the worker are not stalled. The output of a task placed on tmpfs is
+ * also bounded by the memory it reserved, even if the limit is disabled.
+ * <p>
+ * The container is only stopped: the run waiting for it reads its exit and
+ * logs, then removes it as any exited container.
+ */
+@Slf4j
+@Service
+public class OutputSizeWatchdogService {
+
+    private final WorkerConfigurationService workerConfigService;
+    private final ContainerRemovalService containerRemovalService;
+    private final TaskTmpfsService taskTmpfsService;
+    private final long maxSize; // in bytes
+    private final long checkPeriod; // in ms
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService watchdogExecutor;
+    // chainTaskId -> watch of the running app container
+    private final Map<String, OutputWatch> watches;
+
+    public OutputSizeWatchdogService(
+            WorkerConfigurationService workerConfigService,
+            ContainerRemovalService containerRemovalService,
+            TaskTmpfsService taskTmpfsService,
+            @Value("${worker.output-watchdog.max-size}") long maxSizeMb,
+            @Value("${worker.output-watchdog.period}") long checkPeriod,
+            MeterRegistry meterRegistry) {
+        this.workerConfigService = workerConfigService;
+        this.containerRemovalService = containerRemovalService;
+        this.taskTmpfsService = taskTmpfsService;
+        this.maxSize = maxSizeMb * 1024 * 1024;
+        this.checkPeriod = Math.max(100, checkPeriod);
+        this.meterRegistry = meterRegistry;
+        this.watchdogExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.watches = new ConcurrentHashMap<>();
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Get the size the iexec_out folder of a task may reach.
+     *
+     * @param chainTaskId id of the task
+     * @return size in bytes, {@link Long#MAX_VALUE} if unbounded
+     */
+    public long getMaxSize(String chainTaskId) {
+        long tmpfsLimit = taskTmpfsService.getOutputLimit(chainTaskId);
+        return isEnabled() ? Math.min(maxSize, tmpfsLimit) : tmpfsLimit;
+    }
+
+    /**
+     * Start watching the iexec_out folder of a task.
+     *
+     * @param chainTaskId   id of the task
+     * @param containerName name of the container writing to iexec_out
+     */
+    public void startWatching(String chainTaskId, String containerName) {
+        long limit = getMaxSize(chainTaskId);
+        if (limit == Long.MAX_VALUE) {
+            return;
+        }
+        Path iexecOut = Paths.get(workerConfigService.getTaskIexecOutDir(chainTaskId));
+        OutputWatch watch = new OutputWatch(containerName, limit);
+        watch.future = watchdogExecutor.scheduleWithFixedDelay(
+                () -> check(chainTaskId, iexecOut, watch),
+                checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+        OutputWatch previous = watches.put(chainTaskId, watch);
+        if (previous != null) {
+            previous.future.cancel(false);
+        }
+    }
+
+    /**
+     * Stop watching the iexec_out folder of a task.
+     *
+     * @param chainTaskId id of the task
+     * @return true if the container was stopped for exceeding the limit
+     */
+    public boolean stopWatching(String chainTaskId) {
+        OutputWatch watch = watches.remove(chainTaskId);
+        if (watch == null) {
+            return false;
+        }
+        watch.future.cancel(false);
+        return watch.isLimitExceeded.get();
+    }
+
+    private void check(String chainTaskId, Path iexecOut, OutputWatch watch) {
+        if (watch.isLimitExceeded.get()) {
+            return;
+        }
+        long size = getDirectorySize(iexecOut, watch.maxSize);
+        if (size <= watch.maxSize || !watch.isLimitExceeded.compareAndSet(false, true)) {
+            return;
+        }
+        log.error("Output size limit exceeded, stopping container [chainTaskId:{}, " +
+                "containerName:{}, size:{}, maxSize:{}]", chainTaskId,
+                watch.containerName, size, watch.maxSize);
+        meterRegistry.counter("iexec.worker.output.limit.exceeded").increment();
+        containerRemovalService.stopAsync(watch.containerName);
+    }
+
+    /**
+     * Compute the size of the files of a folder. The walk stops as soon as
+     * the size goes above the provided threshold.
+     *
+     * @param dir       folder to measure
+     * @param stopAbove threshold above which the walk stops
+     * @return size in bytes, 0 if the folder does not exist
+     */
+    static long getDirectorySize(Path dir, long stopAbove) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long[] size = {0};
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return size[0] > stopAbove
+                            ? FileVisitResult.TERMINATE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // file removed by the app during the walk
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to measure folder size [dir:{}]", dir, e);
+        }
+        return size[0];
+    }
+
+    @PreDestroy
+    void shutdown() {
+        watchdogExecutor.shutdownNow();
+    }
+
+    private static class OutputWatch {
+        private final String containerName;
+        private final long maxSize; // in bytes
+        private final AtomicBoolean isLimitExceeded = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> future;
+
+        OutputWatch(String containerName, long maxSize) {
+            this.containerName = containerName;
+            this.maxSize = maxSize;
+        }
+    }
+}
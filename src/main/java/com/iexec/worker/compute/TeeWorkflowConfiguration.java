@@ -17,14 +17,16 @@
 package com.iexec.worker.compute;
 
 import com.iexec.common.tee.TeeWorkflowSharedConfiguration;
-import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.docker.ImagePullService;
 import com.iexec.worker.sms.SmsService;
+import com.iexec.worker.tee.TeeImagesWarmupService;
 import com.iexec.worker.tee.scone.TeeSconeService;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.PostConstruct;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Configuration of tee workflow. It contains: pre-compute image, pre-compute
@@ -37,7 +39,8 @@ public class TeeWorkflowConfiguration {
 
     private final TeeSconeService teeSconeService;
     private final SmsService smsService;
-    private final DockerService dockerService;
+    private final ImagePullService imagePullService;
+    private final TeeImagesWarmupService teeImagesWarmupService;
 
     @Getter
     private String preComputeImage = "";
@@ -55,15 +58,18 @@ public class TeeWorkflowConfiguration {
     public TeeWorkflowConfiguration(
             TeeSconeService teeSconeService,
             SmsService smsService,
-            DockerService dockerService) {
+            ImagePullService imagePullService,
+            TeeImagesWarmupService teeImagesWarmupService) {
         this.teeSconeService = teeSconeService;
         this.smsService = smsService;
-        this.dockerService = dockerService;
+        this.imagePullService = imagePullService;
+        this.teeImagesWarmupService = teeImagesWarmupService;
     }
 
     /**
      * If the worker is TEE enabled, get configuration of pre/post compute
-     * images and pull them for TEE tasks.
+     * images and pull them concurrently for TEE tasks (unless already pulled
+     * during the startup warm-up).
      * 
      * Note: /!\ the worker needs to be manually restarted if the configuration
      * on the SMS changes.
@@ -79,12 +85,14 @@ public class TeeWorkflowConfiguration {
         if (config == null) {
             throw new RuntimeException("Missing tee workflow configuration");
         }
-        if (!dockerService.getClient(config.getPreComputeImage())
-                .pullImage(config.getPreComputeImage())) {
+        CompletableFuture<Boolean> preComputeImagePull =
+                pullIfNotWarmedUp(config.getPreComputeImage());
+        CompletableFuture<Boolean> postComputeImagePull =
+                pullIfNotWarmedUp(config.getPostComputeImage());
+        if (!imagePullService.await(preComputeImagePull)) {
             throw new RuntimeException("Failed to download pre-compute image");
         }
-        if (!dockerService.getClient(config.getPostComputeImage())
-                .pullImage(config.getPostComputeImage())) {
+        if (!imagePullService.await(postComputeImagePull)) {
             throw new RuntimeException("Failed to download post-compute image");
         }
         preComputeImage = config.getPreComputeImage();
@@ -94,4 +102,10 @@ public class TeeWorkflowConfiguration {
         postComputeHeapSize = config.getPostComputeHeapSize();
         postComputeEntrypoint = config.getPostComputeEntrypoint();
     }
+
+    private CompletableFuture<Boolean> pullIfNotWarmedUp(String imageName) {
+        return teeImagesWarmupService.isWarmedUp(imageName)
+                ? CompletableFuture.completedFuture(true)
+                : imagePullService.pullAsync(imageName);
+    }
 }
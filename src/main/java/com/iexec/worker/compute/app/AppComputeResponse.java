@@ -17,6 +17,7 @@
 package com.iexec.worker.compute.app;
 
 import com.iexec.worker.compute.ComputeResponse;
+import com.iexec.worker.executor.WorkerFailureReason;
 import lombok.*;
 
 @Data
@@ -29,5 +30,7 @@ public class AppComputeResponse implements ComputeResponse {
     private boolean isSuccessful;
     private String stdout;
     private String stderr;
+    // reported in the status details, null if none
+    private WorkerFailureReason failureReason;
 
 }
\ No newline at end of file
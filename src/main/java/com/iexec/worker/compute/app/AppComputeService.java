@@ -21,28 +21,39 @@ import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.task.TaskDescription;
 import com.iexec.common.tee.TeeEnclaveConfiguration;
 import com.iexec.common.utils.IexecEnvUtils;
+import com.iexec.worker.compute.OutputSizeWatchdogService;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.dataset.DataService;
 import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.executor.WorkerFailureReason;
 import com.iexec.worker.tee.scone.TeeSconeService;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
+@Slf4j
 @Service
 public class AppComputeService {
 
     private final WorkerConfigurationService workerConfigService;
     private final DockerService dockerService;
     private final TeeSconeService teeSconeService;
+    private final OutputSizeWatchdogService outputSizeWatchdogService;
+    private final DataService dataService;
 
     public AppComputeService(
             WorkerConfigurationService workerConfigService,
             DockerService dockerService,
-            TeeSconeService teeSconeService) {
+            TeeSconeService teeSconeService,
+            OutputSizeWatchdogService outputSizeWatchdogService,
+            DataService dataService) {
         this.workerConfigService = workerConfigService;
         this.dockerService = dockerService;
         this.teeSconeService = teeSconeService;
+        this.outputSizeWatchdogService = outputSizeWatchdogService;
+        this.dataService = dataService;
     }
 
     public AppComputeResponse runCompute(TaskDescription taskDescription,
@@ -57,10 +68,12 @@ public class AppComputeService {
             env.addAll(strings);
         }
 
-        List<String> binds = Arrays.asList(
+        List<String> binds = new ArrayList<>(List.of(
                 dockerService.getInputBind(chainTaskId),
                 dockerService.getIexecOutBind(chainTaskId)
-        );
+        ));
+        // cached dataset is mounted read-only instead of being copied
+        dataService.getCachedDatasetBind(taskDescription).ifPresent(binds::add);
 
         DockerRunRequest runRequest = DockerRunRequest.builder()
                 .chainTaskId(chainTaskId)
@@ -77,7 +90,26 @@ public class AppComputeService {
         if (taskDescription.isTeeTask()) {
             runRequest.setDockerNetwork(workerConfigService.getDockerNetworkName());
         }
-        DockerRunResponse dockerResponse = dockerService.run(runRequest);
+        // a runaway app filling iexec_out is stopped
+        outputSizeWatchdogService.startWatching(chainTaskId, runRequest.getContainerName());
+        DockerRunResponse dockerResponse;
+        boolean isOutputSizeLimitExceeded;
+        try {
+            dockerResponse = dockerService.run(runRequest);
+        } finally {
+            isOutputSizeLimitExceeded = outputSizeWatchdogService.stopWatching(chainTaskId);
+        }
+        if (isOutputSizeLimitExceeded) {
+            log.error("App stopped since its output exceeded the limit [chainTaskId:{}, " +
+                    "maxSize:{}]", chainTaskId, outputSizeWatchdogService.getMaxSize(chainTaskId));
+            // app stdout is kept as is, the reason goes to the status details
+            return AppComputeResponse.builder()
+                    .isSuccessful(false)
+                    .stdout(dockerResponse.getStdout())
+                    .stderr(dockerResponse.getStderr())
+                    .failureReason(WorkerFailureReason.OUTPUT_SIZE_LIMIT_EXCEEDED)
+                    .build();
+        }
         return AppComputeResponse.builder()
                 .isSuccessful(dockerResponse.isSuccessful())
                 .stdout(dockerResponse.getStdout())
@@ -21,10 +21,10 @@ import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.task.TaskDescription;
 import com.iexec.common.utils.FileHelper;
 import com.iexec.common.utils.IexecFileHelper;
-import com.iexec.common.worker.result.ResultUtils;
 import com.iexec.worker.compute.TeeWorkflowConfiguration;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.result.ResultPackerService;
 import com.iexec.worker.result.ResultService;
 import com.iexec.worker.tee.scone.TeeSconeService;
 import lombok.extern.slf4j.Slf4j;
@@ -43,25 +43,31 @@ public class PostComputeService {
     private final ResultService resultService;
     private final TeeSconeService teeSconeService;
     private final TeeWorkflowConfiguration teeWorkflowConfig;
+    private final ResultPackerService resultPackerService;
 
     public PostComputeService(
             WorkerConfigurationService workerConfigService,
             DockerService dockerService,
             ResultService resultService,
             TeeSconeService teeSconeService,
-            TeeWorkflowConfiguration teeWorkflowConfig) {
+            TeeWorkflowConfiguration teeWorkflowConfig,
+            ResultPackerService resultPackerService) {
         this.workerConfigService = workerConfigService;
         this.dockerService = dockerService;
         this.resultService = resultService;
         this.teeSconeService = teeSconeService;
         this.teeWorkflowConfig = teeWorkflowConfig;
+        this.resultPackerService = resultPackerService;
     }
 
     public boolean runStandardPostCompute(TaskDescription taskDescription) {
         String chainTaskId = taskDescription.getChainTaskId();
         // create /output/iexec_out.zip
-        ResultUtils.zipIexecOut(workerConfigService.getTaskIexecOutDir(chainTaskId)
-                , workerConfigService.getTaskOutputDir(chainTaskId));
+        if (!resultPackerService.zipIexecOut(chainTaskId,
+                workerConfigService.getTaskIexecOutDir(chainTaskId),
+                workerConfigService.getTaskOutputDir(chainTaskId))) {
+            return false;
+        }
         // copy /output/iexec_out/computed.json to /output/computed.json to have the same workflow as TEE.
         boolean isCopied = FileHelper.copyFile(
                 workerConfigService.getTaskIexecOutDir(chainTaskId) + IexecFileHelper.SLASH_COMPUTED_JSON,
@@ -20,6 +20,7 @@ import com.iexec.common.chain.WorkerpoolAuthorization;
 import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.precompute.PreComputeExitCode;
+import com.iexec.common.sms.secret.TaskSecrets;
 import com.iexec.common.task.TaskDescription;
 import com.iexec.common.tee.TeeEnclaveConfiguration;
 import com.iexec.worker.compute.TeeWorkflowConfiguration;
@@ -34,6 +35,7 @@ import org.springframework.util.unit.DataSize;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 
 @Slf4j
@@ -62,12 +64,33 @@ public class PreComputeService {
         this.teeWorkflowConfig = teeWorkflowConfig;
     }
 
-    public boolean runStandardPreCompute(TaskDescription taskDescription) {
+    /**
+     * Fetch the secrets of a standard task and decrypt its dataset if the
+     * dataset owner provided a dataset secret.
+     *
+     * @param taskDescription
+     * @param workerpoolAuth
+     * @return true if the dataset is ready to be used by the application
+     */
+    public boolean runStandardPreCompute(TaskDescription taskDescription,
+                                         WorkerpoolAuthorization workerpoolAuth) {
         String chainTaskId = taskDescription.getChainTaskId();
+        if (taskDescription.containsDataset()) {
+            Optional<TaskSecrets> taskSecrets = smsService.fetchTaskSecrets(workerpoolAuth);
+            if (taskSecrets.isPresent()) {
+                smsService.saveSecrets(chainTaskId, taskSecrets.get(),
+                        workerConfigService.getDatasetSecretFilePath(chainTaskId),
+                        workerConfigService.getBeneficiarySecretFilePath(chainTaskId),
+                        workerConfigService.getEnclaveSecretFilePath(chainTaskId));
+            } else {
+                log.warn("No task secrets, dataset is used as downloaded [chainTaskId:{}]",
+                        chainTaskId);
+            }
+        }
         boolean isDatasetDecryptionNeeded = dataService.isDatasetDecryptionNeeded(chainTaskId);
         boolean isDatasetDecrypted = false;
         if (isDatasetDecryptionNeeded) {
-            isDatasetDecrypted = dataService.decryptDataset(chainTaskId, taskDescription.getDatasetUri());
+            isDatasetDecrypted = dataService.decryptDataset(chainTaskId, taskDescription.getDatasetName());
         }
 
         if (isDatasetDecryptionNeeded && !isDatasetDecrypted) {
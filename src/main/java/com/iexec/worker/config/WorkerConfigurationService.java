@@ -23,6 +23,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.management.ManagementFactory.getOperatingSystemMXBean;
 
@@ -64,6 +66,12 @@ public class WorkerConfigurationService {
     @Getter
     private String dockerNetworkName;
 
+    @Value("${worker.tmpfs.dir}")
+    private String tmpfsDir;
+
+    // tasks whose folders are placed on tmpfs
+    private final Set<String> tmpfsTasks = ConcurrentHashMap.newKeySet();
+
     public WorkerConfigurationService(CredentialsService credentialsService) {
         this.credentialsService = credentialsService;
     }
@@ -84,10 +92,61 @@ public class WorkerConfigurationService {
         return workerBaseDir + File.separator + workerName;
     }
 
+    /**
+     * Get path to the dataset cache folder. It is next to task folders but
+     * not among them, so it is not removed with the folders of a task.
+     * <p>
+     * Expected: workerBaseDir/dataset-cache/workerName
+     * 
+     * @return
+     */
+    public String getDatasetCacheDir() {
+        return workerBaseDir + File.separator + "dataset-cache" + File.separator + workerName;
+    }
+
+    public String getWorkerTmpfsDir() {
+        return tmpfsDir + File.separator + workerName;
+    }
+
+    /**
+     * Get path to the task folder on the host side. It is on tmpfs if the
+     * task has been placed there, on disk otherwise.
+     * 
+     * @param chainTaskId
+     * @return
+     */
     public String getTaskBaseDir(String chainTaskId) {
+        return isTaskOnTmpfs(chainTaskId)
+                ? getTaskTmpfsDir(chainTaskId)
+                : getTaskDiskDir(chainTaskId);
+    }
+
+    public String getTaskDiskDir(String chainTaskId) {
         return getWorkerBaseDir() + File.separator + chainTaskId;
     }
 
+    public String getTaskTmpfsDir(String chainTaskId) {
+        return getWorkerTmpfsDir() + File.separator + chainTaskId;
+    }
+
+    public boolean isTaskOnTmpfs(String chainTaskId) {
+        return tmpfsTasks.contains(chainTaskId);
+    }
+
+    /**
+     * Place folders of a task on tmpfs or back on disk. Files are not moved.
+     * 
+     * @param chainTaskId
+     * @param isOnTmpfs
+     */
+    public void setTaskOnTmpfs(String chainTaskId, boolean isOnTmpfs) {
+        if (isOnTmpfs) {
+            tmpfsTasks.add(chainTaskId);
+        } else {
+            tmpfsTasks.remove(chainTaskId);
+        }
+    }
+
     /**
      * Get path to input folder on the host side.
      * <p>
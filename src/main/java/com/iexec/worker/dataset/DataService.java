@@ -18,10 +18,11 @@ package com.iexec.worker.dataset;
 
 import com.iexec.common.replicate.ReplicateStatusCause;
 import com.iexec.common.task.TaskDescription;
-import com.iexec.common.utils.FileHelper;
-import com.iexec.common.utils.HashUtils;
 import com.iexec.common.utils.IexecFileHelper;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.download.DownloadReport;
+import com.iexec.worker.download.DownloadService;
+import com.iexec.worker.executor.WorkerFailureReason;
 import com.iexec.worker.utils.WorkflowException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
@@ -30,8 +31,19 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Nonnull;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 
 
 @Slf4j
@@ -39,17 +51,30 @@ import java.util.List;
 public class DataService {
 
     private final WorkerConfigurationService workerConfigurationService;
+    private final DownloadService downloadService;
+    private final DatasetCacheService datasetCacheService;
+    private final DatasetPeerService datasetPeerService;
 
-    public DataService(WorkerConfigurationService workerConfigurationService) {
+    public DataService(WorkerConfigurationService workerConfigurationService,
+                       DownloadService downloadService,
+                       DatasetCacheService datasetCacheService,
+                       DatasetPeerService datasetPeerService) {
         this.workerConfigurationService = workerConfigurationService;
+        this.downloadService = downloadService;
+        this.datasetCacheService = datasetCacheService;
+        this.datasetPeerService = datasetPeerService;
     }
 
     /**
      * Download dataset file for the given standard task and save
-     * it in {@link IexecFileHelper#SLASH_IEXEC_IN}.
+     * it in {@link IexecFileHelper#SLASH_IEXEC_IN}. Datasets with an
+     * on-chain checksum are taken from the dataset cache if possible,
+     * otherwise from a LAN peer which has it, and from the origin last.
+     * Cached datasets stay in the cache, they are mounted at the same path
+     * in the app container (see {@link #getCachedDatasetBind(TaskDescription)}).
      * 
      * @param taskDescription
-     * @return downloaded dataset file path
+     * @return dataset file path in the input folder
      * @throws WorkflowException if download fails or bad checksum.
      */
     public String downloadStandardDataset(@Nonnull TaskDescription taskDescription)
@@ -58,19 +83,28 @@ public class DataService {
         String uri = taskDescription.getDatasetUri();
         String filename = taskDescription.getDatasetName();
         String parentDirectoryPath = workerConfigurationService.getTaskInputDir(chainTaskId);
-        String datasetLocalFilePath =
-                downloadFile(chainTaskId, uri, parentDirectoryPath, filename);
-        if (datasetLocalFilePath.isEmpty()) {
-            throw new WorkflowException(ReplicateStatusCause.DATASET_FILE_DOWNLOAD_FAILED);
-        }
         String expectedSha256 = taskDescription.getDatasetChecksum();
+        DownloadReport report = new DownloadReport();
+        if (StringUtils.isNoneEmpty(chainTaskId, uri, parentDirectoryPath, filename)
+                && datasetCacheService.isCacheable(expectedSha256)) {
+            return downloadCachedDataset(chainTaskId, uri, expectedSha256,
+                    parentDirectoryPath, filename, report);
+        }
+        // checksum is computed while the dataset is written, the file
+        // is never read back
+        String actualSha256 = downloadDatasetAndHash(chainTaskId, uri,
+                expectedSha256, parentDirectoryPath, filename, report);
+        if (actualSha256.isEmpty()) {
+            throw downloadFailure(chainTaskId, ReplicateStatusCause.DATASET_FILE_DOWNLOAD_FAILED,
+                    report);
+        }
+        String datasetLocalFilePath = parentDirectoryPath + File.separator + filename;
         if (StringUtils.isEmpty(expectedSha256)) {
             log.warn("INSECURE! Cannot check empty on-chain dataset checksum " +
                     "[chainTaskId:{}]", chainTaskId);
             return datasetLocalFilePath;
         }
-        String actualSha256 = HashUtils.sha256(new File(datasetLocalFilePath));
-        if (!expectedSha256.equals(actualSha256)) {
+        if (!expectedSha256.equalsIgnoreCase(actualSha256)) {
             log.error("Dataset checksum mismatch [chainTaskId:{}, " +
                     "expected:{}, actual:{}]", chainTaskId, expectedSha256,
                     actualSha256);
@@ -79,9 +113,43 @@ public class DataService {
         return datasetLocalFilePath;
     }
 
+    /**
+     * Get a dataset through the cache. The cache outcome is final: a dataset
+     * which could not be downloaded or verified is not downloaded again.
+     */
+    private String downloadCachedDataset(String chainTaskId, String uri, String expectedSha256,
+            String parentDirectoryPath, String filename, DownloadReport report)
+            throws WorkflowException {
+        // checksum of the download made for this task, if any
+        AtomicReference<String> actualSha256 = new AtomicReference<>("");
+        Optional<Path> dataset = datasetCacheService.getOrDownload(chainTaskId, expectedSha256,
+                Paths.get(parentDirectoryPath, filename),
+                (downloadPath, token, chainTaskIds) -> {
+                    actualSha256.set(downloadFromPeersOrOrigin(token.getChainTaskId(), uri,
+                            expectedSha256, downloadPath, (source, target) -> downloadService
+                                    .downloadAndHash(token, chainTaskIds, source, target,
+                                            report)));
+                    return actualSha256.get();
+                });
+        if (dataset.isPresent()) {
+            // checksum already verified when cached
+            return parentDirectoryPath + File.separator + filename;
+        }
+        if (!actualSha256.get().isEmpty()
+                && !expectedSha256.equalsIgnoreCase(actualSha256.get())) {
+            log.error("Dataset checksum mismatch [chainTaskId:{}, " +
+                    "expected:{}, actual:{}]", chainTaskId, expectedSha256,
+                    actualSha256.get());
+            throw new WorkflowException(ReplicateStatusCause.DATASET_FILE_BAD_CHECKSUM);
+        }
+        throw downloadFailure(chainTaskId, ReplicateStatusCause.DATASET_FILE_DOWNLOAD_FAILED,
+                report);
+    }
+
     /**
      * Download input files for the given standard task and save them
-     * in the input folder.
+     * in the input folder. Files are downloaded in parallel, the first
+     * failure stops the other downloads.
      * 
      * @param chainTaskId
      * @param uriList
@@ -93,67 +161,212 @@ public class DataService {
             log.error("Null input files uri list [chainTaskId:{}]", chainTaskId);
             throw new WorkflowException(ReplicateStatusCause.INPUT_FILES_DOWNLOAD_FAILED);
         }
+        String parenDirectoryPath = workerConfigurationService.getTaskInputDir(chainTaskId);
+        // downloaded file -> uri, a later uri with the same filename wins
+        Map<Path, String> files = new LinkedHashMap<>();
         for (String uri: uriList) {
             String filename = !StringUtils.isEmpty(uri)
                     ? Paths.get(uri).getFileName().toString()
                     : "";
-            String parenDirectoryPath = workerConfigurationService.getTaskInputDir(chainTaskId);
-            if (downloadFile(chainTaskId, uri, parenDirectoryPath, filename).isEmpty()) {
+            if (StringUtils.isEmpty(chainTaskId) ||
+                    StringUtils.isEmpty(uri) ||
+                    StringUtils.isEmpty(parenDirectoryPath) ||
+                    StringUtils.isEmpty(filename)) {
+                log.error("Failed to download, args shouldn't be empty " +
+                        "[chainTaskId:{}, inputFileUri:{}, parentDir:{}, filename:{}]",
+                        chainTaskId, uri, parenDirectoryPath, filename);
                 throw new WorkflowException(ReplicateStatusCause.INPUT_FILES_DOWNLOAD_FAILED);
             }
+            Path file = Paths.get(parenDirectoryPath, filename);
+            files.remove(file);
+            files.put(file, uri);
+        }
+        DownloadReport report = new DownloadReport();
+        if (!downloadService.downloadAll(chainTaskId, files, report)) {
+            throw downloadFailure(chainTaskId, ReplicateStatusCause.INPUT_FILES_DOWNLOAD_FAILED,
+                    report);
         }
     }
     
-    public boolean isDatasetDecryptionNeeded(String chainTaskId) {
-        String datasetSecretFilePath = workerConfigurationService.getDatasetSecretFilePath(chainTaskId);
+    /**
+     * Check whether the dataset of a task would be served by the dataset
+     * cache, in which case it stays in the cache folder.
+     *
+     * @param taskDescription
+     * @return true if the dataset is downloaded through the cache
+     */
+    public boolean isDatasetCacheable(@Nonnull TaskDescription taskDescription) {
+        return taskDescription.containsDataset() && !taskDescription.isTeeTask()
+                && datasetCacheService.isCacheable(taskDescription.getDatasetChecksum());
+    }
 
-        if (!new File(datasetSecretFilePath).exists()) {
-            log.info("No dataset secret file found, will continue without decrypting dataset [chainTaskId:{}]", chainTaskId);
-            return false;
+    /**
+     * Get the docker volume bind of the cached dataset of a task, mounting
+     * it read-only in place of the dataset file of the input folder.
+     * <p>
+     * Expected: cacheDir/key:/iexec_in/datasetName:ro
+     * <p>
+     * A task without pinned dataset after a restart of the worker pins it
+     * again, unless its dataset was written to the input folder (decrypted or
+     * too big to be cached).
+     *
+     * @param taskDescription
+     * @return bind, empty if the dataset of the task is not in the cache
+     */
+    public Optional<String> getCachedDatasetBind(@Nonnull TaskDescription taskDescription) {
+        if (!isDatasetCacheable(taskDescription)) {
+            return Optional.empty();
         }
+        String chainTaskId = taskDescription.getChainTaskId();
+        Optional<Path> cachedDataset = datasetCacheService.getPinnedDataset(chainTaskId);
+        if (cachedDataset.isEmpty() && !isInInputDir(chainTaskId, taskDescription.getDatasetName())) {
+            cachedDataset = datasetCacheService.pin(chainTaskId,
+                    taskDescription.getDatasetChecksum());
+        }
+        return cachedDataset.map(path -> path + ":" + IexecFileHelper.SLASH_IEXEC_IN
+                + "/" + taskDescription.getDatasetName() + ":ro");
+    }
 
-        return true;
+    /**
+     * Release the cached dataset of a task once the task does not need it
+     * anymore, so it may be evicted.
+     *
+     * @param chainTaskId
+     */
+    public void releaseCachedDataset(String chainTaskId) {
+        datasetCacheService.release(chainTaskId);
     }
 
-    @Deprecated(forRemoval = true)
-    public boolean decryptDataset(String chainTaskId, String datasetUri) {
-        String datasetFileName = Paths.get(datasetUri).getFileName().toString();
-        String datasetFilePath = workerConfigurationService.getTaskInputDir(chainTaskId) + File.separator + datasetFileName;
-        String datasetSecretFilePath = workerConfigurationService.getDatasetSecretFilePath(chainTaskId);
+    /**
+     * @return true if the input folder of the task holds a non-empty dataset
+     * file, an empty one being left by the mount of a cached dataset
+     */
+    private boolean isInInputDir(String chainTaskId, String datasetName) {
+        File datasetFile = new File(workerConfigurationService.getTaskInputDir(chainTaskId),
+                datasetName);
+        return datasetFile.isFile() && datasetFile.length() > 0;
+    }
 
-        log.info("Decrypting dataset file [datasetFile:{}, secretFile:{}]", datasetFilePath, datasetSecretFilePath);
+    /**
+     * Get the size of the dataset and input files of a task before they are
+     * downloaded, as announced by their servers.
+     *
+     * @param taskDescription
+     * @return size in bytes, -1 if the size of a file is unknown
+     */
+    public long getExpectedInputSize(@Nonnull TaskDescription taskDescription) {
+        List<String> uris = new ArrayList<>();
+        if (taskDescription.containsDataset()) {
+            uris.add(taskDescription.getDatasetUri());
+        }
+        if (taskDescription.containsInputFiles()) {
+            uris.addAll(taskDescription.getInputFiles());
+        }
+        long size = 0;
+        for (String uri : uris) {
+            long length = StringUtils.isEmpty(uri) ? -1 : downloadService.getContentLength(uri);
+            if (length < 0) {
+                log.info("Unknown input size [chainTaskId:{}, uri:{}]",
+                        taskDescription.getChainTaskId(), uri);
+                return -1;
+            }
+            size += length;
+        }
+        return size;
+    }
 
-        decryptFile(datasetFilePath, datasetSecretFilePath);
+    /**
+     * Build the exception of a failed download. Downloads aborted because
+     * they stalled are told apart from other failures, the reason is
+     * reported in the status details.
+     *
+     * @param chainTaskId
+     * @param cause
+     * @param report stalls of the failed download
+     * @return exception to throw
+     */
+    private WorkflowException downloadFailure(String chainTaskId, ReplicateStatusCause cause,
+                                              DownloadReport report) {
+        if (!report.isStalled()) {
+            return new WorkflowException(cause);
+        }
+        log.error("Download stalled below minimum throughput [chainTaskId:{}, cause:{}]",
+                chainTaskId, cause);
+        return new WorkflowException(cause, WorkerFailureReason.DOWNLOAD_STALLED);
+    }
 
-        String decryptedDatasetFilePath = datasetFilePath + ".recovered";
+    public boolean isDatasetDecryptionNeeded(String chainTaskId) {
+        String datasetSecretFilePath = workerConfigurationService.getDatasetSecretFilePath(chainTaskId);
 
-        if (!new File(decryptedDatasetFilePath).exists()) {
-            log.error("Decrypted dataset file not found [chainTaskId:{}, decryptedDatasetFilePath:{}]",
-                    chainTaskId, decryptedDatasetFilePath);
+        if (!new File(datasetSecretFilePath).exists()) {
+            log.info("No dataset secret file found, will continue without decrypting dataset [chainTaskId:{}]", chainTaskId);
             return false;
         }
 
-        // replace original dataset file with decrypted one
-        return FileHelper.replaceFile(datasetFilePath, decryptedDatasetFilePath);
+        return true;
     }
 
-    @Deprecated(forRemoval = true)
-    private void decryptFile(String dataFilePath, String secretFilePath) {
-        throw new UnsupportedOperationException("Cannot decrypt file with bash script");
+    /**
+     * Decrypt the dataset of a standard task with the dataset secret saved
+     * from the SMS. The dataset is decrypted in a single streaming pass to a
+     * new file of the input folder, read from the cache if the dataset is
+     * cached and from the input folder otherwise. The cached dataset is then
+     * released, the app container uses the decrypted file. The secret is
+     * deleted once the dataset is decrypted so it is not exposed to the
+     * application.
+     *
+     * @param chainTaskId
+     * @param datasetName name of the downloaded dataset file
+     * @return true if the dataset is decrypted
+     */
+    public boolean decryptDataset(String chainTaskId, String datasetName) {
+        Path datasetFile = Paths.get(workerConfigurationService.getTaskInputDir(chainTaskId),
+                datasetName);
+        Path encryptedFile = datasetCacheService.getPinnedDataset(chainTaskId)
+                .orElse(datasetFile);
+        Path secretFile = Paths.get(workerConfigurationService.getDatasetSecretFilePath(chainTaskId));
+        Path decryptedFile = datasetFile.resolveSibling(datasetFile.getFileName() + ".recovered");
+        log.info("Decrypting dataset file [chainTaskId:{}, datasetFile:{}]",
+                chainTaskId, encryptedFile);
+        long start = System.currentTimeMillis();
+        try {
+            long size = DatasetCipher.decrypt(encryptedFile, decryptedFile,
+                    DatasetCipher.readKey(secretFile));
+            Files.move(decryptedFile, datasetFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            datasetCacheService.release(chainTaskId);
+            Files.delete(secretFile);
+            log.info("Decrypted dataset file [chainTaskId:{}, size:{}, durationMs:{}]",
+                    chainTaskId, size, System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            log.error("Failed to decrypt dataset file [chainTaskId:{}, datasetFile:{}]",
+                    chainTaskId, encryptedFile, e);
+            try {
+                Files.deleteIfExists(decryptedFile);
+            } catch (IOException ignored) {
+                // deleted with the other files of the task
+            }
+            return false;
+        }
     }
 
     /**
-     * Download a file from a URI in the provided parent
-     * directory and save it with the provided filename.
+     * Download a dataset from a URI in the provided parent directory,
+     * save it with the provided filename and compute its checksum while
+     * it is written.
      * 
      * @param chainTaskId
      * @param uri
+     * @param expectedSha256
      * @param parentDirectoryPath
      * @param filename
-     * @return absolute path of the saved file
+     * @param report stalls of the download
+     * @return sha256 checksum of the saved file, empty if download failed
      */
-    private String downloadFile(String chainTaskId, String uri,
-            String parentDirectoryPath, String filename) {
+    private String downloadDatasetAndHash(String chainTaskId, String uri,
+            String expectedSha256, String parentDirectoryPath, String filename,
+            DownloadReport report) {
         if (StringUtils.isEmpty(chainTaskId) ||
                 StringUtils.isEmpty(uri) ||
                 StringUtils.isEmpty(parentDirectoryPath) ||
@@ -163,6 +376,38 @@ public class DataService {
                     chainTaskId, uri, parentDirectoryPath, filename);
             return StringUtils.EMPTY;
         }
-        return FileHelper.downloadFile(uri, parentDirectoryPath, filename);
+        return downloadFromPeersOrOrigin(chainTaskId, uri, expectedSha256,
+                Paths.get(parentDirectoryPath, filename),
+                (source, target) -> downloadService.downloadAndHash(chainTaskId, source, target,
+                        report));
+    }
+
+    /**
+     * Try the peers which advertised the dataset before its origin. A peer
+     * download is kept only if it matches the on-chain checksum, so a
+     * faulty peer can only cost time.
+     *
+     * @param chainTaskId
+     * @param uri origin URI of the dataset
+     * @param expectedSha256 on-chain checksum of the dataset
+     * @param target file to write
+     * @param downloader downloads and hashes a source URI to a file
+     * @return sha256 checksum of the saved file, empty if download failed
+     */
+    private String downloadFromPeersOrOrigin(String chainTaskId, String uri,
+            String expectedSha256, Path target, BiFunction<String, Path, String> downloader) {
+        for (String peerUri : datasetPeerService.getPeerUris(expectedSha256)) {
+            String actualSha256 = downloader.apply(peerUri, target);
+            boolean isVerified = expectedSha256.equalsIgnoreCase(actualSha256);
+            datasetPeerService.recordDownload(peerUri, isVerified);
+            if (isVerified) {
+                log.info("Downloaded dataset from peer [chainTaskId:{}, peerUri:{}]",
+                        chainTaskId, peerUri);
+                return actualSha256;
+            }
+            log.warn("Failed to download dataset from peer, trying next source " +
+                    "[chainTaskId:{}, peerUri:{}, actual:{}]", chainTaskId, peerUri, actualSha256);
+        }
+        return downloader.apply(uri, target);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.download.DownloadService;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed cache of datasets, keyed by their on-chain checksum.
+ * A dataset used by many tasks is downloaded and verified once, then given
+ * to each task using it without being copied: the cached file is bind
+ * mounted read-only in the app container (see
+ * {@link DataService#getCachedDatasetBind}).
+ * <p>
+ * Input folders are mounted read-write in app containers, where a root
+ * process can make any file writable again. Cached datasets are
+ * consequently never hard linked into input folders, a read-only mount
+ * cannot be made writable from the container so the cache (and peers
+ * fetching from it) cannot be tampered with.
+ * <p>
+ * A cached dataset is pinned by each task using it until the task releases
+ * it, pinned datasets are never evicted.
+ * <p>
+ * Concurrent tasks needing the same dataset share one in-flight download.
+ * The shared download belongs to the cache rather than to the task which
+ * started it: it goes on when this task is aborted, and stops only once no
+ * task waits for it anymore. Its bandwidth is prioritized by the most urgent
+ * of the waiting tasks.
+ * <p>
+ * The cache size is bounded by a disk budget, least recently used datasets
+ * are evicted first. Datasets without on-chain checksum are never cached.
+ */
+@Slf4j
+@Service
+public class DatasetCacheService {
+
+    private static final Pattern SHA256_PATTERN = Pattern.compile("^[0-9a-f]{64}$");
+    private static final String DOWNLOAD_SUFFIX = ".download";
+    // datasets too big to be cached, shared by the tasks waiting for them
+    private static final String UNCACHED_SUFFIX = ".uncached";
+    // partial downloads of a previous run, kept so they can be resumed
+    private static final Pattern PARTIAL_DOWNLOAD_PATTERN = Pattern.compile(
+            "^[0-9a-f]{64}" + Pattern.quote(DOWNLOAD_SUFFIX) + "("
+                    + Pattern.quote(DownloadService.PART_SUFFIX) + "|"
+                    + Pattern.quote(DownloadService.PROGRESS_SUFFIX) + ")$");
+    private static final long PARTIAL_DOWNLOAD_TTL = TimeUnit.DAYS.toMillis(1);
+
+    private final boolean isEnabled;
+    private final long maxSize; // in bytes
+    private final Path cacheDir;
+    private final MeterRegistry meterRegistry;
+    private final TaskCancellationService taskCancellationService;
+    private final ExecutorService downloadExecutor;
+    // cache key -> size of the cached dataset, in access order
+    private final LinkedHashMap<String, Long> entries;
+    // chainTaskId -> cache key of the dataset pinned by the task
+    private final Map<String, String> pins;
+    // cache key -> in-flight download, guarded by itself
+    private final Map<String, SharedDownload> inFlightDownloads;
+    private long size;
+
+    public DatasetCacheService(WorkerConfigurationService workerConfigService,
+                               @Value("${worker.dataset-cache.enabled}") boolean isEnabled,
+                               @Value("${worker.dataset-cache.max-size}") long maxSizeMb,
+                               MeterRegistry meterRegistry,
+                               TaskCancellationService taskCancellationService) {
+        this(isEnabled, maxSizeMb * 1024 * 1024,
+                Paths.get(workerConfigService.getDatasetCacheDir()), meterRegistry,
+                taskCancellationService);
+    }
+
+    DatasetCacheService(boolean isEnabled, long maxSize, Path cacheDir,
+                        MeterRegistry meterRegistry,
+                        TaskCancellationService taskCancellationService) {
+        this.isEnabled = isEnabled;
+        this.maxSize = maxSize;
+        this.cacheDir = cacheDir;
+        this.meterRegistry = meterRegistry;
+        this.taskCancellationService = taskCancellationService;
+        this.downloadExecutor = Executors.newCachedThreadPool();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.pins = new HashMap<>();
+        this.inFlightDownloads = new HashMap<>();
+        Gauge.builder("iexec.worker.dataset.cache.size", this, DatasetCacheService::getSize)
+                .description("Bytes of datasets kept in the cache")
+                .register(meterRegistry);
+        if (isEnabled()) {
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return isEnabled && maxSize > 0;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @param checksum on-chain checksum of a dataset
+     * @return true if the dataset goes through the cache, false if it
+     * should be downloaded directly (cache disabled or no valid checksum)
+     */
+    public boolean isCacheable(String checksum) {
+        return isEnabled() && !toKey(checksum).isEmpty();
+    }
+
+    /**
+     * Get a cached dataset, e.g. to serve it to a peer worker.
+     *
+     * @param checksum sha256 checksum of the dataset
+     * @return path of the read-only cached dataset, empty if not cached
+     */
+    public synchronized Optional<Path> getCachedDataset(String checksum) {
+        String key = toKey(checksum);
+        if (!isEnabled() || !entries.containsKey(key)) {
+            return Optional.empty();
+        }
+        return Optional.of(cacheDir.resolve(key));
+    }
+
+    /**
+     * @return checksums of cached datasets, most recently used last
+     */
+    public synchronized List<String> getCachedChecksums() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Get a dataset for a task from the cache if present, after downloading
+     * it to the cache otherwise. The checksum is verified once, when the
+     * dataset is added to the cache. The cached dataset is pinned for the
+     * task until {@link #release(String)}.
+     * <p>
+     * The dataset is downloaded once for all the tasks needing it at the
+     * same time. A task stops waiting for the download as soon as it is
+     * cancelled, the download itself is stopped when no task waits for it.
+     * A dataset too big to be cached is copied to the target.
+     *
+     * @param chainTaskId task needing the dataset
+     * @param checksum    on-chain checksum of the dataset
+     * @param target      dataset path in the input folder of the task, used
+     *                    only if the dataset is too big to be cached
+     * @param downloader  downloads the dataset, used if no download of the
+     *                    dataset is in flight
+     * @return path of the read-only cached dataset or the target, empty if
+     * the dataset is not cacheable (see {@link #isCacheable(String)}) or could
+     * not be downloaded and verified
+     */
+    public Optional<Path> getOrDownload(String chainTaskId, String checksum, Path target,
+                                        Downloader downloader) {
+        String key = toKey(checksum);
+        if (!isCacheable(checksum)) {
+            return Optional.empty();
+        }
+        Optional<Path> cachedDataset = pinKey(chainTaskId, key);
+        if (cachedDataset.isPresent()) {
+            meterRegistry.counter("iexec.worker.dataset.cache.lookups", "result", "hit").increment();
+            return cachedDataset;
+        }
+        SharedDownload download = join(chainTaskId, checksum, key, downloader);
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        download.result.whenComplete((isDownloaded, e) ->
+                outcome.complete(e == null && isDownloaded));
+        try (CancellationToken.Registration registration = taskCancellationService
+                .getToken(chainTaskId).onCancel(() -> outcome.complete(false))) {
+            if (!outcome.get()) {
+                return Optional.empty();
+            }
+            cachedDataset = pinKey(chainTaskId, key);
+            if (cachedDataset.isPresent()) {
+                return cachedDataset;
+            }
+            // too big to be cached
+            return copy(chainTaskId, download.uncachedPath, target)
+                    ? Optional.of(target)
+                    : Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (ExecutionException e) {
+            return Optional.empty();
+        } finally {
+            leave(chainTaskId, key, download);
+        }
+    }
+
+    /**
+     * Pin a cached dataset for a task, e.g. again after a restart of the
+     * worker.
+     *
+     * @param chainTaskId task using the dataset
+     * @param checksum    on-chain checksum of the dataset
+     * @return path of the read-only cached dataset, empty if not cached
+     */
+    public Optional<Path> pin(String chainTaskId, String checksum) {
+        return isCacheable(checksum) ? pinKey(chainTaskId, toKey(checksum)) : Optional.empty();
+    }
+
+    private synchronized Optional<Path> pinKey(String chainTaskId, String key) {
+        if (!entries.containsKey(key)) {
+            return Optional.empty();
+        }
+        String previousKey = pins.put(chainTaskId, key);
+        if (previousKey == null) {
+            log.info("Pinned cached dataset [chainTaskId:{}, key:{}]", chainTaskId, key);
+        }
+        return Optional.of(cacheDir.resolve(key));
+    }
+
+    /**
+     * @param chainTaskId task using a dataset
+     * @return path of the cached dataset pinned by the task, empty if none
+     */
+    public synchronized Optional<Path> getPinnedDataset(String chainTaskId) {
+        return Optional.ofNullable(pins.get(chainTaskId)).map(cacheDir::resolve);
+    }
+
+    /**
+     * Release the cached dataset pinned by a task, which may then be
+     * evicted. Releasing a task without pinned dataset has no effect.
+     *
+     * @param chainTaskId task which does not use its dataset anymore
+     */
+    public synchronized void release(String chainTaskId) {
+        String key = pins.remove(chainTaskId);
+        if (key != null) {
+            log.info("Released cached dataset [chainTaskId:{}, key:{}]", chainTaskId, key);
+            evict("");
+        }
+    }
+
+    /**
+     * Wait for the in-flight download of a dataset, starting it if none is
+     * in flight. A download stopped since no task waited for it anymore is
+     * replaced by a new one, resuming its partial file once it is over.
+     */
+    private SharedDownload join(String chainTaskId, String checksum, String key,
+                                Downloader downloader) {
+        synchronized (inFlightDownloads) {
+            SharedDownload download = inFlightDownloads.get(key);
+            if (download != null && !download.token.isCancelled()) {
+                log.info("Waiting for in-flight dataset download [chainTaskId:{}, " +
+                        "checksum:{}, startedBy:{}]", chainTaskId, checksum,
+                        download.token.getChainTaskId());
+                download.waiters.add(chainTaskId);
+                return download;
+            }
+            CompletableFuture<?> previous = download != null
+                    ? download.result
+                    : CompletableFuture.completedFuture(null);
+            SharedDownload started = new SharedDownload(new CancellationToken(chainTaskId),
+                    cacheDir.resolve(key + "-" + UUID.randomUUID() + UNCACHED_SUFFIX));
+            started.waiters.add(chainTaskId);
+            inFlightDownloads.put(key, started);
+            previous.handleAsync((isDownloaded, e) ->
+                    downloadToCache(checksum, key, started, downloader), downloadExecutor)
+                    .whenComplete((isDownloaded, e) -> {
+                        if (e != null) {
+                            log.error("Failed to download dataset to cache [chainTaskId:{}, " +
+                                    "checksum:{}]", chainTaskId, checksum, e);
+                        }
+                        synchronized (inFlightDownloads) {
+                            inFlightDownloads.remove(key, started);
+                            started.result.complete(e == null && isDownloaded);
+                            if (started.waiters.isEmpty()) {
+                                deleteQuietly(started.uncachedPath);
+                            }
+                        }
+                    });
+            return started;
+        }
+    }
+
+    /**
+     * Stop waiting for a download. The download is stopped if no other task
+     * waits for it.
+     */
+    private void leave(String chainTaskId, String key, SharedDownload download) {
+        synchronized (inFlightDownloads) {
+            download.waiters.remove(chainTaskId);
+            if (!download.waiters.isEmpty()) {
+                return;
+            }
+            if (download.result.isDone()) {
+                deleteQuietly(download.uncachedPath);
+            } else {
+                log.info("Stopping dataset download, no task waits for it [key:{}, " +
+                        "lastTask:{}]", key, chainTaskId);
+                download.token.cancel("no task waiting for the dataset");
+            }
+        }
+    }
+
+    /**
+     * Download a dataset next to the cache, verify it and add it to the
+     * cache. A dataset bigger than the whole budget is kept aside for the
+     * tasks waiting for it instead.
+     */
+    private boolean downloadToCache(String checksum, String key, SharedDownload download,
+                                    Downloader downloader) {
+        String chainTaskId = download.token.getChainTaskId();
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                // cached by the download this one replaced
+                return true;
+            }
+        }
+        meterRegistry.counter("iexec.worker.dataset.cache.lookups", "result", "miss").increment();
+        Path downloadPath = cacheDir.resolve(key + DOWNLOAD_SUFFIX);
+        try {
+            Files.createDirectories(cacheDir);
+            Files.deleteIfExists(downloadPath);
+            String actualChecksum = downloader.download(downloadPath, download.token,
+                    download.waiters);
+            if (StringUtils.isEmpty(actualChecksum) || !Files.exists(downloadPath)) {
+                return false;
+            }
+            if (!checksum.equalsIgnoreCase(actualChecksum)) {
+                log.error("Dataset checksum mismatch, not cached [chainTaskId:{}, " +
+                        "expected:{}, actual:{}]", chainTaskId, checksum, actualChecksum);
+                return false;
+            }
+            long datasetSize = Files.size(downloadPath);
+            if (datasetSize > maxSize) {
+                log.info("Dataset bigger than the cache, not cached [chainTaskId:{}, " +
+                        "size:{}, maxSize:{}]", chainTaskId, datasetSize, maxSize);
+                Files.move(downloadPath, download.uncachedPath);
+                return true;
+            }
+            downloadPath.toFile().setWritable(false, false);
+            synchronized (this) {
+                Files.move(downloadPath, cacheDir.resolve(key),
+                        StandardCopyOption.ATOMIC_MOVE);
+                Long previousSize = entries.put(key, datasetSize);
+                size += datasetSize - (previousSize != null ? previousSize : 0);
+                evict(key);
+            }
+            log.info("Cached dataset [chainTaskId:{}, checksum:{}, size:{}, cacheSize:{}]",
+                    chainTaskId, checksum, datasetSize, getSize());
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to cache dataset [chainTaskId:{}, checksum:{}]",
+                    chainTaskId, checksum, e);
+            return false;
+        } finally {
+            deleteQuietly(downloadPath);
+        }
+    }
+
+    /**
+     * Copy a dataset too big to be cached, downloaded for the tasks waiting
+     * for it, to the input folder of a task.
+     */
+    private boolean copy(String chainTaskId, Path uncachedDataset, Path target) {
+        try (FileChannel dataset = FileChannel.open(uncachedDataset, StandardOpenOption.READ)) {
+            Files.createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+            try (FileChannel copy = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                long size = dataset.size();
+                long copied = 0;
+                while (copied < size) {
+                    copied += dataset.transferTo(copied, size - copied, copy);
+                }
+            }
+            target.toFile().setWritable(false, false);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to copy uncached dataset [chainTaskId:{}, target:{}]",
+                    chainTaskId, target, e);
+            return false;
+        }
+    }
+
+    /**
+     * Evict least recently used datasets until the cache fits its budget.
+     * Datasets pinned by tasks are kept, the cache may exceed its budget
+     * until they are released.
+     *
+     * @param keptKey dataset which must not be evicted
+     */
+    private synchronized void evict(String keptKey) {
+        // entries are not read with get() which would reorder them
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String key = entry.getKey();
+            if (key.equals(keptKey) || pins.containsValue(key)) {
+                continue;
+            }
+            size -= entry.getValue();
+            iterator.remove();
+            deleteCachedDataset(key);
+            log.info("Evicted cached dataset [key:{}, cacheSize:{}]", key, size);
+        }
+    }
+
+    private void deleteCachedDataset(String key) {
+        deleteQuietly(cacheDir.resolve(key));
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete dataset cache file [path:{}]", path, e);
+        }
+    }
+
+    /**
+     * Index datasets cached by a previous run, oldest first. They were
+     * verified when added. Recent partial downloads are kept to be resumed.
+     */
+    private synchronized void load() {
+        File[] files = cacheDir.toFile().listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (SHA256_PATTERN.matcher(file.getName()).matches()) {
+                entries.put(file.getName(), file.length());
+                size += file.length();
+            } else if (PARTIAL_DOWNLOAD_PATTERN.matcher(file.getName()).matches()
+                    && file.lastModified() > System.currentTimeMillis() - PARTIAL_DOWNLOAD_TTL) {
+                log.info("Keeping partial dataset download [file:{}]", file);
+            } else if (!file.delete()) {
+                log.warn("Failed to delete unknown file of dataset cache [file:{}]", file);
+            }
+        }
+        evict("");
+        log.info("Loaded dataset cache [datasets:{}, size:{}]", entries.size(), size);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        downloadExecutor.shutdownNow();
+    }
+
+    /**
+     * Get the cache key of a checksum.
+     * <p>
+     * e.g. "0xABC..." => "abc..."
+     *
+     * @param checksum sha256 checksum of the dataset
+     * @return key, empty if the checksum is not a valid sha256
+     */
+    static String toKey(String checksum) {
+        if (checksum == null) {
+            return "";
+        }
+        String key = checksum.toLowerCase().replaceFirst("^0x", "");
+        return SHA256_PATTERN.matcher(key).matches() ? key : "";
+    }
+
+    /**
+     * Downloads a dataset for the cache.
+     */
+    @FunctionalInterface
+    public interface Downloader {
+
+        /**
+         * @param target       path of the downloaded dataset
+         * @param token        stops the download when no task waits for it
+         * @param chainTaskIds tasks waiting for the dataset, changing while
+         *                     the dataset is downloaded
+         * @return checksum computed while downloading, empty if the download
+         * failed
+         */
+        String download(Path target, CancellationToken token, Collection<String> chainTaskIds);
+    }
+
+    /**
+     * Download of a dataset shared by the tasks waiting for it.
+     */
+    private static class SharedDownload {
+        private final CancellationToken token;
+        private final Path uncachedPath;
+        private final Set<String> waiters = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private SharedDownload(CancellationToken token, Path uncachedPath) {
+            this.token = token;
+            this.uncachedPath = uncachedPath;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Base64;
+
+/**
+ * Decryption of datasets encrypted with AES-256-CBC (PKCS#7 padding) by
+ * their owner. The encrypted file starts with the 16 bytes IV followed by
+ * the ciphertext, the key is kept by the SMS as a base64 secret.
+ * <p>
+ * Files are decrypted in a single streaming pass, in large blocks so the
+ * JCE runs its hardware accelerated (AES-NI) implementation on most of the
+ * bytes.
+ */
+final class DatasetCipher {
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int KEY_SIZE = 32;
+    private static final int BLOCK_SIZE = 16;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private DatasetCipher() {
+    }
+
+    /**
+     * Read the AES-256 key of a dataset.
+     *
+     * @param secretFile file holding the base64 key
+     * @return key of the dataset
+     */
+    static byte[] readKey(Path secretFile) throws IOException, InvalidKeyException {
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(Files.readString(secretFile).trim());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException("Dataset secret is not base64", e);
+        }
+        if (key.length != KEY_SIZE) {
+            throw new InvalidKeyException("Dataset secret is not an AES-256 key " +
+                    "[size:" + key.length + "]");
+        }
+        return key;
+    }
+
+    /**
+     * Decrypt a dataset file without holding it in memory.
+     *
+     * @param encryptedFile IV followed by the ciphertext
+     * @param decryptedFile plaintext file, created or overwritten
+     * @param key           AES-256 key of the dataset
+     * @return size of the decrypted file
+     * @throws GeneralSecurityException if the file is not encrypted with the
+     *                                  key (e.g. bad padding)
+     */
+    static long decrypt(Path encryptedFile, Path decryptedFile, byte[] key)
+            throws IOException, GeneralSecurityException {
+        try (InputStream in = Files.newInputStream(encryptedFile);
+             OutputStream out = Files.newOutputStream(decryptedFile)) {
+            byte[] iv = in.readNBytes(BLOCK_SIZE);
+            if (iv.length != BLOCK_SIZE) {
+                throw new GeneralSecurityException("Encrypted dataset is too short " +
+                        "[size:" + iv.length + "]");
+            }
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new IvParameterSpec(iv));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            // the cipher holds back up to a block to remove the padding at the end
+            byte[] plaintext = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+            long size = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int decrypted = cipher.update(buffer, 0, read, plaintext);
+                out.write(plaintext, 0, decrypted);
+                size += decrypted;
+            }
+            int decrypted = cipher.doFinal(plaintext, 0);
+            out.write(plaintext, 0, decrypted);
+            return size + decrypted;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.file.Path;
+import java.util.Optional;
+
+@RestController
+public class DatasetPeerController {
+
+    private final DatasetPeerService datasetPeerService;
+    private final DatasetCacheService datasetCacheService;
+
+    public DatasetPeerController(DatasetPeerService datasetPeerService,
+                                 DatasetCacheService datasetCacheService) {
+        this.datasetPeerService = datasetPeerService;
+        this.datasetCacheService = datasetCacheService;
+    }
+
+    /**
+     * Serve a cached dataset to a peer. Range requests are handled by Spring
+     * so peers can download large datasets by segments. Datasets are
+     * content-addressed, the checksum is consequently a strong validator.
+     */
+    @GetMapping(path = DatasetPeerService.DATASETS_PATH + "{checksum}")
+    public ResponseEntity<Resource> getDataset(@PathVariable String checksum,
+                                               HttpServletRequest request) {
+        if (!datasetPeerService.isPeer(request.getRemoteAddr())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN.value()).build();
+        }
+        Optional<Path> dataset = datasetCacheService.getCachedDataset(checksum);
+        if (dataset.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .eTag(DatasetCacheService.toKey(checksum))
+                .body(new FileSystemResource(dataset.get()));
+    }
+
+    @PostMapping(path = DatasetPeerService.ADVERTISEMENTS_PATH)
+    public ResponseEntity<Void> advertise(@RequestBody DatasetAdvertisement advertisement,
+                                          HttpServletRequest request) {
+        if (!datasetPeerService.onAdvertisement(request.getRemoteAddr(), advertisement)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN.value()).build();
+        }
+        return ResponseEntity.ok().build();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Opt-in sharing of cached datasets between workers of a same LAN.
+ * <p>
+ * Each worker periodically pushes the checksums of its cached datasets to
+ * its configured peers, and serves those datasets on
+ * {@value #DATASETS_PATH}{checksum}. Before downloading a dataset from its
+ * origin, a worker tries the peers which advertised it. Since datasets are
+ * content-addressed, a peer download is only kept if it matches the
+ * on-chain checksum.
+ * <p>
+ * Advertisements which are not renewed are forgotten after
+ * {@link #ADVERTISEMENT_TTL_PERIODS} periods, so a stopped peer is not tried
+ * for long.
+ */
+@Slf4j
+@Service
+public class DatasetPeerService {
+
+    static final String DATASETS_PATH = "/datasets/";
+    static final String ADVERTISEMENTS_PATH = DATASETS_PATH + "advertisements";
+    static final int ADVERTISEMENT_TTL_PERIODS = 3;
+    private static final Duration ADVERTISEMENT_TIMEOUT = Duration.ofSeconds(5);
+
+    private final DatasetCacheService datasetCacheService;
+    private final MeterRegistry meterRegistry;
+    private final boolean isEnabled;
+    private final String advertisedUrl;
+    private final List<String> peers;
+    private final long advertisementTtl; // in ms
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+    // peer -> last advertisement received from the peer
+    private final Map<String, ReceivedAdvertisement> advertisements;
+
+    public DatasetPeerService(
+            DatasetCacheService datasetCacheService,
+            MeterRegistry meterRegistry,
+            @Value("${worker.dataset-peers.enabled}") boolean isEnabled,
+            @Value("${worker.dataset-peers.advertised-url}") String advertisedUrl,
+            @Value("${worker.dataset-peers.peers}") String[] peers,
+            @Value("${worker.dataset-peers.advertise-period}") long advertisePeriod) {
+        this.datasetCacheService = datasetCacheService;
+        this.meterRegistry = meterRegistry;
+        this.advertisedUrl = normalize(advertisedUrl);
+        // the same peer list can be given to every worker of the LAN
+        this.peers = Arrays.stream(peers)
+                .map(DatasetPeerService::normalize)
+                .filter(peer -> !peer.isEmpty() && !peer.equals(this.advertisedUrl))
+                .distinct()
+                .collect(Collectors.toList());
+        this.isEnabled = isEnabled && !this.peers.isEmpty();
+        this.advertisementTtl = ADVERTISEMENT_TTL_PERIODS * advertisePeriod;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(ADVERTISEMENT_TIMEOUT)
+                .build();
+        this.mapper = new ObjectMapper();
+        this.advertisements = new ConcurrentHashMap<>();
+        if (this.isEnabled) {
+            log.info("Dataset sharing with peers enabled [advertisedUrl:{}, peers:{}]",
+                    this.advertisedUrl, this.peers);
+        }
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Push the checksums of cached datasets to every peer. Advertisements are
+     * sent asynchronously so an unreachable peer does not delay the others.
+     */
+    @Scheduled(fixedDelayString = "${worker.dataset-peers.advertise-period}")
+    public void advertise() {
+        if (!isEnabled || advertisedUrl.isEmpty() || !datasetCacheService.isEnabled()) {
+            return;
+        }
+        DatasetAdvertisement advertisement = DatasetAdvertisement.builder()
+                .peer(advertisedUrl)
+                .checksums(datasetCacheService.getCachedChecksums())
+                .build();
+        byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(advertisement);
+        } catch (Exception e) {
+            log.error("Failed to serialize dataset advertisement", e);
+            return;
+        }
+        for (String peer : peers) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(peer + ADVERTISEMENTS_PATH))
+                    .timeout(ADVERTISEMENT_TIMEOUT)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> {
+                        if (e != null || response.statusCode() != 200) {
+                            log.debug("Failed to advertise datasets to peer [peer:{}, status:{}]",
+                                    peer, response != null ? response.statusCode() : null, e);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Record the datasets a peer advertised, replacing its previous
+     * advertisement. The advertisement is recorded under the configured
+     * peer the caller address resolves to, the peer URL in its body is only
+     * used to tell apart several peers running on the caller host.
+     *
+     * @param remoteAddress IP address of the caller
+     * @param advertisement datasets cached by the peer
+     * @return false if the caller is not a configured peer
+     */
+    public boolean onAdvertisement(String remoteAddress, DatasetAdvertisement advertisement) {
+        List<String> callerPeers = findPeers(remoteAddress);
+        String peer = callerPeers.size() == 1
+                ? callerPeers.get(0)
+                : normalize(advertisement.getPeer());
+        if (!callerPeers.contains(peer)) {
+            log.warn("Rejected dataset advertisement of unknown peer [remoteAddress:{}, peer:{}]",
+                    remoteAddress, advertisement.getPeer());
+            return false;
+        }
+        Set<String> keys = advertisement.getChecksums() == null
+                ? Collections.emptySet()
+                : advertisement.getChecksums().stream()
+                        .map(DatasetCacheService::toKey)
+                        .filter(key -> !key.isEmpty())
+                        .collect(Collectors.toSet());
+        advertisements.put(peer, new ReceivedAdvertisement(keys, System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Get the URIs of a dataset on the peers which recently advertised it,
+     * in random order to spread the load between peers.
+     *
+     * @param checksum on-chain sha256 checksum of the dataset
+     * @return URIs to try before the origin, empty if none
+     */
+    public List<String> getPeerUris(String checksum) {
+        String key = DatasetCacheService.toKey(checksum);
+        if (!isEnabled || key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<String> uris = new ArrayList<>();
+        advertisements.forEach((peer, advertisement) -> {
+            if (now - advertisement.receivedAt <= advertisementTtl
+                    && advertisement.keys.contains(key)) {
+                uris.add(peer + DATASETS_PATH + key);
+            }
+        });
+        Collections.shuffle(uris);
+        return uris;
+    }
+
+    /**
+     * Record the outcome of a dataset download from a peer. A peer which
+     * failed to serve a dataset is not tried again for it until its next
+     * advertisement.
+     *
+     * @param peerUri      URI returned by {@link #getPeerUris(String)}
+     * @param isSuccessful true if the dataset was downloaded and verified
+     */
+    public void recordDownload(String peerUri, boolean isSuccessful) {
+        meterRegistry.counter("iexec.worker.dataset.peer.downloads",
+                "result", isSuccessful ? "success" : "failure").increment();
+        if (isSuccessful) {
+            return;
+        }
+        int separator = peerUri.lastIndexOf(DATASETS_PATH);
+        if (separator < 0) {
+            return;
+        }
+        ReceivedAdvertisement advertisement = advertisements.get(peerUri.substring(0, separator));
+        if (advertisement != null) {
+            advertisement.keys.remove(peerUri.substring(separator + DATASETS_PATH.length()));
+        }
+    }
+
+    /**
+     * Only configured peers may fetch datasets from this worker.
+     *
+     * @param remoteAddress IP address of the caller
+     * @return true if the address is one of a configured peer
+     */
+    public boolean isPeer(String remoteAddress) {
+        return !findPeers(remoteAddress).isEmpty();
+    }
+
+    /**
+     * Get the configured peers whose host resolves to an address.
+     *
+     * @param remoteAddress IP address of the caller
+     * @return base URLs of the peers, several if they share a host
+     */
+    List<String> findPeers(String remoteAddress) {
+        if (!isEnabled || StringUtils.isEmpty(remoteAddress)) {
+            return Collections.emptyList();
+        }
+        List<String> matchingPeers = new ArrayList<>();
+        for (String peer : peers) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(URI.create(peer).getHost())) {
+                    if (address.getHostAddress().equals(remoteAddress)) {
+                        matchingPeers.add(peer);
+                        break;
+                    }
+                }
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                log.debug("Failed to resolve peer [peer:{}]", peer, e);
+            }
+        }
+        return matchingPeers;
+    }
+
+    /**
+     * e.g. " http://worker-2:13100/ " => "http://worker-2:13100"
+     */
+    static String normalize(String url) {
+        return url == null ? "" : StringUtils.removeEnd(url.trim(), "/");
+    }
+
+    private static class ReceivedAdvertisement {
+        private final Set<String> keys;
+        private final long receivedAt;
+
+        ReceivedAdvertisement(Set<String> keys, long receivedAt) {
+            this.keys = ConcurrentHashMap.newKeySet();
+            this.keys.addAll(keys);
+            this.receivedAt = receivedAt;
+        }
+    }
+}
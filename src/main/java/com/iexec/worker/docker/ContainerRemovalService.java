@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.exception.NotModifiedException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Reaper stopping and removing containers in the background, in parallel
+ * with a bounded concurrency, so removals stay off the critical path of
+ * tasks, aborts and restarts.
+ * <p>
+ * Containers are stopped with a short kill timeout: once it is over, the
+ * container is killed. A container still awaited by its run is only stopped
+ * (see {@link #stopAsync(String)}), its removal is left to the run.
+ */
+@Slf4j
+@Service
+public class ContainerRemovalService {
+
+    private final DockerTransportService dockerTransportService;
+    private final int killTimeout; // in s
+    private final ExecutorService removalExecutor;
+
+    public ContainerRemovalService(
+            DockerTransportService dockerTransportService,
+            @Value("${docker.removal.parallelism}") int parallelism,
+            @Value("${docker.removal.kill-timeout}") int killTimeout) {
+        this.dockerTransportService = dockerTransportService;
+        this.killTimeout = Math.max(0, killTimeout);
+        this.removalExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Stop and remove a container in the background.
+     *
+     * @param containerName name of the container
+     * @return future completed with true if the container is gone
+     */
+    public CompletableFuture<Boolean> stopAndRemoveAsync(String containerName) {
+        return CompletableFuture.supplyAsync(() -> stopAndRemove(containerName),
+                removalExecutor);
+    }
+
+    /**
+     * Stop a container in the background without removing it, so the run
+     * waiting for its exit can still read its exit code and logs.
+     *
+     * @param containerName name of the container
+     * @return future completed with true if the container is stopped
+     */
+    public CompletableFuture<Boolean> stopAsync(String containerName) {
+        return CompletableFuture.supplyAsync(() -> stop(containerName), removalExecutor);
+    }
+
+    /**
+     * Stop and remove containers in parallel and wait for all of them.
+     *
+     * @param containerNames names of the containers
+     * @return names of the containers which could not be removed
+     */
+    public List<String> stopAndRemoveAll(Collection<String> containerNames) {
+        Map<String, CompletableFuture<Boolean>> removals = containerNames.stream()
+                .distinct()
+                .collect(Collectors.toMap(name -> name, this::stopAndRemoveAsync));
+        return removals.entrySet().stream()
+                .filter(removal -> !removal.getValue()
+                        .exceptionally(e -> false)
+                        .join())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stop and remove a container in the calling thread.
+     *
+     * @param containerName name of the container
+     * @return true if the container is gone
+     */
+    public boolean stopAndRemove(String containerName) {
+        DockerClient client = dockerTransportService.getControlClient();
+        long start = System.currentTimeMillis();
+        try {
+            client.stopContainerCmd(containerName).withTimeout(killTimeout).exec();
+        } catch (NotModifiedException e) {
+            // already stopped
+        } catch (NotFoundException e) {
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to stop container [containerName:{}]", containerName, e);
+            return false;
+        }
+        try {
+            client.removeContainerCmd(containerName).withForce(true).exec();
+        } catch (NotFoundException e) {
+            // already removed (e.g. by the thread watching its exit)
+        } catch (Exception e) {
+            log.error("Failed to remove container [containerName:{}]", containerName, e);
+            return false;
+        }
+        log.info("Stopped and removed container [containerName:{}, duration:{}ms]",
+                containerName, System.currentTimeMillis() - start);
+        return true;
+    }
+
+    private boolean stop(String containerName) {
+        try {
+            dockerTransportService.getControlClient().stopContainerCmd(containerName)
+                    .withTimeout(killTimeout).exec();
+        } catch (NotModifiedException | NotFoundException e) {
+            // already stopped or removed
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to stop container [containerName:{}]", containerName, e);
+            return false;
+        }
+        log.info("Stopped container [containerName:{}]", containerName);
+        return true;
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        removalExecutor.shutdown();
+        // let queued removals finish (at most a kill timeout each)
+        if (!removalExecutor.awaitTermination(killTimeout + 10L, TimeUnit.SECONDS)) {
+            log.warn("Some containers may not have been removed before shutdown");
+            removalExecutor.shutdownNow();
+        }
+    }
+}
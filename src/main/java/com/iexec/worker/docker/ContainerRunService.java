@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.WaitContainerResultCallback;
+import com.github.dockerjava.api.exception.DockerClientException;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.exception.NotModifiedException;
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+import com.iexec.common.docker.DockerLogs;
+import com.iexec.common.docker.DockerRunRequest;
+import com.iexec.common.docker.DockerRunResponse;
+import com.iexec.common.docker.client.DockerClientFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run containers on the worker Docker API pools (see
+ * {@link DockerTransportService}): waiting for the exit of a container and
+ * reading its logs last as long as the container runs, so they go through
+ * the streaming pool while start and stop go through the control pool.
+ * <p>
+ * Containers are still created by iexec-common so their host configuration
+ * (binds, SGX device, network) is unchanged. Exited containers are not
+ * removed here but handed to {@link ContainerRemovalService} by the caller,
+ * so removals stay off the critical path of tasks.
+ */
+@Slf4j
+@Service
+public class ContainerRunService {
+
+    private final DockerTransportService dockerTransportService;
+
+    public ContainerRunService(DockerTransportService dockerTransportService) {
+        this.dockerTransportService = dockerTransportService;
+    }
+
+    /**
+     * Create and start a container. Unless the container is detached
+     * (maxExecutionTime = 0), wait for its exit (or stop it once its max
+     * execution time is reached) and read its logs. The container is left
+     * behind for the caller to remove.
+     *
+     * @param dockerRunRequest docker run request
+     * @return docker run response, successful if the container exited with 0
+     */
+    public DockerRunResponse run(DockerRunRequest dockerRunRequest) {
+        String containerName = dockerRunRequest.getContainerName();
+        DockerRunResponse failure = DockerRunResponse.builder()
+                .isSuccessful(false)
+                .build();
+        if (StringUtils.isEmpty(createContainer(dockerRunRequest))) {
+            log.error("Failed to create container [containerName:{}]", containerName);
+            return failure;
+        }
+        DockerClient controlClient = dockerTransportService.getControlClient();
+        try {
+            controlClient.startContainerCmd(containerName).exec();
+        } catch (Exception e) {
+            log.error("Failed to start container [containerName:{}]", containerName, e);
+            return failure;
+        }
+        if (dockerRunRequest.getMaxExecutionTime() == 0) {
+            return DockerRunResponse.builder()
+                    .isSuccessful(true)
+                    .build();
+        }
+        Optional<Integer> exitCode =
+                waitForExit(containerName, dockerRunRequest.getMaxExecutionTime());
+        if (exitCode.isEmpty()) {
+            stop(controlClient, containerName);
+        }
+        DockerLogs dockerLogs = getLogs(containerName);
+        return DockerRunResponse.builder()
+                .isSuccessful(exitCode.isPresent() && exitCode.get() == 0)
+                .containerExitCode(exitCode.orElse(-1))
+                .dockerLogs(dockerLogs)
+                .build();
+    }
+
+    /**
+     * Create a container with iexec-common.
+     *
+     * @param dockerRunRequest docker run request
+     * @return id of the created container, empty if not created
+     */
+    String createContainer(DockerRunRequest dockerRunRequest) {
+        return DockerClientFactory.getDockerClientInstance()
+                .createContainer(dockerRunRequest);
+    }
+
+    /**
+     * Wait for the exit of a container.
+     *
+     * @param containerName name of the container
+     * @param timeout       max time to wait for, in ms
+     * @return exit code, empty if the container did not exit in time
+     */
+    Optional<Integer> waitForExit(String containerName, long timeout) {
+        try (WaitContainerResultCallback callback = dockerTransportService.getStreamingClient()
+                .waitContainerCmd(containerName)
+                .exec(new WaitContainerResultCallback())) {
+            return Optional.of(callback.awaitStatusCode(timeout, TimeUnit.MILLISECONDS));
+        } catch (DockerClientException e) {
+            log.warn("Container did not exit before max execution time " +
+                    "[containerName:{}, maxExecutionTime:{}ms]", containerName, timeout);
+        } catch (Exception e) {
+            log.error("Failed to wait for container exit [containerName:{}]",
+                    containerName, e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Read stdout and stderr of an exited container.
+     *
+     * @param containerName name of the container
+     * @return logs, empty if they could not be read
+     */
+    DockerLogs getLogs(String containerName) {
+        ContainerLogsCollector collector = new ContainerLogsCollector();
+        try {
+            dockerTransportService.getStreamingClient()
+                    .logContainerCmd(containerName)
+                    .withStdOut(true)
+                    .withStdErr(true)
+                    .exec(collector)
+                    .awaitCompletion();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while reading container logs [containerName:{}]",
+                    containerName);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Failed to read container logs [containerName:{}]", containerName, e);
+        }
+        return collector.getLogs();
+    }
+
+    private void stop(DockerClient client, String containerName) {
+        try {
+            client.stopContainerCmd(containerName).exec();
+        } catch (NotModifiedException | NotFoundException e) {
+            // already stopped or removed (e.g. task cancelled)
+        } catch (Exception e) {
+            log.error("Failed to stop container [containerName:{}]", containerName, e);
+        }
+    }
+
+    /**
+     * Collect the multiplexed log frames of a container, split by stream.
+     */
+    static class ContainerLogsCollector extends ResultCallback.Adapter<Frame> {
+
+        private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void onNext(Frame frame) {
+            byte[] payload = frame.getPayload();
+            if (payload == null) {
+                return;
+            }
+            ByteArrayOutputStream stream = frame.getStreamType() == StreamType.STDERR
+                    ? stderr
+                    : stdout;
+            stream.write(payload, 0, payload.length);
+        }
+
+        synchronized DockerLogs getLogs() {
+            return DockerLogs.builder()
+                    .stdout(stdout.toString(StandardCharsets.UTF_8))
+                    .stderr(stderr.toString(StandardCharsets.UTF_8))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+@Slf4j
+@RestController
+public class ContainerStatsController {
+
+    private final ContainerStatsService containerStatsService;
+
+    public ContainerStatsController(ContainerStatsService containerStatsService) {
+        this.containerStatsService = containerStatsService;
+    }
+
+    /**
+     * Serve the sampled stats of a task container to profile an app. Stats
+     * are kept until the replicate is completed or aborted. Only the worker
+     * host can read them.
+     */
+    @GetMapping(path = "/tasks/{chainTaskId}/containers/{containerName}/stats")
+    public ResponseEntity<List<ContainerStatsSample>> getTimeSeries(@PathVariable String chainTaskId,
+                                                                    @PathVariable String containerName,
+                                                                    HttpServletRequest request) {
+        if (!isLoopback(request.getRemoteAddr())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN.value()).build();
+        }
+        List<ContainerStatsSample> samples =
+                containerStatsService.getTimeSeries(chainTaskId, containerName);
+        if (samples.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(samples);
+    }
+
+    static boolean isLoopback(String remoteAddress) {
+        try {
+            // remote address is an IP, no name resolution happens
+            return InetAddress.getByName(remoteAddress).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            log.warn("Invalid remote address [remoteAddress:{}]", remoteAddress);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.BlkioStatEntry;
+import com.github.dockerjava.api.model.BlkioStatsConfig;
+import com.github.dockerjava.api.model.CpuStatsConfig;
+import com.github.dockerjava.api.model.MemoryStatsConfig;
+import com.github.dockerjava.api.model.StatisticNetworksConfig;
+import com.github.dockerjava.api.model.Statistics;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Sample Docker stats (CPU, memory, block I/O, network) of running pre,
+ * app and post containers. A compact time series is kept per task until
+ * the replicate is completed or aborted so apps can be profiled (see
+ * {@link ContainerStatsController}), and a bounded summary is reported
+ * in the details of the computed status.
+ * <p>
+ * The summary of every exited container is also recorded as metrics. It is
+ * never attached to the task stdout sent to the core.
+ */
+@Slf4j
+@Service
+public class ContainerStatsService {
+
+    // above this size, every other sample is dropped and the period doubled
+    static final int MAX_SAMPLES_PER_CONTAINER = 512;
+
+    private final boolean isEnabled;
+    private final long samplingPeriod;
+    // chainTaskId -> recorders of the task containers
+    private final Map<String, List<ContainerStatsRecorder>> taskRecorders;
+    // containerName -> recorder of the running container
+    private final Map<String, ContainerStatsRecorder> runningRecorders;
+    // chainTaskId -> containers already exited, sampling may start late
+    private final Map<String, Set<String>> stoppedContainers;
+    private final DistributionSummary cpuPercentAvgSummary;
+    private final DistributionSummary memoryPeakSummary;
+
+    public ContainerStatsService(
+            @Value("${worker.container-stats.enabled}") boolean isEnabled,
+            @Value("${worker.container-stats.sampling-period}") long samplingPeriod,
+            MeterRegistry meterRegistry) {
+        this.isEnabled = isEnabled;
+        this.samplingPeriod = samplingPeriod;
+        this.taskRecorders = new ConcurrentHashMap<>();
+        this.runningRecorders = new ConcurrentHashMap<>();
+        this.stoppedContainers = new ConcurrentHashMap<>();
+        this.cpuPercentAvgSummary = DistributionSummary
+                .builder("iexec.worker.container.stats.cpu.percent.avg")
+                .description("Average CPU usage of exited containers")
+                .baseUnit("percent")
+                .register(meterRegistry);
+        this.memoryPeakSummary = DistributionSummary
+                .builder("iexec.worker.container.stats.memory.peak")
+                .description("Peak memory usage of exited containers")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Start streaming stats of a running container. Sampling is started in
+     * the background once the container runs, so it is skipped if the
+     * container already exited.
+     *
+     * @param client        Docker client
+     * @param chainTaskId   task of the container
+     * @param containerName name of the running container
+     * @param cpuset        cpuset of the container if pinned, null otherwise
+     */
+    public void startSampling(DockerClient client, String chainTaskId,
+                              String containerName, String cpuset) {
+        if (!isEnabled) {
+            return;
+        }
+        ContainerStatsRecorder recorder =
+                new ContainerStatsRecorder(containerName, cpuset, samplingPeriod);
+        synchronized (this) {
+            if (isStopped(chainTaskId, containerName)) {
+                log.debug("Container exited before stats sampling [chainTaskId:{}, " +
+                        "containerName:{}]", chainTaskId, containerName);
+                return;
+            }
+            taskRecorders.computeIfAbsent(chainTaskId, key -> new CopyOnWriteArrayList<>())
+                    .add(recorder);
+            runningRecorders.put(containerName, recorder);
+        }
+        try {
+            client.statsCmd(containerName).exec(recorder);
+            log.debug("Started sampling container stats [chainTaskId:{}, containerName:{}]",
+                    chainTaskId, containerName);
+        } catch (Exception e) {
+            runningRecorders.remove(containerName, recorder);
+            log.error("Failed to sample container stats [chainTaskId:{}, containerName:{}]",
+                    chainTaskId, containerName, e);
+            return;
+        }
+        if (runningRecorders.get(containerName) != recorder) {
+            // stopped while the stream was opening, close the opened stream
+            closeQuietly(containerName, recorder);
+        }
+    }
+
+    /**
+     * Stop streaming stats of an exited container. The container is marked
+     * as stopped so a sampling started late is skipped.
+     *
+     * @param chainTaskId   task of the container
+     * @param containerName name of the exited container
+     */
+    public void stopSampling(String chainTaskId, String containerName) {
+        ContainerStatsRecorder recorder;
+        synchronized (this) {
+            if (isEnabled && chainTaskId != null) {
+                stoppedContainers.computeIfAbsent(chainTaskId, key -> ConcurrentHashMap.newKeySet())
+                        .add(containerName);
+            }
+            recorder = runningRecorders.remove(containerName);
+        }
+        if (recorder == null) {
+            return;
+        }
+        closeQuietly(containerName, recorder);
+        ContainerStatsSummary summary = recorder.getSummary();
+        if (summary.getSampleCount() > 0) {
+            cpuPercentAvgSummary.record(summary.getCpuPercentAvg());
+            memoryPeakSummary.record(summary.getMemoryPeak());
+        }
+    }
+
+    /**
+     * Get the resource usage summary of every sampled container of a task.
+     *
+     * @param chainTaskId id of the task
+     * @return summaries, in containers start order
+     */
+    public List<ContainerStatsSummary> getTaskStatsSummaries(String chainTaskId) {
+        return taskRecorders.getOrDefault(chainTaskId, Collections.emptyList())
+                .stream()
+                .map(ContainerStatsRecorder::getSummary)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the sampled time series of a container of a task.
+     *
+     * @param chainTaskId   id of the task
+     * @param containerName name of the container
+     * @return samples, oldest first
+     */
+    public List<ContainerStatsSample> getTimeSeries(String chainTaskId, String containerName) {
+        return taskRecorders.getOrDefault(chainTaskId, Collections.emptyList())
+                .stream()
+                .filter(recorder -> recorder.getContainerName().equals(containerName))
+                .findFirst()
+                .map(ContainerStatsRecorder::getSamples)
+                .orElse(Collections.emptyList());
+    }
+
+    /**
+     * Get a printable summary of the task containers stats, to be logged
+     * once the task is computed.
+     *
+     * @param chainTaskId id of the task
+     * @return one line per sampled container, empty if nothing was sampled
+     */
+    public String getTaskStatsReport(String chainTaskId) {
+        return getTaskStatsSummaries(chainTaskId).stream()
+                .map(summary -> "[IEXEC] Container stats " + summary.toPrettyString())
+                .collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Drop the stats of a task once its replicate is completed or aborted.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void removeTaskStats(String chainTaskId) {
+        List<ContainerStatsRecorder> recorders;
+        synchronized (this) {
+            recorders = taskRecorders.remove(chainTaskId);
+            stoppedContainers.remove(chainTaskId);
+        }
+        if (recorders != null) {
+            recorders.forEach(recorder -> stopSampling(null, recorder.getContainerName()));
+        }
+    }
+
+    private boolean isStopped(String chainTaskId, String containerName) {
+        return stoppedContainers.getOrDefault(chainTaskId, Collections.emptySet())
+                .contains(containerName);
+    }
+
+    private static void closeQuietly(String containerName, ContainerStatsRecorder recorder) {
+        try {
+            recorder.close();
+        } catch (Exception e) {
+            log.warn("Failed to close container stats stream [containerName:{}]",
+                    containerName, e);
+        }
+    }
+
+    /**
+     * Receive the Docker stats stream of a container (about one entry per
+     * second) and keep one sample per sampling period. Aggregates are updated
+     * on every entry so the summary stays accurate whatever the period.
+     */
+    static class ContainerStatsRecorder extends ResultCallback.Adapter<Statistics> {
+
+        private final String containerName;
+        private final String cpuset;
+        private final List<ContainerStatsSample> samples;
+        private long period;
+        private long lastSampleTimestamp;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private int entryCount;
+        private double cpuPercentSum;
+        private double cpuPercentMax;
+        private long memoryRssMax;
+        private long memoryPeak;
+        private ContainerStatsSample last;
+
+        ContainerStatsRecorder(String containerName, String cpuset, long period) {
+            this.containerName = containerName;
+            this.cpuset = cpuset;
+            this.period = period;
+            this.samples = new ArrayList<>();
+        }
+
+        String getContainerName() {
+            return containerName;
+        }
+
+        @Override
+        public void onNext(Statistics statistics) {
+            record(toSample(statistics), statistics.getMemoryStats());
+        }
+
+        synchronized void record(ContainerStatsSample sample, MemoryStatsConfig memoryStats) {
+            long now = sample.getTimestamp();
+            if (entryCount == 0) {
+                firstTimestamp = now;
+            }
+            lastTimestamp = now;
+            entryCount++;
+            cpuPercentSum += sample.getCpuPercent();
+            cpuPercentMax = Math.max(cpuPercentMax, sample.getCpuPercent());
+            memoryRssMax = Math.max(memoryRssMax, sample.getMemoryRss());
+            long maxUsage = memoryStats != null ? nonNull(memoryStats.getMaxUsage()) : 0;
+            memoryPeak = Math.max(memoryPeak, Math.max(maxUsage, sample.getMemoryUsage()));
+            last = sample;
+            if (!samples.isEmpty() && now - lastSampleTimestamp < period) {
+                return;
+            }
+            samples.add(sample);
+            lastSampleTimestamp = now;
+            if (samples.size() > MAX_SAMPLES_PER_CONTAINER) {
+                // keep the series compact for long running containers
+                List<ContainerStatsSample> kept = new ArrayList<>();
+                for (int i = 0; i < samples.size(); i += 2) {
+                    kept.add(samples.get(i));
+                }
+                samples.clear();
+                samples.addAll(kept);
+                period *= 2;
+            }
+        }
+
+        synchronized List<ContainerStatsSample> getSamples() {
+            return new ArrayList<>(samples);
+        }
+
+        synchronized ContainerStatsSummary getSummary() {
+            ContainerStatsSummary.ContainerStatsSummaryBuilder summary =
+                    ContainerStatsSummary.builder()
+                            .containerName(containerName)
+                            .cpuset(cpuset)
+                            .sampleCount(samples.size());
+            if (entryCount == 0) {
+                return summary.build();
+            }
+            return summary
+                    .durationMs(lastTimestamp - firstTimestamp)
+                    .cpuPercentAvg(cpuPercentSum / entryCount)
+                    .cpuPercentMax(cpuPercentMax)
+                    .memoryRssMax(memoryRssMax)
+                    .memoryPeak(memoryPeak)
+                    // I/O counters are cumulative since container start
+                    .blockRead(last.getBlockRead())
+                    .blockWrite(last.getBlockWrite())
+                    .networkRx(last.getNetworkRx())
+                    .networkTx(last.getNetworkTx())
+                    .build();
+        }
+
+        static ContainerStatsSample toSample(Statistics statistics) {
+            ContainerStatsSample.ContainerStatsSampleBuilder sample =
+                    ContainerStatsSample.builder()
+                            .timestamp(System.currentTimeMillis())
+                            .cpuPercent(getCpuPercent(statistics.getCpuStats(),
+                                    statistics.getPreCpuStats()));
+            MemoryStatsConfig memoryStats = statistics.getMemoryStats();
+            if (memoryStats != null) {
+                sample.memoryUsage(nonNull(memoryStats.getUsage()));
+                sample.memoryRss(memoryStats.getStats() != null
+                        ? nonNull(memoryStats.getStats().getRss())
+                        : nonNull(memoryStats.getUsage()));
+            }
+            BlkioStatsConfig blkioStats = statistics.getBlkioStats();
+            if (blkioStats != null && blkioStats.getIoServiceBytesRecursive() != null) {
+                long read = 0;
+                long write = 0;
+                for (BlkioStatEntry entry : blkioStats.getIoServiceBytesRecursive()) {
+                    if ("read".equalsIgnoreCase(entry.getOp())) {
+                        read += nonNull(entry.getValue());
+                    } else if ("write".equalsIgnoreCase(entry.getOp())) {
+                        write += nonNull(entry.getValue());
+                    }
+                }
+                sample.blockRead(read).blockWrite(write);
+            }
+            Map<String, StatisticNetworksConfig> networks = statistics.getNetworks();
+            if (networks != null) {
+                sample.networkRx(networks.values().stream()
+                        .mapToLong(network -> nonNull(network.getRxBytes())).sum());
+                sample.networkTx(networks.values().stream()
+                        .mapToLong(network -> nonNull(network.getTxBytes())).sum());
+            }
+            return sample.build();
+        }
+
+        /**
+         * Compute CPU usage the same way "docker stats" does. 100% means one
+         * CPU is fully used.
+         */
+        static double getCpuPercent(CpuStatsConfig cpuStats, CpuStatsConfig preCpuStats) {
+            if (cpuStats == null || preCpuStats == null
+                    || cpuStats.getCpuUsage() == null || preCpuStats.getCpuUsage() == null) {
+                return 0;
+            }
+            long cpuDelta = nonNull(cpuStats.getCpuUsage().getTotalUsage())
+                    - nonNull(preCpuStats.getCpuUsage().getTotalUsage());
+            long systemDelta = nonNull(cpuStats.getSystemCpuUsage())
+                    - nonNull(preCpuStats.getSystemCpuUsage());
+            if (cpuDelta <= 0 || systemDelta <= 0) {
+                return 0;
+            }
+            long onlineCpus = cpuStats.getOnlineCpus() != null && cpuStats.getOnlineCpus() > 0
+                    ? cpuStats.getOnlineCpus()
+                    : 1;
+            return (double) cpuDelta / systemDelta * onlineCpus * 100;
+        }
+
+        private static long nonNull(Long value) {
+            return value != null ? value : 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Resource usage summary of a container, built from its sampled stats.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ContainerStatsSummary {
+
+    private String containerName;
+    private String cpuset;
+    private int sampleCount;
+    private long durationMs;
+    private double cpuPercentAvg;
+    private double cpuPercentMax;
+    private long memoryRssMax;
+    private long memoryPeak;
+    private long blockRead;
+    private long blockWrite;
+    private long networkRx;
+    private long networkTx;
+
+    /**
+     * Get a compact one-line representation of the summary.
+     * <p>
+     * e.g. "worker-0xabc[duration:12s, cpuAvg:95.1%, cpuMax:100.0%, ...]"
+     *
+     * @return printable summary
+     */
+    public String toPrettyString() {
+        return String.format("%s[duration:%ds, cpuset:%s, cpuAvg:%.1f%%, cpuMax:%.1f%%, " +
+                        "rssMax:%dMB, memPeak:%dMB, blkRead:%dMB, blkWrite:%dMB, " +
+                        "netRx:%dMB, netTx:%dMB, samples:%d]",
+                containerName, durationMs / 1000, cpuset != null ? cpuset : "none",
+                cpuPercentAvg, cpuPercentMax, toMb(memoryRssMax), toMb(memoryPeak),
+                toMb(blockRead), toMb(blockWrite), toMb(networkRx), toMb(networkTx),
+                sampleCount);
+    }
+
+    private static long toMb(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+}
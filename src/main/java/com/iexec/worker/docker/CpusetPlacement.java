@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Exclusive set of CPUs (and NUMA memory node if any) given
+ * to a running compute container.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CpusetPlacement {
+
+    private String chainTaskId;
+    private String containerName;
+    private int node;
+    private List<Integer> cpus;
+    // false on single node hosts, no memory node is then set
+    private boolean isNumaAware;
+
+    /**
+     * Get the value expected by Docker "--cpuset-cpus" option.
+     * <p>
+     * e.g. "0,1,2,3"
+     *
+     * @return comma separated list of CPUs
+     */
+    public String getCpusetCpus() {
+        return cpus.stream()
+                .map(String::valueOf)
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Get the value expected by Docker "--cpuset-mems" option.
+     *
+     * @return memory node of the placement, null if the host
+     * does not expose a NUMA topology
+     */
+    public String getCpusetMems() {
+        return isNumaAware ? String.valueOf(node) : null;
+    }
+}
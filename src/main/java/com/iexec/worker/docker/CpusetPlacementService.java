@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Optional placement engine giving each running compute container an
+ * exclusive set of CPUs. On multi-socket hosts, the CPUs are taken from a
+ * single NUMA node and the container memory is bound to that node too, so
+ * containers do not bounce between sockets.
+ * <p>
+ * The NUMA topology is read from {@link #SYSFS_NODE_DIR}. If it is not
+ * exposed, all online CPUs are considered as a single node and no memory
+ * node is set.
+ * <p>
+ * Placements applied to the containers of a task are kept until the task
+ * is over so they can be reported with the task.
+ */
+@Slf4j
+@Service
+public class CpusetPlacementService {
+
+    static final String SYSFS_NODE_DIR = "/sys/devices/system/node";
+    private static final Pattern NODE_DIR_PATTERN = Pattern.compile("^node(\\d+)$");
+
+    private final boolean isEnabled;
+    private final int cpusPerContainer;
+    // NUMA node -> CPUs of the node
+    private final Map<Integer, List<Integer>> topology;
+    // allocated CPU -> name of the container holding it
+    private final Map<Integer, String> allocatedCpus;
+    // container name -> placement
+    private final Map<String, CpusetPlacement> placements;
+    // chainTaskId -> placements applied to containers of the task
+    private final Map<String, List<CpusetPlacement>> taskPlacements;
+    private final MeterRegistry meterRegistry;
+
+    public CpusetPlacementService(
+            @Value("${worker.cpuset.enabled}") boolean isEnabled,
+            @Value("${worker.cpuset.cpus-per-container}") int cpusPerContainer,
+            MeterRegistry meterRegistry) {
+        this(isEnabled, cpusPerContainer, meterRegistry, Paths.get(SYSFS_NODE_DIR));
+    }
+
+    CpusetPlacementService(boolean isEnabled,
+                           int cpusPerContainer,
+                           MeterRegistry meterRegistry,
+                           Path sysfsNodeDir) {
+        this.isEnabled = isEnabled;
+        this.cpusPerContainer = Math.max(1, cpusPerContainer);
+        this.topology = isEnabled ? readTopology(sysfsNodeDir) : Collections.emptyMap();
+        this.allocatedCpus = new HashMap<>();
+        this.placements = new ConcurrentHashMap<>();
+        this.taskPlacements = new ConcurrentHashMap<>();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("iexec.worker.cpuset.allocated.cpus", allocatedCpus, Map::size)
+                .description("CPUs exclusively allocated to running compute containers")
+                .register(meterRegistry);
+        if (isEnabled) {
+            log.info("Cpuset placement enabled [cpusPerContainer:{}, topology:{}]",
+                    this.cpusPerContainer, topology);
+        }
+    }
+
+    public boolean isEnabled() {
+        return isEnabled && !topology.isEmpty();
+    }
+
+    /**
+     * Reserve an exclusive set of CPUs for a container. CPUs are taken from
+     * the NUMA node having the most free CPUs.
+     *
+     * @param chainTaskId   task of the container
+     * @param containerName name of the container
+     * @return the placement if enough free CPUs were found on a single node,
+     * empty otherwise (container will then run unpinned)
+     */
+    public synchronized Optional<CpusetPlacement> acquire(String chainTaskId, String containerName) {
+        if (!isEnabled() || StringUtils.isEmpty(containerName)) {
+            return Optional.empty();
+        }
+        if (placements.containsKey(containerName)) {
+            return Optional.of(placements.get(containerName));
+        }
+        Integer bestNode = null;
+        List<Integer> bestNodeFreeCpus = Collections.emptyList();
+        for (Map.Entry<Integer, List<Integer>> entry : topology.entrySet()) {
+            List<Integer> freeCpus = new ArrayList<>(entry.getValue());
+            freeCpus.removeAll(allocatedCpus.keySet());
+            if (freeCpus.size() >= cpusPerContainer
+                    && freeCpus.size() > bestNodeFreeCpus.size()) {
+                bestNode = entry.getKey();
+                bestNodeFreeCpus = freeCpus;
+            }
+        }
+        if (bestNode == null) {
+            log.warn("Not enough free CPUs on a single node, container will " +
+                    "not be pinned [chainTaskId:{}, containerName:{}, allocatedCpus:{}]",
+                    chainTaskId, containerName, allocatedCpus.keySet());
+            return Optional.empty();
+        }
+        List<Integer> cpus = new ArrayList<>(bestNodeFreeCpus.subList(0, cpusPerContainer));
+        cpus.forEach(cpu -> allocatedCpus.put(cpu, containerName));
+        CpusetPlacement placement = CpusetPlacement.builder()
+                .chainTaskId(chainTaskId)
+                .containerName(containerName)
+                .node(bestNode)
+                .cpus(cpus)
+                .isNumaAware(topology.size() > 1)
+                .build();
+        placements.put(containerName, placement);
+        meterRegistry.counter("iexec.worker.cpuset.placements",
+                "node", String.valueOf(bestNode)).increment();
+        return Optional.of(placement);
+    }
+
+    /**
+     * Free the CPUs held by a container.
+     *
+     * @param containerName name of the exited container
+     */
+    public synchronized void release(String containerName) {
+        CpusetPlacement placement = placements.remove(containerName);
+        if (placement == null) {
+            return;
+        }
+        placement.getCpus().forEach(allocatedCpus::remove);
+        log.info("Released cpuset [chainTaskId:{}, containerName:{}, cpus:{}]",
+                placement.getChainTaskId(), containerName, placement.getCpusetCpus());
+    }
+
+    public Optional<CpusetPlacement> getPlacement(String containerName) {
+        return Optional.ofNullable(placements.get(containerName));
+    }
+
+    /**
+     * Get placements applied to the containers of a task, including
+     * containers which already exited.
+     *
+     * @param chainTaskId id of the task
+     * @return placements in pinning order
+     */
+    public List<CpusetPlacement> getTaskPlacements(String chainTaskId) {
+        return new ArrayList<>(taskPlacements.getOrDefault(chainTaskId,
+                Collections.emptyList()));
+    }
+
+    /**
+     * Forget placements of a task which is over.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void removeTaskPlacements(String chainTaskId) {
+        taskPlacements.remove(chainTaskId);
+    }
+
+    /**
+     * Apply the placement to a running container. Docker containers are
+     * created and started by a blocking run call, the cpuset is consequently
+     * updated on the live container.
+     *
+     * @param client    Docker client
+     * @param placement placement to apply
+     * @return true if the container was pinned
+     */
+    public boolean pin(DockerClient client, CpusetPlacement placement) {
+        String containerName = placement.getContainerName();
+        if (!placements.containsKey(containerName)) {
+            // container already exited and released its cpuset
+            return false;
+        }
+        try {
+            client.updateContainerCmd(containerName)
+                    .withCpusetCpus(placement.getCpusetCpus())
+                    .withCpusetMems(placement.getCpusetMems())
+                    .exec();
+        } catch (Exception e) {
+            log.error("Failed to pin container [chainTaskId:{}, containerName:{}]",
+                    placement.getChainTaskId(), containerName, e);
+            return false;
+        }
+        log.info("Pinned container [chainTaskId:{}, containerName:{}, node:{}, " +
+                        "cpus:{}, mems:{}]", placement.getChainTaskId(), containerName,
+                placement.getNode(), placement.getCpusetCpus(), placement.getCpusetMems());
+        if (StringUtils.isNotEmpty(placement.getChainTaskId())) {
+            taskPlacements.computeIfAbsent(placement.getChainTaskId(),
+                    key -> new CopyOnWriteArrayList<>()).add(placement);
+        }
+        return true;
+    }
+
+    /**
+     * Read NUMA nodes and their CPUs. If no node is exposed, every available
+     * processor is put in a single node 0.
+     *
+     * @param sysfsNodeDir sysfs directory listing NUMA nodes
+     * @return node -> CPUs of the node
+     */
+    static Map<Integer, List<Integer>> readTopology(Path sysfsNodeDir) {
+        Map<Integer, List<Integer>> nodes = new TreeMap<>();
+        File[] nodeDirs = sysfsNodeDir.toFile().listFiles(File::isDirectory);
+        if (nodeDirs != null) {
+            for (File nodeDir : nodeDirs) {
+                Matcher matcher = NODE_DIR_PATTERN.matcher(nodeDir.getName());
+                Path cpuListFile = nodeDir.toPath().resolve("cpulist");
+                if (!matcher.matches() || !cpuListFile.toFile().exists()) {
+                    continue;
+                }
+                try {
+                    List<Integer> cpus = parseCpuList(Files.readString(cpuListFile));
+                    if (!cpus.isEmpty()) {
+                        nodes.put(Integer.parseInt(matcher.group(1)), cpus);
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    log.error("Failed to read NUMA node cpus [node:{}]", nodeDir, e);
+                }
+            }
+        }
+        if (nodes.isEmpty()) {
+            List<Integer> cpus = new ArrayList<>();
+            for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors(); cpu++) {
+                cpus.add(cpu);
+            }
+            nodes.put(0, cpus);
+        }
+        return nodes;
+    }
+
+    /**
+     * Parse a Linux CPU list.
+     * <p>
+     * e.g. "0-3,8,10-11" => [0, 1, 2, 3, 8, 10, 11]
+     *
+     * @param cpuList CPU list in the kernel format
+     * @return list of CPUs
+     */
+    static List<Integer> parseCpuList(String cpuList) {
+        List<Integer> cpus = new ArrayList<>();
+        if (StringUtils.isBlank(cpuList)) {
+            return cpus;
+        }
+        for (String range : cpuList.trim().split(",")) {
+            String[] bounds = range.trim().split("-");
+            int first = Integer.parseInt(bounds[0].trim());
+            int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+}
@@ -16,6 +16,10 @@
 
 package com.iexec.worker.docker;
 
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.command.InspectImageResponse;
+import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.api.model.AuthConfig;
 import com.github.dockerjava.core.NameParser;
 import com.iexec.common.docker.DockerRunRequest;
@@ -24,31 +28,73 @@ import com.iexec.common.docker.client.DockerClientFactory;
 import com.iexec.common.docker.client.DockerClientInstance;
 import com.iexec.common.utils.FileHelper;
 import com.iexec.common.utils.IexecFileHelper;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
+import com.iexec.worker.bandwidth.TransferClass;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
 import com.iexec.worker.utils.LoggingUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.io.File;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 public class DockerService {
 
-    private final HashSet<String> runningContainersRecord;
+    private static final long CONTAINER_START_POLLING_DELAY = 200; // ms
+    private static final long CONTAINER_START_TIMEOUT = 60000; // 1 min
+
+    private final Set<String> runningContainersRecord;
     private final WorkerConfigurationService workerConfigService;
     private final DockerRegistryConfiguration dockerRegistryConfiguration;
+    private final CpusetPlacementService cpusetPlacementService;
+    private final ContainerStatsService containerStatsService;
+    private final ImageIndexService imageIndexService;
+    private final DockerTransportService dockerTransportService;
+    private final ContainerRemovalService containerRemovalService;
+    private final ContainerRunService containerRunService;
+    private final RegistryMirrorService registryMirrorService;
+    private final TaskCancellationService taskCancellationService;
+    private final BandwidthSchedulerService bandwidthSchedulerService;
+    private final ExecutorService containerWatchersExecutor;
     private DockerClientInstance dockerClientInstance;
 
     public DockerService(WorkerConfigurationService workerConfigService,
-                         DockerRegistryConfiguration dockerRegistryConfiguration) {
+                         DockerRegistryConfiguration dockerRegistryConfiguration,
+                         CpusetPlacementService cpusetPlacementService,
+                         ContainerStatsService containerStatsService,
+                         ImageIndexService imageIndexService,
+                         DockerTransportService dockerTransportService,
+                         ContainerRemovalService containerRemovalService,
+                         ContainerRunService containerRunService,
+                         RegistryMirrorService registryMirrorService,
+                         TaskCancellationService taskCancellationService,
+                         BandwidthSchedulerService bandwidthSchedulerService) {
         this.dockerRegistryConfiguration = dockerRegistryConfiguration;
-        this.runningContainersRecord = new HashSet<>();
+        this.runningContainersRecord = ConcurrentHashMap.newKeySet();
         this.workerConfigService = workerConfigService;
+        this.cpusetPlacementService = cpusetPlacementService;
+        this.containerStatsService = containerStatsService;
+        this.imageIndexService = imageIndexService;
+        this.dockerTransportService = dockerTransportService;
+        this.containerRemovalService = containerRemovalService;
+        this.containerRunService = containerRunService;
+        this.registryMirrorService = registryMirrorService;
+        this.taskCancellationService = taskCancellationService;
+        this.bandwidthSchedulerService = bandwidthSchedulerService;
+        this.containerWatchersExecutor = Executors.newCachedThreadPool();
     }
 
     /**
@@ -119,16 +165,182 @@ public class DockerService {
                 registryPassword);
     }
 
+    /**
+     * Pull an image with a client authenticated to its registry if possible.
+     * <p>
+     * If the reference was already resolved (see {@link ImageIndexService})
+     * and still points to the same local image, the registry is skipped.
+     * Otherwise the image is pulled, from the fastest healthy mirror of its
+     * registry if any (see {@link RegistryMirrorService}) or from its
+     * registry, and its resolution is indexed.
+     *
+     * @param imageName image to pull
+     * @return true if the image is present locally
+     */
+    public boolean pullImage(String imageName) {
+        if (StringUtils.isBlank(imageName)) {
+            return false;
+        }
+        Optional<ImageIndexEntry> entry = imageIndexService.getFreshEntry(imageName);
+        if (entry.isPresent()) {
+            Optional<InspectImageResponse> localImage = inspectImage(imageName);
+            if (localImage.isPresent()
+                    && entry.get().getImageId().equals(localImage.get().getId())) {
+                imageIndexService.markUsed(imageName);
+                log.info("Image already resolved and present locally, skipping " +
+                        "registry [image:{}, imageId:{}]", imageName, entry.get().getImageId());
+                return true;
+            }
+            imageIndexService.remove(imageName);
+        }
+        if (!pullFromMirror(imageName)
+                && !getClient(imageName).pullImage(imageName)) {
+            return false;
+        }
+        if (imageIndexService.isEnabled()) {
+            inspectImage(imageName).ifPresent(image -> imageIndexService.record(
+                    ImageIndexEntry.builder()
+                            .imageName(imageName)
+                            .imageId(image.getId())
+                            .repoDigest(image.getRepoDigests() == null
+                                    || image.getRepoDigests().isEmpty()
+                                    ? null : image.getRepoDigests().get(0))
+                            .size(image.getSize() != null ? image.getSize() : 0)
+                            .build()));
+        }
+        return true;
+    }
+
+    /**
+     * Pull an image for a task. The pull is interrupted if the task is
+     * cancelled.
+     *
+     * @param chainTaskId id of the task
+     * @param imageName   image to pull
+     * @return true if the image is present locally
+     */
+    public boolean pullImage(String chainTaskId, String imageName) {
+        return taskCancellationService.runInterruptibly(chainTaskId,
+                () -> pullScheduled(chainTaskId, imageName, () -> pullImage(imageName)));
+    }
+
+    /**
+     * Run a pull once the {@link BandwidthSchedulerService} gives it its
+     * turn. Layers are downloaded by the Docker daemon and cannot be paced
+     * by the worker, the size of a newly pulled image is consequently
+     * charged to the downlink once pulled.
+     *
+     * @param chainTaskId task needing the image, null if none
+     * @param imageName   image to pull
+     * @param pull        pulls the image
+     * @return true if the image is present locally
+     */
+    public boolean pullScheduled(String chainTaskId, String imageName, BooleanSupplier pull) {
+        if (!bandwidthSchedulerService.isLimited(TransferClass.IMAGE_PULL)) {
+            return pull.getAsBoolean();
+        }
+        try {
+            bandwidthSchedulerService.acquire(chainTaskId, TransferClass.IMAGE_PULL, 0);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for bandwidth to pull image " +
+                    "[chainTaskId:{}, image:{}]", chainTaskId, imageName);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean wasPresent = inspectImage(imageName).isPresent();
+        boolean isPulled = pull.getAsBoolean();
+        if (isPulled && !wasPresent) {
+            inspectImage(imageName)
+                    .map(InspectImageResponse::getSize)
+                    .ifPresent(size -> bandwidthSchedulerService.charge(TransferClass.IMAGE_PULL, size));
+        }
+        return isPulled;
+    }
+
+    /**
+     * Pull an image from the fastest healthy mirror of its registry, then
+     * tag it with its origin name.
+     *
+     * @param imageName name of the image on its origin registry
+     * @return true if the image was pulled from a mirror, false if there is
+     * no usable mirror or if the pull failed (origin should then be used)
+     */
+    boolean pullFromMirror(String imageName) {
+        String registry = parseRegistryAddress(imageName);
+        Optional<RegistryMirror> mirror = registryMirrorService.getFastestMirror(registry);
+        if (mirror.isEmpty()) {
+            return false;
+        }
+        Optional<String> mirrorImageName =
+                RegistryMirrorService.getMirrorImageName(imageName, registry, mirror.get());
+        if (mirrorImageName.isEmpty()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        if (!getClient().pullImage(mirrorImageName.get())) {
+            log.warn("Failed to pull image from mirror, falling back to origin " +
+                    "registry [image:{}, mirror:{}]", imageName, mirror.get().getHost());
+            registryMirrorService.recordFailure(mirror.get());
+            return false;
+        }
+        long duration = System.currentTimeMillis() - start;
+        try {
+            NameParser.ReposTag reposTag = NameParser.parseRepositoryTag(imageName);
+            DockerClient client = dockerTransportService.getControlClient();
+            client.tagImageCmd(mirrorImageName.get(), reposTag.repos,
+                    StringUtils.isEmpty(reposTag.tag) ? "latest" : reposTag.tag).exec();
+            // only untags the image since it is now tagged with its origin name
+            client.removeImageCmd(mirrorImageName.get()).withNoPrune(true).exec();
+        } catch (Exception e) {
+            log.error("Failed to tag image pulled from mirror [image:{}, mirrorImage:{}]",
+                    imageName, mirrorImageName.get(), e);
+            registryMirrorService.recordFailure(mirror.get());
+            return false;
+        }
+        long size = inspectImage(imageName)
+                .map(InspectImageResponse::getSize)
+                .orElse(0L);
+        registryMirrorService.recordPull(mirror.get(), size, duration);
+        return true;
+    }
+
+    /**
+     * Inspect a local image.
+     *
+     * @param imageName name or ID of the image
+     * @return image details, empty if not present locally
+     */
+    Optional<InspectImageResponse> inspectImage(String imageName) {
+        try {
+            return Optional.of(dockerTransportService.getControlClient()
+                    .inspectImageCmd(imageName).exec());
+        } catch (NotFoundException e) {
+            return Optional.empty();
+        } catch (Exception e) {
+            log.warn("Failed to inspect image [image:{}]", imageName, e);
+            return Optional.empty();
+        }
+    }
+
     /**
      * All docker run requests initiated through this method will get their
      * yet-launched container kept in a local record.
      * <p>
      * If a container stops by itself (or receives a stop signal from this
-     * outside), the container will be automatically docker removed (unless if
-     * started with maxExecutionTime = 0) in addition to be removed from the local
-     * record.
+     * outside), the container will be docker removed in the background by
+     * {@link ContainerRemovalService} (unless if started with
+     * maxExecutionTime = 0) in addition to be removed from the local record.
      * If the worker has to abort on a task or shutdown, it should remove all
      * running container created by itself to avoid container orphans.
+     * <p>
+     * When cpuset placement is enabled, compute containers (attached to a task
+     * and not detached) are pinned to an exclusive cpuset for their lifetime.
+     * Their resource usage is also sampled while they run.
+     * <p>
+     * Containers of a task are killed as soon as the task is cancelled.
+     * <p>
+     * Containers are run on the worker Docker API pools
+     * (see {@link ContainerRunService}).
      *
      * @param dockerRunRequest docker run request
      * @return docker run response
@@ -141,13 +353,52 @@ public class DockerService {
         if (!addToRunningContainersRecord(containerName)) {
             return dockerRunResponse;
         }
-        dockerRunResponse = getClient().run(dockerRunRequest);
+        boolean isComputeContainer = isComputeContainer(dockerRunRequest);
+        String chainTaskId = dockerRunRequest.getChainTaskId();
+        CancellationToken cancellationToken = StringUtils.isNotEmpty(chainTaskId)
+                ? taskCancellationService.getToken(chainTaskId)
+                : null;
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            log.warn("Not running container of cancelled task [chainTaskId:{}, " +
+                    "containerName:{}]", chainTaskId, containerName);
+            removeFromRunningContainersRecord(containerName);
+            return dockerRunResponse;
+        }
+        Optional<CpusetPlacement> placement = isComputeContainer
+                ? cpusetPlacementService.acquire(chainTaskId, containerName)
+                : Optional.empty();
+        if (placement.isPresent() || (isComputeContainer && containerStatsService.isEnabled())) {
+            runWhenStarted(containerName, () -> {
+                placement.ifPresent(cpuset -> cpusetPlacementService.pin(
+                        dockerTransportService.getControlClient(), cpuset));
+                containerStatsService.startSampling(dockerTransportService.getStreamingClient(),
+                        chainTaskId, containerName,
+                        placement.map(CpusetPlacement::getCpusetCpus).orElse(null));
+            });
+        }
+        CancellationToken.Registration cancellation = cancellationToken != null
+                ? cancellationToken.onCancel(() ->
+                        containerRemovalService.stopAndRemoveAsync(containerName))
+                : null;
+        try {
+            dockerRunResponse = containerRunService.run(dockerRunRequest);
+        } finally {
+            if (cancellation != null) {
+                cancellation.close();
+            }
+            if (isComputeContainer) {
+                // also skips a sampling started late in the background
+                containerStatsService.stopSampling(chainTaskId, containerName);
+            }
+            placement.ifPresent(cpuset -> cpusetPlacementService.release(containerName));
+        }
         if (!dockerRunResponse.isSuccessful()
                 || dockerRunRequest.getMaxExecutionTime() != 0) {
             removeFromRunningContainersRecord(containerName);
+            // exited (or failed) containers are removed in the background
+            containerRemovalService.stopAndRemoveAsync(containerName);
         }
         if (shouldPrintDeveloperLogs(dockerRunRequest)) {
-            String chainTaskId = dockerRunRequest.getChainTaskId();
             if (StringUtils.isEmpty(chainTaskId)) {
                 log.error("Cannot print developer logs [chainTaskId:{}]", chainTaskId);
             } else {
@@ -174,6 +425,17 @@ public class DockerService {
         return runningContainersRecord.add(containerName);
     }
 
+    /**
+     * Check if a container was started by this worker session and is still
+     * in the running containers record.
+     *
+     * @param containerName name of the container
+     * @return true if the container is on the record
+     */
+    public boolean isInRunningContainersRecord(String containerName) {
+        return runningContainersRecord.contains(containerName);
+    }
+
     /**
      * Get docker volume bind shared between the host and
      * the container for input.
@@ -219,18 +481,51 @@ public class DockerService {
 
     /**
      * This method will stop all running containers launched by the worker via
-     * this current service.
+     * this current service. Containers are stopped and removed in parallel
+     * (see {@link ContainerRemovalService}).
      */
     public void stopRunningContainers() {
         log.info("About to stop all running containers [runningContainers:{}]",
                 runningContainersRecord);
-        List.copyOf(runningContainersRecord).forEach(containerName -> {
-            if (!getClient().stopContainer(containerName)) {
+        stopAndRemoveContainers(List.copyOf(runningContainersRecord));
+    }
+
+    /**
+     * Stop running containers of a task (pre-compute, app, post-compute),
+     * e.g. when the task is aborted.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void stopRunningContainers(String chainTaskId) {
+        if (StringUtils.isEmpty(chainTaskId)) {
+            return;
+        }
+        List<String> taskContainers = runningContainersRecord.stream()
+                .filter(containerName -> containerName.contains(chainTaskId))
+                .collect(Collectors.toList());
+        if (taskContainers.isEmpty()) {
+            return;
+        }
+        log.info("About to stop running containers of task [chainTaskId:{}, " +
+                "runningContainers:{}]", chainTaskId, taskContainers);
+        stopAndRemoveContainers(taskContainers);
+    }
+
+    private void stopAndRemoveContainers(List<String> containerNames) {
+        if (containerNames.isEmpty()) {
+            return;
+        }
+        List<String> unstoppedContainers =
+                containerRemovalService.stopAndRemoveAll(containerNames);
+        containerNames.forEach(containerName -> {
+            if (unstoppedContainers.contains(containerName)) {
                 log.error("Failed to stop one container among all running " +
                         "[unstoppedContainer:{}]", containerName);
                 return;
             }
-            removeFromRunningContainersRecord(containerName);
+            if (runningContainersRecord.contains(containerName)) {
+                removeFromRunningContainersRecord(containerName);
+            }
         });
     }
 
@@ -257,6 +552,53 @@ public class DockerService {
                 : registry;
     }
 
+    /**
+     * Containers are created and started by a blocking run call. This runs
+     * an action in the background as soon as the container is running,
+     * unless the container exits before.
+     *
+     * @param containerName name of the container being started
+     * @param action        action to run on the running container
+     */
+    private void runWhenStarted(String containerName, Runnable action) {
+        DockerClient client = dockerTransportService.getControlClient();
+        containerWatchersExecutor.submit(() -> {
+            long deadline = System.currentTimeMillis() + CONTAINER_START_TIMEOUT;
+            while (runningContainersRecord.contains(containerName)
+                    && System.currentTimeMillis() < deadline) {
+                if (isContainerRunning(client, containerName)) {
+                    action.run();
+                    return;
+                }
+                try {
+                    Thread.sleep(CONTAINER_START_POLLING_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+    }
+
+    private boolean isContainerRunning(DockerClient client, String containerName) {
+        try {
+            InspectContainerResponse container = client.inspectContainerCmd(containerName).exec();
+            return container.getState() != null
+                    && Boolean.TRUE.equals(container.getState().getRunning());
+        } catch (NotFoundException e) {
+            // not created yet
+            return false;
+        } catch (Exception e) {
+            log.warn("Failed to inspect container [containerName:{}]", containerName, e);
+            return false;
+        }
+    }
+
+    private boolean isComputeContainer(DockerRunRequest dockerRunRequest) {
+        return StringUtils.isNotEmpty(dockerRunRequest.getChainTaskId())
+                && dockerRunRequest.getMaxExecutionTime() != 0;
+    }
+
     private boolean shouldPrintDeveloperLogs(DockerRunRequest dockerRunRequest) {
         return workerConfigService.isDeveloperLoggerEnabled() && dockerRunRequest.isShouldDisplayLogs();
     }
@@ -270,4 +612,8 @@ public class DockerService {
         return LoggingUtils.prettifyDeveloperLogs(iexecInTree, iexecOutTree, stdout, stderr);
     }
 
-}
\ No newline at end of file
+    @PreDestroy
+    void shutdownContainerWatchers() {
+        containerWatchersExecutor.shutdownNow();
+    }
+}
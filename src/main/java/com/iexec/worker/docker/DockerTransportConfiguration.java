@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Connection pools of the Docker API transport used by the worker.
+ * <p>
+ * Long-lived streaming calls (stats, logs, wait) and short control calls
+ * (inspect, update, remove) use separate pools so streams cannot starve
+ * control calls of connections.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "docker.transport")
+public class DockerTransportConfiguration {
+
+    @Setter
+    @Getter
+    private Pool streaming = new Pool(100, 30000, 0);
+
+    @Setter
+    @Getter
+    private Pool control = new Pool(20, 5000, 30000);
+
+    @Data
+    public static class Pool {
+        private int maxConnections;
+        private long connectionTimeout; // in ms
+        private long responseTimeout; // in ms, 0 means no timeout
+
+        public Pool() {
+        }
+
+        Pool(int maxConnections, long connectionTimeout, long responseTimeout) {
+            this.maxConnections = maxConnections;
+            this.connectionTimeout = connectionTimeout;
+            this.responseTimeout = responseTimeout;
+        }
+    }
+}
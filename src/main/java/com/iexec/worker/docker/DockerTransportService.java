@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.core.DefaultDockerClientConfig;
+import com.github.dockerjava.core.DockerClientConfig;
+import com.github.dockerjava.core.DockerClientImpl;
+import com.github.dockerjava.httpclient5.ApacheDockerHttpClient;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Docker API clients used by the worker for its own calls to the Docker
+ * daemon, with one connection pool for long-lived streaming calls and one
+ * for short control calls (see {@link DockerTransportConfiguration}).
+ * <p>
+ * Container creation and image pulls still go through iexec-common's
+ * client.
+ * <p>
+ * Pools utilization is exposed as metrics.
+ */
+@Slf4j
+@Service
+public class DockerTransportService {
+
+    static final String STREAMING_POOL = "streaming";
+    static final String CONTROL_POOL = "control";
+
+    private final MeteredDockerHttpClient streamingHttpClient;
+    private final MeteredDockerHttpClient controlHttpClient;
+    private final DockerClient streamingClient;
+    private final DockerClient controlClient;
+
+    public DockerTransportService(DockerTransportConfiguration transportConfig,
+                                  MeterRegistry meterRegistry) {
+        DockerClientConfig clientConfig =
+                DefaultDockerClientConfig.createDefaultConfigBuilder().build();
+        this.streamingHttpClient = buildHttpClient(clientConfig,
+                transportConfig.getStreaming(), STREAMING_POOL, meterRegistry);
+        this.controlHttpClient = buildHttpClient(clientConfig,
+                transportConfig.getControl(), CONTROL_POOL, meterRegistry);
+        this.streamingClient = DockerClientImpl.getInstance(clientConfig, streamingHttpClient);
+        this.controlClient = DockerClientImpl.getInstance(clientConfig, controlHttpClient);
+        log.info("Docker API transport ready [dockerHost:{}, streaming:{}, control:{}]",
+                clientConfig.getDockerHost(), transportConfig.getStreaming(),
+                transportConfig.getControl());
+    }
+
+    /**
+     * Client for long-lived calls (stats, logs, wait).
+     */
+    public DockerClient getStreamingClient() {
+        return streamingClient;
+    }
+
+    /**
+     * Client for short calls (start, inspect, update, stop, remove).
+     */
+    public DockerClient getControlClient() {
+        return controlClient;
+    }
+
+    private static MeteredDockerHttpClient buildHttpClient(DockerClientConfig clientConfig,
+                                                           DockerTransportConfiguration.Pool pool,
+                                                           String poolName,
+                                                           MeterRegistry meterRegistry) {
+        ApacheDockerHttpClient.Builder builder = new ApacheDockerHttpClient.Builder()
+                .dockerHost(clientConfig.getDockerHost())
+                .sslConfig(clientConfig.getSSLConfig())
+                .maxConnections(pool.getMaxConnections())
+                .connectionTimeout(Duration.ofMillis(pool.getConnectionTimeout()));
+        if (pool.getResponseTimeout() > 0) {
+            builder.responseTimeout(Duration.ofMillis(pool.getResponseTimeout()));
+        }
+        MeteredDockerHttpClient httpClient = new MeteredDockerHttpClient(builder.build());
+        Gauge.builder("iexec.worker.docker.transport.connections.in.use",
+                httpClient, MeteredDockerHttpClient::getInFlightRequests)
+                .description("Docker API requests in flight")
+                .tag("pool", poolName)
+                .register(meterRegistry);
+        Gauge.builder("iexec.worker.docker.transport.connections.utilization",
+                httpClient, client -> (double) client.getInFlightRequests()
+                        / Math.max(1, pool.getMaxConnections()))
+                .description("Ratio of the connection pool in use")
+                .tag("pool", poolName)
+                .register(meterRegistry);
+        return httpClient;
+    }
+
+    @PreDestroy
+    void close() {
+        try {
+            streamingClient.close();
+            controlClient.close();
+        } catch (IOException e) {
+            log.warn("Failed to close Docker API clients", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Metadata of a pulled image, kept in the local image index.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageIndexEntry {
+
+    // reference used to pull the image (e.g. "iexechub/app:1.0.0")
+    private String imageName;
+    // local image ID the reference resolved to (e.g. "sha256:abc...")
+    private String imageId;
+    // registry digest of the image if known (e.g. "iexechub/app@sha256:def...")
+    private String repoDigest;
+    private long size; // in bytes
+    private long resolvedAt; // epoch ms of the last registry resolution
+    private long lastUsedAt; // epoch ms
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iexec.worker.config.WorkerConfigurationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent index of pulled images. It maps image references to the local
+ * image they resolved to, so a reference already resolved can be used
+ * without contacting its registry again.
+ * <p>
+ * References pinned by digest (e.g. "image@sha256:...") never change and
+ * never expire. Mutable tags (e.g. "image:latest") are always resolved
+ * against the registry, unless the operator opts in for a TTL during which
+ * their resolution is trusted.
+ */
+@Slf4j
+@Service
+public class ImageIndexService {
+
+    static final String IMAGE_INDEX_FILENAME = "image-index.json";
+    private static final String DIGEST_SEPARATOR = "@sha256:";
+
+    private final boolean isEnabled;
+    private final long mutableTagTtl; // in ms
+    private final Path indexFile;
+    private final ObjectMapper mapper;
+    // image name -> entry
+    private final Map<String, ImageIndexEntry> entries;
+
+    public ImageIndexService(
+            WorkerConfigurationService workerConfigService,
+            @Value("${docker.image-index.enabled}") boolean isEnabled,
+            @Value("${docker.image-index.mutable-tag-ttl}") long mutableTagTtlInSeconds) {
+        this(isEnabled, TimeUnit.SECONDS.toMillis(mutableTagTtlInSeconds),
+                Paths.get(workerConfigService.getWorkerBaseDir(), IMAGE_INDEX_FILENAME));
+    }
+
+    ImageIndexService(boolean isEnabled, long mutableTagTtl, Path indexFile) {
+        this.isEnabled = isEnabled;
+        this.mutableTagTtl = Math.max(0, mutableTagTtl);
+        this.indexFile = indexFile;
+        this.mapper = new ObjectMapper();
+        this.entries = new ConcurrentHashMap<>();
+        if (isEnabled) {
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Get the entry of an image if its resolution can still be trusted.
+     *
+     * @param imageName image reference
+     * @return entry if present and not expired, empty otherwise
+     */
+    public Optional<ImageIndexEntry> getFreshEntry(String imageName) {
+        if (!isEnabled || imageName == null) {
+            return Optional.empty();
+        }
+        ImageIndexEntry entry = entries.get(imageName);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (isPinnedByDigest(imageName) || (mutableTagTtl > 0
+                && System.currentTimeMillis() - entry.getResolvedAt() < mutableTagTtl)) {
+            return Optional.of(entry);
+        }
+        log.debug("Image index entry expired [image:{}, resolvedAt:{}]",
+                imageName, entry.getResolvedAt());
+        return Optional.empty();
+    }
+
+    /**
+     * Record the resolution of an image reference after a successful pull.
+     *
+     * @param entry resolved image
+     */
+    public void record(ImageIndexEntry entry) {
+        if (!isEnabled || entry == null || entry.getImageName() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entry.setResolvedAt(now);
+        entry.setLastUsedAt(now);
+        entries.put(entry.getImageName(), entry);
+        log.info("Indexed image [image:{}, imageId:{}, repoDigest:{}, size:{}]",
+                entry.getImageName(), entry.getImageId(), entry.getRepoDigest(),
+                entry.getSize());
+        save();
+    }
+
+    /**
+     * Update the last used time of an image served from the index.
+     *
+     * @param imageName image reference
+     */
+    public void markUsed(String imageName) {
+        if (!isEnabled || imageName == null) {
+            return;
+        }
+        ImageIndexEntry entry = entries.get(imageName);
+        if (entry != null) {
+            entry.setLastUsedAt(System.currentTimeMillis());
+            save();
+        }
+    }
+
+    /**
+     * Forget an image, e.g. when it is not present locally anymore.
+     *
+     * @param imageName image reference
+     */
+    public void remove(String imageName) {
+        if (isEnabled && imageName != null && entries.remove(imageName) != null) {
+            save();
+        }
+    }
+
+    static boolean isPinnedByDigest(String imageName) {
+        return imageName.contains(DIGEST_SEPARATOR);
+    }
+
+    private void load() {
+        File file = indexFile.toFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            Map<String, ImageIndexEntry> loaded = mapper.readValue(file,
+                    new TypeReference<Map<String, ImageIndexEntry>>() {});
+            entries.putAll(loaded);
+            log.info("Loaded image index [indexFile:{}, images:{}]",
+                    indexFile, entries.size());
+        } catch (IOException e) {
+            log.error("Failed to load image index, starting with an empty one " +
+                    "[indexFile:{}]", indexFile, e);
+        }
+    }
+
+    private synchronized void save() {
+        Path tmpFile = indexFile.resolveSibling(IMAGE_INDEX_FILENAME + ".tmp");
+        try {
+            Files.createDirectories(indexFile.getParent());
+            mapper.writeValue(tmpFile.toFile(), entries);
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to save image index [indexFile:{}]", indexFile, e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.iexec.common.docker.client.DockerClientInstance;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Pull images in the background with a bounded parallelism. Concurrent
+ * requests for an image being pulled share the same pull. Background pulls
+ * are not related to a task, they get the lowest bandwidth priority.
+ */
+@Slf4j
+@Service
+public class ImagePullService {
+
+    private final DockerService dockerService;
+    private final ExecutorService pullExecutor;
+    // image name -> pull in progress
+    private final Map<String, CompletableFuture<Boolean>> pullsInProgress;
+    private final AtomicInteger queuedPulls;
+    private final AtomicInteger finishedPulls;
+
+    public ImagePullService(
+            DockerService dockerService,
+            @Value("${docker.image-pull.parallelism}") int parallelism) {
+        this.dockerService = dockerService;
+        this.pullExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.pullsInProgress = new ConcurrentHashMap<>();
+        this.queuedPulls = new AtomicInteger();
+        this.finishedPulls = new AtomicInteger();
+    }
+
+    /**
+     * Pull an image in the background (see {@link DockerService#pullImage(String)}).
+     *
+     * @param imageName image to pull
+     * @return future completed with true if the image was pulled
+     */
+    public CompletableFuture<Boolean> pullAsync(String imageName) {
+        return pullAsync(imageName, () -> dockerService.pullImage(imageName));
+    }
+
+    /**
+     * Pull an image in the background with a specific client, e.g. a client
+     * authenticated to a registry that is not in the worker configuration.
+     *
+     * @param imageName      image to pull
+     * @param clientProvider provides the client used to pull
+     * @return future completed with true if the image was pulled
+     */
+    public CompletableFuture<Boolean> pullAsync(String imageName,
+                                                Callable<DockerClientInstance> clientProvider) {
+        return pullAsync(imageName, () -> {
+            try {
+                DockerClientInstance client = clientProvider.call();
+                return client != null && client.pullImage(imageName);
+            } catch (Exception e) {
+                log.error("Failed to get Docker client to pull image [image:{}]",
+                        imageName, e);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Pull images concurrently and wait for all of them.
+     *
+     * @param imageNames images to pull
+     * @return true if all images were pulled
+     */
+    public boolean pullAll(List<String> imageNames) {
+        List<CompletableFuture<Boolean>> pulls = imageNames.stream()
+                .map(this::pullAsync)
+                .collect(Collectors.toList());
+        return pulls.stream()
+                .map(this::await)
+                .reduce(true, Boolean::logicalAnd);
+    }
+
+    /**
+     * Wait for a pull to finish.
+     *
+     * @param pull pull to wait for
+     * @return true if the image was pulled
+     */
+    public boolean await(CompletableFuture<Boolean> pull) {
+        try {
+            return Boolean.TRUE.equals(pull.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private synchronized CompletableFuture<Boolean> pullAsync(String imageName,
+                                                           BooleanSupplier pull) {
+        CompletableFuture<Boolean> pullInProgress = pullsInProgress.get(imageName);
+        if (pullInProgress != null) {
+            return pullInProgress;
+        }
+        int queued = queuedPulls.incrementAndGet();
+        log.info("Queued image pull [image:{}, inProgress:{}, finished:{}/{}]",
+                imageName, pullsInProgress.size(), finishedPulls.get(), queued);
+        CompletableFuture<Boolean> newPull = CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            boolean isPulled;
+            try {
+                isPulled = dockerService.pullScheduled(null, imageName, pull);
+            } catch (Exception e) {
+                log.error("Failed to pull image [image:{}]", imageName, e);
+                isPulled = false;
+            }
+            int finished = finishedPulls.incrementAndGet();
+            log.info("Finished image pull [image:{}, isPulled:{}, duration:{}ms, " +
+                            "finished:{}/{}]", imageName, isPulled,
+                    System.currentTimeMillis() - start, finished, queuedPulls.get());
+            return isPulled;
+        }, pullExecutor);
+        pullsInProgress.put(imageName, newPull);
+        newPull.whenComplete((isPulled, e) -> pullsInProgress.remove(imageName, newPull));
+        return newPull;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pullExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.transport.DockerHttpClient;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Docker HTTP client keeping track of its in-flight requests. A request is
+ * in flight until its response is closed, so long-lived streams are counted
+ * for their whole duration.
+ */
+@Slf4j
+class MeteredDockerHttpClient implements DockerHttpClient {
+
+    private final DockerHttpClient delegate;
+    private final AtomicInteger inFlightRequests;
+
+    MeteredDockerHttpClient(DockerHttpClient delegate) {
+        this.delegate = delegate;
+        this.inFlightRequests = new AtomicInteger();
+    }
+
+    int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    @Override
+    public Response execute(Request request) {
+        inFlightRequests.incrementAndGet();
+        try {
+            return new MeteredResponse(delegate.execute(request));
+        } catch (RuntimeException e) {
+            inFlightRequests.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private class MeteredResponse implements Response {
+
+        private final Response delegate;
+        private final AtomicBoolean isClosed = new AtomicBoolean(false);
+
+        MeteredResponse(Response delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return delegate.getHeaders();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return delegate.getHeader(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void close() {
+            if (isClosed.compareAndSet(false, true)) {
+                inFlightRequests.decrementAndGet();
+            }
+            try {
+                delegate.close();
+            } catch (Exception e) {
+                log.warn("Failed to close Docker API response", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Pull-through mirror of a Docker registry.
+ * <p>
+ * e.g. registry: docker.io, address: http://mirror.local:5000
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RegistryMirror {
+
+    private static final String SCHEME_SEPARATOR = "://";
+
+    // address of the mirrored (origin) registry
+    private String registry;
+    // address of the mirror, https is used if no scheme is given
+    private String address;
+
+    /**
+     * Get the mirror address as used in image names.
+     * <p>
+     * e.g. http://mirror.local:5000 => mirror.local:5000
+     *
+     * @return host[:port] of the mirror
+     */
+    public String getHost() {
+        String host = address.contains(SCHEME_SEPARATOR)
+                ? address.substring(address.indexOf(SCHEME_SEPARATOR) + SCHEME_SEPARATOR.length())
+                : address;
+        return host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
+    }
+
+    /**
+     * Get the Docker registry API endpoint used to check the mirror is up.
+     *
+     * @return e.g. http://mirror.local:5000/v2/
+     */
+    public String getHealthCheckUrl() {
+        String scheme = address.contains(SCHEME_SEPARATOR)
+                ? address.substring(0, address.indexOf(SCHEME_SEPARATOR))
+                : "https";
+        return scheme + SCHEME_SEPARATOR + getHost() + "/v2/";
+    }
+}
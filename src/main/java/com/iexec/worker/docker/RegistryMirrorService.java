@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.core.NameParser;
+import com.iexec.common.docker.client.DockerClientInstance;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Keep track of configured registry mirrors: their health (periodically
+ * checked on the registry API endpoint) and the throughput observed when
+ * pulling from them. Pulls are sent to the fastest healthy mirror of the
+ * registry and fall back to the origin registry.
+ */
+@Slf4j
+@Service
+public class RegistryMirrorService {
+
+    // weight of the last pull in the throughput moving average
+    static final double THROUGHPUT_SMOOTHING = 0.3;
+    private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(5);
+
+    private final List<MirrorState> mirrors;
+    private final MeterRegistry meterRegistry;
+    private final HttpClient httpClient;
+
+    public RegistryMirrorService(RegistryMirrorConfiguration mirrorConfig,
+                                 MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(HEALTH_CHECK_TIMEOUT)
+                .build();
+        this.mirrors = mirrorConfig.getMirrors().stream()
+                .filter(mirror -> StringUtils.isNotBlank(mirror.getRegistry())
+                        && StringUtils.isNotBlank(mirror.getAddress()))
+                .map(MirrorState::new)
+                .collect(Collectors.toList());
+        mirrors.forEach(state -> {
+            Gauge.builder("iexec.worker.docker.mirror.healthy", state,
+                    mirror -> mirror.isHealthy ? 1 : 0)
+                    .tag("mirror", state.mirror.getHost())
+                    .register(meterRegistry);
+            Gauge.builder("iexec.worker.docker.mirror.throughput", state,
+                    mirror -> mirror.throughput)
+                    .description("Moving average of pull throughput (bytes/s)")
+                    .tag("mirror", state.mirror.getHost())
+                    .register(meterRegistry);
+        });
+        if (!mirrors.isEmpty()) {
+            log.info("Registry mirrors configured [mirrors:{}]", mirrors.stream()
+                    .map(state -> state.mirror)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Get the healthy mirror of a registry with the best observed throughput.
+     * Mirrors never used yet are tried first.
+     *
+     * @param registry address of the origin registry
+     * @return fastest healthy mirror, empty if none
+     */
+    public Optional<RegistryMirror> getFastestMirror(String registry) {
+        return mirrors.stream()
+                .filter(state -> state.isHealthy
+                        && state.mirror.getRegistry().equals(registry))
+                .max(Comparator.comparingDouble(state -> state.pulls == 0
+                        ? Double.MAX_VALUE
+                        : state.throughput))
+                .map(state -> state.mirror);
+    }
+
+    /**
+     * Record a successful pull from a mirror.
+     *
+     * @param mirror   mirror used
+     * @param bytes    size of the pulled image
+     * @param duration duration of the pull in ms
+     */
+    public void recordPull(RegistryMirror mirror, long bytes, long duration) {
+        getState(mirror).ifPresent(state -> {
+            double throughput = bytes * 1000.0 / Math.max(1, duration);
+            synchronized (state) {
+                state.throughput = state.pulls == 0
+                        ? throughput
+                        : THROUGHPUT_SMOOTHING * throughput
+                        + (1 - THROUGHPUT_SMOOTHING) * state.throughput;
+                state.pulls++;
+            }
+            meterRegistry.counter("iexec.worker.docker.mirror.pulls",
+                    "mirror", mirror.getHost(), "result", "success").increment();
+            log.info("Pulled image from mirror [mirror:{}, size:{}, duration:{}ms, " +
+                    "throughput:{}B/s]", mirror.getHost(), bytes, duration, (long) state.throughput);
+        });
+    }
+
+    /**
+     * Record a failed pull (image missing or mirror failure). The throughput
+     * of the mirror is halved so other mirrors get a chance.
+     *
+     * @param mirror mirror used
+     */
+    public void recordFailure(RegistryMirror mirror) {
+        getState(mirror).ifPresent(state -> {
+            synchronized (state) {
+                state.throughput = state.throughput / 2;
+                state.pulls++;
+            }
+            meterRegistry.counter("iexec.worker.docker.mirror.pulls",
+                    "mirror", mirror.getHost(), "result", "failure").increment();
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${docker.mirror.health-check-period}")
+    public void checkMirrorsHealth() {
+        for (MirrorState state : mirrors) {
+            boolean isHealthy = isReachable(state.mirror);
+            if (isHealthy != state.isHealthy) {
+                log.warn("Registry mirror health changed [mirror:{}, isHealthy:{}]",
+                        state.mirror.getHost(), isHealthy);
+            }
+            state.isHealthy = isHealthy;
+        }
+    }
+
+    /**
+     * A registry answers 200 or 401 (authentication required) on its API
+     * endpoint when it is up.
+     */
+    boolean isReachable(RegistryMirror mirror) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(mirror.getHealthCheckUrl()))
+                    .timeout(HEALTH_CHECK_TIMEOUT)
+                    .GET()
+                    .build();
+            int status = httpClient.send(request, HttpResponse.BodyHandlers.discarding())
+                    .statusCode();
+            return status == 200 || status == 401;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.debug("Registry mirror unreachable [mirror:{}]", mirror.getHost(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Get the name of an image on a mirror of its registry. Images pinned by
+     * digest are not pulled from mirrors since they could not be tagged back
+     * with their origin name.
+     * <p>
+     * e.g. alpine:3.13 => mirror.local:5000/library/alpine:3.13,
+     * registry.xyz/user/app => mirror.local:5000/user/app:latest
+     *
+     * @param imageName name of the image on the origin registry
+     * @param registry  origin registry of the image
+     * @param mirror    mirror of the registry
+     * @return name of the image on the mirror
+     */
+    static Optional<String> getMirrorImageName(String imageName, String registry,
+                                               RegistryMirror mirror) {
+        if (StringUtils.isBlank(imageName) || imageName.contains("@")) {
+            return Optional.empty();
+        }
+        NameParser.ReposTag reposTag = NameParser.parseRepositoryTag(imageName);
+        String reposName = NameParser.resolveRepositoryName(reposTag.repos).reposName;
+        if (DockerClientInstance.DEFAULT_DOCKER_REGISTRY.equals(registry)
+                && !reposName.contains("/")) {
+            // official images
+            reposName = "library/" + reposName;
+        }
+        String tag = StringUtils.isEmpty(reposTag.tag) ? "latest" : reposTag.tag;
+        return Optional.of(mirror.getHost() + "/" + reposName + ":" + tag);
+    }
+
+    private Optional<MirrorState> getState(RegistryMirror mirror) {
+        return mirrors.stream()
+                .filter(state -> state.mirror.equals(mirror))
+                .findFirst();
+    }
+
+    private static class MirrorState {
+
+        private final RegistryMirror mirror;
+        // considered healthy until the first health check
+        private volatile boolean isHealthy = true;
+        private volatile double throughput; // in bytes/s
+        private volatile int pulls;
+
+        MirrorState(RegistryMirror mirror) {
+            this.mirror = mirror;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress of a segmented download, persisted next to the partial file so
+ * a retry or a restart of the worker resumes the download.
+ * <p>
+ * The file is split in segments of a fixed size, the progress holds the
+ * number of bytes written at the beginning of each segment. It is bound to
+ * the length and validator (ETag or Last-Modified) of the remote file and
+ * is discarded if the remote file changed.
+ */
+@Slf4j
+class DownloadProgress {
+
+    private static final String LENGTH = "length";
+    private static final String VALIDATOR = "validator";
+    private static final String SEGMENT_SIZE = "segment-size";
+    private static final String SEGMENT_PREFIX = "segment.";
+
+    private final Path file;
+    private final long length;
+    private final String validator;
+    private final long segmentSize;
+    // segment -> bytes written from the start of the segment
+    private final AtomicLongArray written;
+    private final boolean isResumed;
+
+    private DownloadProgress(Path file, long length, String validator,
+                             long segmentSize, AtomicLongArray written,
+                             boolean isResumed) {
+        this.file = file;
+        this.length = length;
+        this.validator = validator;
+        this.segmentSize = segmentSize;
+        this.written = written;
+        this.isResumed = isResumed;
+    }
+
+    /**
+     * Load the progress of a download, or start a new one if there is no
+     * saved progress or if it does not match the remote file.
+     *
+     * @param file        progress file
+     * @param length      length of the remote file
+     * @param validator   ETag or Last-Modified of the remote file, null if none
+     * @param segmentSize size of a segment
+     * @return progress of the download
+     */
+    static DownloadProgress load(Path file, long length, String validator, long segmentSize) {
+        if (validator == null || !Files.exists(file)) {
+            return create(file, length, validator, segmentSize);
+        }
+        int segmentCount = getSegmentCount(length, segmentSize);
+        AtomicLongArray written = new AtomicLongArray(segmentCount);
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+            boolean isSameFile = String.valueOf(length).equals(properties.getProperty(LENGTH))
+                    && validator.equals(properties.getProperty(VALIDATOR))
+                    && String.valueOf(segmentSize).equals(properties.getProperty(SEGMENT_SIZE));
+            if (isSameFile) {
+                for (int segment = 0; segment < segmentCount; segment++) {
+                    long segmentWritten = Long.parseLong(properties
+                            .getProperty(SEGMENT_PREFIX + segment, "0"));
+                    written.set(segment, Math.min(segmentWritten,
+                            getSegmentLength(length, segmentSize, segment)));
+                }
+                return new DownloadProgress(file, length, validator, segmentSize, written, true);
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Failed to read download progress, restarting download [file:{}]", file, e);
+        }
+        return create(file, length, validator, segmentSize);
+    }
+
+    /**
+     * Start the progress of a new download.
+     */
+    static DownloadProgress create(Path file, long length, String validator, long segmentSize) {
+        return new DownloadProgress(file, length, validator, segmentSize,
+                new AtomicLongArray(getSegmentCount(length, segmentSize)), false);
+    }
+
+    /**
+     * @return true if the progress was restored from a previous attempt
+     */
+    boolean isResumed() {
+        return isResumed;
+    }
+
+    int getSegmentCount() {
+        return written.length();
+    }
+
+    /**
+     * @return offset of the next byte to download in the segment
+     */
+    long getNextOffset(int segment) {
+        return segment * segmentSize + written.get(segment);
+    }
+
+    /**
+     * @return offset of the last byte of the segment
+     */
+    long getSegmentEnd(int segment) {
+        return segment * segmentSize + getSegmentLength(length, segmentSize, segment) - 1;
+    }
+
+    boolean isComplete(int segment) {
+        return written.get(segment) >= getSegmentLength(length, segmentSize, segment);
+    }
+
+    long getWritten() {
+        long total = 0;
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            total += written.get(segment);
+        }
+        return total;
+    }
+
+    /**
+     * @return number of bytes written from the start of the file without
+     * any gap
+     */
+    long getCompletePrefix() {
+        long prefix = 0;
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            // read once, the segment may grow meanwhile
+            long segmentWritten = written.get(segment);
+            prefix += segmentWritten;
+            if (segmentWritten < getSegmentLength(length, segmentSize, segment)) {
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    void addWritten(int segment, long count) {
+        written.addAndGet(segment, count);
+    }
+
+    /**
+     * Persist the progress. Progress is written to a temporary file and
+     * then moved, a crash never leaves a truncated progress file.
+     * Nothing is saved for remote files without validator since a resumed
+     * download could not detect a change of the remote file.
+     */
+    synchronized void save() throws IOException {
+        if (validator == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(LENGTH, String.valueOf(length));
+        properties.setProperty(VALIDATOR, validator);
+        properties.setProperty(SEGMENT_SIZE, String.valueOf(segmentSize));
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            properties.setProperty(SEGMENT_PREFIX + segment, String.valueOf(written.get(segment)));
+        }
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            properties.store(out, null);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static int getSegmentCount(long length, long segmentSize) {
+        return (int) ((length + segmentSize - 1) / segmentSize);
+    }
+
+    private static long getSegmentLength(long length, long segmentSize, int segment) {
+        return Math.min(segmentSize, length - segment * segmentSize);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stalls of one attempt to download the files of a task, shared by the
+ * downloads made for it. A file which failed because it stalled is reported
+ * until a later download of the same file succeeds within the attempt (e.g.
+ * from the origin after a peer stalled). A new attempt starts with a new
+ * report.
+ */
+public class DownloadReport {
+
+    // requested URIs which failed because they stalled
+    private final Set<String> stalledUris = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return true if a file of the attempt failed because it stalled
+     */
+    public boolean isStalled() {
+        return !stalledUris.isEmpty();
+    }
+
+    void onStalled(String uri) {
+        stalledUris.add(uri);
+    }
+
+    void onDownloaded(String uri) {
+        stalledUris.remove(uri);
+    }
+}
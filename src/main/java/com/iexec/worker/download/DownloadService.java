@@ -0,0 +1,1084 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
+import com.iexec.worker.bandwidth.TransferClass;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.utils.Numeric;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Download files of tasks over HTTP. Connections are kept alive and reused
+ * through a single shared client, and the number of concurrent downloads
+ * is bounded per task and per host.
+ * <p>
+ * A download stops and its partial file is deleted as soon as its task is
+ * cancelled. When downloading several files of a task, the first failure
+ * stops the remaining downloads.
+ * <p>
+ * Files bigger than a segment are downloaded as parallel HTTP ranges if the
+ * server supports them. Progress of the segments is saved next to the
+ * partial file so a failed or interrupted download is resumed by the next
+ * attempt, even after a restart of the worker.
+ * <p>
+ * IPFS content is requested from several gateways at once, the first
+ * gateway to answer serves the download (see {@link IpfsGatewayService}).
+ * Downloaded bytes are paced by the {@link BandwidthSchedulerService}.
+ * <p>
+ * A download staying below a minimum throughput is aborted by a
+ * {@link StallWatchdog} and retried. Segments resume from their last
+ * written byte, as do single streams of servers supporting ranges. Servers
+ * which stalled are left out of the next attempt when other IPFS gateways
+ * serve the file.
+ * <p>
+ * Files may be sent compressed (gzip or deflate) and are decoded while they
+ * are written, so checksums are computed on the decoded bytes.
+ */
+@Slf4j
+@Service
+public class DownloadService {
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String PROGRESS_SUFFIX = ".progress";
+    // network bytes are written to disk and hashed by blocks of this size
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final int MAX_STALL_ATTEMPTS = 3;
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    // bandwidth is taken once per this amount of bytes
+    private static final long THROTTLE_CHUNK = 64 * 1024L;
+    // save progress at most once per this amount of bytes per segment
+    private static final long PROGRESS_SAVE_INTERVAL = 8 * 1024 * 1024L;
+
+    private final TaskCancellationService taskCancellationService;
+    private final IpfsGatewayService ipfsGatewayService;
+    private final BandwidthSchedulerService bandwidthSchedulerService;
+    private final DistributionSummary hashingThroughput;
+    private final Counter stalls;
+    private final Counter compressionSavedBytes;
+    private final int parallelismPerTask;
+    private final int maxConnectionsPerHost;
+    private final long segmentSize;
+    private final int segmentsPerFile;
+    private final long stallTimeout;
+    // bytes/s
+    private final double minThroughput;
+    private final boolean isCompressionEnabled;
+    private final HttpClient httpClient;
+    private final ExecutorService downloadExecutor;
+    private final ExecutorService segmentExecutor;
+    private final ScheduledExecutorService watchdogExecutor;
+    // host -> permits of concurrent downloads
+    private final Map<String, Semaphore> hostPermits;
+
+    public DownloadService(TaskCancellationService taskCancellationService,
+                           IpfsGatewayService ipfsGatewayService,
+                           BandwidthSchedulerService bandwidthSchedulerService,
+                           MeterRegistry meterRegistry,
+                           @Value("${worker.download.parallelism}") int parallelism,
+                           @Value("${worker.download.parallelism-per-task}") int parallelismPerTask,
+                           @Value("${worker.download.max-connections-per-host}") int maxConnectionsPerHost,
+                           @Value("${worker.download.connection-timeout}") long connectionTimeout,
+                           @Value("${worker.download.segment-size}") long segmentSizeInMb,
+                           @Value("${worker.download.segments-per-file}") int segmentsPerFile,
+                           @Value("${worker.download.stall-timeout}") long stallTimeout,
+                           @Value("${worker.download.min-throughput}") long minThroughputInKbps,
+                           @Value("${worker.download.compression}") boolean isCompressionEnabled) {
+        this.taskCancellationService = taskCancellationService;
+        this.ipfsGatewayService = ipfsGatewayService;
+        this.bandwidthSchedulerService = bandwidthSchedulerService;
+        this.hashingThroughput = DistributionSummary
+                .builder("iexec.worker.download.sha256.throughput")
+                .description("SHA-256 hashing throughput of downloaded files")
+                .baseUnit("bytes/s")
+                .register(meterRegistry);
+        this.stalls = meterRegistry.counter("iexec.worker.download.stalls");
+        this.compressionSavedBytes = Counter
+                .builder("iexec.worker.download.compression.saved")
+                .description("Bytes not transferred thanks to compressed downloads")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.parallelismPerTask = Math.max(1, parallelismPerTask);
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.segmentSize = Math.max(1, segmentSizeInMb) * 1024 * 1024;
+        this.segmentsPerFile = Math.max(1, segmentsPerFile);
+        this.stallTimeout = Math.max(1, stallTimeout);
+        this.minThroughput = minThroughputInKbps * 1024d;
+        this.isCompressionEnabled = isCompressionEnabled;
+        this.downloadExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.segmentExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.watchdogExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectionTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .proxy(ProxySelector.getDefault())
+                .build();
+        this.hostPermits = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Download a file of a task.
+     *
+     * @param chainTaskId task of the file
+     * @param uri         URI of the file
+     * @param target      path of the downloaded file
+     * @return true if the file is downloaded
+     */
+    public boolean download(String chainTaskId, String uri, Path target) {
+        return download(taskCancellationService.getToken(chainTaskId), List.of(chainTaskId),
+                uri, target, new CancellationToken(chainTaskId), null, new DownloadReport());
+    }
+
+    /**
+     * Download a file of a task and compute its SHA-256 checksum while bytes
+     * are written, so the file is never read back.
+     *
+     * @param chainTaskId task of the file
+     * @param uri         URI of the file
+     * @param target      path of the downloaded file
+     * @return hex checksum (e.g. "0xabc..."), empty if the download failed
+     */
+    public String downloadAndHash(String chainTaskId, String uri, Path target) {
+        return downloadAndHash(chainTaskId, uri, target, new DownloadReport());
+    }
+
+    /**
+     * Download a file of a task and compute its SHA-256 checksum, recording
+     * a stall in the given report.
+     *
+     * @param chainTaskId task of the file
+     * @param uri         URI of the file
+     * @param target      path of the downloaded file
+     * @param report      stalls of the downloads of the task
+     * @return hex checksum (e.g. "0xabc..."), empty if the download failed
+     */
+    public String downloadAndHash(String chainTaskId, String uri, Path target,
+                                  DownloadReport report) {
+        return downloadAndHash(taskCancellationService.getToken(chainTaskId),
+                List.of(chainTaskId), uri, target, report);
+    }
+
+    /**
+     * Download a file needed by several tasks and compute its SHA-256
+     * checksum. The download is stopped by its own token rather than by the
+     * cancellation of one of the tasks, and its bandwidth is prioritized by
+     * the most urgent of the tasks.
+     *
+     * @param token        token stopping the download
+     * @param chainTaskIds tasks waiting for the file, may change during the
+     *                     download
+     * @param uri          URI of the file
+     * @param target       path of the downloaded file
+     * @param report       stalls of the download, reported to the task leading it
+     * @return hex checksum (e.g. "0xabc..."), empty if the download failed
+     */
+    public String downloadAndHash(CancellationToken token, Collection<String> chainTaskIds,
+                                  String uri, Path target, DownloadReport report) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            log.error("SHA-256 not supported [chainTaskId:{}]", token.getChainTaskId(), e);
+            return "";
+        }
+        boolean isDownloaded = download(token, chainTaskIds, uri, target,
+                new CancellationToken(token.getChainTaskId()), digest, report);
+        return isDownloaded ? Numeric.toHexString(digest.digest()) : "";
+    }
+
+    /**
+     * Download files of a task in parallel. The first failure stops the
+     * other downloads.
+     *
+     * @param chainTaskId task of the files
+     * @param files       path of the downloaded file -> URI of the file
+     * @return true if all files are downloaded
+     */
+    public boolean downloadAll(String chainTaskId, Map<Path, String> files) {
+        return downloadAll(chainTaskId, files, new DownloadReport());
+    }
+
+    /**
+     * Download files of a task in parallel, recording a stall in the given
+     * report. The first failure stops the other downloads.
+     *
+     * @param chainTaskId task of the files
+     * @param files       path of the downloaded file -> URI of the file
+     * @param report      stalls of the downloads of the task
+     * @return true if all files are downloaded
+     */
+    public boolean downloadAll(String chainTaskId, Map<Path, String> files,
+                               DownloadReport report) {
+        if (files.isEmpty()) {
+            return true;
+        }
+        Iterator<Map.Entry<Path, String>> pendingFiles = files.entrySet().iterator();
+        // cancelled on the first failure to stop in-flight siblings
+        CancellationToken batch = new CancellationToken(chainTaskId);
+        CancellationToken token = taskCancellationService.getToken(chainTaskId);
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelismPerTask, files.size()); i++) {
+            workers.add(CompletableFuture.runAsync(() -> {
+                Map.Entry<Path, String> file;
+                while (!batch.isCancelled() && (file = next(pendingFiles)) != null) {
+                    if (!download(token, List.of(chainTaskId), file.getValue(), file.getKey(),
+                            batch, null, report)
+                            && !batch.isCancelled()) {
+                        batch.cancel("failed download of " + file.getValue());
+                    }
+                }
+            }, downloadExecutor));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture[0])).join();
+        return !batch.isCancelled();
+    }
+
+    /**
+     * Get the size of a file without downloading it. Compression is not
+     * negotiated so the size is the one of the file written on disk.
+     *
+     * @param uri URI of the file
+     * @return size of the file in bytes, -1 if no candidate announced it
+     */
+    public long getContentLength(String uri) {
+        for (String candidate : ipfsGatewayService.getCandidates(uri)) {
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(candidate))
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .timeout(Duration.ofMillis(stallTimeout))
+                        .build();
+                HttpResponse<Void> response =
+                        httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                if (response.statusCode() == 200 && length >= 0) {
+                    return length;
+                }
+            } catch (IllegalArgumentException | IOException e) {
+                log.debug("Failed to get file size [uri:{}]", candidate, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized Map.Entry<Path, String> next(Iterator<Map.Entry<Path, String>> files) {
+        return files.hasNext() ? files.next() : null;
+    }
+
+    private boolean download(CancellationToken token, Collection<String> chainTaskIds,
+                             String uri, Path target, CancellationToken batch,
+                             MessageDigest digest, DownloadReport report) {
+        String chainTaskId = token.getChainTaskId();
+        if (token.isCancelled() || batch.isCancelled()) {
+            log.warn("Not downloading file [chainTaskId:{}, uri:{}, isTaskCancelled:{}]",
+                    chainTaskId, uri, token.isCancelled());
+            return false;
+        }
+        Semaphore permits;
+        try {
+            URI parsedUri = URI.create(uri);
+            permits = hostPermits.computeIfAbsent(String.valueOf(parsedUri.getHost()),
+                    host -> new Semaphore(maxConnectionsPerHost, true));
+            permits.acquire();
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid download URI [chainTaskId:{}, uri:{}]", chainTaskId, uri);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        StreamState stream = new StreamState();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    long size = transfer(token, chainTaskIds, batch, uri, target, digest,
+                            permits, stream);
+                    log.info("Downloaded file [chainTaskId:{}, uri:{}, size:{}, durationMs:{}]",
+                            chainTaskId, uri, size, System.currentTimeMillis() - start);
+                    report.onDownloaded(uri);
+                    return true;
+                } catch (DownloadStalledException | HttpTimeoutException e) {
+                    stalls.increment();
+                    if (e instanceof DownloadStalledException) {
+                        // next attempt is served by other gateways if any
+                        String stalledUri = ((DownloadStalledException) e).getUri();
+                        ipfsGatewayService.recordFailure(stalledUri);
+                        stream.stalledServers.add(getServer(stalledUri));
+                    }
+                    if (attempt >= MAX_STALL_ATTEMPTS || token.isCancelled() || batch.isCancelled()) {
+                        throw e;
+                    }
+                    log.warn("Download stalled, retrying [chainTaskId:{}, uri:{}, attempt:{}, " +
+                            "resumableBytes:{}]", chainTaskId, uri, attempt,
+                            stream.resumableUri != null ? stream.written : 0);
+                }
+            }
+        } catch (DownloadStalledException | HttpTimeoutException e) {
+            log.error("Failed to download stalled file [chainTaskId:{}, uri:{}, " +
+                            "stallTimeout:{}, minThroughput:{}]",
+                    chainTaskId, uri, stallTimeout, minThroughput, e);
+            report.onStalled(uri);
+        } catch (IOException e) {
+            log.error("Failed to download file [chainTaskId:{}, uri:{}]",
+                    chainTaskId, uri, e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted download [chainTaskId:{}, uri:{}]", chainTaskId, uri);
+            Thread.currentThread().interrupt();
+        } finally {
+            permits.release();
+        }
+        deleteQuietly(target);
+        if (token.isCancelled()) {
+            // progress of cancelled tasks is useless
+            deleteQuietly(getPartFile(target));
+            deleteQuietly(getProgressFile(target));
+        }
+        return false;
+    }
+
+    /**
+     * Download a file as a single stream, or as parallel segments if the
+     * server announces range support for a file bigger than a segment. The
+     * first response is then only used to read the length and validator of
+     * the file. Compressed responses are always streamed since their length
+     * and ranges apply to the compressed bytes.
+     * <p>
+     * A single stream which stalled in a previous attempt is resumed from its
+     * last written byte if possible, the checksum then goes on from the bytes
+     * already hashed.
+     */
+    private long transfer(CancellationToken token, Collection<String> chainTaskIds,
+                          CancellationToken batch, String uri, Path target, MessageDigest digest, Semaphore permits,
+                          StreamState stream)
+            throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = stream.resumableUri != null
+                ? resume(uri, stream)
+                : null;
+        long offset = response != null ? stream.written : 0;
+        if (response == null) {
+            response = race(getCandidates(uri, stream), this::newRequest);
+        }
+        // segments are requested to the server which answered first
+        String servedUri = response.uri().toString();
+        Files.createDirectories(target.getParent());
+        long length = stream.length;
+        String encoding = null;
+        if (offset == 0) {
+            if (digest != null) {
+                digest.reset();
+            }
+            length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            boolean isRangeSupported = response.headers().firstValue("Accept-Ranges")
+                    .map("bytes"::equalsIgnoreCase)
+                    .orElse(false);
+            encoding = getContentEncoding(response);
+            String validator = getValidator(response);
+            if (encoding == null && isRangeSupported && length > segmentSize) {
+                closeQuietly(response.body());
+                return transferSegments(token, chainTaskIds, batch, servedUri, target,
+                        digest, permits, length, validator);
+            }
+            deleteQuietly(getPartFile(target));
+            deleteQuietly(getProgressFile(target));
+            // IPFS content cannot change, other files are resumed only if unchanged
+            boolean isImmutable = ipfsGatewayService.getContentPath(servedUri).isPresent();
+            boolean isResumable = encoding == null && isRangeSupported && length > 0
+                    && (isImmutable || validator != null);
+            stream.resumableUri = isResumable ? servedUri : null;
+            stream.validator = validator;
+            stream.isImmutable = isImmutable;
+            stream.length = length;
+            stream.written = 0;
+        }
+        // length of the decoded file is unknown
+        long decodedLength = encoding == null ? length : -1;
+        long size = offset;
+        long wireSize = 0;
+        long unthrottledBytes = 0;
+        long hashingNanos = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        StallWatchdog watchdog = new StallWatchdog(minThroughput, stallTimeout);
+        try (InputStream in = response.body();
+             CancellationToken.Registration taskRegistration =
+                     token.onCancel(() -> closeQuietly(in));
+             CancellationToken.Registration batchRegistration =
+                     batch.onCancel(() -> closeQuietly(in));
+             CancellationToken.Registration watchdogRegistration =
+                     watchdog.start(watchdogExecutor, () -> closeQuietly(in));
+             CountingInputStream wire = new CountingInputStream(in);
+             InputStream source = decode(wire, encoding);
+             FileChannel channel = offset == 0
+                     ? FileChannel.open(target, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                     : FileChannel.open(target, StandardOpenOption.WRITE)) {
+            setLength(channel, decodedLength);
+            while (fill(source, buffer, watchdog) != -1 && !token.isCancelled()
+                    && !batch.isCancelled()) {
+                buffer.flip();
+                int read = buffer.remaining();
+                write(channel, buffer, size);
+                size += read;
+                if (digest != null) {
+                    long hashStart = System.nanoTime();
+                    digest.update(buffer.rewind());
+                    hashingNanos += System.nanoTime() - hashStart;
+                }
+                // bytes written and hashed, a stalled stream resumes after them
+                stream.written = size;
+                // bandwidth is taken for bytes received, not for decoded bytes
+                unthrottledBytes += wire.getCount() - wireSize;
+                wireSize = wire.getCount();
+                if (unthrottledBytes >= THROTTLE_CHUNK) {
+                    throttle(chainTaskIds, watchdog, unthrottledBytes);
+                    unthrottledBytes = 0;
+                }
+                buffer.clear();
+            }
+            // end of the compressed stream is read with the last decoded bytes
+            unthrottledBytes += wire.getCount() - wireSize;
+            wireSize = wire.getCount();
+        } catch (IOException e) {
+            checkNotStalled(watchdog, servedUri);
+            throw e;
+        }
+        checkNotStopped(token, batch);
+        checkNotStalled(watchdog, servedUri);
+        bandwidthSchedulerService.charge(TransferClass.DOWNLOAD, unthrottledBytes);
+        if (decodedLength >= 0 && size != decodedLength) {
+            // the file length was set, a short stream would leave zeros at its end
+            throw new IOException("File truncated [expected:" + decodedLength
+                    + ", received:" + size + "]");
+        }
+        if (encoding != null) {
+            compressionSavedBytes.increment(Math.max(0, size - wireSize));
+            log.info("Decoded compressed download [uri:{}, encoding:{}, wireSize:{}, size:{}]",
+                    servedUri, encoding, wireSize, size);
+        }
+        if (digest != null && size > offset) {
+            hashingThroughput.record((size - offset) * 1e9 / Math.max(1, hashingNanos));
+        }
+        return size;
+    }
+
+    /**
+     * Request the missing bytes of a stalled single stream. IPFS content is
+     * requested from the other gateways, other files from the server which
+     * sent the first bytes, provided the file did not change since.
+     *
+     * @return response sending the missing bytes, null if the download has
+     * to restart from the first byte
+     */
+    private HttpResponse<InputStream> resume(String uri, StreamState stream)
+            throws InterruptedException {
+        List<String> candidates = stream.isImmutable
+                ? getCandidates(uri, stream)
+                : List.of(stream.resumableUri);
+        HttpResponse<InputStream> response;
+        try {
+            response = race(candidates, candidate -> newResumeRequest(candidate, stream));
+        } catch (IOException e) {
+            log.warn("Failed to resume download, restarting it [uri:{}, offset:{}]",
+                    uri, stream.written, e);
+            stream.resumableUri = null;
+            return null;
+        }
+        if (response.statusCode() == 206 && getRangeStart(response) == stream.written) {
+            log.info("Resuming download [uri:{}, servedUri:{}, offset:{}]",
+                    uri, response.uri(), stream.written);
+            return response;
+        }
+        // the file changed and is sent in full, or the range is not the requested one
+        closeQuietly(response.body());
+        log.warn("Download not resumable, restarting it [uri:{}, status:{}, offset:{}]",
+                uri, response.statusCode(), stream.written);
+        stream.resumableUri = null;
+        return null;
+    }
+
+    /**
+     * Get the URIs to race for a file, leaving out servers which stalled
+     * during previous attempts if other candidates remain.
+     */
+    private List<String> getCandidates(String uri, StreamState stream) {
+        List<String> candidates = ipfsGatewayService.getCandidates(uri);
+        List<String> otherCandidates = candidates.stream()
+                .filter(candidate -> !stream.stalledServers.contains(getServer(candidate)))
+                .collect(Collectors.toList());
+        return otherCandidates.isEmpty() ? candidates : otherCandidates;
+    }
+
+    /**
+     * Request a file to all candidate URIs at once and keep the first
+     * successful response. Responses of other candidates are closed as soon
+     * as they arrive, which stops their transfer.
+     *
+     * @param candidates URIs serving the same file
+     * @return first successful response
+     * @throws IOException if no candidate served the file
+     */
+    private HttpResponse<InputStream> race(List<String> candidates,
+                                           Function<String, HttpRequest> requests)
+            throws IOException, InterruptedException {
+        if (candidates.size() == 1) {
+            HttpRequest request;
+            try {
+                request = requests.apply(candidates.get(0));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unsupported URI: " + candidates.get(0), e);
+            }
+            HttpResponse<InputStream> response =
+                    httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if (!isServed(response.statusCode())) {
+                response.body().close();
+                throw new IOException("Unexpected HTTP status: " + response.statusCode());
+            }
+            return response;
+        }
+        // candidate -> successful response
+        Map<String, HttpResponse<InputStream>> responses = new ConcurrentHashMap<>();
+        CompletableFuture<String> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for (String candidate : candidates) {
+            HttpRequest request = requests.apply(candidate);
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .whenComplete((response, error) -> {
+                        if (error == null && isServed(response.statusCode())) {
+                            ipfsGatewayService.recordLatency(candidate,
+                                    System.currentTimeMillis() - start);
+                            responses.put(candidate, response);
+                            if (!winner.complete(candidate)) {
+                                closeQuietly(response.body());
+                            }
+                            return;
+                        }
+                        ipfsGatewayService.recordFailure(candidate);
+                        if (response != null) {
+                            closeQuietly(response.body());
+                        }
+                        if (failures.incrementAndGet() == candidates.size()) {
+                            winner.completeExceptionally(new IOException(
+                                    "No candidate served the file " + candidates, error));
+                        }
+                    });
+        }
+        try {
+            String candidate = winner.get();
+            ipfsGatewayService.recordWin(candidate);
+            log.debug("Candidate won the race [uri:{}, latencyMs:{}]",
+                    candidate, System.currentTimeMillis() - start);
+            return responses.get(candidate);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (InterruptedException e) {
+            // a late winner is closed since it cannot complete a cancelled race
+            if (!winner.cancel(false)) {
+                closeQuietly(responses.get(winner.join()).body());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Build the first request of a file, which negotiates a compressed
+     * response if enabled.
+     */
+    private HttpRequest newRequest(String uri) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri)).GET()
+                .timeout(Duration.ofMillis(stallTimeout));
+        if (isCompressionEnabled) {
+            request.header("Accept-Encoding", ACCEPTED_ENCODINGS);
+        }
+        return request.build();
+    }
+
+    /**
+     * Build the request of the missing bytes of a stalled single stream.
+     * Compression is not negotiated, ranges apply to the file itself.
+     */
+    private HttpRequest newResumeRequest(String uri, StreamState stream) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri)).GET()
+                .timeout(Duration.ofMillis(stallTimeout))
+                .header("Range", "bytes=" + stream.written + "-");
+        if (!stream.isImmutable) {
+            // a changed file is sent in full with a 200 status
+            request.header("If-Range", stream.validator);
+        }
+        return request.build();
+    }
+
+    /**
+     * Full responses of a first request, or partial responses of a resumed
+     * download.
+     */
+    private static boolean isServed(int status) {
+        return status == 200 || status == 206;
+    }
+
+    /**
+     * Get the first byte of a partial response.
+     *
+     * @return offset of the first byte, -1 if the response has no valid
+     * Content-Range
+     */
+    private static long getRangeStart(HttpResponse<?> response) {
+        String range = response.headers().firstValue("Content-Range").orElse("");
+        int separator = range.indexOf('-');
+        if (!range.startsWith("bytes ") || separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), separator).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return "host[:port]" of a URI
+     */
+    private static String getServer(String uri) {
+        try {
+            return String.valueOf(URI.create(uri).getAuthority());
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Get the compression of a response.
+     *
+     * @return "gzip" or "deflate", null if the response is not compressed or
+     * if compression is disabled
+     */
+    private String getContentEncoding(HttpResponse<?> response) {
+        String encoding = response.headers().firstValue("Content-Encoding")
+                .map(value -> value.trim().toLowerCase())
+                .orElse("identity");
+        switch (encoding) {
+            case "identity":
+                return null;
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+                if (isCompressionEnabled) {
+                    return encoding;
+                }
+                // fall through, the file is kept as sent
+            default:
+                log.warn("Content encoding not decoded, file kept as sent " +
+                        "[uri:{}, encoding:{}]", response.uri(), encoding);
+                return null;
+        }
+    }
+
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        if (!"deflate".equals(encoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // not released by the stream since it is not its default inflater
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Download the segments of a file in a partial file, resuming from the
+     * saved progress if any. The calling thread already holds a connection
+     * permit of the host, more segments are downloaded in parallel only if
+     * more permits of the host are free.
+     * <p>
+     * Segments arrive out of order, the checksum of the file is fed with
+     * the contiguous prefix of the file as segments land (see
+     * {@link PrefixDigest}).
+     */
+    private long transferSegments(CancellationToken token, Collection<String> chainTaskIds,
+                                  CancellationToken batch, String uri, Path target, MessageDigest digest,
+                                  Semaphore permits, long length, String validator)
+            throws IOException {
+        Path partFile = getPartFile(target);
+        // progress is useless without the partial file
+        DownloadProgress progress = Files.exists(partFile)
+                ? DownloadProgress.load(getProgressFile(target), length, validator, segmentSize)
+                : DownloadProgress.create(getProgressFile(target), length, validator, segmentSize);
+        if (!progress.isResumed()) {
+            Files.deleteIfExists(partFile);
+        }
+        log.info("Downloading file in segments [uri:{}, length:{}, segments:{}, " +
+                        "resumedBytes:{}]", uri, length, progress.getSegmentCount(),
+                progress.getWritten());
+        Queue<Integer> pendingSegments = new ConcurrentLinkedQueue<>();
+        for (int segment = 0; segment < progress.getSegmentCount(); segment++) {
+            if (!progress.isComplete(segment)) {
+                pendingSegments.add(segment);
+            }
+        }
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            setLength(channel, length);
+            PrefixDigest prefixDigest = digest != null
+                    ? new PrefixDigest(digest, progress, channel)
+                    : null;
+            Runnable worker = () -> {
+                Integer segment;
+                while (failure.get() == null && !token.isCancelled() && !batch.isCancelled()
+                        && (segment = pendingSegments.poll()) != null) {
+                    try {
+                        transferSegment(token, chainTaskIds, batch, uri, validator, channel,
+                                progress, prefixDigest, segment);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            List<CompletableFuture<Void>> extraWorkers = new ArrayList<>();
+            int workerCount = Math.min(segmentsPerFile, pendingSegments.size());
+            for (int i = 1; i < workerCount && permits.tryAcquire(); i++) {
+                extraWorkers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        worker.run();
+                    } finally {
+                        permits.release();
+                    }
+                }, segmentExecutor));
+            }
+            worker.run();
+            CompletableFuture.allOf(extraWorkers.toArray(new CompletableFuture[0])).join();
+            checkNotStopped(token, batch);
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (prefixDigest != null) {
+                finishDigest(prefixDigest, length);
+            }
+        } finally {
+            saveQuietly(progress);
+        }
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        progress.delete();
+        return length;
+    }
+
+    /**
+     * Download the missing bytes of a segment, retrying from the last
+     * written byte on failure.
+     */
+    private void transferSegment(CancellationToken token, Collection<String> chainTaskIds,
+                                 CancellationToken batch, String uri, String validator, FileChannel channel,
+                                 DownloadProgress progress, PrefixDigest prefixDigest,
+                                 int segment) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transferRange(token, chainTaskIds, batch, uri, validator, channel, progress,
+                        prefixDigest, segment);
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_SEGMENT_ATTEMPTS || token.isCancelled() || batch.isCancelled()) {
+                    throw e;
+                }
+                log.warn("Failed to download segment, retrying [uri:{}, segment:{}, " +
+                        "attempt:{}]", uri, segment, attempt, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted segment download", e);
+            }
+        }
+    }
+
+    private void transferRange(CancellationToken token, Collection<String> chainTaskIds,
+                               CancellationToken batch, String uri, String validator, FileChannel channel,
+                               DownloadProgress progress, PrefixDigest prefixDigest,
+                               int segment)
+            throws IOException, InterruptedException {
+        long offset = progress.getNextOffset(segment);
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(uri)).GET()
+                .timeout(Duration.ofMillis(stallTimeout))
+                .header("Range", "bytes=" + offset + "-" + progress.getSegmentEnd(segment));
+        if (validator != null) {
+            // a changed file is sent in full with a 200 status
+            request.header("If-Range", validator);
+        }
+        HttpResponse<InputStream> response =
+                httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 206) {
+            response.body().close();
+            throw new IOException("Range not served, HTTP status: " + response.statusCode());
+        }
+        long unsavedBytes = 0;
+        long unthrottledBytes = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        StallWatchdog watchdog = new StallWatchdog(minThroughput, stallTimeout);
+        try (InputStream source = response.body();
+             CancellationToken.Registration taskRegistration =
+                     token.onCancel(() -> closeQuietly(source));
+             CancellationToken.Registration batchRegistration =
+                     batch.onCancel(() -> closeQuietly(source));
+             CancellationToken.Registration watchdogRegistration =
+                     watchdog.start(watchdogExecutor, () -> closeQuietly(source))) {
+            int read;
+            while (!progress.isComplete(segment)) {
+                // never write past the end of the segment
+                buffer.limit((int) Math.min(buffer.capacity(),
+                        progress.getSegmentEnd(segment) - offset + 1));
+                if ((read = fill(source, buffer, watchdog)) == -1) {
+                    break;
+                }
+                buffer.flip();
+                write(channel, buffer, offset);
+                progress.addWritten(segment, read);
+                if (prefixDigest != null) {
+                    prefixDigest.onWritten(buffer.rewind(), offset);
+                }
+                offset += read;
+                unsavedBytes += read;
+                unthrottledBytes += read;
+                if (unthrottledBytes >= THROTTLE_CHUNK) {
+                    throttle(chainTaskIds, watchdog, unthrottledBytes);
+                    unthrottledBytes = 0;
+                }
+                if (unsavedBytes >= PROGRESS_SAVE_INTERVAL) {
+                    saveQuietly(progress);
+                    unsavedBytes = 0;
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            checkNotStalled(watchdog, uri);
+            throw e;
+        }
+        checkNotStopped(token, batch);
+        checkNotStalled(watchdog, uri);
+        bandwidthSchedulerService.charge(TransferClass.DOWNLOAD, unthrottledBytes);
+        if (!progress.isComplete(segment)) {
+            throw new IOException("Segment truncated [segment:" + segment + "]");
+        }
+    }
+
+    /**
+     * Take bandwidth for bytes read from the network. Reading slower makes
+     * the server send slower, the wait is consequently not held against the
+     * server by the watchdog.
+     */
+    private void throttle(Collection<String> chainTaskIds, StallWatchdog watchdog, long bytes)
+            throws InterruptedException {
+        watchdog.onPauseStart(System.nanoTime());
+        try {
+            bandwidthSchedulerService.acquire(chainTaskIds, TransferClass.DOWNLOAD, bytes);
+        } finally {
+            watchdog.onPauseEnd(System.nanoTime());
+        }
+    }
+
+    private void finishDigest(PrefixDigest prefixDigest, long length) throws IOException {
+        long hashedWhileDownloading = prefixDigest.getHashed();
+        prefixDigest.finish(ByteBuffer.allocate(BUFFER_SIZE), length);
+        log.debug("Hashed segmented download [length:{}, hashedWhileDownloading:{}]",
+                length, hashedWhileDownloading);
+        if (length > 0) {
+            hashingThroughput.record(length * 1e9 / Math.max(1, prefixDigest.getHashingNanos()));
+        }
+    }
+
+    /**
+     * Read from the network until the buffer is full or the stream ends, so
+     * the file is written in large blocks. Bytes are read straight into the
+     * heap array of the buffer, which is then hashed without a copy. The
+     * HTTP client only delivers heap bytes, a direct buffer would add a copy
+     * on the way in and on the way to the digest.
+     *
+     * @return number of read bytes, -1 if the stream ended before any byte
+     */
+    private static int fill(InputStream source, ByteBuffer buffer,
+                            StallWatchdog watchdog) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (read == -1) {
+                return total == 0 ? -1 : total;
+            }
+            buffer.position(buffer.position() + read);
+            watchdog.onTransferred(read);
+            total += read;
+        }
+        return total;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Give the file its final length before writing it, so segments can be
+     * written at their offset and a short single stream is detected. The
+     * file is sparse: disk blocks are not reserved and a full disk is only
+     * reported when the missing bytes are written.
+     */
+    private static void setLength(FileChannel channel, long length) throws IOException {
+        if (length > 0 && channel.size() < length) {
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+    }
+
+    /**
+     * Strong validator of the remote file, used to detect a change of the
+     * file between two attempts. Weak ETags cannot be used in If-Range.
+     */
+    private String getValidator(HttpResponse<?> response) {
+        return response.headers().firstValue("ETag")
+                .filter(etag -> !etag.startsWith("W/"))
+                .or(() -> response.headers().firstValue("Last-Modified"))
+                .orElse(null);
+    }
+
+    private void checkNotStopped(CancellationToken token, CancellationToken batch)
+            throws IOException {
+        if (token.isCancelled() || batch.isCancelled()) {
+            throw new IOException("Download stopped: " + (token.isCancelled()
+                    ? token.getReason() : batch.getReason()));
+        }
+    }
+
+    private void checkNotStalled(StallWatchdog watchdog, String uri)
+            throws DownloadStalledException {
+        if (watchdog.isStalled()) {
+            throw new DownloadStalledException(uri);
+        }
+    }
+
+    static Path getPartFile(Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+
+    static Path getProgressFile(Path target) {
+        return target.resolveSibling(target.getFileName() + PROGRESS_SUFFIX);
+    }
+
+    private void saveQuietly(DownloadProgress progress) {
+        try {
+            progress.save();
+        } catch (IOException e) {
+            log.warn("Failed to save download progress", e);
+        }
+    }
+
+    private void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.debug("Failed to close download stream", e);
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete partially downloaded file [file:{}]", path);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        downloadExecutor.shutdownNow();
+        segmentExecutor.shutdownNow();
+        watchdogExecutor.shutdownNow();
+    }
+
+    /**
+     * State of a download kept across its attempts.
+     */
+    private static class StreamState {
+        // servers which stalled during a previous attempt, as "host[:port]"
+        private final Set<String> stalledServers = new HashSet<>();
+        // server of the single stream, null if the stream cannot be resumed
+        private String resumableUri;
+        private String validator;
+        private boolean isImmutable;
+        private long length;
+        // bytes of the single stream written and hashed
+        private long written;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a transfer is aborted by its {@link StallWatchdog}.
+ */
+class DownloadStalledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String uri;
+
+    DownloadStalledException(String uri) {
+        super("Download stalled below minimum throughput: " + uri);
+        this.uri = uri;
+    }
+
+    /**
+     * @return URI served by the stalled source
+     */
+    String getUri() {
+        return uri;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Pick the IPFS gateways to race when downloading IPFS content.
+ * <p>
+ * A URI is recognized as IPFS content if it uses the "ipfs://" scheme or
+ * if it is a gateway URL holding a CID ("https://host/ipfs/CID/path" or
+ * "https://CID.ipfs.host/path"). The same content is then requested from
+ * the configured gateways (and the gateway of the URI), the fastest to
+ * answer is kept.
+ * <p>
+ * Time to first byte of each gateway is tracked as an exponentially
+ * weighted moving average. Gateways never used are tried first, then the
+ * fastest ones, so that slow or failing gateways are progressively left
+ * out of the race.
+ */
+@Slf4j
+@Service
+public class IpfsGatewayService {
+
+    private static final String CID = "(Qm[1-9A-HJ-NP-Za-km-z]{44}|b[a-z2-7]{58,})";
+    private static final Pattern IPFS_SCHEME_PATTERN =
+            Pattern.compile("^ipfs://" + CID + "(/.*)?$");
+    private static final Pattern GATEWAY_PATH_PATTERN =
+            Pattern.compile("^(https?://[^/]+)/ipfs/" + CID + "(/.*)?$");
+    private static final Pattern GATEWAY_SUBDOMAIN_PATTERN =
+            Pattern.compile("^(https?)://" + CID + "\\.ipfs\\.([^/]+)(/.*)?$");
+    // weight of the last measure in the moving average
+    private static final double LATENCY_WEIGHT = 0.3;
+    // latency recorded for a gateway failing to serve the content
+    private static final double FAILURE_LATENCY = 30_000;
+
+    private final List<String> gateways;
+    private final int raceSize;
+    private final MeterRegistry meterRegistry;
+    // gateway -> moving average of time to first byte, in ms
+    private final Map<String, Double> latencies;
+
+    public IpfsGatewayService(@Value("${worker.ipfs.gateways}") String[] gateways,
+                              @Value("${worker.ipfs.race-size}") int raceSize,
+                              MeterRegistry meterRegistry) {
+        this.gateways = new ArrayList<>();
+        for (String gateway : gateways) {
+            if (StringUtils.isNotBlank(gateway)) {
+                this.gateways.add(StringUtils.removeEnd(gateway.trim(), "/"));
+            }
+        }
+        this.raceSize = Math.max(1, raceSize);
+        this.meterRegistry = meterRegistry;
+        this.latencies = new ConcurrentHashMap<>();
+        this.gateways.forEach(this::registerGauge);
+        log.info("IPFS gateways [gateways:{}, raceSize:{}]", this.gateways, this.raceSize);
+    }
+
+    /**
+     * Get the content path of an IPFS URI.
+     * <p>
+     * e.g. "https://ipfs.io/ipfs/QmX.../file.zip" => "/ipfs/QmX.../file.zip"
+     *
+     * @param uri URI of the content
+     * @return "/ipfs/CID/path", empty if the URI is not IPFS content
+     */
+    public Optional<String> getContentPath(String uri) {
+        if (uri == null) {
+            return Optional.empty();
+        }
+        Matcher matcher = IPFS_SCHEME_PATTERN.matcher(uri);
+        if (matcher.matches()) {
+            return Optional.of("/ipfs/" + matcher.group(1) + StringUtils.defaultString(matcher.group(2)));
+        }
+        matcher = GATEWAY_PATH_PATTERN.matcher(uri);
+        if (matcher.matches()) {
+            return Optional.of("/ipfs/" + matcher.group(2) + StringUtils.defaultString(matcher.group(3)));
+        }
+        matcher = GATEWAY_SUBDOMAIN_PATTERN.matcher(uri);
+        if (matcher.matches()) {
+            return Optional.of("/ipfs/" + matcher.group(2) + StringUtils.defaultString(matcher.group(4)));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Get the URIs to race for downloading a file.
+     *
+     * @param uri URI of the file
+     * @return the URI itself if it is not IPFS content, the content on the
+     * best gateways otherwise
+     */
+    public List<String> getCandidates(String uri) {
+        Optional<String> contentPath = getContentPath(uri);
+        if (contentPath.isEmpty()) {
+            return List.of(uri);
+        }
+        Set<String> candidateGateways = new LinkedHashSet<>();
+        getGateway(uri).ifPresent(candidateGateways::add);
+        candidateGateways.addAll(gateways);
+        if (candidateGateways.isEmpty()) {
+            return List.of(uri);
+        }
+        return candidateGateways.stream()
+                .sorted(Comparator.comparingDouble(gateway -> latencies.getOrDefault(gateway, 0d)))
+                .limit(raceSize)
+                .map(gateway -> gateway + contentPath.get())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Record the time to first byte of a gateway.
+     *
+     * @param candidate URI requested to the gateway
+     * @param latency   time to first byte, in ms
+     */
+    public void recordLatency(String candidate, long latency) {
+        getGateway(candidate).ifPresent(gateway -> record(gateway, latency));
+    }
+
+    /**
+     * Record a gateway failing to serve a content.
+     *
+     * @param candidate URI requested to the gateway
+     */
+    public void recordFailure(String candidate) {
+        getGateway(candidate).ifPresent(gateway -> record(gateway, FAILURE_LATENCY));
+    }
+
+    /**
+     * Record the gateway kept for a download.
+     *
+     * @param candidate URI requested to the gateway
+     */
+    public void recordWin(String candidate) {
+        getGateway(candidate).ifPresent(gateway -> meterRegistry
+                .counter("iexec.worker.ipfs.gateway.wins", "gateway", gateway)
+                .increment());
+    }
+
+    Optional<Double> getLatency(String gateway) {
+        return Optional.ofNullable(latencies.get(gateway));
+    }
+
+    private void record(String gateway, double latency) {
+        if (!latencies.containsKey(gateway)) {
+            registerGauge(gateway);
+        }
+        latencies.merge(gateway, latency, (average, last) ->
+                average + LATENCY_WEIGHT * (last - average));
+    }
+
+    private void registerGauge(String gateway) {
+        Gauge.builder("iexec.worker.ipfs.gateway.latency", latencies,
+                        map -> map.getOrDefault(gateway, Double.NaN))
+                .description("Moving average of time to first byte of the gateway, in ms")
+                .tag("gateway", gateway)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Get the gateway of a URI, "ipfs://" URIs having no gateway.
+     *
+     * @return "scheme://host[:port]"
+     */
+    private Optional<String> getGateway(String uri) {
+        if (uri == null || uri.startsWith("ipfs://")) {
+            return Optional.empty();
+        }
+        Matcher matcher = GATEWAY_SUBDOMAIN_PATTERN.matcher(uri);
+        if (matcher.matches()) {
+            return Optional.of(matcher.group(1) + "://" + matcher.group(3));
+        }
+        try {
+            URI parsedUri = URI.create(uri);
+            if (parsedUri.getScheme() == null || parsedUri.getAuthority() == null) {
+                return Optional.empty();
+            }
+            return Optional.of(parsedUri.getScheme() + "://" + parsedUri.getAuthority());
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Checksum of a segmented download computed while its segments land.
+ * <p>
+ * Bytes are fed to the digest in file order. A worker writing right after
+ * the hashed bytes feeds its own bytes, segments completed out of order
+ * are read back from the partial file as soon as the contiguous prefix of
+ * the download (see {@link DownloadProgress}) reaches them, while they are
+ * still in the page cache. Only bytes not hashed yet are read back once
+ * all segments are written.
+ */
+class PrefixDigest {
+
+    private final MessageDigest digest;
+    private final DownloadProgress progress;
+    private final FileChannel channel;
+    // a single worker hashes at a time, others go on downloading
+    private final ReentrantLock lock;
+    private long hashed;
+    private long hashingNanos;
+
+    /**
+     * @param digest   digest to feed, reset
+     * @param progress progress of the download
+     * @param channel  partial file of the download, opened for reading
+     */
+    PrefixDigest(MessageDigest digest, DownloadProgress progress, FileChannel channel) {
+        this.digest = digest;
+        this.progress = progress;
+        this.channel = channel;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Feed bytes just written to the partial file, then the bytes which
+     * joined the contiguous prefix of the download. Nothing is done if
+     * another worker is hashing, skipped bytes are read back later.
+     *
+     * @param buffer bytes written at the offset, from its position to its
+     *               limit. It is also used to read back bytes and is left
+     *               in an undefined state.
+     * @param offset offset of the bytes in the file
+     */
+    void onWritten(ByteBuffer buffer, long offset) throws IOException {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            if (offset == hashed) {
+                hashed += buffer.remaining();
+                digest.update(buffer);
+            }
+            readBack(buffer, progress.getCompletePrefix());
+            hashingNanos += System.nanoTime() - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Feed the bytes not hashed yet once all segments are written.
+     *
+     * @param buffer buffer used to read back bytes
+     * @param length length of the file
+     */
+    void finish(ByteBuffer buffer, long length) throws IOException {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            readBack(buffer, length);
+            hashingNanos += System.nanoTime() - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getHashed() {
+        return hashed;
+    }
+
+    long getHashingNanos() {
+        return hashingNanos;
+    }
+
+    private void readBack(ByteBuffer buffer, long end) throws IOException {
+        while (hashed < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - hashed));
+            int read = channel.read(buffer, hashed);
+            if (read == -1) {
+                throw new IOException("Partial file shorter than its written bytes");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            hashed += read;
+        }
+    }
+}
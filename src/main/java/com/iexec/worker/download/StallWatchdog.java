@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import com.iexec.worker.task.CancellationToken;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watchdog aborting a transfer whose throughput stays below a minimum
+ * for a whole window. Time spent waiting for bandwidth of the worker is
+ * not counted in the window, such a transfer is slow on purpose. A wait
+ * still in progress is not counted either, so a long wait for bandwidth is
+ * never taken for a stall.
+ */
+class StallWatchdog {
+
+    private final double minThroughput;
+    private final long windowNanos;
+    private final AtomicLong transferredBytes;
+    private long pausedNanos;
+    // start of the wait in progress, if any
+    private long pauseStart;
+    private boolean isPaused;
+    private long windowStart;
+    private long windowStartBytes;
+    private long windowStartPausedNanos;
+    private volatile boolean isStalled;
+
+    /**
+     * @param minThroughput minimum throughput in bytes/s
+     * @param windowMillis  duration below the minimum throughput after which
+     *                      the transfer is stalled
+     */
+    StallWatchdog(double minThroughput, long windowMillis) {
+        this.minThroughput = minThroughput;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.transferredBytes = new AtomicLong();
+        this.windowStart = System.nanoTime();
+    }
+
+    /**
+     * Periodically check the transfer until the returned registration is
+     * closed.
+     *
+     * @param executor executor running the checks
+     * @param abort    action stopping the transfer once stalled
+     * @return registration to close once the transfer is over
+     */
+    CancellationToken.Registration start(ScheduledExecutorService executor, Runnable abort) {
+        long period = Math.max(10, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(windowNanos) / 4));
+        ScheduledFuture<?> checks = executor.scheduleAtFixedRate(() -> {
+            if (!isStalled && check(System.nanoTime())) {
+                abort.run();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        return () -> checks.cancel(false);
+    }
+
+    void onTransferred(long bytes) {
+        transferredBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Mark the start of a wait for bandwidth.
+     *
+     * @param now current time in nanoseconds
+     */
+    synchronized void onPauseStart(long now) {
+        pauseStart = now;
+        isPaused = true;
+    }
+
+    /**
+     * Mark the end of a wait for bandwidth.
+     *
+     * @param now current time in nanoseconds
+     */
+    synchronized void onPauseEnd(long now) {
+        if (isPaused) {
+            pausedNanos += now - pauseStart;
+            isPaused = false;
+        }
+    }
+
+    boolean isStalled() {
+        return isStalled;
+    }
+
+    /**
+     * Check the throughput of the window once it is over, and start a new
+     * window.
+     *
+     * @param now current time in nanoseconds
+     * @return true if the transfer stalled during the window
+     */
+    synchronized boolean check(long now) {
+        long paused = pausedNanos + (isPaused ? now - pauseStart : 0);
+        long activeNanos = now - windowStart - (paused - windowStartPausedNanos);
+        if (activeNanos < windowNanos) {
+            return false;
+        }
+        long bytes = transferredBytes.get();
+        if ((bytes - windowStartBytes) * 1e9 / activeNanos < minThroughput) {
+            isStalled = true;
+        }
+        windowStart = now;
+        windowStartBytes = bytes;
+        windowStartPausedNanos = paused;
+        return isStalled;
+    }
+}
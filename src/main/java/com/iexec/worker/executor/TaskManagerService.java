@@ -34,14 +34,25 @@ import com.iexec.worker.compute.post.PostComputeResponse;
 import com.iexec.worker.compute.pre.PreComputeResponse;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.dataset.DataService;
+import com.iexec.worker.docker.ContainerStatsService;
+import com.iexec.worker.docker.ContainerStatsSummary;
+import com.iexec.worker.docker.CpusetPlacement;
+import com.iexec.worker.docker.CpusetPlacementService;
+import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.result.ResultService;
+import com.iexec.worker.task.TaskCancellationService;
+import com.iexec.worker.task.TaskDeadlineService;
+import com.iexec.worker.task.TaskTmpfsService;
 import com.iexec.worker.tee.scone.TeeSconeService;
 import com.iexec.worker.utils.LoggingUtils;
 import com.iexec.worker.utils.WorkflowException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static com.iexec.common.replicate.ReplicateStatus.APP_DOWNLOAD_FAILED;
 import static com.iexec.common.replicate.ReplicateStatus.DATA_DOWNLOAD_FAILED;
@@ -53,6 +64,10 @@ import static java.util.Objects.requireNonNull;
 @Service
 public class TaskManagerService {
 
+    // stats or placements of pre, app and post containers, with room for
+    // retried ones
+    static final int MAX_REPORTED_CONTAINER_STATS = 8;
+
     private final WorkerConfigurationService workerConfigurationService;
     private final IexecHubService iexecHubService;
     private final ContributionService contributionService;
@@ -61,6 +76,12 @@ public class TaskManagerService {
     private final TeeSconeService teeSconeService;
     private final DataService dataService;
     private final ResultService resultService;
+    private final ContainerStatsService containerStatsService;
+    private final CpusetPlacementService cpusetPlacementService;
+    private final DockerService dockerService;
+    private final TaskCancellationService taskCancellationService;
+    private final TaskDeadlineService taskDeadlineService;
+    private final TaskTmpfsService taskTmpfsService;
 
     public TaskManagerService(
             WorkerConfigurationService workerConfigurationService,
@@ -70,7 +91,13 @@ public class TaskManagerService {
             ComputeManagerService computeManagerService,
             TeeSconeService teeSconeService,
             DataService dataService,
-            ResultService resultService
+            ResultService resultService,
+            ContainerStatsService containerStatsService,
+            CpusetPlacementService cpusetPlacementService,
+            DockerService dockerService,
+            TaskCancellationService taskCancellationService,
+            TaskDeadlineService taskDeadlineService,
+            TaskTmpfsService taskTmpfsService
     ) {
         this.workerConfigurationService = workerConfigurationService;
         this.iexecHubService = iexecHubService;
@@ -80,6 +107,12 @@ public class TaskManagerService {
         this.teeSconeService = teeSconeService;
         this.dataService = dataService;
         this.resultService = resultService;
+        this.containerStatsService = containerStatsService;
+        this.cpusetPlacementService = cpusetPlacementService;
+        this.dockerService = dockerService;
+        this.taskCancellationService = taskCancellationService;
+        this.taskDeadlineService = taskDeadlineService;
+        this.taskTmpfsService = taskTmpfsService;
     }
 
     ReplicateActionResponse start(String chainTaskId) {
@@ -103,6 +136,7 @@ public class TaskManagerService {
                     context, chainTaskId);
         }
 
+        taskDeadlineService.track(chainTaskId);
         return ReplicateActionResponse.success();
     }
 
@@ -122,7 +156,14 @@ public class TaskManagerService {
                     context, chainTaskId);
         }
 
-        if (computeManagerService.downloadApp(taskDescription)) {
+        boolean isAppDownloaded;
+        taskDeadlineService.startPreemptibleStage(chainTaskId);
+        try {
+            isAppDownloaded = computeManagerService.downloadApp(taskDescription);
+        } finally {
+            taskDeadlineService.endPreemptibleStage(chainTaskId);
+        }
+        if (isAppDownloaded) {
             return ReplicateActionResponse.success();
         }
         return triggerPostComputeHookOnError(chainTaskId, context, taskDescription,
@@ -159,36 +200,68 @@ public class TaskManagerService {
             return getFailureResponseAndPrintError(errorStatus.get(),
                     context, chainTaskId);
         }
+        placeOnTmpfs(taskDescription);
         try {
-            // download dataset
-            if (!taskDescription.containsDataset()) {
-                log.info("No dataset for this task [chainTaskId:{}]", chainTaskId);
-            } else if (taskDescription.isTeeTask()) {
-                log.info("Dataset will be downloaded by the pre-compute enclave " +
-                        "[chainTaskId:{}", chainTaskId);
-            } else {
-                String datasetUri = taskDescription.getDatasetUri();
-                log.info("Downloading dataset [chainTaskId:{}, uri:{}, name:{}]",
-                        chainTaskId, datasetUri, taskDescription.getDatasetName());
-                dataService.downloadStandardDataset(taskDescription);
-            }
-            // download input files
-            if (!taskDescription.containsInputFiles()) {
-                log.info("No input files for this task [chainTaskId:{}]", chainTaskId);
-            } else if (taskDescription.isTeeTask()) {
-                log.info("Input files will be downloaded by the pre-compute enclave " +
-                        "[chainTaskId:{}", chainTaskId);
-            } else {
-                log.info("Downloading input files [chainTaskId:{}]", chainTaskId);
-                dataService.downloadStandardInputFiles(chainTaskId, taskDescription.getInputFiles());
+            taskDeadlineService.startPreemptibleStage(chainTaskId);
+            try {
+                downloadInputs(taskDescription);
+            } finally {
+                taskDeadlineService.endPreemptibleStage(chainTaskId);
             }
         } catch (WorkflowException e) {
-            return triggerPostComputeHookOnError(chainTaskId, context, taskDescription,
-                    DATA_DOWNLOAD_FAILED, e.getReplicateStatusCause());
+            return withFailureReason(triggerPostComputeHookOnError(chainTaskId, context,
+                    taskDescription, DATA_DOWNLOAD_FAILED, e.getReplicateStatusCause()),
+                    e.getFailureReason());
         }
+        // inputs too big for tmpfs are moved to disk before compute
+        taskTmpfsService.spillIfOverFootprint(chainTaskId);
         return ReplicateActionResponse.success();
     }
 
+    private void downloadInputs(TaskDescription taskDescription) throws WorkflowException {
+        String chainTaskId = taskDescription.getChainTaskId();
+        // download dataset
+        if (!taskDescription.containsDataset()) {
+            log.info("No dataset for this task [chainTaskId:{}]", chainTaskId);
+        } else if (taskDescription.isTeeTask()) {
+            log.info("Dataset will be downloaded by the pre-compute enclave " +
+                    "[chainTaskId:{}", chainTaskId);
+        } else {
+            String datasetUri = taskDescription.getDatasetUri();
+            log.info("Downloading dataset [chainTaskId:{}, uri:{}, name:{}]",
+                    chainTaskId, datasetUri, taskDescription.getDatasetName());
+            dataService.downloadStandardDataset(taskDescription);
+        }
+        // download input files
+        if (!taskDescription.containsInputFiles()) {
+            log.info("No input files for this task [chainTaskId:{}]", chainTaskId);
+        } else if (taskDescription.isTeeTask()) {
+            log.info("Input files will be downloaded by the pre-compute enclave " +
+                    "[chainTaskId:{}", chainTaskId);
+        } else {
+            log.info("Downloading input files [chainTaskId:{}]", chainTaskId);
+            dataService.downloadStandardInputFiles(chainTaskId, taskDescription.getInputFiles());
+        }
+    }
+
+    /**
+     * Place task folders on tmpfs before inputs are downloaded if they fit in
+     * the budget. Datasets served by the dataset cache stay on disk in the
+     * cache folder, tasks using them are kept on disk.
+     */
+    private void placeOnTmpfs(TaskDescription taskDescription) {
+        if (!taskTmpfsService.isEnabled()) {
+            return;
+        }
+        String chainTaskId = taskDescription.getChainTaskId();
+        if (dataService.isDatasetCacheable(taskDescription)) {
+            log.info("Dataset served by the cache, task folders kept on disk " +
+                    "[chainTaskId:{}]", chainTaskId);
+            return;
+        }
+        taskTmpfsService.place(chainTaskId, dataService.getExpectedInputSize(taskDescription));
+    }
+
     private ReplicateActionResponse triggerPostComputeHookOnError(String chainTaskId,
                                                                   String context,
                                                                   TaskDescription taskDescription,
@@ -207,6 +280,22 @@ public class TaskManagerService {
         return ReplicateActionResponse.failure(POST_COMPUTE_FAILED);
     }
 
+    /**
+     * Report the worker reason of a failure in the status details, next to
+     * its cause.
+     */
+    private ReplicateActionResponse withFailureReason(ReplicateActionResponse response,
+                                                      WorkerFailureReason failureReason) {
+        if (failureReason == null) {
+            return response;
+        }
+        WorkerReplicateStatusDetails details =
+                WorkerReplicateStatusDetails.from(response.getDetails());
+        details.setFailureReason(failureReason);
+        response.setDetails(details);
+        return response;
+    }
+
     ReplicateActionResponse compute(String chainTaskId) {
         Optional<ReplicateStatusCause> oErrorStatus =
                 contributionService.getCannotContributeStatusCause(chainTaskId);
@@ -230,6 +319,27 @@ public class TaskManagerService {
         WorkerpoolAuthorization workerpoolAuthorization =
                 contributionService.getWorkerpoolAuthorization(chainTaskId);
 
+        // a recovered task is not tracked yet
+        taskDeadlineService.track(chainTaskId);
+        try {
+            ReplicateActionResponse computeResponse =
+                    runComputeStages(taskDescription, workerpoolAuthorization, context);
+            // a completed compute is kept even if the deadline is near
+            if (!computeResponse.isSuccess() && taskDeadlineService.isPreempted(chainTaskId)) {
+                return getFailureResponseAndPrintError(CONTRIBUTION_TIMEOUT,
+                        context, chainTaskId);
+            }
+            return computeResponse;
+        } finally {
+            // pinned again if the compute is recovered
+            dataService.releaseCachedDataset(chainTaskId);
+        }
+    }
+
+    private ReplicateActionResponse runComputeStages(TaskDescription taskDescription,
+                                                     WorkerpoolAuthorization workerpoolAuthorization,
+                                                     String context) {
+        String chainTaskId = taskDescription.getChainTaskId();
         PreComputeResponse preResponse =
                 computeManagerService.runPreCompute(taskDescription,
                         workerpoolAuthorization);
@@ -238,12 +348,19 @@ public class TaskManagerService {
                     context, chainTaskId);
         }
 
-        AppComputeResponse appResponse =
-                computeManagerService.runCompute(taskDescription,
-                        preResponse.getSecureSessionId());
+        AppComputeResponse appResponse;
+        taskDeadlineService.startPreemptibleStage(chainTaskId);
+        try {
+            appResponse = computeManagerService.runCompute(taskDescription,
+                    preResponse.getSecureSessionId());
+        } finally {
+            taskDeadlineService.endPreemptibleStage(chainTaskId);
+        }
         if (!appResponse.isSuccessful()) {
             logError("app compute error", context, chainTaskId);
-            return ReplicateActionResponse.failureWithStdout(appResponse.getStdout());
+            return withFailureReason(
+                    ReplicateActionResponse.failureWithStdout(appResponse.getStdout()),
+                    appResponse.getFailureReason());
         }
 
         PostComputeResponse postResponse =
@@ -254,8 +371,36 @@ public class TaskManagerService {
             return ReplicateActionResponse.failureWithStdout(POST_COMPUTE_FAILED,
                     postResponse.getStdout());
         }
-        return ReplicateActionResponse.successWithStdout(preResponse.getStdout() +
-                "\n" + appResponse.getStdout() + "\n" + postResponse.getStdout());
+        String stdout = preResponse.getStdout() + "\n" + appResponse.getStdout()
+                + "\n" + postResponse.getStdout();
+        String statsReport = containerStatsService.getTaskStatsReport(chainTaskId);
+        if (StringUtils.isNotEmpty(statsReport)) {
+            log.info("Task containers stats [chainTaskId:{}]\n{}", chainTaskId, statsReport);
+        }
+        ReplicateActionResponse computeResponse =
+                ReplicateActionResponse.successWithStdout(stdout);
+        // stats and placements are reported aside, stdout sent to the core
+        // is left untouched
+        List<ContainerStatsSummary> stats =
+                containerStatsService.getTaskStatsSummaries(chainTaskId);
+        List<CpusetPlacement> placements =
+                cpusetPlacementService.getTaskPlacements(chainTaskId);
+        if (!stats.isEmpty() || !placements.isEmpty()) {
+            WorkerReplicateStatusDetails details =
+                    WorkerReplicateStatusDetails.from(computeResponse.getDetails());
+            if (!stats.isEmpty()) {
+                details.setContainerStats(stats.stream()
+                        .limit(MAX_REPORTED_CONTAINER_STATS)
+                        .collect(Collectors.toList()));
+            }
+            if (!placements.isEmpty()) {
+                details.setCpusetPlacements(placements.stream()
+                        .limit(MAX_REPORTED_CONTAINER_STATS)
+                        .collect(Collectors.toList()));
+            }
+            computeResponse.setDetails(details);
+        }
+        return computeResponse;
     }
 
     ReplicateActionResponse contribute(String chainTaskId) {
@@ -301,6 +446,7 @@ public class TaskManagerService {
             return ReplicateActionResponse.failure(CHAIN_RECEIPT_NOT_VALID);
         }
 
+        taskDeadlineService.untrack(chainTaskId);
         return ReplicateActionResponse.success(oChainReceipt.get());
     }
 
@@ -375,6 +521,11 @@ public class TaskManagerService {
     }
 
     ReplicateActionResponse complete(String chainTaskId) {
+        taskDeadlineService.untrack(chainTaskId);
+        taskCancellationService.remove(chainTaskId);
+        dataService.releaseCachedDataset(chainTaskId);
+        containerStatsService.removeTaskStats(chainTaskId);
+        cpusetPlacementService.removeTaskPlacements(chainTaskId);
         if (!resultService.removeResult(chainTaskId)) {
             return ReplicateActionResponse.failure();
         }
@@ -383,6 +534,13 @@ public class TaskManagerService {
     }
 
     boolean abort(String chainTaskId) {
+        // stop in-flight pulls, downloads and containers of the task
+        taskDeadlineService.untrack(chainTaskId);
+        taskCancellationService.cancel(chainTaskId, "aborted");
+        dockerService.stopRunningContainers(chainTaskId);
+        dataService.releaseCachedDataset(chainTaskId);
+        containerStatsService.removeTaskStats(chainTaskId);
+        cpusetPlacementService.removeTaskPlacements(chainTaskId);
         return resultService.removeResult(chainTaskId);
     }
 
@@ -192,6 +192,7 @@ public class TaskNotificationService {
                 break;
             // TODO merge abort actions
             case PLEASE_ABORT:
+                taskManagerService.abort(chainTaskId);
                 subscriptionService.unsubscribeFromTopic(chainTaskId);
                 break;
             default:
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.executor;
+
+/**
+ * Worker-side reason of a failure, reported in the status details along
+ * with the {@link com.iexec.common.replicate.ReplicateStatusCause} when the
+ * cause alone does not tell what happened.
+ */
+public enum WorkerFailureReason {
+    // a download stayed below the minimum throughput on every try
+    DOWNLOAD_STALLED,
+    // the app was stopped since its iexec_out exceeded the worker limit
+    OUTPUT_SIZE_LIMIT_EXCEEDED
+}
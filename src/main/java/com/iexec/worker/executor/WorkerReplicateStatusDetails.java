@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.executor;
+
+import com.iexec.common.replicate.ReplicateStatusDetails;
+import com.iexec.worker.docker.ContainerStatsSummary;
+import com.iexec.worker.docker.CpusetPlacement;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * Replicate status details completed with worker diagnostics. Fields are
+ * sent to the core along with the standard details and are ignored by
+ * cores which do not know them.
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+public class WorkerReplicateStatusDetails extends ReplicateStatusDetails {
+
+    // resource usage of the task containers, bounded by the sender
+    private List<ContainerStatsSummary> containerStats;
+    // CPUs and NUMA node the task containers were pinned to
+    private List<CpusetPlacement> cpusetPlacements;
+    // what happened when the cause is not specific enough
+    private WorkerFailureReason failureReason;
+
+    /**
+     * Copy standard details so worker diagnostics can be added to them.
+     *
+     * @param details details to copy, may be null
+     * @return worker details holding the same standard fields
+     */
+    public static WorkerReplicateStatusDetails from(ReplicateStatusDetails details) {
+        WorkerReplicateStatusDetails workerDetails = new WorkerReplicateStatusDetails();
+        if (details != null) {
+            workerDetails.setStdout(details.getStdout());
+            workerDetails.setCause(details.getCause());
+            workerDetails.setChainReceipt(details.getChainReceipt());
+            workerDetails.setResultLink(details.getResultLink());
+            workerDetails.setChainCallbackData(details.getChainCallbackData());
+        }
+        return workerDetails;
+    }
+}
@@ -45,8 +45,8 @@ public abstract class BaseFeignClient {
     /*
      * Retry configuration values (max attempts, back off delay...) 
      */
-    private final int MAX_ATTEMPTS = 3;
-    private final int BACK_OFF_DELAY = 2000; // 2s
+    final int MAX_ATTEMPTS = 3;
+    final int BACK_OFF_DELAY = 2000; // 2s
 
     /*
      * Generic method to make http calls.
@@ -105,7 +105,7 @@ public abstract class BaseFeignClient {
         return status > 0 && HttpStatus.valueOf(status).is4xxClientError();
     }
 
-    private void sleep(int millis) {
+    void sleep(int millis) {
         try {
             Thread.sleep(millis);
         } catch (InterruptedException e) {
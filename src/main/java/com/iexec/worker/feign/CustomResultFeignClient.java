@@ -16,24 +16,46 @@
 
 package com.iexec.worker.feign;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.iexec.common.result.ResultModel;
 import com.iexec.common.result.eip712.Eip712Challenge;
+import com.iexec.worker.config.PublicConfigurationService;
 import com.iexec.worker.feign.client.ResultClient;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 
 
+@Slf4j
 @Service
 public class CustomResultFeignClient extends BaseFeignClient {
 
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
     private final ResultClient resultClient;
+    private final PublicConfigurationService publicConfigService;
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
 
-    public CustomResultFeignClient(ResultClient resultClient) {
+    public CustomResultFeignClient(ResultClient resultClient,
+                                   PublicConfigurationService publicConfigService) {
         this.resultClient = resultClient;
+        this.publicConfigService = publicConfigService;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+        this.mapper = new ObjectMapper();
     }
 
     @Override
@@ -63,16 +85,55 @@ public class CustomResultFeignClient extends BaseFeignClient {
         return is2xxSuccess(response) ? response.getBody() : "";
     }
 
-    public String uploadResult(String authorizationToken, ResultModel resultModel) {
-        Map<String, Object> arguments = new HashMap<>();
-        arguments.put("authorizationToken", authorizationToken);
-        arguments.put("resultModel", resultModel);
-
-        HttpCall<String> httpCall = (args) ->
-                resultClient.uploadResult((String) args.get("authorizationToken"), (ResultModel) args.get("resultModel"));
-
-        ResponseEntity<String> response = makeHttpCall(httpCall, arguments, "uploadResult");
-        return is2xxSuccess(response) ? response.getBody() : "";
+    /**
+     * Upload a result to the result proxy. Feign encodes request bodies in
+     * memory, the zip is consequently streamed from disk by a plain HTTP
+     * client so large results do not fill the heap. Attempts are retried
+     * like other calls of this client.
+     *
+     * @param authorizationToken token of the result proxy
+     * @param resultModel        metadata of the result, its zip is ignored
+     * @param zip                result zip file
+     * @return location of the uploaded result, empty if upload failed
+     */
+    public String uploadResult(String authorizationToken, ResultModel resultModel, Path zip) {
+        ResultModelBody body;
+        try {
+            body = new ResultModelBody(mapper, resultModel, zip);
+        } catch (IOException e) {
+            log.error("Failed to read result zip [chainTaskId:{}, zip:{}]",
+                    resultModel.getChainTaskId(), zip, e);
+            return "";
+        }
+        HttpRequest request = HttpRequest.newBuilder(
+                URI.create(publicConfigService.getResultRepositoryURL() + "/"))
+                .header("Authorization", authorizationToken)
+                .header("Content-Type", "application/json")
+                .POST(body.toBodyPublisher())
+                .build();
+        int status = -1;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                HttpResponse<String> response = httpClient.send(request,
+                        HttpResponse.BodyHandlers.ofString());
+                status = response.statusCode();
+                if (status / 100 == 2) {
+                    return response.body();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to upload result [chainTaskId:{}, attempt:{}]",
+                        resultModel.getChainTaskId(), attempt, e);
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                sleep(BACK_OFF_DELAY);
+            }
+        }
+        log.error("Failed to make http call [action:uploadResult, status:{}, attempts:{}]",
+                status, MAX_ATTEMPTS);
+        return "";
     }
 
     public String getIpfsHashForTask(String chainTaskId) {
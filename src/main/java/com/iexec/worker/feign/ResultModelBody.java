@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.feign;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iexec.common.result.ResultModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON body of a result upload, in the {@link ResultModel} format expected
+ * by the result proxy, streamed from the result zip on disk.
+ * <p>
+ * The zip is base64 encoded on the fly, so the memory used by an upload
+ * does not depend on the size of the result. The body length is known
+ * beforehand, it is sent with a Content-Length rather than chunked.
+ */
+final class ResultModelBody {
+
+    // multiple of 3 so chunks are encoded without padding
+    static final int ENCODING_CHUNK = 3 * 16 * 1024;
+    private static final byte[] SUFFIX = "\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] prefix;
+    private final Path zip;
+    private final long zipSize;
+
+    /**
+     * @param mapper      mapper used to write metadata of the result
+     * @param resultModel metadata of the result, its zip is ignored
+     * @param zip         result zip file
+     * @throws IOException if the zip cannot be read
+     */
+    ResultModelBody(ObjectMapper mapper, ResultModel resultModel, Path zip) throws IOException {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("chainTaskId", resultModel.getChainTaskId());
+        metadata.put("image", resultModel.getImage());
+        metadata.put("cmd", resultModel.getCmd());
+        metadata.put("deterministHash", resultModel.getDeterministHash());
+        String json = mapper.writeValueAsString(metadata);
+        // {"chainTaskId":"0x..",...} => {"chainTaskId":"0x..",...,"zip":"
+        this.prefix = (json.substring(0, json.length() - 1) + ",\"zip\":\"")
+                .getBytes(StandardCharsets.UTF_8);
+        this.zip = zip;
+        this.zipSize = Files.size(zip);
+    }
+
+    long getContentLength() {
+        return prefix.length + 4 * ((zipSize + 2) / 3) + SUFFIX.length;
+    }
+
+    /**
+     * Open a new stream of the body, once per attempt.
+     */
+    InputStream open() throws IOException {
+        List<InputStream> parts = List.of(
+                new ByteArrayInputStream(prefix),
+                new Base64EncodingInputStream(Files.newInputStream(zip)),
+                new ByteArrayInputStream(SUFFIX));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    HttpRequest.BodyPublisher toBodyPublisher() {
+        return HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> {
+                    try {
+                        return open();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }),
+                getContentLength());
+    }
+
+    /**
+     * Base64 encode a stream while it is read, {@link #ENCODING_CHUNK}
+     * bytes at a time.
+     */
+    private static class Base64EncodingInputStream extends InputStream {
+
+        private final InputStream source;
+        private final byte[] chunk = new byte[ENCODING_CHUNK];
+        private byte[] encoded = new byte[0];
+        private int position;
+        private boolean isEndOfSource;
+
+        Base64EncodingInputStream(InputStream source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == encoded.length && !encodeNextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, encoded.length - position);
+            System.arraycopy(encoded, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * Fill the chunk entirely (only the last chunk may be shorter, so
+         * padding only ends the stream) and encode it.
+         */
+        private boolean encodeNextChunk() throws IOException {
+            int filled = 0;
+            while (!isEndOfSource && filled < chunk.length) {
+                int read = source.read(chunk, filled, chunk.length - filled);
+                if (read < 0) {
+                    isEndOfSource = true;
+                } else {
+                    filled += read;
+                }
+            }
+            if (filled == 0) {
+                return false;
+            }
+            encoded = Base64.getEncoder().encode(filled == chunk.length
+                    ? chunk
+                    : Arrays.copyOf(chunk, filled));
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.iexec.worker.feign.client;
 
-import com.iexec.common.result.ResultModel;
 import com.iexec.common.result.eip712.Eip712Challenge;
 
 import org.springframework.cloud.openfeign.FeignClient;
@@ -36,10 +35,6 @@ public interface ResultClient {
     ResponseEntity<String> login(@RequestParam(name = "chainId") Integer chainId,
                                           @RequestBody String signedEip712Challenge) throws FeignException;
 
-    @PostMapping("/")
-    ResponseEntity<String> uploadResult(@RequestHeader("Authorization") String authorizationToken,
-                                        @RequestBody ResultModel resultModel);
-
     @GetMapping("/results/{chainTaskId}/ipfshash")
     ResponseEntity<String> getIpfsHashForTask(@PathVariable("chainTaskId") String chainTaskId);
 
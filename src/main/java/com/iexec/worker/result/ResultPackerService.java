@@ -0,0 +1,407 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.result;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip the iexec_out folder of standard tasks, compressing its files in
+ * parallel on a fork-join pool.
+ * <p>
+ * Each file is deflated on its own into a temporary part, then parts are
+ * appended to a standard zip in the order of their names. Files which are
+ * already compressed (by their extension) or which do not shrink are
+ * stored as is. Archives which would need ZIP64 (4GB or 65535 entries) are
+ * zipped sequentially by the JDK instead.
+ * <p>
+ * Symbolic links are not followed, an application cannot make the worker
+ * publish files outside of its iexec_out folder.
+ */
+@Slf4j
+@Service
+public class ResultPackerService {
+
+    static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar", "jar",
+            "docx", "xlsx", "pptx", "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "mp4", "mkv", "avi", "mov", "webm", "ogg", "flac");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ZIP32_MAX_SIZE = 0xFFFFFFFFL;
+    private static final int ZIP32_MAX_ENTRIES = 0xFFFF;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    // general purpose flag: entry names are UTF-8 encoded
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int VERSION = 20;
+
+    private final int compressionLevel;
+    private final ForkJoinPool packerPool;
+
+    public ResultPackerService(
+            @Value("${worker.result-packer.parallelism}") int parallelism,
+            @Value("${worker.result-packer.compression-level}") int compressionLevel) {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION,
+                Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.packerPool = new ForkJoinPool(parallelism > 0
+                ? parallelism
+                : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Zip a folder next to it.
+     * <p>
+     * e.g. /output/iexec_out => /output/iexec_out.zip
+     *
+     * @param chainTaskId  task of the result
+     * @param iexecOutPath folder to zip, its files are at the root of the zip
+     * @param saveIn       folder of the created zip
+     * @return true if the zip was created
+     */
+    public boolean zipIexecOut(String chainTaskId, String iexecOutPath, String saveIn) {
+        Path source = Paths.get(iexecOutPath);
+        if (!Files.isDirectory(source)) {
+            log.error("Cannot zip missing result folder [chainTaskId:{}, iexecOut:{}]",
+                    chainTaskId, iexecOutPath);
+            return false;
+        }
+        Path zip = Paths.get(saveIn, source.getFileName() + ".zip");
+        Path partsDir = Paths.get(saveIn, "." + source.getFileName() + ".parts");
+        long start = System.currentTimeMillis();
+        try {
+            List<Path> files = listFiles(source);
+            if (needsZip64(source, files)) {
+                log.info("Result too large for a parallel zip, zipping sequentially " +
+                        "[chainTaskId:{}, files:{}]", chainTaskId, files.size());
+                zipSequentially(source, files, zip);
+            } else {
+                Files.createDirectories(partsDir);
+                List<PackedEntry> entries = packAll(source, files, partsDir);
+                writeZip(entries, zip);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return onZipFailure(chainTaskId, zip, e);
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            return onZipFailure(chainTaskId, zip, e);
+        } finally {
+            deleteParts(partsDir);
+        }
+        log.info("Zipped result [chainTaskId:{}, zip:{}, size:{}, duration:{}ms]",
+                chainTaskId, zip, zip.toFile().length(), System.currentTimeMillis() - start);
+        return true;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        packerPool.shutdownNow();
+    }
+
+    private boolean onZipFailure(String chainTaskId, Path zip, Exception e) {
+        log.error("Failed to zip result [chainTaskId:{}, zip:{}]", chainTaskId, zip, e);
+        try {
+            Files.deleteIfExists(zip);
+        } catch (IOException ignored) {
+            // overwritten by the next attempt
+        }
+        return false;
+    }
+
+    private List<Path> listFiles(Path source) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            return paths
+                    .filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                    .sorted(Comparator.comparing(path -> toEntryName(source, path)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Upper bound of the archive size: entries are never bigger than their
+     * file since incompressible files are stored.
+     */
+    private boolean needsZip64(Path source, List<Path> files) throws IOException {
+        if (files.size() > ZIP32_MAX_ENTRIES) {
+            return true;
+        }
+        long maxSize = END_OF_CENTRAL_DIRECTORY_SIZE;
+        for (Path file : files) {
+            int nameLength = toEntryName(source, file).getBytes(StandardCharsets.UTF_8).length;
+            maxSize += Files.size(file) + LOCAL_HEADER_SIZE + CENTRAL_HEADER_SIZE + 2L * nameLength;
+        }
+        return maxSize >= ZIP32_MAX_SIZE;
+    }
+
+    private List<PackedEntry> packAll(Path source, List<Path> files, Path partsDir)
+            throws InterruptedException, ExecutionException {
+        List<Callable<PackedEntry>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            tasks.add(() -> pack(file, toEntryName(source, file), partsDir));
+        }
+        List<PackedEntry> entries = new ArrayList<>();
+        for (Future<PackedEntry> future : packerPool.invokeAll(tasks)) {
+            entries.add(future.get());
+        }
+        return entries;
+    }
+
+    /**
+     * Deflate a file into its own part, computing its CRC on the way. The
+     * file is stored if it is already compressed or if deflating it does
+     * not save space.
+     */
+    private PackedEntry pack(Path file, String name, Path partsDir) throws IOException {
+        long size = Files.size(file);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (!shouldDeflate(name, size)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                update(crc, in, buffer, OutputStream.nullOutputStream());
+            }
+            return new PackedEntry(name, file, ZipEntry.STORED, crc.getValue(), size, size,
+                    lastModified(file));
+        }
+        Path part = Files.createTempFile(partsDir, "entry", ".deflate");
+        // raw deflate stream (no zlib header), as expected in a zip
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new DeflaterOutputStream(
+                     Files.newOutputStream(part), deflater, BUFFER_SIZE)) {
+            update(crc, in, buffer, out);
+        } finally {
+            deflater.end();
+        }
+        long compressedSize = Files.size(part);
+        if (compressedSize >= size) {
+            Files.delete(part);
+            return new PackedEntry(name, file, ZipEntry.STORED, crc.getValue(), size, size,
+                    lastModified(file));
+        }
+        return new PackedEntry(name, part, ZipEntry.DEFLATED, crc.getValue(), compressedSize,
+                size, lastModified(file));
+    }
+
+    private boolean shouldDeflate(String name, long size) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return compressionLevel != Deflater.NO_COMPRESSION
+                && size > 0
+                && !COMPRESSED_EXTENSIONS.contains(extension);
+    }
+
+    private void update(CRC32 crc, InputStream in, byte[] buffer, OutputStream out)
+            throws IOException {
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            crc.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Append packed entries to a zip, then write its central directory.
+     */
+    private void writeZip(List<PackedEntry> entries, Path zip) throws IOException {
+        try (FileChannel out = FileChannel.open(zip, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long[] offsets = new long[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                PackedEntry entry = entries.get(i);
+                offsets[i] = out.position();
+                writeFully(out, localHeader(entry));
+                try (FileChannel data = FileChannel.open(entry.data, StandardOpenOption.READ)) {
+                    long transferred = 0;
+                    while (transferred < entry.compressedSize) {
+                        transferred += data.transferTo(transferred,
+                                entry.compressedSize - transferred, out);
+                    }
+                }
+            }
+            long centralDirectoryOffset = out.position();
+            for (int i = 0; i < entries.size(); i++) {
+                writeFully(out, centralHeader(entries.get(i), offsets[i]));
+            }
+            long centralDirectorySize = out.position() - centralDirectoryOffset;
+            writeFully(out, endOfCentralDirectory(entries.size(), centralDirectorySize,
+                    centralDirectoryOffset));
+        }
+    }
+
+    private ByteBuffer localHeader(PackedEntry entry) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50)
+                .putShort((short) VERSION)
+                .putShort((short) UTF8_FLAG)
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) entry.compressedSize)
+                .putInt((int) entry.size)
+                .putShort((short) name.length)
+                .putShort((short) 0)
+                .put(name);
+        return header.flip();
+    }
+
+    private ByteBuffer centralHeader(PackedEntry entry, long offset) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x02014b50)
+                .putShort((short) VERSION) // made by
+                .putShort((short) VERSION) // needed to extract
+                .putShort((short) UTF8_FLAG)
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) entry.compressedSize)
+                .putInt((int) entry.size)
+                .putShort((short) name.length)
+                .putShort((short) 0) // extra field length
+                .putShort((short) 0) // comment length
+                .putShort((short) 0) // disk number
+                .putShort((short) 0) // internal attributes
+                .putInt(0) // external attributes
+                .putInt((int) offset)
+                .put(name);
+        return header.flip();
+    }
+
+    private ByteBuffer endOfCentralDirectory(int entries, long size, long offset) {
+        ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50)
+                .putShort((short) 0) // disk number
+                .putShort((short) 0) // disk of the central directory
+                .putShort((short) entries)
+                .putShort((short) entries)
+                .putInt((int) size)
+                .putInt((int) offset)
+                .putShort((short) 0); // comment length
+        return end.flip();
+    }
+
+    private void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void zipSequentially(Path source, List<Path> files, Path zip) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.setLevel(compressionLevel);
+            for (Path file : files) {
+                out.putNextEntry(new ZipEntry(toEntryName(source, file)));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+    }
+
+    private void deleteParts(Path partsDir) {
+        if (!Files.exists(partsDir)) {
+            return;
+        }
+        try (Stream<Path> parts = Files.list(partsDir)) {
+            for (Path part : (Iterable<Path>) parts::iterator) {
+                Files.deleteIfExists(part);
+            }
+            Files.deleteIfExists(partsDir);
+        } catch (IOException e) {
+            log.warn("Failed to delete result zip parts [partsDir:{}]", partsDir, e);
+        }
+    }
+
+    /**
+     * e.g. /output/iexec_out/dir/file.txt => dir/file.txt
+     */
+    private static String toEntryName(Path source, Path file) {
+        return source.relativize(file).toString().replace('\\', '/');
+    }
+
+    /**
+     * Last modification time in the MS-DOS format used by zip headers,
+     * date in the high 16 bits and time (2s precision) in the low ones.
+     */
+    private static int lastModified(Path file) throws IOException {
+        LocalDateTime time = LocalDateTime.ofInstant(
+                Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            time = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+    private static class PackedEntry {
+        private final String name;
+        // file or deflated part holding the data of the entry
+        private final Path data;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final int dosTime;
+
+        PackedEntry(String name, Path data, int method, long crc,
+                    long compressedSize, long size, int dosTime) {
+            this.name = name;
+            this.data = data;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.dosTime = dosTime;
+        }
+    }
+}
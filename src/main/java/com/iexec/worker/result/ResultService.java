@@ -31,11 +31,15 @@ import com.iexec.common.utils.BytesUtils;
 import com.iexec.common.utils.FileHelper;
 import com.iexec.common.utils.IexecFileHelper;
 import com.iexec.common.worker.result.ResultUtils;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
+import com.iexec.worker.bandwidth.TransferClass;
 import com.iexec.worker.chain.CredentialsService;
 import com.iexec.worker.chain.IexecHubService;
 import com.iexec.worker.config.PublicConfigurationService;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.feign.CustomResultFeignClient;
+import com.iexec.worker.task.TaskCancellationService;
+import com.iexec.worker.task.TaskTmpfsService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
@@ -64,6 +68,9 @@ public class ResultService {
     private final IexecHubService iexecHubService;
     private final CustomResultFeignClient customResultFeignClient;
     private final EncryptionService encryptionService;
+    private final TaskCancellationService taskCancellationService;
+    private final TaskTmpfsService taskTmpfsService;
+    private final BandwidthSchedulerService bandwidthSchedulerService;
     private final Map<String, ResultInfo> resultInfoMap;
 
     public ResultService(
@@ -72,7 +79,10 @@ public class ResultService {
             CredentialsService credentialsService,
             IexecHubService iexecHubService,
             CustomResultFeignClient customResultFeignClient,
-            EncryptionService encryptionService
+            EncryptionService encryptionService,
+            TaskCancellationService taskCancellationService,
+            TaskTmpfsService taskTmpfsService,
+            BandwidthSchedulerService bandwidthSchedulerService
     ) {
         this.workerConfigService = workerConfigService;
         this.publicConfigService = publicConfigService;
@@ -80,6 +90,9 @@ public class ResultService {
         this.iexecHubService = iexecHubService;
         this.customResultFeignClient = customResultFeignClient;
         this.encryptionService = encryptionService;
+        this.taskCancellationService = taskCancellationService;
+        this.taskTmpfsService = taskTmpfsService;
+        this.bandwidthSchedulerService = bandwidthSchedulerService;
         this.resultInfoMap = new ConcurrentHashMap<>();
     }
 
@@ -147,21 +160,16 @@ public class ResultService {
         resultInfoMap.put(chainTaskId, resultInfo);
     }
 
-    public ResultModel getResultModelWithZip(String chainTaskId) {
+    /**
+     * Get metadata of a result. The zip is not loaded in memory, it is
+     * streamed from {@link #getResultZipFilePath(String)} when uploaded.
+     */
+    public ResultModel getResultModel(String chainTaskId) {
         ResultInfo resultInfo = getResultInfos(chainTaskId);
-        byte[] zipResultAsBytes = new byte[0];
-        String zipLocation = getResultZipFilePath(chainTaskId);
-        try {
-            zipResultAsBytes = Files.readAllBytes(Paths.get(zipLocation));
-        } catch (IOException e) {
-            log.error("Failed to get zip result [chainTaskId:{}, zipLocation:{}]", chainTaskId, zipLocation);
-        }
-
         return ResultModel.builder()
                 .chainTaskId(chainTaskId)
                 .image(resultInfo.getImage())
                 .cmd(resultInfo.getCmd())
-                .zip(zipResultAsBytes)
                 .deterministHash(resultInfo.getDeterministHash())
                 .build();
     }
@@ -169,6 +177,9 @@ public class ResultService {
     public boolean removeResult(String chainTaskId) {
         boolean deletedInMap = resultInfoMap.remove(chainTaskId) != null;
         boolean deletedTaskFolder = FileHelper.deleteFolder(workerConfigService.getTaskBaseDir(chainTaskId));
+        if (deletedTaskFolder) {
+            taskTmpfsService.release(chainTaskId);
+        }
 
         boolean deleted = deletedInMap && deletedTaskFolder;
         if (deletedTaskFolder) {
@@ -210,6 +221,10 @@ public class ResultService {
      *
      * */
     public String uploadResultAndGetLink(String chainTaskId) {
+        if (taskCancellationService.isCancelled(chainTaskId)) {
+            log.warn("Cannot upload result of cancelled task [chainTaskId:{}]", chainTaskId);
+            return "";
+        }
         TaskDescription task = iexecHubService.getTaskDescription(chainTaskId);
 
         // Offchain computing - basic & tee
@@ -244,7 +259,18 @@ public class ResultService {
             return false;
         }
 
-        String location = customResultFeignClient.uploadResult(authorizationToken, getResultModelWithZip(chainTaskId));
+        try {
+            // uplink is shared with other tasks, closest final deadline first
+            bandwidthSchedulerService.acquire(chainTaskId, TransferClass.RESULT_UPLOAD,
+                    new File(getResultZipFilePath(chainTaskId)).length());
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for bandwidth, cannot upload result " +
+                    "[chainTaskId:{}]", chainTaskId);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        String location = customResultFeignClient.uploadResult(authorizationToken,
+                getResultModel(chainTaskId), Paths.get(getResultZipFilePath(chainTaskId)));
         if (location.isEmpty()) {
             log.error("Empty location, cannot upload result [chainTaskId:{}]", chainTaskId);
             return false;
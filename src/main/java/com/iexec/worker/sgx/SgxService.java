@@ -20,7 +20,9 @@ import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.utils.SgxUtils;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
 import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.tee.TeeImagesWarmupService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -33,17 +35,25 @@ import java.util.Collections;
 @Service
 public class SgxService {
 
+    public static final String SGX_CHECK_IMAGE = "alpine:latest";
+
     private final WorkerConfigurationService workerConfigService;
     private final DockerService dockerService;
+    private final TeeImagesWarmupService teeImagesWarmupService;
+    private final ContainerRemovalService containerRemovalService;
     private final boolean isSgxSupported;
 
     public SgxService(
             WorkerConfigurationService workerConfigService,
             DockerService dockerService,
+            TeeImagesWarmupService teeImagesWarmupService,
+            ContainerRemovalService containerRemovalService,
             @Value("${debug.forceTeeDisabled}") boolean forceTeeDisabled
     ) {
         this.workerConfigService = workerConfigService;
         this.dockerService = dockerService;
+        this.teeImagesWarmupService = teeImagesWarmupService;
+        this.containerRemovalService = containerRemovalService;
         this.isSgxSupported = !forceTeeDisabled && isSgxSupported();
     }
 
@@ -67,21 +77,27 @@ public class SgxService {
         return true;
     }
 
-    private boolean isSgxDevicePresent() {
+    public String getSgxCheckContainerName() {
         // "wallet-address-sgx-check" as containerName to avoid naming conflict
         // when running multiple workers on the same machine.
-        String containerName = workerConfigService.getWorkerWalletAddress() + "-sgx-check";
-        String alpineLatest = "alpine:latest";
+        return workerConfigService.getWorkerWalletAddress() + "-sgx-check";
+    }
+
+    private boolean isSgxDevicePresent() {
+        String containerName = getSgxCheckContainerName();
         String cmd = "find /dev -name isgx -exec echo true ;";
 
-        if (!dockerService.getClient().pullImage(alpineLatest)) {
+        // a container with the same name may be left by a crashed session
+        containerRemovalService.stopAndRemove(containerName);
+        if (!teeImagesWarmupService.isWarmedUp(SGX_CHECK_IMAGE)
+                && !dockerService.getClient().pullImage(SGX_CHECK_IMAGE)) {
             log.error("Failed to pull image for sgx check");
             return false;
         }
 
         DockerRunRequest dockerRunRequest = DockerRunRequest.builder()
                 .containerName(containerName)
-                .imageUri(alpineLatest)
+                .imageUri(SGX_CHECK_IMAGE)
                 .cmd(cmd)
                 .maxExecutionTime(60000) // 1 min
                 .binds(Collections.singletonList("/dev:/dev"))
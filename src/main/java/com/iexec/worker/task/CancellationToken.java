@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cancellation state of a task. Components running work for the task
+ * (containers, image pulls, downloads, uploads) register a callback
+ * stopping their work, which is called as soon as the task is cancelled.
+ */
+@Slf4j
+public class CancellationToken {
+
+    private final String chainTaskId;
+    private final long createdAt;
+    private final List<Runnable> callbacks;
+    private volatile boolean isCancelled;
+    private volatile String reason;
+
+    public CancellationToken(String chainTaskId) {
+        this.chainTaskId = chainTaskId;
+        this.createdAt = System.currentTimeMillis();
+        this.callbacks = new CopyOnWriteArrayList<>();
+    }
+
+    public String getChainTaskId() {
+        return chainTaskId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Register a callback called when the task is cancelled. If the task is
+     * already cancelled, the callback is called right away.
+     *
+     * @param callback action stopping some work of the task
+     * @return registration to close once the work is over
+     */
+    public Registration onCancel(Runnable callback) {
+        callbacks.add(callback);
+        if (isCancelled && callbacks.remove(callback)) {
+            runCallback(callback);
+        }
+        return () -> callbacks.remove(callback);
+    }
+
+    /**
+     * Cancel the task and call registered callbacks. Cancelling an already
+     * cancelled task has no effect.
+     *
+     * @param reason reason of the cancellation
+     */
+    public void cancel(String reason) {
+        synchronized (this) {
+            if (isCancelled) {
+                return;
+            }
+            this.reason = reason;
+            this.isCancelled = true;
+        }
+        log.warn("Task cancelled [chainTaskId:{}, reason:{}, inFlightWork:{}]",
+                chainTaskId, reason, callbacks.size());
+        for (Runnable callback : callbacks) {
+            if (callbacks.remove(callback)) {
+                runCallback(callback);
+            }
+        }
+    }
+
+    private void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Exception e) {
+            log.error("Failed to stop work of cancelled task [chainTaskId:{}]",
+                    chainTaskId, e);
+        }
+    }
+
+    /**
+     * Registration of a cancellation callback.
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+
+        /**
+         * Unregister the callback, the work it stops being over.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Keep a {@link CancellationToken} per task. Cancelling a task (e.g. on
+ * abort) immediately stops its running containers, image pulls and
+ * network transfers.
+ * <p>
+ * Tokens are removed when their task completes. Tokens of tasks which
+ * never complete (aborted, failed or forgotten by the scheduler) are purged
+ * once older than {@link #TOKEN_TTL}, whenever a token is created or a task
+ * is cancelled.
+ */
+@Slf4j
+@Service
+public class TaskCancellationService {
+
+    // tokens of tasks which never completed are forgotten after that
+    static final long TOKEN_TTL = TimeUnit.DAYS.toMillis(1);
+
+    // chainTaskId -> token
+    private final Map<String, CancellationToken> tokens = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    public TaskCancellationService() {
+        this(System::currentTimeMillis);
+    }
+
+    TaskCancellationService(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the cancellation token of a task, created if needed.
+     *
+     * @param chainTaskId id of the task
+     * @return token of the task
+     */
+    public CancellationToken getToken(String chainTaskId) {
+        CancellationToken token = tokens.get(chainTaskId);
+        if (token != null) {
+            return token;
+        }
+        // only scan on creation, tokens are read on every transfer
+        purgeExpiredTokens();
+        return tokens.computeIfAbsent(chainTaskId, CancellationToken::new);
+    }
+
+    public boolean isCancelled(String chainTaskId) {
+        CancellationToken token = tokens.get(chainTaskId);
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * Cancel a task and stop its in-flight work. The cancelled token is kept
+     * so work started later for the task is not run.
+     *
+     * @param chainTaskId id of the task
+     * @param reason      reason of the cancellation
+     */
+    public void cancel(String chainTaskId, String reason) {
+        purgeExpiredTokens();
+        getToken(chainTaskId).cancel(reason);
+    }
+
+    /**
+     * Forget the token of a task which is over.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void remove(String chainTaskId) {
+        tokens.remove(chainTaskId);
+    }
+
+    /**
+     * Run a blocking action which stops when its thread is interrupted
+     * (e.g. awaiting an image pull). The thread is interrupted if the task is
+     * cancelled while the action runs.
+     *
+     * @param chainTaskId id of the task
+     * @param action      interruptible action
+     * @return result of the action, false if the task was already cancelled
+     */
+    public boolean runInterruptibly(String chainTaskId, BooleanSupplier action) {
+        CancellationToken token = getToken(chainTaskId);
+        if (token.isCancelled()) {
+            return false;
+        }
+        Thread thread = Thread.currentThread();
+        boolean result;
+        try (CancellationToken.Registration registration = token.onCancel(thread::interrupt)) {
+            result = action.getAsBoolean();
+        }
+        // clear a late interruption, the thread may be reused by a pool
+        if (Thread.interrupted() || token.isCancelled()) {
+            log.warn("Interrupted task work [chainTaskId:{}, reason:{}]",
+                    chainTaskId, token.getReason());
+            return false;
+        }
+        return result;
+    }
+
+    private void purgeExpiredTokens() {
+        long now = clock.getAsLong();
+        tokens.values().removeIf(token -> now - token.getCreatedAt() > TOKEN_TTL);
+    }
+}
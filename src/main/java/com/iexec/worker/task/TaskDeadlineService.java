@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import com.iexec.common.chain.ChainTask;
+import com.iexec.worker.chain.IexecHubService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Track the contribution deadline of in-flight tasks. A task which cannot
+ * contribute before its deadline (less than the configured margin left) is
+ * preempted: its containers, pulls and transfers are cancelled so the worker
+ * stops wasting resources on it and gets back to tasks it can still
+ * contribute to.
+ * <p>
+ * Tasks are only preempted during stages which can be cancelled
+ * (downloads, image pulls, app container run). A task whose compute is
+ * over is never preempted, it is up to the core to decide if its
+ * contribution is still on time.
+ */
+@Slf4j
+@Service
+public class TaskDeadlineService {
+
+    static final String PREEMPTION_REASON = "contribution deadline";
+
+    private final IexecHubService iexecHubService;
+    private final TaskCancellationService taskCancellationService;
+    private final long marginMs;
+    // chainTaskId -> contribution deadline (ms)
+    private final Map<String, Long> deadlines;
+    private final Set<String> preemptedTasks;
+    // tasks currently running a stage which can be preempted
+    private final Set<String> preemptibleTasks;
+    private final MeterRegistry meterRegistry;
+
+    public TaskDeadlineService(IexecHubService iexecHubService,
+                               TaskCancellationService taskCancellationService,
+                               @Value("${worker.deadline-watchdog.margin}") long marginSeconds,
+                               MeterRegistry meterRegistry) {
+        this.iexecHubService = iexecHubService;
+        this.taskCancellationService = taskCancellationService;
+        this.marginMs = TimeUnit.SECONDS.toMillis(marginSeconds);
+        this.deadlines = new ConcurrentHashMap<>();
+        this.preemptedTasks = ConcurrentHashMap.newKeySet();
+        this.preemptibleTasks = ConcurrentHashMap.newKeySet();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("iexec.worker.task.deadline.tracked", deadlines, Map::size)
+                .description("In-flight tasks watched for their contribution deadline")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start watching the contribution deadline of a task. Tracking an already
+     * tracked task has no effect.
+     *
+     * @param chainTaskId id of the task
+     * @return true if the task is tracked
+     */
+    public boolean track(String chainTaskId) {
+        if (deadlines.containsKey(chainTaskId)) {
+            return true;
+        }
+        Optional<ChainTask> chainTask = iexecHubService.getChainTask(chainTaskId);
+        if (chainTask.isEmpty()) {
+            log.warn("Cannot track contribution deadline, chain task not found " +
+                    "[chainTaskId:{}]", chainTaskId);
+            return false;
+        }
+        long deadline = chainTask.get().getContributionDeadline();
+        deadlines.putIfAbsent(chainTaskId, deadline);
+        log.info("Tracking contribution deadline [chainTaskId:{}, deadline:{}, marginMs:{}]",
+                chainTaskId, deadline, marginMs);
+        return true;
+    }
+
+    /**
+     * Stop watching a task (e.g. contributed, completed or aborted).
+     *
+     * @param chainTaskId id of the task
+     */
+    public synchronized void untrack(String chainTaskId) {
+        deadlines.remove(chainTaskId);
+        preemptedTasks.remove(chainTaskId);
+        preemptibleTasks.remove(chainTaskId);
+    }
+
+    /**
+     * Mark the start of a stage of a task which can be preempted. The task
+     * is preempted right away if it is already too late.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void startPreemptibleStage(String chainTaskId) {
+        preemptibleTasks.add(chainTaskId);
+        Long deadline = deadlines.get(chainTaskId);
+        long now = System.currentTimeMillis();
+        if (deadline != null && now + marginMs >= deadline) {
+            preempt(chainTaskId, deadline - now);
+        }
+    }
+
+    /**
+     * Mark the end of a preemptible stage of a task. The task cannot be
+     * preempted anymore once this returns.
+     *
+     * @param chainTaskId id of the task
+     */
+    public synchronized void endPreemptibleStage(String chainTaskId) {
+        preemptibleTasks.remove(chainTaskId);
+    }
+
+    public boolean isPreempted(String chainTaskId) {
+        return preemptedTasks.contains(chainTaskId);
+    }
+
+    /**
+     * Preempt tracked tasks which cannot contribute anymore and are running
+     * a preemptible stage.
+     */
+    @Scheduled(fixedDelayString = "${worker.deadline-watchdog.period}")
+    public void checkDeadlines() {
+        long now = System.currentTimeMillis();
+        deadlines.forEach((chainTaskId, deadline) -> {
+            if (now + marginMs >= deadline) {
+                preempt(chainTaskId, deadline - now);
+            }
+        });
+    }
+
+    private synchronized void preempt(String chainTaskId, long remainingMs) {
+        if (!preemptibleTasks.contains(chainTaskId) || deadlines.remove(chainTaskId) == null) {
+            return;
+        }
+        preemptedTasks.add(chainTaskId);
+        log.warn("Preempting task which cannot contribute before its deadline " +
+                "[chainTaskId:{}, remainingMs:{}, marginMs:{}]", chainTaskId,
+                remainingMs, marginMs);
+        taskCancellationService.cancel(chainTaskId, PREEMPTION_REASON);
+        meterRegistry.counter("iexec.worker.task.preempted").increment();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import com.iexec.worker.config.WorkerConfigurationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Optionally place input, output and iexec_out folders of small tasks on a
+ * tmpfs so short runs do not pay disk round-trips. Each task placed on tmpfs
+ * reserves the announced size of its inputs plus a fixed output footprint of
+ * a memory budget. Tasks whose input size is unknown or which do not fit in
+ * the remaining budget are kept on disk.
+ * <p>
+ * Task folders are spilled back to disk when their size goes above the
+ * reserved footprint and before the result is zipped, so results are always
+ * produced and kept on disk. The output of a task on tmpfs is bounded by the
+ * output footprint.
+ * <p>
+ * The tmpfs folder has to be mounted at the same path for the worker and the
+ * Docker daemon (as the worker base folder), ideally with a size capped at
+ * the budget.
+ */
+@Slf4j
+@Service
+public class TaskTmpfsService {
+
+    private final WorkerConfigurationService workerConfigService;
+    private final boolean isEnabled;
+    private final long budget; // in bytes
+    private final long taskFootprint; // in bytes
+    // chainTaskId -> reserved bytes
+    private final Map<String, Long> reservations;
+
+    public TaskTmpfsService(WorkerConfigurationService workerConfigService,
+                            @Value("${worker.tmpfs.enabled}") boolean isEnabled,
+                            @Value("${worker.tmpfs.budget}") long budgetMb,
+                            @Value("${worker.tmpfs.task-footprint}") long taskFootprintMb) {
+        this.workerConfigService = workerConfigService;
+        this.isEnabled = isEnabled;
+        this.budget = budgetMb * 1024 * 1024;
+        this.taskFootprint = taskFootprintMb * 1024 * 1024;
+        this.reservations = new ConcurrentHashMap<>();
+    }
+
+    public boolean isEnabled() {
+        return isEnabled && budget > 0 && taskFootprint > 0;
+    }
+
+    /**
+     * Move back to disk task folders left on tmpfs by a previous run of the
+     * worker, so recovered tasks find their files.
+     */
+    @PostConstruct
+    void spillLeftovers() {
+        File[] leftovers = new File(workerConfigService.getWorkerTmpfsDir())
+                .listFiles(File::isDirectory);
+        if (leftovers == null) {
+            return;
+        }
+        for (File leftover : leftovers) {
+            String chainTaskId = leftover.getName();
+            workerConfigService.setTaskOnTmpfs(chainTaskId, true);
+            spill(chainTaskId);
+        }
+    }
+
+    /**
+     * Place folders of a new task on tmpfs if its inputs and output
+     * footprint fit in the remaining budget. Called before inputs are
+     * downloaded, so inputs too big for the budget are never written to
+     * memory.
+     *
+     * @param chainTaskId id of the task
+     * @param inputSize   size of the dataset and input files of the task, -1
+     *                    if unknown
+     * @return true if the task is placed on tmpfs
+     */
+    public synchronized boolean place(String chainTaskId, long inputSize) {
+        if (!isEnabled() || workerConfigService.isTaskOnTmpfs(chainTaskId)
+                || new File(workerConfigService.getTaskDiskDir(chainTaskId)).exists()) {
+            return workerConfigService.isTaskOnTmpfs(chainTaskId);
+        }
+        if (inputSize < 0) {
+            log.info("Unknown input size, task folders kept on disk [chainTaskId:{}]",
+                    chainTaskId);
+            return false;
+        }
+        long footprint = taskFootprint + inputSize;
+        long reserved = getReservedSize();
+        if (reserved + footprint > budget) {
+            log.info("Task does not fit in tmpfs budget, task folders kept on disk " +
+                    "[chainTaskId:{}, footprint:{}, reserved:{}, budget:{}]",
+                    chainTaskId, footprint, reserved, budget);
+            return false;
+        }
+        File taskTmpfsDir = new File(workerConfigService.getTaskTmpfsDir(chainTaskId));
+        if (!taskTmpfsDir.mkdirs() && !taskTmpfsDir.isDirectory()) {
+            log.warn("Failed to create task folder on tmpfs, task folders kept on " +
+                    "disk [chainTaskId:{}, dir:{}]", chainTaskId, taskTmpfsDir);
+            return false;
+        }
+        reservations.put(chainTaskId, footprint);
+        workerConfigService.setTaskOnTmpfs(chainTaskId, true);
+        log.info("Placed task folders on tmpfs [chainTaskId:{}, footprint:{}, " +
+                "reserved:{}, budget:{}]", chainTaskId, footprint,
+                reserved + footprint, budget);
+        return true;
+    }
+
+    /**
+     * Get the size the output of a task may reach. The output of a task on
+     * tmpfs is bounded by the output footprint so it never goes beyond the
+     * memory it reserved.
+     *
+     * @param chainTaskId id of the task
+     * @return size in bytes, {@link Long#MAX_VALUE} if the task is on disk
+     */
+    public long getOutputLimit(String chainTaskId) {
+        return workerConfigService.isTaskOnTmpfs(chainTaskId)
+                ? taskFootprint
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * Spill task folders to disk if they got bigger than the reserved
+     * footprint (e.g. large dataset).
+     *
+     * @param chainTaskId id of the task
+     * @return true if task folders are within their footprint or on disk
+     */
+    public boolean spillIfOverFootprint(String chainTaskId) {
+        if (!workerConfigService.isTaskOnTmpfs(chainTaskId)) {
+            return true;
+        }
+        long size = getSize(Paths.get(workerConfigService.getTaskTmpfsDir(chainTaskId)));
+        if (size <= reservations.getOrDefault(chainTaskId, 0L)) {
+            return true;
+        }
+        log.info("Task folders bigger than their tmpfs footprint [chainTaskId:{}, " +
+                "size:{}]", chainTaskId, size);
+        return spill(chainTaskId);
+    }
+
+    /**
+     * Move task folders from tmpfs to disk. Files are first copied to a
+     * temporary folder on disk which is then renamed, the task keeps using
+     * tmpfs if anything goes wrong. Must not be called while a container of
+     * the task is running.
+     *
+     * @param chainTaskId id of the task
+     * @return true if task folders are on disk
+     */
+    public boolean spill(String chainTaskId) {
+        if (!workerConfigService.isTaskOnTmpfs(chainTaskId)) {
+            return true;
+        }
+        Path source = Paths.get(workerConfigService.getTaskTmpfsDir(chainTaskId));
+        Path target = Paths.get(workerConfigService.getTaskDiskDir(chainTaskId));
+        Path spillDir = Paths.get(target + ".spill");
+        try {
+            deleteFolder(spillDir);
+            copyFolder(source, spillDir);
+            deleteFolder(target);
+            Files.move(spillDir, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to spill task folders to disk, keeping them on " +
+                    "tmpfs [chainTaskId:{}]", chainTaskId, e);
+            return false;
+        }
+        workerConfigService.setTaskOnTmpfs(chainTaskId, false);
+        reservations.remove(chainTaskId);
+        try {
+            deleteFolder(source);
+        } catch (IOException e) {
+            log.warn("Failed to clean spilled task folders from tmpfs [chainTaskId:{}]",
+                    chainTaskId, e);
+        }
+        log.info("Spilled task folders to disk [chainTaskId:{}, dir:{}]", chainTaskId, target);
+        return true;
+    }
+
+    /**
+     * Free the tmpfs footprint of a task whose folders have been removed.
+     *
+     * @param chainTaskId id of the task
+     */
+    public void release(String chainTaskId) {
+        reservations.remove(chainTaskId);
+        workerConfigService.setTaskOnTmpfs(chainTaskId, false);
+    }
+
+    long getReservedSize() {
+        return reservations.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    static long getSize(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile)
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Failed to measure folder size [dir:{}]", dir, e);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void copyFolder(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+    }
+
+    private static void deleteFolder(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.tee;
+
+import com.iexec.common.tee.TeeWorkflowSharedConfiguration;
+import com.iexec.common.utils.SgxUtils;
+import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.docker.ImagePullService;
+import com.iexec.worker.sgx.SgxService;
+import com.iexec.worker.sms.SmsService;
+import com.iexec.worker.tee.scone.SconeConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Image warm-up stage run at startup. When the host exposes an SGX driver,
+ * every image needed to enable and run TEE tasks (SGX check, LAS,
+ * pre-compute and post-compute images) is pulled concurrently instead of
+ * one after the other during bean creation.
+ * <p>
+ * Services needing one of these images wait for its warm-up and pull it
+ * themselves if it was not warmed up.
+ */
+@Slf4j
+@Service
+public class TeeImagesWarmupService {
+
+    private final ImagePullService imagePullService;
+    // image name -> warm-up pull
+    private final Map<String, CompletableFuture<Boolean>> warmups;
+
+    public TeeImagesWarmupService(
+            ImagePullService imagePullService,
+            DockerService dockerService,
+            SconeConfiguration sconeConfig,
+            SmsService smsService,
+            @Value("${debug.forceTeeDisabled}") boolean forceTeeDisabled) {
+        this.imagePullService = imagePullService;
+        this.warmups = new ConcurrentHashMap<>();
+        if (!forceTeeDisabled && new File(SgxUtils.SGX_DRIVER_PATH).exists()) {
+            warmUp(dockerService, sconeConfig, smsService.getTeeWorkflowConfiguration());
+        }
+    }
+
+    /**
+     * Wait for the warm-up of an image.
+     *
+     * @param imageName image to check
+     * @return true if the image was pulled during warm-up, false if it was
+     * not part of the warm-up or if its pull failed
+     */
+    public boolean isWarmedUp(String imageName) {
+        CompletableFuture<Boolean> warmup = imageName != null ? warmups.get(imageName) : null;
+        return warmup != null && imagePullService.await(warmup);
+    }
+
+    private void warmUp(DockerService dockerService,
+                        SconeConfiguration sconeConfig,
+                        TeeWorkflowSharedConfiguration teeWorkflowConfig) {
+        long start = System.currentTimeMillis();
+        warmups.put(SgxService.SGX_CHECK_IMAGE,
+                imagePullService.pullAsync(SgxService.SGX_CHECK_IMAGE,
+                        dockerService::getClient));
+        String lasImage = sconeConfig.getLasImageUri();
+        if (StringUtils.isNotEmpty(lasImage)
+                && lasImage.contains(sconeConfig.getRegistryName())) {
+            warmups.put(lasImage, imagePullService.pullAsync(lasImage,
+                    () -> dockerService.getClient(
+                            sconeConfig.getRegistryName(),
+                            sconeConfig.getRegistryUsername(),
+                            sconeConfig.getRegistryPassword())));
+        }
+        if (teeWorkflowConfig != null) {
+            Set<String> computeImages = new LinkedHashSet<>();
+            computeImages.add(teeWorkflowConfig.getPreComputeImage());
+            computeImages.add(teeWorkflowConfig.getPostComputeImage());
+            computeImages.stream()
+                    .filter(StringUtils::isNotEmpty)
+                    .forEach(image -> warmups.put(image, imagePullService.pullAsync(image)));
+        }
+        log.info("Warming up TEE images [images:{}]", warmups.keySet());
+        CompletableFuture.allOf(warmups.values().toArray(new CompletableFuture[0]))
+                .whenComplete((result, e) -> log.info("TEE images warm-up finished " +
+                                "[pulled:{}/{}, duration:{}ms]",
+                        warmups.values().stream().filter(imagePullService::await).count(),
+                        warmups.size(), System.currentTimeMillis() - start));
+    }
+}
@@ -20,8 +20,10 @@ import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.docker.client.DockerClientInstance;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
 import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.sgx.SgxService;
+import com.iexec.worker.tee.TeeImagesWarmupService;
 import com.iexec.worker.utils.LoggingUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -46,16 +48,22 @@ public class TeeSconeService {
     private final SconeConfiguration sconeConfig;
     private final WorkerConfigurationService workerConfigService;
     private final DockerService dockerService;
+    private final TeeImagesWarmupService teeImagesWarmupService;
+    private final ContainerRemovalService containerRemovalService;
     private final boolean isLasStarted;
 
     public TeeSconeService(
             SconeConfiguration sconeConfig,
             WorkerConfigurationService workerConfigService,
             DockerService dockerService,
-            SgxService sgxService) {
+            SgxService sgxService,
+            TeeImagesWarmupService teeImagesWarmupService,
+            ContainerRemovalService containerRemovalService) {
         this.sconeConfig = sconeConfig;
         this.workerConfigService = workerConfigService;
         this.dockerService = dockerService;
+        this.teeImagesWarmupService = teeImagesWarmupService;
+        this.containerRemovalService = containerRemovalService;
         this.isLasStarted = sgxService.isSgxEnabled() && startLasService();
         if (this.isLasStarted) {
             log.info("Worker can run TEE tasks");
@@ -97,11 +105,13 @@ public class TeeSconeService {
             log.error("Docker client with credentials is required to enable TEE support");
             return false;
         }
-        if (!client.pullImage(lasImage)) {
+        if (!teeImagesWarmupService.isWarmedUp(lasImage) && !client.pullImage(lasImage)) {
             log.error("Failed to download LAS image");
             return false;
         }
 
+        // a stale LAS may be left by a crashed session
+        containerRemovalService.stopAndRemove(sconeConfig.getLasContainerName());
         DockerRunResponse dockerRunResponse = dockerService.run(dockerRunRequest);
         if (!dockerRunResponse.isSuccessful()) {
             log.error("Failed to start LAS service");
@@ -145,8 +155,7 @@ public class TeeSconeService {
     @PreDestroy
     private void stopLasService() {
         if (isLasStarted) {
-            dockerService.getClient().stopAndRemoveContainer(
-                    sconeConfig.getLasContainerName());
+            containerRemovalService.stopAndRemove(sconeConfig.getLasContainerName());
         }
     }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package com.iexec.worker.utils;
 
 import com.iexec.common.replicate.ReplicateStatusCause;
+import com.iexec.worker.executor.WorkerFailureReason;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -30,6 +31,8 @@ import lombok.Setter;
 public class WorkflowException extends Exception {
 
     private ReplicateStatusCause replicateStatusCause;
+    // reported in the status details, null if the cause is enough
+    private WorkerFailureReason failureReason;
 
     public WorkflowException(ReplicateStatusCause cause) {
         this(cause, cause.name());
@@ -40,4 +43,9 @@ public class WorkflowException extends Exception {
         this.replicateStatusCause = cause;
     }
 
+    public WorkflowException(ReplicateStatusCause cause, WorkerFailureReason failureReason) {
+        this(cause, cause.name() + " (" + failureReason + ")");
+        this.failureReason = failureReason;
+    }
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.worker;
+
+import com.github.dockerjava.api.model.Container;
+import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
+import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.docker.DockerTransportService;
+import com.iexec.worker.sgx.SgxService;
+import com.iexec.worker.tee.scone.SconeConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Find and remove containers left behind by a previous session of the worker
+ * (e.g. after a crash). Their watching threads are gone so they can not be
+ * re-attached; they only hold resources and names needed by new runs.
+ * <p>
+ * Orphans are identified by name: app and TEE pre/post-compute containers of
+ * the worker, its LAS and its SGX check container. Containers started by
+ * the current session are never removed.
+ */
+@Slf4j
+@Service
+public class OrphanContainerService {
+
+    private final DockerService dockerService;
+    private final DockerTransportService dockerTransportService;
+    private final ContainerRemovalService containerRemovalService;
+    // <workerName>-<chainTaskId>[-tee-pre-compute|-tee-post-compute]
+    private final Pattern taskContainerPattern;
+    private final List<String> serviceContainerNames;
+
+    public OrphanContainerService(WorkerConfigurationService workerConfigService,
+                                  SconeConfiguration sconeConfig,
+                                  SgxService sgxService,
+                                  DockerService dockerService,
+                                  DockerTransportService dockerTransportService,
+                                  ContainerRemovalService containerRemovalService) {
+        this.dockerService = dockerService;
+        this.dockerTransportService = dockerTransportService;
+        this.containerRemovalService = containerRemovalService;
+        this.taskContainerPattern = Pattern.compile("^"
+                + Pattern.quote(workerConfigService.getWorkerName())
+                + "-0x[0-9a-fA-F]{64}(-tee-pre-compute|-tee-post-compute)?$");
+        this.serviceContainerNames = List.of(
+                sconeConfig.getLasContainerName(),
+                sgxService.getSgxCheckContainerName());
+    }
+
+    /**
+     * Remove orphan containers in parallel.
+     *
+     * @return names of the removed orphans
+     */
+    public List<String> removeOrphanContainers() {
+        List<String> orphans = findOrphanContainers();
+        if (orphans.isEmpty()) {
+            log.info("No orphan container found");
+            return Collections.emptyList();
+        }
+        log.warn("Removing orphan containers of a previous worker session [orphans:{}]",
+                orphans);
+        List<String> failures = containerRemovalService.stopAndRemoveAll(orphans);
+        if (!failures.isEmpty()) {
+            log.error("Failed to remove orphan containers [orphans:{}]", failures);
+        }
+        return orphans.stream()
+                .filter(orphan -> !failures.contains(orphan))
+                .collect(Collectors.toList());
+    }
+
+    List<String> findOrphanContainers() {
+        List<Container> containers;
+        try {
+            containers = dockerTransportService.getControlClient()
+                    .listContainersCmd()
+                    .withShowAll(true)
+                    .exec();
+        } catch (Exception e) {
+            log.error("Failed to list containers to find orphans", e);
+            return Collections.emptyList();
+        }
+        return containers.stream()
+                .map(Container::getNames)
+                .filter(Objects::nonNull)
+                .flatMap(Arrays::stream)
+                // names are returned as "/name"
+                .map(name -> name.startsWith("/") ? name.substring(1) : name)
+                .filter(this::isWorkerContainer)
+                .filter(name -> !dockerService.isInRunningContainersRecord(name))
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    private boolean isWorkerContainer(String containerName) {
+        return taskContainerPattern.matcher(containerName).matches()
+                || serviceContainerNames.contains(containerName);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.bandwidth;
+
+import com.iexec.common.chain.ChainTask;
+import com.iexec.worker.chain.IexecHubService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class BandwidthSchedulerServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final long CONTRIBUTION_DEADLINE = System.currentTimeMillis() + 60_000;
+    private static final long FINAL_DEADLINE = System.currentTimeMillis() + 600_000;
+
+    @Mock
+    private IexecHubService iexecHubService;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        when(iexecHubService.getChainTask(CHAIN_TASK_ID)).thenReturn(Optional.of(
+                ChainTask.builder()
+                        .chainTaskId(CHAIN_TASK_ID)
+                        .contributionDeadline(CONTRIBUTION_DEADLINE)
+                        .finalDeadline(FINAL_DEADLINE)
+                        .build()));
+    }
+
+    private BandwidthSchedulerService newService(double downlink, double uplink) {
+        return new BandwidthSchedulerService(iexecHubService, downlink, uplink,
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void shouldNotLookUpDeadlinesWhenUnlimited() throws InterruptedException {
+        BandwidthSchedulerService service = newService(0, 0);
+
+        service.acquire(CHAIN_TASK_ID, TransferClass.DOWNLOAD, 1024);
+
+        assertThat(service.isLimited(TransferClass.DOWNLOAD)).isFalse();
+        verify(iexecHubService, never()).getChainTask(anyString());
+    }
+
+    @Test
+    public void shouldLimitDirectionsIndependently() {
+        BandwidthSchedulerService service = newService(10, 0);
+
+        assertThat(service.isLimited(TransferClass.DOWNLOAD)).isTrue();
+        assertThat(service.isLimited(TransferClass.IMAGE_PULL)).isTrue();
+        assertThat(service.isLimited(TransferClass.RESULT_UPLOAD)).isFalse();
+    }
+
+    @Test
+    public void shouldPrioritizeDownloadsByContributionDeadline() {
+        assertThat(newService(10, 10).getDeadline(CHAIN_TASK_ID, TransferClass.DOWNLOAD))
+                .isEqualTo(CONTRIBUTION_DEADLINE);
+    }
+
+    @Test
+    public void shouldPrioritizeUploadsByFinalDeadline() {
+        assertThat(newService(10, 10).getDeadline(CHAIN_TASK_ID, TransferClass.RESULT_UPLOAD))
+                .isEqualTo(FINAL_DEADLINE);
+    }
+
+    @Test
+    public void shouldCacheChainTask() {
+        BandwidthSchedulerService service = newService(10, 10);
+
+        service.getDeadline(CHAIN_TASK_ID, TransferClass.DOWNLOAD);
+        service.getDeadline(CHAIN_TASK_ID, TransferClass.RESULT_UPLOAD);
+
+        verify(iexecHubService, times(1)).getChainTask(CHAIN_TASK_ID);
+    }
+
+    @Test
+    public void shouldPutTransfersWithoutTaskLast() {
+        BandwidthSchedulerService service = newService(10, 10);
+
+        assertThat(service.getDeadline(null, TransferClass.IMAGE_PULL)).isEqualTo(Long.MAX_VALUE);
+        assertThat(service.getDeadline("unknown", TransferClass.DOWNLOAD)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldPrioritizeSharedTransferByEarliestDeadline() {
+        BandwidthSchedulerService service = newService(10, 10);
+
+        assertThat(service.getDeadline(List.of("unknown", CHAIN_TASK_ID), TransferClass.DOWNLOAD))
+                .isEqualTo(CONTRIBUTION_DEADLINE);
+        assertThat(service.getDeadline(List.of(), TransferClass.DOWNLOAD)).isEqualTo(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.bandwidth;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTests {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void shouldNotWaitWhenUnlimited() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        long start = System.currentTimeMillis();
+
+        bucket.acquire(1000 * MB, 0, TransferClass.DOWNLOAD);
+
+        assertThat(bucket.isLimited()).isFalse();
+        assertThat(System.currentTimeMillis() - start).isLessThan(100);
+    }
+
+    @Test
+    public void shouldPaceTransfersAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10 * MB);
+        // burst of 1s, then in debt of 5 MB
+        bucket.acquire(10 * MB, 0, TransferClass.DOWNLOAD);
+        bucket.acquire(5 * MB, 0, TransferClass.DOWNLOAD);
+        long start = System.currentTimeMillis();
+
+        bucket.acquire(MB, 0, TransferClass.DOWNLOAD);
+
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(400);
+    }
+
+    @Test
+    public void shouldServeClosestDeadlineFirst() throws Exception {
+        TokenBucket bucket = new TokenBucket(10 * MB);
+        bucket.charge(11 * MB);
+        List<String> served = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> farDeadline = CompletableFuture.runAsync(() ->
+                acquire(bucket, 2000, TransferClass.DOWNLOAD, served, "far"));
+        awaitWaiting(bucket, 1);
+        CompletableFuture<Void> closeDeadline = CompletableFuture.runAsync(() ->
+                acquire(bucket, 1000, TransferClass.IMAGE_PULL, served, "close"));
+
+        CompletableFuture.allOf(farDeadline, closeDeadline).get(5, TimeUnit.SECONDS);
+        assertThat(served).containsExactly("close", "far");
+    }
+
+    @Test
+    public void shouldBreakDeadlineTiesByClass() throws Exception {
+        TokenBucket bucket = new TokenBucket(10 * MB);
+        bucket.charge(11 * MB);
+        List<String> served = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> pull = CompletableFuture.runAsync(() ->
+                acquire(bucket, 1000, TransferClass.IMAGE_PULL, served, "pull"));
+        awaitWaiting(bucket, 1);
+        CompletableFuture<Void> download = CompletableFuture.runAsync(() ->
+                acquire(bucket, 1000, TransferClass.DOWNLOAD, served, "download"));
+
+        CompletableFuture.allOf(pull, download).get(5, TimeUnit.SECONDS);
+        assertThat(served).containsExactly("download", "pull");
+    }
+
+    private void acquire(TokenBucket bucket, long deadline, TransferClass transferClass,
+                         List<String> served, String name) {
+        try {
+            bucket.acquire(MB, deadline, transferClass);
+            served.add(name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitWaiting(TokenBucket bucket, int waiting) throws InterruptedException {
+        for (int i = 0; i < 100 && bucket.getWaiting() < waiting; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
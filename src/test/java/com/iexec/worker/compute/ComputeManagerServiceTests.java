@@ -32,6 +32,7 @@ import com.iexec.common.docker.DockerLogs;
 import com.iexec.common.docker.client.DockerClientInstance;
 import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.result.ResultService;
+import com.iexec.worker.task.TaskTmpfsService;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Rule;
@@ -95,24 +96,24 @@ public class ComputeManagerServiceTests {
     private IexecHubService iexecHubService;
     @Mock
     private ResultService resultService;
+    @Mock
+    private TaskTmpfsService taskTmpfsService;
 
     @Before
     public void beforeEach() {
         MockitoAnnotations.openMocks(this);
-
+        when(taskTmpfsService.spill(CHAIN_TASK_ID)).thenReturn(true);
     }
 
     @Test
     public void shouldDownloadApp() {
-        when(dockerService.getClient(taskDescription.getAppUri())).thenReturn(dockerClient);
-        when(dockerClient.pullImage(taskDescription.getAppUri())).thenReturn(true);
+        when(dockerService.pullImage(CHAIN_TASK_ID, taskDescription.getAppUri())).thenReturn(true);
         Assertions.assertThat(computeManagerService.downloadApp(taskDescription)).isTrue();
     }
 
     @Test
     public void shouldNotDownloadAppSincePullImageFailed() {
-        when(dockerService.getClient(taskDescription.getAppUri())).thenReturn(dockerClient);
-        when(dockerClient.pullImage(taskDescription.getAppUri())).thenReturn(false);
+        when(dockerService.pullImage(CHAIN_TASK_ID, taskDescription.getAppUri())).thenReturn(false);
         Assertions.assertThat(computeManagerService.downloadApp(taskDescription)).isFalse();
     }
 
@@ -152,7 +153,8 @@ public class ComputeManagerServiceTests {
     @Test
     public void shouldRunStandardPreCompute() {
         taskDescription.setTeeTask(false);
-        when(preComputeService.runStandardPreCompute(taskDescription)).thenReturn(true);
+        when(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).thenReturn(true);
 
         PreComputeResponse preComputeResponse =
                 computeManagerService.runPreCompute(taskDescription,
@@ -160,13 +162,14 @@ public class ComputeManagerServiceTests {
 
         Assertions.assertThat(preComputeResponse.isSuccessful()).isTrue();
         verify(preComputeService, times(1))
-                .runStandardPreCompute(taskDescription);
+                .runStandardPreCompute(taskDescription, workerpoolAuthorization);
     }
 
     @Test
     public void shouldRunStandardPreComputeWithFailureResponse() {
         taskDescription.setTeeTask(false);
-        when(preComputeService.runStandardPreCompute(taskDescription)).thenReturn(false);
+        when(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).thenReturn(false);
 
         PreComputeResponse preComputeResponse =
                 computeManagerService.runPreCompute(taskDescription,
@@ -320,6 +323,17 @@ public class ComputeManagerServiceTests {
                 .saveResultInfo(anyString(), any(), any());
     }
 
+    @Test
+    public void shouldNotRunPostComputeSinceTmpfsSpillFailed() {
+        taskDescription.setTeeTask(false);
+        when(taskTmpfsService.spill(CHAIN_TASK_ID)).thenReturn(false);
+
+        PostComputeResponse postComputeResponse =
+                computeManagerService.runPostCompute(taskDescription, "");
+        Assertions.assertThat(postComputeResponse.isSuccessful()).isFalse();
+        verifyNoInteractions(postComputeService);
+    }
+
     @Test
     public void shouldRunStandardPostComputeWithFailureResponse() {
         taskDescription.setTeeTask(false);
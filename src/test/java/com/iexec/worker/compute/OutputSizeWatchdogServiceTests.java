@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.compute;
+
+import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
+import com.iexec.worker.task.TaskTmpfsService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class OutputSizeWatchdogServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final String CONTAINER_NAME = "containerName";
+    private static final int MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private WorkerConfigurationService workerConfigService;
+    @Mock
+    private ContainerRemovalService containerRemovalService;
+    @Mock
+    private TaskTmpfsService taskTmpfsService;
+
+    private Path iexecOut;
+    private OutputSizeWatchdogService outputSizeWatchdogService;
+
+    @Before
+    public void beforeEach() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        iexecOut = temporaryFolder.newFolder("iexec_out").toPath();
+        when(workerConfigService.getTaskIexecOutDir(CHAIN_TASK_ID))
+                .thenReturn(iexecOut.toString());
+        when(taskTmpfsService.getOutputLimit(CHAIN_TASK_ID)).thenReturn(Long.MAX_VALUE);
+        outputSizeWatchdogService = new OutputSizeWatchdogService(workerConfigService,
+                containerRemovalService, taskTmpfsService, 1, 100, new SimpleMeterRegistry());
+    }
+
+    @After
+    public void afterEach() {
+        outputSizeWatchdogService.shutdown();
+    }
+
+    @Test
+    public void shouldComputeDirectorySize() throws IOException {
+        Files.write(iexecOut.resolve("a"), new byte[10]);
+        File subFolder = iexecOut.resolve("sub").toFile();
+        subFolder.mkdir();
+        Files.write(subFolder.toPath().resolve("b"), new byte[5]);
+
+        assertThat(OutputSizeWatchdogService.getDirectorySize(iexecOut, Long.MAX_VALUE))
+                .isEqualTo(15);
+    }
+
+    @Test
+    public void shouldReturnZeroSizeSinceNoDirectory() {
+        assertThat(OutputSizeWatchdogService.getDirectorySize(iexecOut.resolve("missing"), 0))
+                .isZero();
+    }
+
+    @Test
+    public void shouldKillContainerSinceOutputSizeLimitExceeded() throws Exception {
+        outputSizeWatchdogService.startWatching(CHAIN_TASK_ID, CONTAINER_NAME);
+        Files.write(iexecOut.resolve("big"), new byte[2 * MB]);
+
+        verify(containerRemovalService, timeout(2000)).stopAsync(CONTAINER_NAME);
+        // removal is left to the run waiting for the container
+        verify(containerRemovalService, never()).stopAndRemoveAsync(CONTAINER_NAME);
+        assertThat(outputSizeWatchdogService.stopWatching(CHAIN_TASK_ID)).isTrue();
+    }
+
+    @Test
+    public void shouldNotKillContainerSinceOutputBelowLimit() throws Exception {
+        outputSizeWatchdogService.startWatching(CHAIN_TASK_ID, CONTAINER_NAME);
+        Files.write(iexecOut.resolve("small"), new byte[MB / 2]);
+        Thread.sleep(300);
+
+        assertThat(outputSizeWatchdogService.stopWatching(CHAIN_TASK_ID)).isFalse();
+        verifyNoInteractions(containerRemovalService);
+    }
+
+    @Test
+    public void shouldNotWatchSinceDisabled() {
+        OutputSizeWatchdogService disabledService = new OutputSizeWatchdogService(
+                workerConfigService, containerRemovalService, taskTmpfsService, 0, 100,
+                new SimpleMeterRegistry());
+
+        disabledService.startWatching(CHAIN_TASK_ID, CONTAINER_NAME);
+
+        assertThat(disabledService.isEnabled()).isFalse();
+        assertThat(disabledService.stopWatching(CHAIN_TASK_ID)).isFalse();
+        disabledService.shutdown();
+    }
+
+    @Test
+    public void shouldKillContainerSinceTmpfsOutputLimitExceeded() throws Exception {
+        OutputSizeWatchdogService disabledService = new OutputSizeWatchdogService(
+                workerConfigService, containerRemovalService, taskTmpfsService, 0, 100,
+                new SimpleMeterRegistry());
+        when(taskTmpfsService.getOutputLimit(CHAIN_TASK_ID)).thenReturn((long) MB);
+
+        disabledService.startWatching(CHAIN_TASK_ID, CONTAINER_NAME);
+        Files.write(iexecOut.resolve("big"), new byte[2 * MB]);
+
+        verify(containerRemovalService, timeout(2000)).stopAsync(CONTAINER_NAME);
+        assertThat(disabledService.getMaxSize(CHAIN_TASK_ID)).isEqualTo(MB);
+        assertThat(disabledService.stopWatching(CHAIN_TASK_ID)).isTrue();
+        disabledService.shutdown();
+    }
+}
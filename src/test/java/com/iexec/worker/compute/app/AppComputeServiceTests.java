@@ -20,8 +20,11 @@ import com.iexec.common.task.TaskDescription;
 import com.iexec.common.tee.TeeEnclaveConfiguration;
 import com.iexec.common.utils.IexecEnvUtils;
 import com.iexec.common.utils.IexecFileHelper;
+import com.iexec.worker.compute.OutputSizeWatchdogService;
 import com.iexec.worker.config.PublicConfigurationService;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.dataset.DataService;
+import com.iexec.worker.executor.WorkerFailureReason;
 import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.worker.docker.DockerService;
@@ -40,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 import static org.mockito.Mockito.*;
 
@@ -81,6 +85,10 @@ public class AppComputeServiceTests {
     private TeeSconeService teeSconeService;
     @Mock
     private SconeConfiguration sconeConfig;
+    @Mock
+    private OutputSizeWatchdogService outputSizeWatchdogService;
+    @Mock
+    private DataService dataService;
 
     @Before
     public void beforeEach() throws IOException {
@@ -88,6 +96,26 @@ public class AppComputeServiceTests {
         when(sconeConfig.getCasUrl()).thenReturn(SCONE_CAS_URL);
     }
 
+    @Test
+    public void shouldFailComputeSinceOutputSizeLimitExceeded() {
+        taskDescription.setTeeTask(false);
+        when(workerConfigService.getWorkerName()).thenReturn(WORKER_NAME);
+        when(dockerService.run(any()))
+                .thenReturn(DockerRunResponse.builder().isSuccessful(false).stdout("app logs").build());
+        when(outputSizeWatchdogService.stopWatching(CHAIN_TASK_ID)).thenReturn(true);
+        when(outputSizeWatchdogService.getMaxSize(CHAIN_TASK_ID)).thenReturn(1024L);
+
+        AppComputeResponse appComputeResponse =
+                appComputeService.runCompute(taskDescription, SECURE_SESSION_ID);
+
+        Assertions.assertThat(appComputeResponse.isSuccessful()).isFalse();
+        Assertions.assertThat(appComputeResponse.getStdout()).isEqualTo("app logs");
+        Assertions.assertThat(appComputeResponse.getFailureReason())
+                .isEqualTo(WorkerFailureReason.OUTPUT_SIZE_LIMIT_EXCEEDED);
+        verify(outputSizeWatchdogService).startWatching(CHAIN_TASK_ID,
+                WORKER_NAME + "-" + CHAIN_TASK_ID);
+    }
+
     @Test
     public void shouldRunCompute() {
         taskDescription.setTeeTask(false);
@@ -125,6 +153,28 @@ public class AppComputeServiceTests {
         );
     }
 
+    @Test
+    public void shouldMountCachedDatasetReadOnly() {
+        taskDescription.setTeeTask(false);
+        String inputBind = INPUT + ":" + IexecFileHelper.SLASH_IEXEC_IN;
+        when(dockerService.getInputBind(CHAIN_TASK_ID)).thenReturn(inputBind);
+        String iexecOutBind = IEXEC_OUT + ":" + IexecFileHelper.SLASH_IEXEC_OUT;
+        when(dockerService.getIexecOutBind(CHAIN_TASK_ID)).thenReturn(iexecOutBind);
+        String datasetBind = "/cache/abc:" + IexecFileHelper.SLASH_IEXEC_IN + "/dataset:ro";
+        when(dataService.getCachedDatasetBind(taskDescription)).thenReturn(Optional.of(datasetBind));
+        when(workerConfigService.getWorkerName()).thenReturn(WORKER_NAME);
+        when(dockerService.run(any()))
+                .thenReturn(DockerRunResponse.builder().isSuccessful(true).build());
+
+        appComputeService.runCompute(taskDescription, SECURE_SESSION_ID);
+
+        ArgumentCaptor<DockerRunRequest> argumentCaptor =
+                ArgumentCaptor.forClass(DockerRunRequest.class);
+        verify(dockerService).run(argumentCaptor.capture());
+        Assertions.assertThat(argumentCaptor.getValue().getBinds())
+                .containsExactly(inputBind, iexecOutBind, datasetBind);
+    }
+
     @Test
     public void shouldRunComputeWithTeeAndConnectAppToLas() {
         taskDescription.setTeeTask(true);
@@ -26,6 +26,7 @@ import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.docker.client.DockerClientInstance;
 import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.result.ResultPackerService;
 import com.iexec.worker.result.ResultService;
 import com.iexec.worker.tee.scone.SconeConfiguration;
 import com.iexec.worker.tee.scone.TeeSconeService;
@@ -38,6 +39,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 
 import java.io.File;
 import java.io.IOException;
@@ -88,6 +90,8 @@ public class PostComputeServiceTests {
     private TeeWorkflowConfiguration teeWorkflowConfig;
     @Mock
     private DockerClientInstance dockerClientInstanceMock;
+    @Spy
+    private ResultPackerService resultPackerService = new ResultPackerService(2, 6);
 
     @Before
     public void beforeEach() throws IOException {
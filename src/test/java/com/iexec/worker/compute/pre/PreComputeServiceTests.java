@@ -20,6 +20,7 @@ import com.iexec.common.chain.WorkerpoolAuthorization;
 import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.docker.client.DockerClientInstance;
+import com.iexec.common.sms.secret.TaskSecrets;
 import com.iexec.common.task.TaskDescription;
 import com.iexec.common.tee.TeeEnclaveConfiguration;
 import com.iexec.common.tee.TeeEnclaveConfigurationValidator;
@@ -49,11 +50,12 @@ public class PreComputeServiceTests {
     private static final String PRE_COMPUTE_ENTRYPOINT = "preComputeEntrypoint";
     private final String chainTaskId = "chainTaskId";
     private final String datasetUri = "datasetUri";
+    private final String datasetName = "datasetName";
     private final TaskDescription taskDescription = TaskDescription.builder()
             .chainTaskId(chainTaskId)
             .datasetAddress("datasetAddress")
             .datasetUri(datasetUri)
-            .datasetName("datasetName")
+            .datasetName(datasetName)
             .datasetChecksum("datasetChecksum")
             .teePostComputeImage("teePostComputeImage")
             .appEnclaveConfiguration(TeeEnclaveConfiguration.builder()
@@ -103,8 +105,9 @@ public class PreComputeServiceTests {
         when(smsService.fetchTaskSecrets(workerpoolAuthorization)).thenReturn(Optional.empty());
         when(dataService.isDatasetDecryptionNeeded(chainTaskId)).thenReturn(false);
 
-        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription)).isTrue();
-        verify(dataService, times(0)).decryptDataset(chainTaskId, datasetUri);
+        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).isTrue();
+        verify(dataService, times(0)).decryptDataset(chainTaskId, datasetName);
     }
 
     @Test
@@ -112,10 +115,29 @@ public class PreComputeServiceTests {
         when(smsService.fetchTaskSecrets(workerpoolAuthorization)).thenReturn(Optional.empty());
         when(dataService.isDatasetDecryptionNeeded(chainTaskId)).thenReturn(true);
         when(dataService.decryptDataset(chainTaskId,
-                taskDescription.getDatasetUri())).thenReturn(true);
+                taskDescription.getDatasetName())).thenReturn(true);
 
-        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription)).isTrue();
-        verify(dataService, times(1)).decryptDataset(chainTaskId, datasetUri);
+        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).isTrue();
+        verify(dataService, times(1)).decryptDataset(chainTaskId, datasetName);
+    }
+
+    @Test
+    public void shouldSaveSecretsBeforeDatasetDecryption() {
+        TaskSecrets taskSecrets = mock(TaskSecrets.class);
+        when(smsService.fetchTaskSecrets(workerpoolAuthorization)).thenReturn(Optional.of(taskSecrets));
+        when(workerConfigService.getDatasetSecretFilePath(chainTaskId)).thenReturn("dataset.secret");
+        when(workerConfigService.getBeneficiarySecretFilePath(chainTaskId)).thenReturn("beneficiary.secret");
+        when(workerConfigService.getEnclaveSecretFilePath(chainTaskId)).thenReturn("enclave.secret");
+        when(dataService.isDatasetDecryptionNeeded(chainTaskId)).thenReturn(true);
+        when(dataService.decryptDataset(chainTaskId, datasetName)).thenReturn(true);
+
+        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).isTrue();
+        InOrder inOrder = inOrder(smsService, dataService);
+        inOrder.verify(smsService).saveSecrets(chainTaskId, taskSecrets,
+                "dataset.secret", "beneficiary.secret", "enclave.secret");
+        inOrder.verify(dataService).decryptDataset(chainTaskId, datasetName);
     }
 
     @Test
@@ -123,10 +145,11 @@ public class PreComputeServiceTests {
         when(smsService.fetchTaskSecrets(workerpoolAuthorization)).thenReturn(Optional.empty());
         when(dataService.isDatasetDecryptionNeeded(chainTaskId)).thenReturn(true);
         when(dataService.decryptDataset(chainTaskId,
-                taskDescription.getDatasetUri())).thenReturn(false);
+                taskDescription.getDatasetName())).thenReturn(false);
 
-        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription)).isFalse();
-        verify(dataService, times(1)).decryptDataset(chainTaskId, datasetUri);
+        Assertions.assertThat(preComputeService.runStandardPreCompute(taskDescription,
+                workerpoolAuthorization)).isFalse();
+        verify(dataService, times(1)).decryptDataset(chainTaskId, datasetName);
     }
 
     /**
@@ -18,8 +18,16 @@ package com.iexec.worker.dataset;
 
 import com.iexec.common.replicate.ReplicateStatusCause;
 import com.iexec.common.task.TaskDescription;
+import com.iexec.common.utils.HashUtils;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.download.DownloadService;
+import com.iexec.worker.download.IpfsGatewayService;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
 import com.iexec.worker.utils.WorkflowException;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -27,13 +35,33 @@ import org.junit.rules.TemporaryFolder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
 import java.util.List;
+import java.util.Optional;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DataServiceTest {
@@ -53,6 +81,17 @@ public class DataServiceTest {
 
     @Mock
     private WorkerConfigurationService workerConfigurationService;
+    private TaskCancellationService taskCancellationService = new TaskCancellationService();
+    @Spy
+    private DownloadService downloadService =
+            new DownloadService(taskCancellationService,
+                    new IpfsGatewayService(new String[0], 1, new SimpleMeterRegistry()),
+                    mock(BandwidthSchedulerService.class),
+                    new SimpleMeterRegistry(), 4, 4, 4, 30000, 64, 4, 60000, 16, true);
+    @Mock
+    private DatasetCacheService datasetCacheService;
+    @Mock
+    private DatasetPeerService datasetPeerService;
 
     private String iexecIn;
 
@@ -79,6 +118,52 @@ public class DataServiceTest {
     }
 
 
+    @Test
+    public void shouldGetDatasetFromCache() throws Exception {
+        taskDescription.setDatasetUri("https://unreachable.invalid/dataset");
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        when(datasetCacheService.getOrDownload(eq(CHAIN_TASK_ID), eq(CHECKSUM),
+                eq(new File(iexecIn, FILENAME).toPath()), any()))
+                .thenReturn(Optional.of(Paths.get("/cache/key")));
+
+        String filepath = dataService.downloadStandardDataset(taskDescription);
+        assertThat(filepath).isEqualTo(iexecIn + "/" + FILENAME);
+    }
+
+    @Test
+    public void shouldNotDownloadAgainWhenCacheFailed() {
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        when(datasetCacheService.getOrDownload(eq(CHAIN_TASK_ID), eq(CHECKSUM),
+                any(), any())).thenReturn(Optional.empty());
+
+        WorkflowException e = assertThrows(
+                WorkflowException.class,
+                () -> dataService.downloadStandardDataset(taskDescription));
+        assertThat(e.getReplicateStatusCause())
+                .isEqualTo(ReplicateStatusCause.DATASET_FILE_DOWNLOAD_FAILED);
+        verify(downloadService, never()).downloadAndHash(anyString(), any(), any(), any());
+    }
+
+    @Test
+    public void shouldReportBadChecksumOfCachedDownloadWithoutDownloadingAgain() {
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        doReturn("0xbad").when(downloadService).downloadAndHash(any(), any(), any(), any(), any());
+        when(datasetCacheService.getOrDownload(eq(CHAIN_TASK_ID), eq(CHECKSUM), any(), any()))
+                .thenAnswer(invocation -> {
+                    DatasetCacheService.Downloader downloader = invocation.getArgument(3);
+                    downloader.download(temporaryFolder.getRoot().toPath().resolve("download"),
+                            new CancellationToken(CHAIN_TASK_ID), List.of(CHAIN_TASK_ID));
+                    return Optional.empty();
+                });
+
+        WorkflowException e = assertThrows(
+                WorkflowException.class,
+                () -> dataService.downloadStandardDataset(taskDescription));
+        assertThat(e.getReplicateStatusCause())
+                .isEqualTo(ReplicateStatusCause.DATASET_FILE_BAD_CHECKSUM);
+        verify(downloadService, times(1)).downloadAndHash(any(), any(), any(), any(), any());
+    }
+
     @Test
     public void shouldNotDownloadDatasetSinceEmptyChainTaskId() throws Exception {
         taskDescription.setChainTaskId("");
@@ -136,6 +221,17 @@ public class DataServiceTest {
                 .isEqualTo(iexecIn + "/" + FILENAME);
     }
 
+    @Test
+    public void shouldNotDownloadDatasetSinceTaskCancelled() {
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+        WorkflowException e = assertThrows(
+                WorkflowException.class,
+                () -> dataService.downloadStandardDataset(taskDescription));
+        assertThat(e.getReplicateStatusCause())
+                .isEqualTo(ReplicateStatusCause.DATASET_FILE_DOWNLOAD_FAILED);
+        assertThat(new File(iexecIn, FILENAME)).doesNotExist();
+    }
+
     @Test
     public void shouldDownloadInputFiles() throws Exception {
         List<String> uris = List.of(URI);
@@ -153,4 +249,215 @@ public class DataServiceTest {
                 .isEqualTo(ReplicateStatusCause.INPUT_FILES_DOWNLOAD_FAILED);
 
     }
-}
\ No newline at end of file
+
+    /**
+     * downloadStandardDataset() from peers
+     */
+
+    private HttpServer startPeer(String path, byte[] content) throws IOException {
+        HttpServer peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext(path, exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+        });
+        peer.start();
+        return peer;
+    }
+
+    private String sha256(byte[] content) throws IOException {
+        File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), content);
+        return HashUtils.sha256(file);
+    }
+
+    @Test
+    public void shouldDownloadDatasetFromPeer() throws Exception {
+        byte[] content = "dataset shared by a peer".getBytes();
+        String checksum = sha256(content);
+        HttpServer peer = startPeer("/datasets/", content);
+        String peerUri = "http://localhost:" + peer.getAddress().getPort() + "/datasets/dataset";
+        taskDescription.setDatasetUri("https://unreachable.invalid/dataset");
+        taskDescription.setDatasetChecksum(checksum);
+        when(datasetPeerService.getPeerUris(checksum)).thenReturn(List.of(peerUri));
+
+        try {
+            String filepath = dataService.downloadStandardDataset(taskDescription);
+            assertThat(Files.readAllBytes(Paths.get(filepath))).isEqualTo(content);
+            verify(datasetPeerService).recordDownload(peerUri, true);
+        } finally {
+            peer.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldDownloadDatasetFromOriginWhenPeerDatasetDoesNotMatchChecksum()
+            throws Exception {
+        byte[] content = "dataset of the origin".getBytes();
+        HttpServer server = startPeer("/datasets/", "corrupted dataset".getBytes());
+        server.createContext("/origin", exchange -> {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+        });
+        String baseUrl = "http://localhost:" + server.getAddress().getPort();
+        String checksum = sha256(content);
+        taskDescription.setDatasetUri(baseUrl + "/origin");
+        taskDescription.setDatasetChecksum(checksum);
+        when(datasetPeerService.getPeerUris(checksum))
+                .thenReturn(List.of(baseUrl + "/datasets/dataset"));
+
+        try {
+            String filepath = dataService.downloadStandardDataset(taskDescription);
+            assertThat(Files.readAllBytes(Paths.get(filepath))).isEqualTo(content);
+            verify(datasetPeerService).recordDownload(baseUrl + "/datasets/dataset", false);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * decryptDataset()
+     */
+
+    private void createEncryptedDataset(byte[] plaintext, byte[] key) throws Exception {
+        byte[] iv = new byte[16];
+        new Random(7).nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        try (OutputStream out = Files.newOutputStream(Paths.get(iexecIn, FILENAME))) {
+            out.write(iv);
+            out.write(cipher.doFinal(plaintext));
+        }
+    }
+
+    @Test
+    public void shouldDecryptDataset() throws Exception {
+        byte[] plaintext = new byte[3 * 1024 * 1024 + 5];
+        new Random(42).nextBytes(plaintext);
+        byte[] key = new byte[32];
+        new Random(43).nextBytes(key);
+        createEncryptedDataset(plaintext, key);
+        Path secretFile = Paths.get(iexecIn, "dataset.secret");
+        Files.writeString(secretFile, Base64.getEncoder().encodeToString(key) + "\n");
+        when(workerConfigurationService.getDatasetSecretFilePath(CHAIN_TASK_ID))
+                .thenReturn(secretFile.toString());
+
+        assertThat(dataService.decryptDataset(CHAIN_TASK_ID, FILENAME)).isTrue();
+        assertThat(Files.readAllBytes(Paths.get(iexecIn, FILENAME))).isEqualTo(plaintext);
+        assertThat(secretFile).doesNotExist();
+        assertThat(Paths.get(iexecIn, FILENAME + ".recovered")).doesNotExist();
+    }
+
+    @Test
+    public void shouldDecryptCachedDatasetToInputFolder() throws Exception {
+        byte[] plaintext = "dataset content".getBytes();
+        byte[] key = new byte[32];
+        new Random(43).nextBytes(key);
+        createEncryptedDataset(plaintext, key);
+        Path cachedDataset = temporaryFolder.newFolder("cache").toPath().resolve("key");
+        Files.move(Paths.get(iexecIn, FILENAME), cachedDataset);
+        byte[] encrypted = Files.readAllBytes(cachedDataset);
+        when(datasetCacheService.getPinnedDataset(CHAIN_TASK_ID))
+                .thenReturn(Optional.of(cachedDataset));
+        Path secretFile = Paths.get(iexecIn, "dataset.secret");
+        Files.writeString(secretFile, Base64.getEncoder().encodeToString(key));
+        when(workerConfigurationService.getDatasetSecretFilePath(CHAIN_TASK_ID))
+                .thenReturn(secretFile.toString());
+
+        assertThat(dataService.decryptDataset(CHAIN_TASK_ID, FILENAME)).isTrue();
+        assertThat(Files.readAllBytes(Paths.get(iexecIn, FILENAME))).isEqualTo(plaintext);
+        assertThat(Files.readAllBytes(cachedDataset)).isEqualTo(encrypted);
+        verify(datasetCacheService).release(CHAIN_TASK_ID);
+    }
+
+    @Test
+    public void shouldNotDecryptDatasetWithWrongKey() throws Exception {
+        byte[] key = new byte[32];
+        new Random(43).nextBytes(key);
+        createEncryptedDataset("dataset content".getBytes(), key);
+        byte[] encrypted = Files.readAllBytes(Paths.get(iexecIn, FILENAME));
+        Path secretFile = Paths.get(iexecIn, "dataset.secret");
+        Files.writeString(secretFile, Base64.getEncoder().encodeToString(new byte[32]));
+        when(workerConfigurationService.getDatasetSecretFilePath(CHAIN_TASK_ID))
+                .thenReturn(secretFile.toString());
+
+        assertThat(dataService.decryptDataset(CHAIN_TASK_ID, FILENAME)).isFalse();
+        assertThat(Files.readAllBytes(Paths.get(iexecIn, FILENAME))).isEqualTo(encrypted);
+        assertThat(Paths.get(iexecIn, FILENAME + ".recovered")).doesNotExist();
+    }
+
+    /**
+     * getCachedDatasetBind()
+     */
+
+    @Test
+    public void shouldGetReadOnlyBindOfPinnedDataset() {
+        taskDescription.setDatasetAddress("0xdataset");
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        when(datasetCacheService.getPinnedDataset(CHAIN_TASK_ID))
+                .thenReturn(Optional.of(Paths.get("/cache/key")));
+
+        assertThat(dataService.getCachedDatasetBind(taskDescription))
+                .contains("/cache/key:/iexec_in/" + FILENAME + ":ro");
+    }
+
+    @Test
+    public void shouldPinCachedDatasetAgainWhenNotInInputFolder() {
+        taskDescription.setDatasetAddress("0xdataset");
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        when(datasetCacheService.pin(CHAIN_TASK_ID, CHECKSUM))
+                .thenReturn(Optional.of(Paths.get("/cache/key")));
+
+        assertThat(dataService.getCachedDatasetBind(taskDescription))
+                .contains("/cache/key:/iexec_in/" + FILENAME + ":ro");
+    }
+
+    @Test
+    public void shouldNotGetBindSinceDatasetInInputFolder() throws IOException {
+        taskDescription.setDatasetAddress("0xdataset");
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(true);
+        Files.write(Paths.get(iexecIn, FILENAME), "decrypted".getBytes());
+
+        assertThat(dataService.getCachedDatasetBind(taskDescription)).isEmpty();
+        verify(datasetCacheService, never()).pin(any(), any());
+    }
+
+    @Test
+    public void shouldNotGetBindSinceDatasetNotCacheable() {
+        taskDescription.setDatasetAddress("0xdataset");
+        when(datasetCacheService.isCacheable(CHECKSUM)).thenReturn(false);
+
+        assertThat(dataService.getCachedDatasetBind(taskDescription)).isEmpty();
+    }
+
+    @Test
+    public void shouldGetExpectedInputSize() {
+        TaskDescription withInputFiles = TaskDescription.builder()
+                .chainTaskId(CHAIN_TASK_ID)
+                .datasetAddress("0xdataset")
+                .datasetUri(URI)
+                .inputFiles(List.of("https://ab.cd/input"))
+                .build();
+        doReturn(10L).when(downloadService).getContentLength(URI);
+        doReturn(5L).when(downloadService).getContentLength("https://ab.cd/input");
+
+        assertThat(dataService.getExpectedInputSize(withInputFiles)).isEqualTo(15);
+    }
+
+    @Test
+    public void shouldNotGetExpectedInputSizeSinceUnknownFileSize() {
+        TaskDescription withInputFiles = TaskDescription.builder()
+                .chainTaskId(CHAIN_TASK_ID)
+                .datasetAddress("0xdataset")
+                .datasetUri(URI)
+                .inputFiles(List.of("https://ab.cd/input"))
+                .build();
+        doReturn(10L).when(downloadService).getContentLength(URI);
+        doReturn(-1L).when(downloadService).getContentLength("https://ab.cd/input");
+
+        assertThat(dataService.getExpectedInputSize(withInputFiles)).isEqualTo(-1);
+    }
+}
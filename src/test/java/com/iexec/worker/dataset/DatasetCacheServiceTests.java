@@ -0,0 +1,289 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import com.iexec.common.utils.HashUtils;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DatasetCacheServiceTests {
+
+    private static final byte[] CONTENT = "dataset content".getBytes();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cacheDir;
+    private Path taskDir;
+    private String checksum;
+    private AtomicInteger downloads;
+    private TaskCancellationService taskCancellationService;
+
+    @Before
+    public void beforeEach() throws IOException {
+        cacheDir = temporaryFolder.newFolder("cache").toPath();
+        taskDir = temporaryFolder.newFolder("task").toPath();
+        Path reference = temporaryFolder.newFile("reference").toPath();
+        Files.write(reference, CONTENT);
+        checksum = HashUtils.sha256(reference.toFile());
+        downloads = new AtomicInteger();
+        taskCancellationService = new TaskCancellationService();
+    }
+
+    private DatasetCacheService newService(long maxSize) {
+        return new DatasetCacheService(true, maxSize, cacheDir, new SimpleMeterRegistry(),
+                taskCancellationService);
+    }
+
+    private DatasetCacheService.Downloader downloader(byte[] content) {
+        return (path, token, chainTaskIds) -> {
+            downloads.incrementAndGet();
+            try {
+                Files.write(path, content);
+                return HashUtils.sha256(path.toFile());
+            } catch (IOException e) {
+                return "";
+            }
+        };
+    }
+
+    private String checksumOf(byte[] content) throws IOException {
+        Path reference = temporaryFolder.newFile().toPath();
+        Files.write(reference, content);
+        return HashUtils.sha256(reference.toFile());
+    }
+
+    @Test
+    public void shouldGetKeyFromChecksum() {
+        String hex = "ab".repeat(32);
+        assertThat(DatasetCacheService.toKey("0x" + hex.toUpperCase())).isEqualTo(hex);
+        assertThat(DatasetCacheService.toKey("../../etc/passwd")).isEmpty();
+        assertThat(DatasetCacheService.toKey(null)).isEmpty();
+    }
+
+    @Test
+    public void shouldDownloadOnceThenShareReadOnlyCachedDataset() throws IOException {
+        DatasetCacheService cache = newService(1024);
+
+        Optional<Path> first = cache.getOrDownload("task1", checksum,
+                taskDir.resolve("task1/dataset"), downloader(CONTENT));
+        Optional<Path> second = cache.getOrDownload("task2", checksum,
+                taskDir.resolve("task2/dataset"), downloader(CONTENT));
+
+        assertThat(downloads.get()).isEqualTo(1);
+        assertThat(first).isPresent().isEqualTo(second).isEqualTo(cache.getCachedDataset(checksum));
+        assertThat(Files.readAllBytes(first.get())).isEqualTo(CONTENT);
+        assertThat(Files.getPosixFilePermissions(first.get()))
+                .doesNotContain(PosixFilePermission.OWNER_WRITE);
+        // nothing is copied to the input folders
+        assertThat(taskDir.toFile().list()).isEmpty();
+        assertThat(cache.getPinnedDataset("task1")).isEqualTo(first);
+        assertThat(cache.getPinnedDataset("task2")).isEqualTo(first);
+    }
+
+    @Test
+    public void shouldNotCacheDatasetWithBadChecksum() {
+        DatasetCacheService cache = newService(1024);
+
+        assertThat(cache.getOrDownload("task1", checksum, taskDir.resolve("dataset"),
+                downloader("tampered".getBytes()))).isEmpty();
+        assertThat(cache.getSize()).isZero();
+        assertThat(cacheDir.toFile().list()).isEmpty();
+        assertThat(cache.getPinnedDataset("task1")).isEmpty();
+    }
+
+    @Test
+    public void shouldGiveDatasetBiggerThanCacheToTask() throws IOException {
+        DatasetCacheService cache = newService(CONTENT.length - 1);
+        Path target = taskDir.resolve("dataset");
+
+        assertThat(cache.getOrDownload("task1", checksum, target, downloader(CONTENT)))
+                .contains(target);
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+        assertThat(cache.getSize()).isZero();
+        assertThat(cacheDir.toFile().list()).isEmpty();
+        assertThat(cache.getPinnedDataset("task1")).isEmpty();
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedDatasetOnceReleased() throws IOException {
+        byte[] otherContent = "other dataset".getBytes();
+        String otherChecksum = checksumOf(otherContent);
+        DatasetCacheService cache = newService(CONTENT.length + 1);
+
+        cache.getOrDownload("task1", checksum, taskDir.resolve("a"), downloader(CONTENT));
+        cache.getOrDownload("task2", otherChecksum, taskDir.resolve("b"), downloader(otherContent));
+
+        // still used by its task
+        assertThat(cacheDir.resolve(DatasetCacheService.toKey(checksum))).exists();
+        assertThat(cache.getSize()).isEqualTo(CONTENT.length + otherContent.length);
+
+        cache.release("task1");
+
+        assertThat(cacheDir.resolve(DatasetCacheService.toKey(checksum))).doesNotExist();
+        assertThat(cache.getSize()).isEqualTo(otherContent.length);
+        assertThat(cache.getPinnedDataset("task1")).isEmpty();
+    }
+
+    @Test
+    public void shouldPinCachedDatasetAgain() {
+        DatasetCacheService cache = newService(1024);
+        Optional<Path> dataset = cache.getOrDownload("task1", checksum, taskDir.resolve("a"),
+                downloader(CONTENT));
+        cache.release("task1");
+
+        assertThat(cache.pin("task1", checksum)).isEqualTo(dataset);
+        assertThat(cache.getPinnedDataset("task1")).isEqualTo(dataset);
+        assertThat(cache.pin("task2", "0x" + "ab".repeat(32))).isEmpty();
+    }
+
+    @Test
+    public void shouldReloadCachedDatasets() {
+        newService(1024).getOrDownload("task1", checksum, taskDir.resolve("a"),
+                downloader(CONTENT));
+
+        DatasetCacheService reloaded = newService(1024);
+
+        assertThat(reloaded.getSize()).isEqualTo(CONTENT.length);
+        assertThat(reloaded.getOrDownload("task2", checksum, taskDir.resolve("b"),
+                downloader(CONTENT))).isPresent();
+        assertThat(downloads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldShareInFlightDownload() throws Exception {
+        DatasetCacheService cache = newService(1024);
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch releaseDownload = new CountDownLatch(1);
+        DatasetCacheService.Downloader slowDownloader = (path, token, chainTaskIds) -> {
+            downloadStarted.countDown();
+            try {
+                releaseDownload.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return "";
+            }
+            return downloader(CONTENT).download(path, token, chainTaskIds);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Optional<Path>> first = executor.submit(() ->
+                cache.getOrDownload("task1", checksum, taskDir.resolve("a"), slowDownloader));
+        downloadStarted.await(5, TimeUnit.SECONDS);
+        Future<Optional<Path>> second = executor.submit(() ->
+                cache.getOrDownload("task2", checksum, taskDir.resolve("b"), slowDownloader));
+        Thread.sleep(100);
+        releaseDownload.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isPresent();
+        assertThat(second.get(5, TimeUnit.SECONDS)).isPresent();
+        assertThat(downloads.get()).isEqualTo(1);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldNotUseCacheSinceNoChecksum() {
+        DatasetCacheService cache = newService(1024);
+
+        assertThat(cache.getOrDownload("task1", "", taskDir.resolve("a"),
+                downloader(CONTENT))).isEmpty();
+        assertThat(downloads.get()).isZero();
+    }
+
+    @Test
+    public void shouldKeepSharedDownloadWhenStartingTaskIsCancelled() throws Exception {
+        DatasetCacheService cache = newService(1024);
+        CountDownLatch bothWaiting = new CountDownLatch(1);
+        CountDownLatch releaseDownload = new CountDownLatch(1);
+        AtomicReference<CancellationToken> downloadToken = new AtomicReference<>();
+        DatasetCacheService.Downloader slowDownloader = (path, token, chainTaskIds) -> {
+            downloadToken.set(token);
+            try {
+                while (chainTaskIds.size() < 2) {
+                    Thread.sleep(10);
+                }
+                bothWaiting.countDown();
+                releaseDownload.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return "";
+            }
+            return downloader(CONTENT).download(path, token, chainTaskIds);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Optional<Path>> first = executor.submit(() ->
+                cache.getOrDownload("task1", checksum, taskDir.resolve("a"), slowDownloader));
+        Future<Optional<Path>> second = executor.submit(() ->
+                cache.getOrDownload("task2", checksum, taskDir.resolve("b"), slowDownloader));
+        assertThat(bothWaiting.await(5, TimeUnit.SECONDS)).isTrue();
+
+        taskCancellationService.cancel("task1", "aborted");
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEmpty();
+        releaseDownload.countDown();
+
+        Optional<Path> dataset = second.get(5, TimeUnit.SECONDS);
+        assertThat(dataset).isPresent();
+        assertThat(Files.readAllBytes(dataset.get())).isEqualTo(CONTENT);
+        assertThat(downloadToken.get().isCancelled()).isFalse();
+        assertThat(downloads.get()).isEqualTo(1);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldStopSharedDownloadWhenNoTaskWaitsForIt() throws Exception {
+        DatasetCacheService cache = newService(1024);
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch downloadStopped = new CountDownLatch(1);
+        DatasetCacheService.Downloader stoppableDownloader = (path, token, chainTaskIds) -> {
+            token.onCancel(downloadStopped::countDown);
+            downloadStarted.countDown();
+            try {
+                downloadStopped.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "";
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Optional<Path>> first = executor.submit(() ->
+                cache.getOrDownload("task1", checksum, taskDir.resolve("a"), stoppableDownloader));
+        assertThat(downloadStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        taskCancellationService.cancel("task1", "aborted");
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEmpty();
+        assertThat(downloadStopped.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.shutdownNow();
+    }
+}
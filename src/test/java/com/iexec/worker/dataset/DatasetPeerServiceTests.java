@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.dataset;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class DatasetPeerServiceTests {
+
+    private static final String SELF = "http://localhost:13100";
+    private static final String CHECKSUM =
+            "0x240987ee1480e8e0b1b26fa806810fea04021191a8e6d8ab6325c15fa61fa9b6";
+    private static final String KEY = DatasetCacheService.toKey(CHECKSUM);
+    private static final String PEER_ADDRESS = "127.0.0.1";
+    private static final String UNKNOWN_ADDRESS = "192.0.2.1";
+
+    @Mock
+    private DatasetCacheService datasetCacheService;
+
+    private HttpServer peer;
+    private String peerUrl;
+    private CompletableFuture<DatasetAdvertisement> receivedAdvertisement;
+
+    @Before
+    public void beforeEach() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        receivedAdvertisement = new CompletableFuture<>();
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext(DatasetPeerService.ADVERTISEMENTS_PATH, exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                receivedAdvertisement.complete(
+                        new ObjectMapper().readValue(body, DatasetAdvertisement.class));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        peer.start();
+        peerUrl = "http://localhost:" + peer.getAddress().getPort();
+    }
+
+    @After
+    public void afterEach() {
+        peer.stop(0);
+    }
+
+    private DatasetPeerService newDatasetPeerService(boolean isEnabled, long advertisePeriod) {
+        return new DatasetPeerService(datasetCacheService, new SimpleMeterRegistry(),
+                isEnabled, SELF, new String[]{SELF, peerUrl + "/"}, advertisePeriod);
+    }
+
+    private DatasetAdvertisement advertisementOf(String peer) {
+        return DatasetAdvertisement.builder()
+                .peer(peer)
+                .checksums(List.of(CHECKSUM))
+                .build();
+    }
+
+    /**
+     * advertise()
+     */
+
+    @Test
+    public void shouldAdvertiseCachedDatasetsToPeers() throws Exception {
+        when(datasetCacheService.isEnabled()).thenReturn(true);
+        when(datasetCacheService.getCachedChecksums()).thenReturn(List.of(KEY));
+
+        newDatasetPeerService(true, 60000).advertise();
+
+        DatasetAdvertisement advertisement = receivedAdvertisement.get(5, TimeUnit.SECONDS);
+        assertThat(advertisement.getPeer()).isEqualTo(SELF);
+        assertThat(advertisement.getChecksums()).containsExactly(KEY);
+    }
+
+    @Test
+    public void shouldNotAdvertiseWhenDisabled() throws Exception {
+        when(datasetCacheService.isEnabled()).thenReturn(true);
+
+        newDatasetPeerService(false, 60000).advertise();
+
+        Thread.sleep(500);
+        assertThat(receivedAdvertisement).isNotDone();
+    }
+
+    /**
+     * onAdvertisement() & getPeerUris()
+     */
+
+    @Test
+    public void shouldGetUrisOfPeersAdvertisingDataset() {
+        DatasetPeerService service = newDatasetPeerService(true, 60000);
+
+        assertThat(service.onAdvertisement(PEER_ADDRESS, advertisementOf(peerUrl))).isTrue();
+
+        assertThat(service.getPeerUris(CHECKSUM))
+                .containsExactly(peerUrl + DatasetPeerService.DATASETS_PATH + KEY);
+        assertThat(service.getPeerUris("0x" + "0".repeat(64))).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectAdvertisementOfUnknownPeer() {
+        DatasetPeerService service = newDatasetPeerService(true, 60000);
+
+        assertThat(service.onAdvertisement(UNKNOWN_ADDRESS, advertisementOf(peerUrl))).isFalse();
+        assertThat(service.getPeerUris(CHECKSUM)).isEmpty();
+    }
+
+    @Test
+    public void shouldRecordAdvertisementUnderCallerPeer() {
+        DatasetPeerService service = newDatasetPeerService(true, 60000);
+
+        // the caller cannot redirect downloads to another host
+        assertThat(service.onAdvertisement(PEER_ADDRESS,
+                advertisementOf("http://unknown:13100"))).isTrue();
+
+        assertThat(service.getPeerUris(CHECKSUM))
+                .containsExactly(peerUrl + DatasetPeerService.DATASETS_PATH + KEY);
+    }
+
+    @Test
+    public void shouldOnlyTellApartPeersOfCallerHost() {
+        String otherLocalPeer = "http://localhost:13200";
+        DatasetPeerService service = new DatasetPeerService(datasetCacheService,
+                new SimpleMeterRegistry(), true, SELF,
+                new String[]{SELF, peerUrl, otherLocalPeer}, 60000);
+
+        assertThat(service.onAdvertisement(PEER_ADDRESS,
+                advertisementOf("http://unknown:13100"))).isFalse();
+        assertThat(service.onAdvertisement(PEER_ADDRESS, advertisementOf(otherLocalPeer)))
+                .isTrue();
+
+        assertThat(service.getPeerUris(CHECKSUM))
+                .containsExactly(otherLocalPeer + DatasetPeerService.DATASETS_PATH + KEY);
+    }
+
+    @Test
+    public void shouldForgetExpiredAdvertisements() throws InterruptedException {
+        DatasetPeerService service = newDatasetPeerService(true, 10);
+        service.onAdvertisement(PEER_ADDRESS, advertisementOf(peerUrl));
+
+        Thread.sleep(100);
+
+        assertThat(service.getPeerUris(CHECKSUM)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotRetryPeerAfterFailedDownload() {
+        DatasetPeerService service = newDatasetPeerService(true, 60000);
+        service.onAdvertisement(PEER_ADDRESS, advertisementOf(peerUrl));
+
+        service.recordDownload(service.getPeerUris(CHECKSUM).get(0), false);
+
+        assertThat(service.getPeerUris(CHECKSUM)).isEmpty();
+    }
+
+    /**
+     * isPeer()
+     */
+
+    @Test
+    public void shouldOnlyServeConfiguredPeers() {
+        DatasetPeerService service = newDatasetPeerService(true, 60000);
+
+        assertThat(service.isPeer(PEER_ADDRESS)).isTrue();
+        assertThat(service.isPeer(UNKNOWN_ADDRESS)).isFalse();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.DockerException;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.exception.NotModifiedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ContainerRemovalServiceTests {
+
+    private static final String CONTAINER_1 = "container1";
+    private static final String CONTAINER_2 = "container2";
+    private static final int KILL_TIMEOUT = 2;
+
+    private DockerClient dockerClient;
+    private ContainerRemovalService containerRemovalService;
+
+    @Before
+    public void beforeEach() {
+        dockerClient = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        DockerTransportService dockerTransportService = mock(DockerTransportService.class);
+        when(dockerTransportService.getControlClient()).thenReturn(dockerClient);
+        containerRemovalService =
+                new ContainerRemovalService(dockerTransportService, 2, KILL_TIMEOUT);
+    }
+
+    @After
+    public void afterEach() throws InterruptedException {
+        containerRemovalService.shutdown();
+    }
+
+    @Test
+    public void shouldStopWithKillTimeoutAndRemove() {
+        assertThat(containerRemovalService.stopAndRemove(CONTAINER_1)).isTrue();
+        verify(dockerClient.stopContainerCmd(CONTAINER_1)).withTimeout(KILL_TIMEOUT);
+        verify(dockerClient.removeContainerCmd(CONTAINER_1)).withForce(true);
+    }
+
+    @Test
+    public void shouldOnlyStopContainer() {
+        assertThat(containerRemovalService.stopAsync(CONTAINER_1).join()).isTrue();
+        verify(dockerClient.stopContainerCmd(CONTAINER_1)).withTimeout(KILL_TIMEOUT);
+        verify(dockerClient, never()).removeContainerCmd(CONTAINER_1);
+    }
+
+    @Test
+    public void shouldRemoveAlreadyStoppedContainer() {
+        when(dockerClient.stopContainerCmd(CONTAINER_1).withTimeout(KILL_TIMEOUT).exec())
+                .thenThrow(new NotModifiedException("already stopped"));
+
+        assertThat(containerRemovalService.stopAndRemove(CONTAINER_1)).isTrue();
+        verify(dockerClient.removeContainerCmd(CONTAINER_1)).withForce(true);
+    }
+
+    @Test
+    public void shouldConsiderMissingContainerAsRemoved() {
+        when(dockerClient.stopContainerCmd(CONTAINER_1).withTimeout(KILL_TIMEOUT).exec())
+                .thenThrow(new NotFoundException("no such container"));
+
+        assertThat(containerRemovalService.stopAndRemove(CONTAINER_1)).isTrue();
+    }
+
+    @Test
+    public void shouldNotRemoveSinceStopFailed() {
+        when(dockerClient.stopContainerCmd(CONTAINER_1).withTimeout(KILL_TIMEOUT).exec())
+                .thenThrow(new DockerException("daemon error", 500));
+
+        assertThat(containerRemovalService.stopAndRemove(CONTAINER_1)).isFalse();
+    }
+
+    @Test
+    public void shouldStopAndRemoveAllAndReturnFailures() {
+        when(dockerClient.removeContainerCmd(CONTAINER_2).withForce(true).exec())
+                .thenThrow(new DockerException("daemon error", 500));
+
+        List<String> failures = containerRemovalService
+                .stopAndRemoveAll(List.of(CONTAINER_1, CONTAINER_2));
+        assertThat(failures).containsExactly(CONTAINER_2);
+    }
+}
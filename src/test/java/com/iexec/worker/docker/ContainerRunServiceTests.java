@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+import com.github.dockerjava.api.model.WaitResponse;
+import com.iexec.common.docker.DockerRunRequest;
+import com.iexec.common.docker.DockerRunResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ContainerRunServiceTests {
+
+    private static final String CONTAINER_NAME = "containerName";
+
+    private DockerClient controlClient;
+    private DockerClient streamingClient;
+    private ContainerRunService containerRunService;
+
+    @Before
+    public void beforeEach() {
+        controlClient = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        streamingClient = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        DockerTransportService dockerTransportService = mock(DockerTransportService.class);
+        when(dockerTransportService.getControlClient()).thenReturn(controlClient);
+        when(dockerTransportService.getStreamingClient()).thenReturn(streamingClient);
+        containerRunService = spy(new ContainerRunService(dockerTransportService));
+        doReturn("containerId").when(containerRunService).createContainer(any());
+    }
+
+    @Test
+    public void shouldStartThenWaitAndReadLogsOnStreamingClient() {
+        exitWith(0);
+        logs("stdout", "stderr");
+
+        DockerRunResponse response = containerRunService.run(getRequest(5000));
+        assertThat(response.isSuccessful()).isTrue();
+        assertThat(response.getContainerExitCode()).isZero();
+        assertThat(response.getStdout()).isEqualTo("stdout");
+        assertThat(response.getStderr()).isEqualTo("stderr");
+        verify(controlClient.startContainerCmd(CONTAINER_NAME)).exec();
+        verify(streamingClient, atLeastOnce()).waitContainerCmd(CONTAINER_NAME);
+        verify(streamingClient, atLeastOnce()).logContainerCmd(CONTAINER_NAME);
+        verify(controlClient, never()).waitContainerCmd(any());
+        verify(controlClient, never()).logContainerCmd(any());
+    }
+
+    @Test
+    public void shouldLeaveExitedContainerForRemovalService() {
+        exitWith(0);
+        logs("stdout", "");
+
+        containerRunService.run(getRequest(5000));
+        verify(controlClient, never()).removeContainerCmd(any());
+    }
+
+    @Test
+    public void shouldFailWithExitCodeOfContainer() {
+        exitWith(70);
+        logs("", "error");
+
+        DockerRunResponse response = containerRunService.run(getRequest(5000));
+        assertThat(response.isSuccessful()).isFalse();
+        assertThat(response.getContainerExitCode()).isEqualTo(70);
+        assertThat(response.getStderr()).isEqualTo("error");
+    }
+
+    @Test
+    public void shouldStopContainerReachingMaxExecutionTime() {
+        when(streamingClient.waitContainerCmd(CONTAINER_NAME).exec(any()))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        logs("stdout", "");
+
+        DockerRunResponse response = containerRunService.run(getRequest(100));
+        assertThat(response.isSuccessful()).isFalse();
+        assertThat(response.getStdout()).isEqualTo("stdout");
+        verify(controlClient.stopContainerCmd(CONTAINER_NAME)).exec();
+    }
+
+    @Test
+    public void shouldNotWaitForDetachedContainer() {
+        DockerRunResponse response = containerRunService.run(getRequest(0));
+        assertThat(response.isSuccessful()).isTrue();
+        verify(controlClient.startContainerCmd(CONTAINER_NAME)).exec();
+        verifyNoInteractions(streamingClient);
+    }
+
+    @Test
+    public void shouldNotStartSinceNotCreated() {
+        doReturn("").when(containerRunService).createContainer(any());
+
+        DockerRunResponse response = containerRunService.run(getRequest(5000));
+        assertThat(response.isSuccessful()).isFalse();
+        verifyNoInteractions(controlClient, streamingClient);
+    }
+
+    private DockerRunRequest getRequest(long maxExecutionTime) {
+        return DockerRunRequest.builder()
+                .containerName(CONTAINER_NAME)
+                .maxExecutionTime(maxExecutionTime)
+                .build();
+    }
+
+    private void exitWith(int statusCode) {
+        WaitResponse waitResponse = mock(WaitResponse.class);
+        when(waitResponse.getStatusCode()).thenReturn(statusCode);
+        when(streamingClient.waitContainerCmd(CONTAINER_NAME).exec(any()))
+                .thenAnswer(invocation -> {
+                    ResultCallback<WaitResponse> callback = invocation.getArgument(0);
+                    callback.onNext(waitResponse);
+                    callback.onComplete();
+                    return callback;
+                });
+    }
+
+    private void logs(String stdout, String stderr) {
+        when(streamingClient.logContainerCmd(CONTAINER_NAME)
+                .withStdOut(true)
+                .withStdErr(true)
+                .exec(any()))
+                .thenAnswer(invocation -> {
+                    ResultCallback<Frame> callback = invocation.getArgument(0);
+                    callback.onNext(new Frame(StreamType.STDOUT,
+                            stdout.getBytes(StandardCharsets.UTF_8)));
+                    callback.onNext(new Frame(StreamType.STDERR,
+                            stderr.getBytes(StandardCharsets.UTF_8)));
+                    callback.onComplete();
+                    return callback;
+                });
+    }
+}
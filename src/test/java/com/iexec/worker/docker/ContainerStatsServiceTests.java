@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.StatsCmd;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainerStatsServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final String CONTAINER_NAME = "containerName";
+
+    @Mock
+    private DockerClient client;
+    @Mock
+    private StatsCmd statsCmd;
+
+    private ContainerStatsService containerStatsService;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        when(client.statsCmd(CONTAINER_NAME)).thenReturn(statsCmd);
+        containerStatsService = new ContainerStatsService(true, 1000,
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void shouldKeepTaskStatsOfExitedContainerUntilRemoved() {
+        containerStatsService.startSampling(client, CHAIN_TASK_ID, CONTAINER_NAME, "0-1");
+        containerStatsService.stopSampling(CHAIN_TASK_ID, CONTAINER_NAME);
+
+        verify(statsCmd).exec(any());
+        assertThat(containerStatsService.getTaskStatsSummaries(CHAIN_TASK_ID))
+                .extracting(ContainerStatsSummary::getContainerName)
+                .containsExactly(CONTAINER_NAME);
+
+        containerStatsService.removeTaskStats(CHAIN_TASK_ID);
+        assertThat(containerStatsService.getTaskStatsSummaries(CHAIN_TASK_ID)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotSampleContainerStoppedBeforeSamplingStarted() {
+        containerStatsService.stopSampling(CHAIN_TASK_ID, CONTAINER_NAME);
+        containerStatsService.startSampling(client, CHAIN_TASK_ID, CONTAINER_NAME, null);
+
+        verify(client, never()).statsCmd(CONTAINER_NAME);
+        assertThat(containerStatsService.getTaskStatsSummaries(CHAIN_TASK_ID)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotSampleWhenDisabled() {
+        containerStatsService = new ContainerStatsService(false, 1000,
+                new SimpleMeterRegistry());
+
+        containerStatsService.startSampling(client, CHAIN_TASK_ID, CONTAINER_NAME, null);
+
+        verify(client, never()).statsCmd(CONTAINER_NAME);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+public class CpusetPlacementServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path sysfsNodeDir;
+
+    @Before
+    public void beforeEach() throws IOException {
+        sysfsNodeDir = temporaryFolder.newFolder("node").toPath();
+    }
+
+    private void createNode(int node, String cpuList) throws IOException {
+        File nodeDir = sysfsNodeDir.resolve("node" + node).toFile();
+        nodeDir.mkdirs();
+        Files.writeString(nodeDir.toPath().resolve("cpulist"), cpuList + "\n");
+    }
+
+    /**
+     * parseCpuList()
+     */
+
+    @Test
+    public void shouldParseCpuList() {
+        assertThat(CpusetPlacementService.parseCpuList("0-3,8,10-11"))
+                .containsExactly(0, 1, 2, 3, 8, 10, 11);
+    }
+
+    @Test
+    public void shouldParseEmptyCpuList() {
+        assertThat(CpusetPlacementService.parseCpuList("")).isEmpty();
+    }
+
+    /**
+     * readTopology()
+     */
+
+    @Test
+    public void shouldReadNumaTopology() throws IOException {
+        createNode(0, "0-1");
+        createNode(1, "2-3");
+        Map<Integer, List<Integer>> topology =
+                CpusetPlacementService.readTopology(sysfsNodeDir);
+        assertThat(topology).containsOnlyKeys(0, 1);
+        assertThat(topology.get(1)).containsExactly(2, 3);
+    }
+
+    @Test
+    public void shouldFallbackToSingleNodeWhenNoNumaTopology() {
+        Map<Integer, List<Integer>> topology =
+                CpusetPlacementService.readTopology(sysfsNodeDir);
+        assertThat(topology).containsOnlyKeys(0);
+        assertThat(topology.get(0))
+                .hasSize(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * acquire() & release()
+     */
+
+    @Test
+    public void shouldAcquireExclusiveCpusetOnLeastLoadedNode() throws IOException {
+        createNode(0, "0-3");
+        createNode(1, "4-7");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+
+        CpusetPlacement first = service.acquire(CHAIN_TASK_ID, "container1").get();
+        CpusetPlacement second = service.acquire(CHAIN_TASK_ID, "container2").get();
+
+        assertThat(first.getNode()).isNotEqualTo(second.getNode());
+        assertThat(first.getCpus()).doesNotContainAnyElementsOf(second.getCpus());
+        assertThat(first.getCpusetMems()).isEqualTo(String.valueOf(first.getNode()));
+    }
+
+    @Test
+    public void shouldNotSetMemsOnSingleNodeHost() throws IOException {
+        createNode(0, "0-3");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+
+        CpusetPlacement placement = service.acquire(CHAIN_TASK_ID, "container").get();
+
+        assertThat(placement.getCpusetCpus()).isEqualTo("0,1");
+        assertThat(placement.getCpusetMems()).isNull();
+    }
+
+    @Test
+    public void shouldNotAcquireWhenNoNodeHasEnoughFreeCpus() throws IOException {
+        createNode(0, "0-1");
+        createNode(1, "2-3");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+        service.acquire(CHAIN_TASK_ID, "container1");
+        service.acquire(CHAIN_TASK_ID, "container2");
+
+        assertThat(service.acquire(CHAIN_TASK_ID, "container3")).isEmpty();
+    }
+
+    @Test
+    public void shouldReuseReleasedCpus() throws IOException {
+        createNode(0, "0-1");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+        service.acquire(CHAIN_TASK_ID, "container1");
+        service.release("container1");
+
+        Optional<CpusetPlacement> placement = service.acquire(CHAIN_TASK_ID, "container2");
+        assertThat(placement).isPresent();
+        assertThat(service.getPlacement("container1")).isEmpty();
+    }
+
+    @Test
+    public void shouldNotAcquireWhenDisabled() throws IOException {
+        createNode(0, "0-3");
+        CpusetPlacementService service = new CpusetPlacementService(false, 1,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+
+        assertThat(service.acquire(CHAIN_TASK_ID, "container")).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepTaskPlacementsAfterReleaseUntilRemoved() throws IOException {
+        createNode(0, "0-3");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+        DockerClient client = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        CpusetPlacement placement = service.acquire(CHAIN_TASK_ID, "container").get();
+
+        assertThat(service.pin(client, placement)).isTrue();
+        service.release("container");
+
+        assertThat(service.getTaskPlacements(CHAIN_TASK_ID)).containsExactly(placement);
+        service.removeTaskPlacements(CHAIN_TASK_ID);
+        assertThat(service.getTaskPlacements(CHAIN_TASK_ID)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotRecordPlacementOfExitedContainer() throws IOException {
+        createNode(0, "0-3");
+        CpusetPlacementService service = new CpusetPlacementService(true, 2,
+                new SimpleMeterRegistry(), sysfsNodeDir);
+        DockerClient client = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        CpusetPlacement placement = service.acquire(CHAIN_TASK_ID, "container").get();
+        service.release("container");
+
+        assertThat(service.pin(client, placement)).isFalse();
+        assertThat(service.getTaskPlacements(CHAIN_TASK_ID)).isEmpty();
+    }
+}
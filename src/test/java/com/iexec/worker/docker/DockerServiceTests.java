@@ -16,12 +16,17 @@
 
 package com.iexec.worker.docker;
 
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.InspectImageResponse;
 import com.github.dockerjava.api.exception.DockerException;
 import com.iexec.common.docker.DockerLogs;
 import com.iexec.common.docker.DockerRunRequest;
 import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.docker.client.DockerClientInstance;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
+import com.iexec.worker.bandwidth.TransferClass;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.task.TaskCancellationService;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,6 +34,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
+import java.util.List;
 import java.util.Optional;
 
 import static com.iexec.common.docker.client.DockerClientInstance.DEFAULT_DOCKER_REGISTRY;
@@ -44,9 +50,22 @@ public class DockerServiceTests {
 
     private WorkerConfigurationService workerConfigService = mock(WorkerConfigurationService.class);
     private DockerRegistryConfiguration dockerRegistryConfiguration = mock(DockerRegistryConfiguration.class);
+    private CpusetPlacementService cpusetPlacementService = mock(CpusetPlacementService.class);
+    private ContainerStatsService containerStatsService = mock(ContainerStatsService.class);
+    private ImageIndexService imageIndexService = mock(ImageIndexService.class);
+    private DockerTransportService dockerTransportService = mock(DockerTransportService.class);
+    private ContainerRemovalService containerRemovalService = mock(ContainerRemovalService.class);
+    private ContainerRunService containerRunService = mock(ContainerRunService.class);
+    private RegistryMirrorService registryMirrorService = mock(RegistryMirrorService.class);
+    private TaskCancellationService taskCancellationService = new TaskCancellationService();
+    private BandwidthSchedulerService bandwidthSchedulerService = mock(BandwidthSchedulerService.class);
 
     @Spy
-    private DockerService dockerService = new DockerService(workerConfigService, dockerRegistryConfiguration);
+    private DockerService dockerService = new DockerService(workerConfigService,
+            dockerRegistryConfiguration, cpusetPlacementService, containerStatsService,
+            imageIndexService, dockerTransportService, containerRemovalService,
+            containerRunService, registryMirrorService, taskCancellationService,
+            bandwidthSchedulerService);
 
     @Before
     public void beforeEach() {
@@ -202,8 +221,7 @@ public class DockerServiceTests {
                         .stderr("stderr")
                         .build())
                 .build();
-        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
-        when(dockerClientInstanceMock.run(dockerRunRequest))
+        when(containerRunService.run(dockerRunRequest))
                 .thenReturn(successResponse);
 
         DockerRunResponse dockerRunResponse = dockerService.run(dockerRunRequest);
@@ -212,8 +230,9 @@ public class DockerServiceTests {
         assertThat(dockerRunResponse.getStdout()).isEqualTo("stdout");
         assertThat(dockerRunResponse.getStderr()).isEqualTo("stderr");
         verify(dockerService).addToRunningContainersRecord(containerName);
-        verify(dockerClientInstanceMock).run(dockerRunRequest);
+        verify(containerRunService).run(dockerRunRequest);
         verify(dockerService).removeFromRunningContainersRecord(containerName);
+        verify(containerRemovalService).stopAndRemoveAsync(containerName);
     }
 
     @Test
@@ -229,10 +248,74 @@ public class DockerServiceTests {
         assertThat(dockerRunResponse).isNotNull();
         assertThat(dockerRunResponse.isSuccessful()).isFalse();
         verify(dockerService).addToRunningContainersRecord(containerName);
-        verify(dockerClientInstanceMock, never()).run(dockerRunRequest);
+        verify(containerRunService, never()).run(dockerRunRequest);
         verify(dockerService, never()).removeFromRunningContainersRecord(containerName);
     }
 
+    @Test
+    public void shouldNotRunSinceTaskCancelled() {
+        String containerName = "containerName";
+        DockerRunRequest dockerRunRequest = DockerRunRequest.builder()
+                .chainTaskId("chainTaskId")
+                .containerName(containerName)
+                .maxExecutionTime(5000)
+                .build();
+        taskCancellationService.cancel("chainTaskId", "aborted");
+
+        DockerRunResponse dockerRunResponse = dockerService.run(dockerRunRequest);
+        assertThat(dockerRunResponse.isSuccessful()).isFalse();
+        verify(containerRunService, never()).run(dockerRunRequest);
+        verify(dockerService).removeFromRunningContainersRecord(containerName);
+    }
+
+    @Test
+    public void shouldStopAndRemoveContainerWhenTaskCancelledWhileRunning() {
+        String containerName = "containerName";
+        DockerRunRequest dockerRunRequest = DockerRunRequest.builder()
+                .chainTaskId("chainTaskId")
+                .containerName(containerName)
+                .maxExecutionTime(5000)
+                .build();
+        when(containerRunService.run(dockerRunRequest)).thenAnswer(invocation -> {
+            taskCancellationService.cancel("chainTaskId", "aborted");
+            return DockerRunResponse.builder().isSuccessful(false).build();
+        });
+
+        dockerService.run(dockerRunRequest);
+        verify(containerRemovalService, atLeastOnce()).stopAndRemoveAsync(containerName);
+    }
+
+    @Test
+    public void shouldNotPullImageSinceTaskCancelled() {
+        taskCancellationService.cancel("chainTaskId", "aborted");
+
+        assertThat(dockerService.pullImage("chainTaskId", "image:tag")).isFalse();
+        verify(dockerService, never()).pullImage("image:tag");
+    }
+
+    @Test
+    public void shouldChargePulledImageSizeToDownlink() throws Exception {
+        InspectImageResponse pulledImage = mock(InspectImageResponse.class);
+        when(pulledImage.getSize()).thenReturn(1000L);
+        when(bandwidthSchedulerService.isLimited(TransferClass.IMAGE_PULL)).thenReturn(true);
+        doReturn(Optional.empty(), Optional.of(pulledImage))
+                .when(dockerService).inspectImage("image:tag");
+
+        assertThat(dockerService.pullScheduled("chainTaskId", "image:tag", () -> true)).isTrue();
+        verify(bandwidthSchedulerService).acquire("chainTaskId", TransferClass.IMAGE_PULL, 0);
+        verify(bandwidthSchedulerService).charge(TransferClass.IMAGE_PULL, 1000L);
+    }
+
+    @Test
+    public void shouldNotChargeImageAlreadyPresent() {
+        InspectImageResponse localImage = mock(InspectImageResponse.class);
+        when(bandwidthSchedulerService.isLimited(TransferClass.IMAGE_PULL)).thenReturn(true);
+        doReturn(Optional.of(localImage)).when(dockerService).inspectImage("image:tag");
+
+        assertThat(dockerService.pullScheduled("chainTaskId", "image:tag", () -> true)).isTrue();
+        verify(bandwidthSchedulerService, never()).charge(any(), anyLong());
+    }
+
     @Test
     public void shouldRunThenRemoveContainerFromRecordsSinceRunFailed() {
         String containerName = "containerName";
@@ -247,8 +330,7 @@ public class DockerServiceTests {
                         .stderr("stderr")
                         .build())
                 .build();
-        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
-        when(dockerClientInstanceMock.run(dockerRunRequest))
+        when(containerRunService.run(dockerRunRequest))
                 .thenReturn(failureResponse);
 
         DockerRunResponse dockerRunResponse = dockerService.run(dockerRunRequest);
@@ -257,8 +339,9 @@ public class DockerServiceTests {
         assertThat(dockerRunResponse.getStdout()).isEqualTo("stdout");
         assertThat(dockerRunResponse.getStderr()).isEqualTo("stderr");
         verify(dockerService).addToRunningContainersRecord(containerName);
-        verify(dockerClientInstanceMock).run(dockerRunRequest);
+        verify(containerRunService).run(dockerRunRequest);
         verify(dockerService).removeFromRunningContainersRecord(containerName);
+        verify(containerRemovalService).stopAndRemoveAsync(containerName);
     }
 
     @Test
@@ -271,16 +354,40 @@ public class DockerServiceTests {
         DockerRunResponse successResponse = DockerRunResponse.builder()
                 .isSuccessful(true)
                 .build();
-        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
-        when(dockerClientInstanceMock.run(dockerRunRequest))
+        when(containerRunService.run(dockerRunRequest))
                 .thenReturn(successResponse);
 
         DockerRunResponse dockerRunResponse = dockerService.run(dockerRunRequest);
         assertThat(dockerRunResponse).isNotNull();
         assertThat(dockerRunResponse.isSuccessful()).isTrue();
         verify(dockerService).addToRunningContainersRecord(containerName);
-        verify(dockerClientInstanceMock).run(dockerRunRequest);
+        verify(containerRunService).run(dockerRunRequest);
         verify(dockerService, never()).removeFromRunningContainersRecord(containerName);
+        verify(containerRemovalService, never()).stopAndRemoveAsync(containerName);
+    }
+
+    @Test
+    public void shouldReleaseCpusetAndStopSamplingAfterComputeContainerRun() {
+        String chainTaskId = "chainTaskId";
+        String containerName = "containerName";
+        DockerRunRequest dockerRunRequest = DockerRunRequest.builder()
+                .chainTaskId(chainTaskId)
+                .containerName(containerName)
+                .maxExecutionTime(5000)
+                .build();
+        CpusetPlacement placement = CpusetPlacement.builder()
+                .chainTaskId(chainTaskId)
+                .containerName(containerName)
+                .build();
+        when(containerRunService.run(dockerRunRequest))
+                .thenReturn(DockerRunResponse.builder().isSuccessful(true).build());
+        when(cpusetPlacementService.acquire(chainTaskId, containerName))
+                .thenReturn(Optional.of(placement));
+
+        dockerService.run(dockerRunRequest);
+        verify(cpusetPlacementService).acquire(chainTaskId, containerName);
+        verify(cpusetPlacementService).release(containerName);
+        verify(containerStatsService).stopSampling(chainTaskId, containerName);
     }
 
     /**
@@ -315,6 +422,105 @@ public class DockerServiceTests {
                 .removeFromRunningContainersRecord(containerName)).isFalse();
     }
 
+    /**
+     * pullImage
+     */
+
+    @Test
+    public void shouldSkipRegistrySinceImageAlreadyResolvedAndPresent() {
+        String imageName = "iexechub/app:1.0.0";
+        ImageIndexEntry entry = ImageIndexEntry.builder()
+                .imageName(imageName)
+                .imageId("sha256:id")
+                .build();
+        InspectImageResponse localImage = mock(InspectImageResponse.class);
+        when(localImage.getId()).thenReturn("sha256:id");
+        when(imageIndexService.getFreshEntry(imageName)).thenReturn(Optional.of(entry));
+        doReturn(Optional.of(localImage)).when(dockerService).inspectImage(imageName);
+
+        assertThat(dockerService.pullImage(imageName)).isTrue();
+        verify(imageIndexService).markUsed(imageName);
+        verify(dockerService, never()).getClient(imageName);
+    }
+
+    @Test
+    public void shouldPullAndIndexImageSinceLocalImageChanged() {
+        String imageName = "iexechub/app:1.0.0";
+        ImageIndexEntry entry = ImageIndexEntry.builder()
+                .imageName(imageName)
+                .imageId("sha256:old")
+                .build();
+        InspectImageResponse localImage = mock(InspectImageResponse.class);
+        when(localImage.getId()).thenReturn("sha256:new");
+        when(imageIndexService.getFreshEntry(imageName)).thenReturn(Optional.of(entry));
+        when(imageIndexService.isEnabled()).thenReturn(true);
+        doReturn(Optional.of(localImage)).when(dockerService).inspectImage(imageName);
+        doReturn(dockerClientInstanceMock).when(dockerService).getClient(imageName);
+        when(dockerClientInstanceMock.pullImage(imageName)).thenReturn(true);
+
+        assertThat(dockerService.pullImage(imageName)).isTrue();
+        verify(imageIndexService).remove(imageName);
+        verify(dockerClientInstanceMock).pullImage(imageName);
+        verify(imageIndexService).record(argThat(indexed ->
+                indexed.getImageId().equals("sha256:new")));
+    }
+
+    @Test
+    public void shouldPullFromMirrorThenTagWithOriginName() {
+        String imageName = "iexechub/app:1.0.0";
+        RegistryMirror mirror = RegistryMirror.builder()
+                .registry(DEFAULT_DOCKER_REGISTRY)
+                .address("http://mirror.local:5000")
+                .build();
+        DockerClient dockerClient = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        InspectImageResponse localImage = mock(InspectImageResponse.class);
+        when(localImage.getSize()).thenReturn(1000L);
+        when(registryMirrorService.getFastestMirror(DEFAULT_DOCKER_REGISTRY))
+                .thenReturn(Optional.of(mirror));
+        when(dockerTransportService.getControlClient()).thenReturn(dockerClient);
+        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
+        when(dockerClientInstanceMock.pullImage("mirror.local:5000/iexechub/app:1.0.0"))
+                .thenReturn(true);
+        doReturn(Optional.of(localImage)).when(dockerService).inspectImage(imageName);
+
+        assertThat(dockerService.pullImage(imageName)).isTrue();
+        verify(dockerClient).tagImageCmd("mirror.local:5000/iexechub/app:1.0.0",
+                "iexechub/app", "1.0.0");
+        verify(registryMirrorService).recordPull(eq(mirror), eq(1000L), anyLong());
+        verify(dockerService, never()).getClient(imageName);
+    }
+
+    @Test
+    public void shouldFallbackToOriginRegistrySinceMirrorPullFailed() {
+        String imageName = "iexechub/app:1.0.0";
+        RegistryMirror mirror = RegistryMirror.builder()
+                .registry(DEFAULT_DOCKER_REGISTRY)
+                .address("http://mirror.local:5000")
+                .build();
+        when(registryMirrorService.getFastestMirror(DEFAULT_DOCKER_REGISTRY))
+                .thenReturn(Optional.of(mirror));
+        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
+        doReturn(dockerClientInstanceMock).when(dockerService).getClient(imageName);
+        when(dockerClientInstanceMock.pullImage("mirror.local:5000/iexechub/app:1.0.0"))
+                .thenReturn(false);
+        when(dockerClientInstanceMock.pullImage(imageName)).thenReturn(true);
+
+        assertThat(dockerService.pullImage(imageName)).isTrue();
+        verify(registryMirrorService).recordFailure(mirror);
+        verify(dockerClientInstanceMock).pullImage(imageName);
+    }
+
+    @Test
+    public void shouldNotIndexImageSincePullFailed() {
+        String imageName = "iexechub/app:1.0.0";
+        when(imageIndexService.getFreshEntry(imageName)).thenReturn(Optional.empty());
+        doReturn(dockerClientInstanceMock).when(dockerService).getClient(imageName);
+        when(dockerClientInstanceMock.pullImage(imageName)).thenReturn(false);
+
+        assertThat(dockerService.pullImage(imageName)).isFalse();
+        verify(imageIndexService, never()).record(any());
+    }
+
     /**
      * stopRunningContainers
      */
@@ -326,20 +532,52 @@ public class DockerServiceTests {
         dockerService.addToRunningContainersRecord(container1);
         dockerService.addToRunningContainersRecord(container2);
 
-        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
-        when(dockerClientInstanceMock.stopContainer(container1)).thenReturn(true);
-        when(dockerClientInstanceMock.stopContainer(container2)).thenReturn(true);
+        when(containerRemovalService.stopAndRemoveAll(anyList())).thenReturn(List.of());
+
+        dockerService.stopRunningContainers();
+        verify(containerRemovalService, times(1)).stopAndRemoveAll(argThat(containers ->
+                containers.size() == 2
+                        && containers.containsAll(List.of(container1, container2))));
+        verify(dockerService).removeFromRunningContainersRecord(container1);
+        verify(dockerService).removeFromRunningContainersRecord(container2);
+    }
+
+    @Test
+    public void shouldNotRemoveUnstoppedContainerFromRecord() {
+        String container1 = "container1";
+        String container2 = "container2";
+        dockerService.addToRunningContainersRecord(container1);
+        dockerService.addToRunningContainersRecord(container2);
+        when(containerRemovalService.stopAndRemoveAll(anyList()))
+                .thenReturn(List.of(container2));
 
         dockerService.stopRunningContainers();
-        verify(dockerClientInstanceMock, times(1)).stopContainer(container1);
-        verify(dockerClientInstanceMock, times(1)).stopContainer(container2);
+        verify(dockerService).removeFromRunningContainersRecord(container1);
+        verify(dockerService, never()).removeFromRunningContainersRecord(container2);
     }
 
     @Test
     public void shouldNotStopRunningContainers() {
         // no running container
-        doReturn(dockerClientInstanceMock).when(dockerService).getClient();
         dockerService.stopRunningContainers();
-        verify(dockerClientInstanceMock, never()).stopContainer(anyString());
+        verify(containerRemovalService, never()).stopAndRemoveAll(anyList());
+    }
+
+    @Test
+    public void shouldStopRunningContainersOfTask() {
+        String chainTaskId = "0xabc";
+        String appContainer = "worker-" + chainTaskId;
+        String postComputeContainer = "worker-" + chainTaskId + "-tee-post-compute";
+        String otherContainer = "worker-0xdef";
+        dockerService.addToRunningContainersRecord(appContainer);
+        dockerService.addToRunningContainersRecord(postComputeContainer);
+        dockerService.addToRunningContainersRecord(otherContainer);
+        when(containerRemovalService.stopAndRemoveAll(anyList())).thenReturn(List.of());
+
+        dockerService.stopRunningContainers(chainTaskId);
+        verify(containerRemovalService).stopAndRemoveAll(argThat(containers ->
+                containers.size() == 2
+                        && containers.containsAll(List.of(appContainer, postComputeContainer))));
+        verify(dockerService, never()).removeFromRunningContainersRecord(otherContainer);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ImageIndexServiceTests {
+
+    private static final String IMAGE_NAME = "iexechub/app:1.0.0";
+    private static final String IMAGE_ID = "sha256:id";
+    private static final long TTL = 60_000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path indexFile;
+
+    @Before
+    public void beforeEach() throws IOException {
+        indexFile = temporaryFolder.newFolder().toPath()
+                .resolve(ImageIndexService.IMAGE_INDEX_FILENAME);
+    }
+
+    private ImageIndexEntry getEntry(String imageName) {
+        return ImageIndexEntry.builder()
+                .imageName(imageName)
+                .imageId(IMAGE_ID)
+                .size(1024)
+                .build();
+    }
+
+    @Test
+    public void shouldGetRecordedEntry() {
+        ImageIndexService service = new ImageIndexService(true, TTL, indexFile);
+        service.record(getEntry(IMAGE_NAME));
+
+        assertThat(service.getFreshEntry(IMAGE_NAME)).isPresent();
+        assertThat(service.getFreshEntry(IMAGE_NAME).get().getImageId())
+                .isEqualTo(IMAGE_ID);
+    }
+
+    @Test
+    public void shouldReloadPersistedIndex() {
+        new ImageIndexService(true, TTL, indexFile).record(getEntry(IMAGE_NAME));
+
+        ImageIndexService reloaded = new ImageIndexService(true, TTL, indexFile);
+        assertThat(reloaded.getFreshEntry(IMAGE_NAME)).isPresent();
+        assertThat(reloaded.getFreshEntry(IMAGE_NAME).get().getSize()).isEqualTo(1024);
+    }
+
+    @Test
+    public void shouldNotGetEntryOfMutableTagSinceExpired() throws InterruptedException {
+        ImageIndexService service = new ImageIndexService(true, 1, indexFile);
+        service.record(getEntry(IMAGE_NAME));
+        Thread.sleep(10);
+
+        assertThat(service.getFreshEntry(IMAGE_NAME)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotGetEntryOfMutableTagSinceNoTtl() {
+        ImageIndexService service = new ImageIndexService(true, 0, indexFile);
+        service.record(getEntry(IMAGE_NAME));
+
+        assertThat(service.getFreshEntry(IMAGE_NAME)).isEmpty();
+    }
+
+    @Test
+    public void shouldGetEntryPinnedByDigestWithoutTtl() {
+        String imageName = "iexechub/app@sha256:abcdef";
+        ImageIndexService service = new ImageIndexService(true, 0, indexFile);
+        service.record(getEntry(imageName));
+
+        assertThat(service.getFreshEntry(imageName)).isPresent();
+    }
+
+    @Test
+    public void shouldGetEntryPinnedByDigestEvenIfTtlIsOver() throws InterruptedException {
+        String imageName = "iexechub/app@sha256:abcdef";
+        ImageIndexService service = new ImageIndexService(true, 1, indexFile);
+        service.record(getEntry(imageName));
+        Thread.sleep(10);
+
+        assertThat(service.getFreshEntry(imageName)).isPresent();
+    }
+
+    @Test
+    public void shouldNotGetRemovedEntry() {
+        ImageIndexService service = new ImageIndexService(true, TTL, indexFile);
+        service.record(getEntry(IMAGE_NAME));
+        service.remove(IMAGE_NAME);
+
+        assertThat(service.getFreshEntry(IMAGE_NAME)).isEmpty();
+        assertThat(new ImageIndexService(true, TTL, indexFile).getFreshEntry(IMAGE_NAME))
+                .isEmpty();
+    }
+
+    @Test
+    public void shouldNotIndexWhenDisabled() {
+        ImageIndexService service = new ImageIndexService(false, 0, indexFile);
+        service.record(getEntry(IMAGE_NAME));
+
+        assertThat(service.getFreshEntry(IMAGE_NAME)).isEmpty();
+        assertThat(indexFile.toFile()).doesNotExist();
+    }
+}
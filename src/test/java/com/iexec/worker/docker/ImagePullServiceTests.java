@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.iexec.common.docker.client.DockerClientInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ImagePullServiceTests {
+
+    private static final String IMAGE_1 = "iexechub/image1:1.0.0";
+    private static final String IMAGE_2 = "iexechub/image2:1.0.0";
+
+    @Mock
+    private DockerService dockerService;
+    @Mock
+    private DockerClientInstance dockerClientInstance;
+
+    private ImagePullService imagePullService;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        when(dockerService.pullScheduled(isNull(), anyString(), any()))
+                .thenAnswer(invocation -> invocation.<BooleanSupplier>getArgument(2).getAsBoolean());
+        imagePullService = new ImagePullService(dockerService, 2);
+    }
+
+    @After
+    public void afterEach() {
+        imagePullService.shutdown();
+    }
+
+    @Test
+    public void shouldPullWithoutTaskBandwidthPriority() {
+        when(dockerService.pullImage(IMAGE_1)).thenReturn(true);
+
+        assertThat(imagePullService.await(imagePullService.pullAsync(IMAGE_1))).isTrue();
+        verify(dockerService).pullScheduled(isNull(), eq(IMAGE_1), any());
+    }
+
+    @Test
+    public void shouldPullAllImages() {
+        when(dockerService.pullImage(IMAGE_1)).thenReturn(true);
+        when(dockerService.pullImage(IMAGE_2)).thenReturn(true);
+
+        assertThat(imagePullService.pullAll(List.of(IMAGE_1, IMAGE_2))).isTrue();
+        verify(dockerService).pullImage(IMAGE_1);
+        verify(dockerService).pullImage(IMAGE_2);
+    }
+
+    @Test
+    public void shouldNotPullAllImagesSinceOnePullFailed() {
+        when(dockerService.pullImage(IMAGE_1)).thenReturn(true);
+        when(dockerService.pullImage(IMAGE_2)).thenReturn(false);
+
+        assertThat(imagePullService.pullAll(List.of(IMAGE_1, IMAGE_2))).isFalse();
+    }
+
+    @Test
+    public void shouldShareInProgressPull() throws InterruptedException {
+        CountDownLatch pullStarted = new CountDownLatch(1);
+        CountDownLatch releasePull = new CountDownLatch(1);
+        when(dockerService.pullImage(IMAGE_1)).thenAnswer(invocation -> {
+            pullStarted.countDown();
+            releasePull.await();
+            return true;
+        });
+
+        CompletableFuture<Boolean> first = imagePullService.pullAsync(IMAGE_1);
+        pullStarted.await();
+        CompletableFuture<Boolean> second = imagePullService.pullAsync(IMAGE_1);
+        releasePull.countDown();
+
+        assertThat(second).isSameAs(first);
+        assertThat(imagePullService.await(second)).isTrue();
+        verify(dockerService, times(1)).pullImage(IMAGE_1);
+    }
+
+    @Test
+    public void shouldPullWithProvidedClient() {
+        when(dockerClientInstance.pullImage(IMAGE_1)).thenReturn(true);
+
+        assertThat(imagePullService.await(
+                imagePullService.pullAsync(IMAGE_1, () -> dockerClientInstance))).isTrue();
+        verify(dockerService, never()).pullImage(IMAGE_1);
+    }
+
+    @Test
+    public void shouldNotPullSinceClientProviderFailed() {
+        CompletableFuture<Boolean> pull = imagePullService.pullAsync(IMAGE_1, () -> {
+            throw new Exception("authentication failed");
+        });
+
+        assertThat(imagePullService.await(pull)).isFalse();
+    }
+}
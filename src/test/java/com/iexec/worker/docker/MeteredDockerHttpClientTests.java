@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import com.github.dockerjava.transport.DockerHttpClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class MeteredDockerHttpClientTests {
+
+    @Mock
+    private DockerHttpClient delegate;
+    @Mock
+    private DockerHttpClient.Request request;
+    @Mock
+    private DockerHttpClient.Response response;
+
+    private MeteredDockerHttpClient httpClient;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        httpClient = new MeteredDockerHttpClient(delegate);
+    }
+
+    @Test
+    public void shouldCountRequestInFlightUntilResponseIsClosed() throws Exception {
+        when(delegate.execute(request)).thenReturn(response);
+
+        DockerHttpClient.Response first = httpClient.execute(request);
+        DockerHttpClient.Response second = httpClient.execute(request);
+        assertThat(httpClient.getInFlightRequests()).isEqualTo(2);
+
+        first.close();
+        first.close(); // closing twice is counted once
+        assertThat(httpClient.getInFlightRequests()).isEqualTo(1);
+        second.close();
+        assertThat(httpClient.getInFlightRequests()).isZero();
+        verify(response, times(3)).close();
+    }
+
+    @Test
+    public void shouldNotCountFailedRequest() {
+        when(delegate.execute(any())).thenThrow(new RuntimeException("connection refused"));
+
+        assertThrows(RuntimeException.class, () -> httpClient.execute(request));
+        assertThat(httpClient.getInFlightRequests()).isZero();
+    }
+}
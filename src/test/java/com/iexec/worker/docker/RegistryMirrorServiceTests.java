@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.docker;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.iexec.common.docker.client.DockerClientInstance.DEFAULT_DOCKER_REGISTRY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class RegistryMirrorServiceTests {
+
+    private static final RegistryMirror MIRROR_1 = RegistryMirror.builder()
+            .registry(DEFAULT_DOCKER_REGISTRY)
+            .address("http://mirror1.local:5000")
+            .build();
+    private static final RegistryMirror MIRROR_2 = RegistryMirror.builder()
+            .registry(DEFAULT_DOCKER_REGISTRY)
+            .address("mirror2.local")
+            .build();
+
+    private RegistryMirrorService getService(RegistryMirror... mirrors) {
+        RegistryMirrorConfiguration config = new RegistryMirrorConfiguration();
+        config.setMirrors(List.of(mirrors));
+        return new RegistryMirrorService(config, new SimpleMeterRegistry());
+    }
+
+    /**
+     * RegistryMirror
+     */
+
+    @Test
+    public void shouldGetMirrorHostAndHealthCheckUrl() {
+        assertThat(MIRROR_1.getHost()).isEqualTo("mirror1.local:5000");
+        assertThat(MIRROR_1.getHealthCheckUrl()).isEqualTo("http://mirror1.local:5000/v2/");
+        assertThat(MIRROR_2.getHealthCheckUrl()).isEqualTo("https://mirror2.local/v2/");
+    }
+
+    /**
+     * getMirrorImageName()
+     */
+
+    @Test
+    public void shouldGetMirrorImageNameOfOfficialImage() {
+        assertThat(RegistryMirrorService.getMirrorImageName("alpine",
+                DEFAULT_DOCKER_REGISTRY, MIRROR_1))
+                .contains("mirror1.local:5000/library/alpine:latest");
+    }
+
+    @Test
+    public void shouldGetMirrorImageNameOfCustomRegistryImage() {
+        RegistryMirror mirror = RegistryMirror.builder()
+                .registry("registry.xyz:5050")
+                .address("mirror.local")
+                .build();
+        assertThat(RegistryMirrorService.getMirrorImageName("registry.xyz:5050/user/app:1.0.0",
+                "registry.xyz:5050", mirror))
+                .contains("mirror.local/user/app:1.0.0");
+    }
+
+    @Test
+    public void shouldNotGetMirrorImageNameOfImagePinnedByDigest() {
+        assertThat(RegistryMirrorService.getMirrorImageName("user/app@sha256:abcdef",
+                DEFAULT_DOCKER_REGISTRY, MIRROR_1))
+                .isEmpty();
+    }
+
+    /**
+     * getFastestMirror()
+     */
+
+    @Test
+    public void shouldGetFastestMirror() {
+        RegistryMirrorService service = getService(MIRROR_1, MIRROR_2);
+        service.recordPull(MIRROR_1, 1000, 1000);
+        service.recordPull(MIRROR_2, 1000, 100);
+
+        assertThat(service.getFastestMirror(DEFAULT_DOCKER_REGISTRY)).contains(MIRROR_2);
+    }
+
+    @Test
+    public void shouldTryUnusedMirrorFirst() {
+        RegistryMirrorService service = getService(MIRROR_1, MIRROR_2);
+        service.recordPull(MIRROR_1, 1000, 1);
+
+        assertThat(service.getFastestMirror(DEFAULT_DOCKER_REGISTRY)).contains(MIRROR_2);
+    }
+
+    @Test
+    public void shouldNotGetMirrorOfOtherRegistry() {
+        RegistryMirrorService service = getService(MIRROR_1);
+
+        assertThat(service.getFastestMirror("registry.xyz")).isEmpty();
+    }
+
+    @Test
+    public void shouldNotGetUnhealthyMirror() {
+        RegistryMirrorService service = spy(getService(MIRROR_1, MIRROR_2));
+        doReturn(false).when(service).isReachable(MIRROR_1);
+        doReturn(false).when(service).isReachable(MIRROR_2);
+
+        service.checkMirrorsHealth();
+        assertThat(service.getFastestMirror(DEFAULT_DOCKER_REGISTRY)).isEmpty();
+        verify(service, times(2)).isReachable(any());
+    }
+}
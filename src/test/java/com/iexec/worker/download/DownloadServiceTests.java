@@ -0,0 +1,567 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import com.iexec.common.utils.HashUtils;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
+import com.iexec.worker.bandwidth.TransferClass;
+import com.iexec.worker.task.CancellationToken;
+import com.iexec.worker.task.TaskCancellationService;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class DownloadServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final byte[] CONTENT = "file content".getBytes();
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    // 4 segments, the last one being partial
+    private static final byte[] LARGE_CONTENT = new byte[3 * SEGMENT_SIZE + 12345];
+    private static final String ETAG = "\"v1\"";
+    private static final String CID = "QmYwAPJzv5CZsnA625s3Xf2nemtYgPpHdWEz79ojWnPbdG";
+    // streamed in a single response since smaller than a segment
+    private static final byte[] MEDIUM_CONTENT = new byte[SEGMENT_SIZE / 2];
+    private static final byte[] CSV_CONTENT = "id,value\n1,abc\n".repeat(10000).getBytes();
+
+    static {
+        new Random(42).nextBytes(LARGE_CONTENT);
+        new Random(43).nextBytes(MEDIUM_CONTENT);
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final TaskCancellationService taskCancellationService = new TaskCancellationService();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BandwidthSchedulerService bandwidthSchedulerService =
+            mock(BandwidthSchedulerService.class);
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private final List<String> requestedRanges = new CopyOnWriteArrayList<>();
+    private final List<String> ifRanges = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failingRangeRequests = new AtomicInteger();
+    private final AtomicInteger stallingRequests = new AtomicInteger();
+    private final List<String> acceptedEncodings = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private String baseUrl;
+    private DownloadService downloadService;
+
+    @Before
+    public void beforeEach() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/file", exchange -> {
+            int concurrent = concurrentRequests.incrementAndGet();
+            maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+            try {
+                Thread.sleep(50);
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(CONTENT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentRequests.decrementAndGet();
+            }
+        });
+        server.createContext("/missing", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.createContext("/slow", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                for (int i = 0; i < 100; i++) {
+                    body.write(CONTENT);
+                    body.flush();
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException | IOException e) {
+                // client went away
+            }
+        });
+        server.createContext("/stalling-once", exchange -> {
+            if (stallingRequests.incrementAndGet() > 1) {
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(CONTENT);
+                }
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(CONTENT);
+                body.flush();
+                Thread.sleep(10000);
+            } catch (InterruptedException | IOException e) {
+                // client went away
+            }
+        });
+        server.createContext("/stalling-ranged", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                // half of the file is sent, then the stream stalls
+                exchange.sendResponseHeaders(200, MEDIUM_CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(MEDIUM_CONTENT, 0, MEDIUM_CONTENT.length / 2);
+                    body.flush();
+                    Thread.sleep(10000);
+                } catch (InterruptedException | IOException e) {
+                    // client went away
+                }
+                return;
+            }
+            requestedRanges.add(range);
+            ifRanges.add(String.valueOf(exchange.getRequestHeaders().getFirst("If-Range")));
+            int first = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-"
+                    + (MEDIUM_CONTENT.length - 1) + "/" + MEDIUM_CONTENT.length);
+            exchange.sendResponseHeaders(206, MEDIUM_CONTENT.length - first);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(MEDIUM_CONTENT, first, MEDIUM_CONTENT.length - first);
+            }
+        });
+        server.createContext("/ranged", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                exchange.sendResponseHeaders(200, LARGE_CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(LARGE_CONTENT);
+                } catch (IOException e) {
+                    // client only reads headers
+                }
+                return;
+            }
+            requestedRanges.add(range);
+            if (failingRangeRequests.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + first + "-" + last + "/" + LARGE_CONTENT.length);
+            exchange.sendResponseHeaders(206, last - first + 1L);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(LARGE_CONTENT, first, last - first + 1);
+            }
+        });
+        server.createContext("/large", exchange -> {
+            // no range support, the file is streamed in one response
+            exchange.sendResponseHeaders(200, LARGE_CONTENT.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(LARGE_CONTENT);
+            }
+        });
+        server.createContext("/csv", exchange -> {
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            acceptedEncodings.add(String.valueOf(acceptEncoding));
+            if (acceptEncoding == null) {
+                exchange.sendResponseHeaders(200, CSV_CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(CSV_CONTENT);
+                }
+                return;
+            }
+            boolean isDeflate = exchange.getRequestURI().getQuery() != null;
+            exchange.getResponseHeaders().add("Content-Encoding", isDeflate ? "deflate" : "gzip");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = isDeflate
+                    ? new DeflaterOutputStream(exchange.getResponseBody())
+                    : new GZIPOutputStream(exchange.getResponseBody())) {
+                body.write(CSV_CONTENT);
+            }
+        });
+        server.createContext("/ipfs/" + CID, exchange -> {
+            exchange.sendResponseHeaders(200, CONTENT.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(CONTENT);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        downloadService = newDownloadService(new String[0]);
+    }
+
+    private DownloadService newDownloadService(String[] ipfsGateways) {
+        return newDownloadService(ipfsGateways, true);
+    }
+
+    private DownloadService newDownloadService(String[] ipfsGateways,
+                                               boolean isCompressionEnabled) {
+        return new DownloadService(taskCancellationService,
+                new IpfsGatewayService(ipfsGateways, 2, meterRegistry),
+                bandwidthSchedulerService,
+                meterRegistry, 8, 4, 2, 5000, 1, 4, 1000, 1, isCompressionEnabled);
+    }
+
+    @After
+    public void afterEach() {
+        server.stop(0);
+        downloadService.shutdown();
+    }
+
+    @Test
+    public void shouldDownloadFile() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("dir/file");
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/file", target)).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void shouldHashFileWhileDownloading() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/file", target);
+
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(meterRegistry.summary("iexec.worker.download.sha256.throughput").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotHashMissingFile() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        assertThat(downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/missing", target))
+                .isEmpty();
+        assertThat(target).doesNotExist();
+    }
+
+    @Test
+    public void shouldNotDownloadMissingFile() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/missing", target)).isFalse();
+        assertThat(target).doesNotExist();
+    }
+
+    @Test
+    public void shouldNotDownloadFileOfCancelledTask() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/file", target)).isFalse();
+        assertThat(target).doesNotExist();
+    }
+
+    @Test
+    public void shouldDownloadAllFilesWithBoundedConcurrencyPerHost() throws IOException {
+        Map<Path, String> files = new LinkedHashMap<>();
+        for (int i = 0; i < 8; i++) {
+            files.put(temporaryFolder.getRoot().toPath().resolve("file" + i), baseUrl + "/file?" + i);
+        }
+
+        assertThat(downloadService.downloadAll(CHAIN_TASK_ID, files)).isTrue();
+        for (Path file : files.keySet()) {
+            assertThat(Files.readAllBytes(file)).isEqualTo(CONTENT);
+        }
+        assertThat(maxConcurrentRequests.get()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void shouldStopOtherDownloadsOnFirstFailure() {
+        Map<Path, String> files = new LinkedHashMap<>();
+        Path slowFile = temporaryFolder.getRoot().toPath().resolve("slow");
+        files.put(slowFile, baseUrl + "/slow");
+        files.put(temporaryFolder.getRoot().toPath().resolve("missing"), baseUrl + "/missing");
+        long start = System.currentTimeMillis();
+
+        assertThat(downloadService.downloadAll(CHAIN_TASK_ID, files)).isFalse();
+        // slow file would take 10s to download
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+        assertThat(slowFile).doesNotExist();
+    }
+
+    @Test
+    public void shouldRetryStalledDownload() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        DownloadReport report = new DownloadReport();
+
+        assertThat(downloadService.downloadAll(CHAIN_TASK_ID,
+                Map.of(target, baseUrl + "/stalling-once"), report)).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+        assertThat(stallingRequests.get()).isEqualTo(2);
+        assertThat(meterRegistry.counter("iexec.worker.download.stalls").count()).isEqualTo(1);
+        assertThat(report.isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldResumeStalledSingleStreamFromWrittenBytes() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID,
+                baseUrl + "/stalling-ranged", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(MEDIUM_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(requestedRanges).hasSize(1);
+        assertThat(requestedRanges.get(0)).startsWith("bytes=").endsWith("-")
+                .isNotEqualTo("bytes=0-");
+        assertThat(ifRanges).containsExactly(ETAG);
+        assertThat(meterRegistry.counter("iexec.worker.download.stalls").count()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReportStalledDownload() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        DownloadReport report = new DownloadReport();
+
+        // slow file sends a few bytes per second
+        assertThat(downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/slow", target,
+                report)).isEmpty();
+        assertThat(target).doesNotExist();
+        assertThat(meterRegistry.counter("iexec.worker.download.stalls").count()).isEqualTo(3);
+        assertThat(report.isStalled()).isTrue();
+        // a new download attempt of the same task starts clean
+        assertThat(new DownloadReport().isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldForgetStallOnceFileIsDownloadedWithinAttempt() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        DownloadReport report = new DownloadReport();
+        report.onStalled(baseUrl + "/file");
+
+        assertThat(downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/file", target,
+                report)).isNotEmpty();
+        assertThat(report.isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldDecodeGzipDownloadBeforeHashing() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file.csv");
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/csv", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(CSV_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(acceptedEncodings).containsExactly("gzip, deflate");
+        assertThat(meterRegistry.counter("iexec.worker.download.compression.saved").count())
+                .isPositive();
+    }
+
+    @Test
+    public void shouldDecodeDeflateDownload() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file.csv");
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/csv?deflate", target))
+                .isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(CSV_CONTENT);
+    }
+
+    @Test
+    public void shouldNotNegotiateCompressionWhenDisabled() throws IOException {
+        DownloadService uncompressedDownloadService = newDownloadService(new String[0], false);
+        Path target = temporaryFolder.getRoot().toPath().resolve("file.csv");
+
+        try {
+            assertThat(uncompressedDownloadService.download(CHAIN_TASK_ID,
+                    baseUrl + "/csv", target)).isTrue();
+        } finally {
+            uncompressedDownloadService.shutdown();
+        }
+        assertThat(Files.readAllBytes(target)).isEqualTo(CSV_CONTENT);
+        assertThat(acceptedEncodings).containsExactly("null");
+        assertThat(meterRegistry.counter("iexec.worker.download.compression.saved").count())
+                .isZero();
+    }
+
+    @Test
+    public void shouldStreamLargeFileToDisk() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/large", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(requestedRanges).isEmpty();
+    }
+
+    @Test
+    public void shouldDownloadLargeFileInSegments() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/ranged", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(requestedRanges).hasSize(4);
+        assertThat(DownloadService.getPartFile(target)).doesNotExist();
+        assertThat(DownloadService.getProgressFile(target)).doesNotExist();
+    }
+
+    @Test
+    public void shouldTakeBandwidthForDownloadedBytes() throws InterruptedException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/ranged", target)).isTrue();
+        verify(bandwidthSchedulerService, atLeastOnce())
+                .acquire(eq(List.of(CHAIN_TASK_ID)), eq(TransferClass.DOWNLOAD), anyLong());
+    }
+
+    @Test
+    public void shouldNotStopSharedDownloadWhenOneOfItsTasksIsCancelled() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        String checksum = downloadService.downloadAndHash(new CancellationToken(CHAIN_TASK_ID),
+                List.of(CHAIN_TASK_ID, "otherChainTaskId"), baseUrl + "/ranged", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+    }
+
+    @Test
+    public void shouldResumeSegmentedDownload() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        Files.write(DownloadService.getPartFile(target),
+                Arrays.copyOfRange(LARGE_CONTENT, 0, SEGMENT_SIZE));
+        DownloadProgress progress = DownloadProgress.create(DownloadService.getProgressFile(target),
+                LARGE_CONTENT.length, ETAG, SEGMENT_SIZE);
+        progress.addWritten(0, SEGMENT_SIZE);
+        progress.save();
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/ranged", target)).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(requestedRanges).hasSize(3)
+                .noneMatch(range -> range.startsWith("bytes=0-"));
+    }
+
+    @Test
+    public void shouldHashResumedSegmentedDownload() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        Files.write(DownloadService.getPartFile(target),
+                Arrays.copyOfRange(LARGE_CONTENT, 0, 2 * SEGMENT_SIZE));
+        DownloadProgress progress = DownloadProgress.create(DownloadService.getProgressFile(target),
+                LARGE_CONTENT.length, ETAG, SEGMENT_SIZE);
+        progress.addWritten(1, SEGMENT_SIZE);
+        progress.save();
+
+        String checksum = downloadService.downloadAndHash(CHAIN_TASK_ID, baseUrl + "/ranged", target);
+
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(checksum).isEqualTo(HashUtils.sha256(target.toFile()));
+        assertThat(requestedRanges).hasSize(3);
+    }
+
+    @Test
+    public void shouldRestartSegmentedDownloadSinceRemoteFileChanged() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        Files.write(DownloadService.getPartFile(target), new byte[SEGMENT_SIZE]);
+        DownloadProgress progress = DownloadProgress.create(DownloadService.getProgressFile(target),
+                LARGE_CONTENT.length, "\"v0\"", SEGMENT_SIZE);
+        progress.addWritten(0, SEGMENT_SIZE);
+        progress.save();
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/ranged", target)).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(requestedRanges).hasSize(4);
+    }
+
+    @Test
+    public void shouldRetryFailedSegment() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        failingRangeRequests.set(1);
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/ranged", target)).isTrue();
+        assertThat(Files.readAllBytes(target)).isEqualTo(LARGE_CONTENT);
+        assertThat(requestedRanges).hasSize(5);
+    }
+
+    @Test
+    public void shouldKeepProgressOfFailedSegmentedDownload() {
+        Path target = temporaryFolder.getRoot().toPath().resolve("large");
+        failingRangeRequests.set(Integer.MAX_VALUE);
+
+        assertThat(downloadService.download(CHAIN_TASK_ID, baseUrl + "/ranged", target)).isFalse();
+        assertThat(target).doesNotExist();
+        assertThat(DownloadService.getProgressFile(target)).exists();
+    }
+
+    @Test
+    public void shouldKeepFastestIpfsGateway() throws IOException {
+        HttpServer slowGateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        slowGateway.createContext("/ipfs/" + CID, exchange -> {
+            try {
+                Thread.sleep(2000);
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(CONTENT);
+                }
+            } catch (InterruptedException | IOException e) {
+                // race lost
+            }
+        });
+        slowGateway.setExecutor(Executors.newCachedThreadPool());
+        slowGateway.start();
+        String slowGatewayUrl = "http://localhost:" + slowGateway.getAddress().getPort();
+        DownloadService racingDownloadService =
+                newDownloadService(new String[]{slowGatewayUrl, baseUrl});
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        long start = System.currentTimeMillis();
+
+        try {
+            assertThat(racingDownloadService.download(CHAIN_TASK_ID,
+                    "ipfs://" + CID + "/file", target)).isTrue();
+        } finally {
+            racingDownloadService.shutdown();
+            slowGateway.stop(0);
+        }
+        assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+        assertThat(Files.readAllBytes(target)).isEqualTo(CONTENT);
+        assertThat(meterRegistry.counter("iexec.worker.ipfs.gateway.wins",
+                "gateway", baseUrl).count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IpfsGatewayServiceTests {
+
+    private static final String CID = "QmYwAPJzv5CZsnA625s3Xf2nemtYgPpHdWEz79ojWnPbdG";
+    private static final String CID_V1 = "bafybeigdyrzt5sfp7udm7hu76uh7y26nf3efuylqabf3oclgtqy55fbzdi";
+    private static final String GATEWAY_A = "https://a.gateway";
+    private static final String GATEWAY_B = "https://b.gateway";
+    private static final String GATEWAY_C = "https://c.gateway";
+
+    private IpfsGatewayService newService(int raceSize) {
+        return new IpfsGatewayService(new String[]{GATEWAY_A, GATEWAY_B + "/", GATEWAY_C},
+                raceSize, new SimpleMeterRegistry());
+    }
+
+    /**
+     * getContentPath()
+     */
+
+    @Test
+    public void shouldGetContentPathOfIpfsUri() {
+        assertThat(newService(3).getContentPath("ipfs://" + CID + "/file.zip"))
+                .contains("/ipfs/" + CID + "/file.zip");
+    }
+
+    @Test
+    public void shouldGetContentPathOfGatewayUrl() {
+        assertThat(newService(3).getContentPath("https://ipfs.io/ipfs/" + CID))
+                .contains("/ipfs/" + CID);
+    }
+
+    @Test
+    public void shouldGetContentPathOfSubdomainGatewayUrl() {
+        assertThat(newService(3).getContentPath("https://" + CID_V1 + ".ipfs.dweb.link/file"))
+                .contains("/ipfs/" + CID_V1 + "/file");
+    }
+
+    @Test
+    public void shouldNotGetContentPathSinceNotIpfs() {
+        assertThat(newService(3).getContentPath("https://host/ipfs/notACid")).isEmpty();
+        assertThat(newService(3).getContentPath("https://host/dataset.zip")).isEmpty();
+    }
+
+    /**
+     * getCandidates()
+     */
+
+    @Test
+    public void shouldNotRaceSinceNotIpfs() {
+        String uri = "https://host/dataset.zip";
+        assertThat(newService(3).getCandidates(uri)).containsExactly(uri);
+    }
+
+    @Test
+    public void shouldRaceGatewayOfUriAndConfiguredGateways() {
+        List<String> candidates = newService(4)
+                .getCandidates("https://ipfs.io/ipfs/" + CID + "/file");
+
+        assertThat(candidates).containsExactly(
+                "https://ipfs.io/ipfs/" + CID + "/file",
+                GATEWAY_A + "/ipfs/" + CID + "/file",
+                GATEWAY_B + "/ipfs/" + CID + "/file",
+                GATEWAY_C + "/ipfs/" + CID + "/file");
+    }
+
+    @Test
+    public void shouldPreferFastestGateways() {
+        IpfsGatewayService service = newService(2);
+        service.recordLatency(GATEWAY_A + "/ipfs/" + CID, 500);
+        service.recordLatency(GATEWAY_B + "/ipfs/" + CID, 50);
+        service.recordFailure(GATEWAY_C + "/ipfs/" + CID);
+
+        assertThat(service.getCandidates("ipfs://" + CID)).containsExactly(
+                GATEWAY_B + "/ipfs/" + CID,
+                GATEWAY_A + "/ipfs/" + CID);
+    }
+
+    @Test
+    public void shouldAverageLatencies() {
+        IpfsGatewayService service = newService(3);
+        service.recordLatency(GATEWAY_A + "/ipfs/" + CID, 100);
+        service.recordLatency(GATEWAY_A + "/ipfs/" + CID, 200);
+
+        assertThat(service.getLatency(GATEWAY_A)).contains(130d);
+    }
+}
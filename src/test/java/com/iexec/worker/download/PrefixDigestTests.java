@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrefixDigestTests {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private static final byte[] CONTENT = new byte[3 * SEGMENT_SIZE + 100];
+
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldHashSegmentsWrittenOutOfOrder() throws Exception {
+        Path partFile = temporaryFolder.getRoot().toPath().resolve("file.part");
+        DownloadProgress progress = DownloadProgress.create(
+                temporaryFolder.getRoot().toPath().resolve("file.progress"),
+                CONTENT.length, "\"v1\"", SEGMENT_SIZE);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            PrefixDigest prefixDigest = new PrefixDigest(digest, progress, channel);
+
+            write(channel, progress, prefixDigest, 2);
+            assertThat(prefixDigest.getHashed()).isZero();
+            write(channel, progress, prefixDigest, 0);
+            assertThat(prefixDigest.getHashed()).isEqualTo(SEGMENT_SIZE);
+            write(channel, progress, prefixDigest, 3);
+            write(channel, progress, prefixDigest, 1);
+            // segments 2 and 3 are read back once segment 1 lands
+            assertThat(prefixDigest.getHashed()).isEqualTo(CONTENT.length);
+            prefixDigest.finish(ByteBuffer.allocate(256), CONTENT.length);
+        }
+
+        assertThat(digest.digest())
+                .isEqualTo(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+    }
+
+    @Test
+    public void shouldReadBackSkippedBytesWhenFinishing() throws Exception {
+        Path partFile = temporaryFolder.getRoot().toPath().resolve("file.part");
+        Files.write(partFile, CONTENT);
+        DownloadProgress progress = DownloadProgress.create(
+                temporaryFolder.getRoot().toPath().resolve("file.progress"),
+                CONTENT.length, "\"v1\"", SEGMENT_SIZE);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.READ)) {
+            PrefixDigest prefixDigest = new PrefixDigest(digest, progress, channel);
+
+            prefixDigest.finish(ByteBuffer.allocate(256), CONTENT.length);
+
+            assertThat(prefixDigest.getHashed()).isEqualTo(CONTENT.length);
+        }
+
+        assertThat(digest.digest())
+                .isEqualTo(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+    }
+
+    private void write(FileChannel channel, DownloadProgress progress,
+                       PrefixDigest prefixDigest, int segment) throws IOException {
+        int offset = segment * SEGMENT_SIZE;
+        int length = Math.min(SEGMENT_SIZE, CONTENT.length - offset);
+        ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+        buffer.put(CONTENT, offset, length).flip();
+        channel.write(buffer, offset);
+        progress.addWritten(segment, length);
+        prefixDigest.onWritten(buffer.rewind(), offset);
+    }
+}
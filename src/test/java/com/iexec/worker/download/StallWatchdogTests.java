@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.download;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StallWatchdogTests {
+
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void shouldNotCheckBeforeEndOfWindow() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+
+        assertThat(watchdog.check(start + WINDOW / 2)).isFalse();
+        assertThat(watchdog.isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldDetectStallBelowMinThroughput() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(100);
+
+        assertThat(watchdog.check(start + 2 * WINDOW)).isTrue();
+        assertThat(watchdog.isStalled()).isTrue();
+    }
+
+    @Test
+    public void shouldNotStallAboveMinThroughput() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(4096);
+
+        assertThat(watchdog.check(start + 2 * WINDOW)).isFalse();
+    }
+
+    @Test
+    public void shouldStartNewWindowAfterCheck() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(4096);
+        watchdog.check(start + 2 * WINDOW);
+
+        // bytes of the previous window do not count anymore
+        assertThat(watchdog.check(start + 4 * WINDOW)).isTrue();
+    }
+
+    @Test
+    public void shouldNotCountTimeWaitingForBandwidth() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(100);
+        watchdog.onPauseStart(start);
+        watchdog.onPauseEnd(start + 10 * WINDOW);
+
+        assertThat(watchdog.check(start + 10 * WINDOW)).isFalse();
+    }
+
+    @Test
+    public void shouldNotCountWaitForBandwidthInProgress() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(100);
+        watchdog.onPauseStart(start);
+
+        assertThat(watchdog.check(start + 10 * WINDOW)).isFalse();
+        assertThat(watchdog.isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldCountTimeAfterWaitForBandwidth() {
+        long start = System.nanoTime();
+        StallWatchdog watchdog = new StallWatchdog(1024, 1000);
+        watchdog.onTransferred(100);
+        watchdog.onPauseStart(start);
+        watchdog.onPauseEnd(start + 10 * WINDOW);
+
+        assertThat(watchdog.check(start + 12 * WINDOW)).isTrue();
+    }
+}
@@ -34,13 +34,22 @@ import com.iexec.worker.compute.post.PostComputeResponse;
 import com.iexec.worker.compute.pre.PreComputeResponse;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.dataset.DataService;
+import com.iexec.worker.docker.ContainerStatsService;
+import com.iexec.worker.docker.CpusetPlacement;
+import com.iexec.worker.docker.CpusetPlacementService;
+import com.iexec.worker.docker.ContainerStatsSummary;
+import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.result.ResultService;
+import com.iexec.worker.task.TaskCancellationService;
+import com.iexec.worker.task.TaskDeadlineService;
+import com.iexec.worker.task.TaskTmpfsService;
 import com.iexec.worker.tee.scone.TeeSconeService;
 import com.iexec.worker.utils.WorkflowException;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -76,6 +85,18 @@ public class TaskManagerServiceTests {
     private DataService dataService;
     @Mock
     private ResultService resultService;
+    @Mock
+    private ContainerStatsService containerStatsService;
+    @Mock
+    private CpusetPlacementService cpusetPlacementService;
+    @Mock
+    private DockerService dockerService;
+    @Mock
+    private TaskCancellationService taskCancellationService;
+    @Mock
+    private TaskDeadlineService taskDeadlineService;
+    @Mock
+    private TaskTmpfsService taskTmpfsService;
 
     @Before
     public void init() {
@@ -324,6 +345,39 @@ public class TaskManagerServiceTests {
         verify(dataService).downloadStandardInputFiles(anyString(), anyList());
     }
 
+    @Test
+    public void shouldPlaceTaskOnTmpfsWithInputSizeBeforeDownloading() throws Exception {
+        TaskDescription taskDescription = getStubTaskDescription(false);
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(taskTmpfsService.isEnabled()).thenReturn(true);
+        when(dataService.getExpectedInputSize(taskDescription)).thenReturn(1024L);
+
+        ReplicateActionResponse actionResponse =
+                taskManagerService.downloadData(taskDescription);
+
+        assertThat(actionResponse.isSuccess()).isTrue();
+        InOrder inOrder = inOrder(taskTmpfsService, dataService);
+        inOrder.verify(taskTmpfsService).place(CHAIN_TASK_ID, 1024L);
+        inOrder.verify(dataService).downloadStandardDataset(taskDescription);
+    }
+
+    @Test
+    public void shouldNotPlaceTaskOnTmpfsSinceDatasetServedByCache() throws Exception {
+        TaskDescription taskDescription = getStubTaskDescription(false);
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(taskTmpfsService.isEnabled()).thenReturn(true);
+        when(dataService.isDatasetCacheable(taskDescription)).thenReturn(true);
+
+        ReplicateActionResponse actionResponse =
+                taskManagerService.downloadData(taskDescription);
+
+        assertThat(actionResponse.isSuccess()).isTrue();
+        verify(taskTmpfsService, never()).place(anyString(), anyLong());
+        verify(dataService, never()).getExpectedInputSize(taskDescription);
+    }
+
     // with dataset + without input files
 
     @Test
@@ -406,6 +460,31 @@ public class TaskManagerServiceTests {
                 .isEqualTo(DATASET_FILE_DOWNLOAD_FAILED);
     }
 
+    @Test
+    public void shouldReportStalledDatasetDownloadInDetails() throws Exception {
+        TaskDescription taskDescription = getStubTaskDescription(false);
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(dataService.downloadStandardDataset(taskDescription))
+                .thenThrow(new WorkflowException(DATASET_FILE_DOWNLOAD_FAILED,
+                        WorkerFailureReason.DOWNLOAD_STALLED));
+        when(resultService.writeErrorToIexecOut(anyString(), any(), any()))
+                .thenReturn(true);
+        when(computeManagerService.runPostCompute(taskDescription, ""))
+                .thenReturn(PostComputeResponse.builder().isSuccessful(true).build());
+
+        ReplicateActionResponse actionResponse =
+                taskManagerService.downloadData(taskDescription);
+
+        assertThat(actionResponse.isSuccess()).isFalse();
+        assertThat(actionResponse.getDetails().getCause())
+                .isEqualTo(DATASET_FILE_DOWNLOAD_FAILED);
+        assertThat(actionResponse.getDetails())
+                .isInstanceOf(WorkerReplicateStatusDetails.class);
+        assertThat(((WorkerReplicateStatusDetails) actionResponse.getDetails()).getFailureReason())
+                .isEqualTo(WorkerFailureReason.DOWNLOAD_STALLED);
+    }
+
     @Test
     public void shouldHandleDatasetDownloadFailureAndTriggerPostComputeHookWithFailure1()
                 throws Exception{
@@ -623,6 +702,139 @@ public class TaskManagerServiceTests {
                         .successWithStdout("stdout\nstdout\nstdout"));
     }
 
+    @Test
+    public void shouldReportContainerStatsInComputeDetailsNotInStdout() {
+        TaskDescription taskDescription = TaskDescription.builder().build();
+        ContainerStatsSummary summary = ContainerStatsSummary.builder()
+                .containerName("app")
+                .sampleCount(3)
+                .build();
+
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(iexecHubService.getTaskDescription(CHAIN_TASK_ID))
+                .thenReturn(taskDescription);
+        when(computeManagerService.isAppDownloaded(taskDescription.getAppUri()))
+                .thenReturn(true);
+        when(computeManagerService.runPreCompute(any(), any()))
+                .thenReturn(PreComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runCompute(any(), any()))
+                .thenReturn(AppComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runPostCompute(any(), any()))
+                .thenReturn(PostComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(containerStatsService.getTaskStatsReport(CHAIN_TASK_ID))
+                .thenReturn("[IEXEC] Container stats app[duration:1s]");
+        when(containerStatsService.getTaskStatsSummaries(CHAIN_TASK_ID))
+                .thenReturn(Collections.nCopies(
+                        TaskManagerService.MAX_REPORTED_CONTAINER_STATS + 2, summary));
+
+        ReplicateActionResponse replicateActionResponse =
+                taskManagerService.compute(CHAIN_TASK_ID);
+
+        assertThat(replicateActionResponse.isSuccess()).isTrue();
+        assertThat(replicateActionResponse.getDetails())
+                .isInstanceOf(WorkerReplicateStatusDetails.class);
+        WorkerReplicateStatusDetails details =
+                (WorkerReplicateStatusDetails) replicateActionResponse.getDetails();
+        assertThat(details.getStdout()).isEqualTo("stdout\nstdout\nstdout");
+        assertThat(details.getContainerStats())
+                .hasSize(TaskManagerService.MAX_REPORTED_CONTAINER_STATS)
+                .containsOnly(summary);
+        // series are kept until the replicate is completed
+        verify(containerStatsService, never()).removeTaskStats(CHAIN_TASK_ID);
+    }
+
+    @Test
+    public void shouldReportCpusetPlacementsInComputeDetails() {
+        TaskDescription taskDescription = TaskDescription.builder().build();
+        CpusetPlacement placement = CpusetPlacement.builder()
+                .chainTaskId(CHAIN_TASK_ID)
+                .containerName("app")
+                .node(1)
+                .cpus(List.of(4, 5))
+                .isNumaAware(true)
+                .build();
+
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(iexecHubService.getTaskDescription(CHAIN_TASK_ID))
+                .thenReturn(taskDescription);
+        when(computeManagerService.isAppDownloaded(taskDescription.getAppUri()))
+                .thenReturn(true);
+        when(computeManagerService.runPreCompute(any(), any()))
+                .thenReturn(PreComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runCompute(any(), any()))
+                .thenReturn(AppComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runPostCompute(any(), any()))
+                .thenReturn(PostComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(cpusetPlacementService.getTaskPlacements(CHAIN_TASK_ID))
+                .thenReturn(List.of(placement));
+
+        ReplicateActionResponse replicateActionResponse =
+                taskManagerService.compute(CHAIN_TASK_ID);
+
+        assertThat(replicateActionResponse.isSuccess()).isTrue();
+        WorkerReplicateStatusDetails details =
+                (WorkerReplicateStatusDetails) replicateActionResponse.getDetails();
+        assertThat(details.getCpusetPlacements()).containsExactly(placement);
+        assertThat(details.getContainerStats()).isNull();
+        verify(cpusetPlacementService, never()).removeTaskPlacements(CHAIN_TASK_ID);
+    }
+
+    @Test
+    public void shouldFailComputeSinceTaskPreemptedBeforeDeadline() {
+        TaskDescription taskDescription = TaskDescription.builder().build();
+
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(iexecHubService.getTaskDescription(CHAIN_TASK_ID))
+                .thenReturn(taskDescription);
+        when(computeManagerService.isAppDownloaded(taskDescription.getAppUri()))
+                .thenReturn(true);
+        when(computeManagerService.runPreCompute(any(), any()))
+                .thenReturn(PreComputeResponse.builder().isSuccessful(true).build());
+        when(computeManagerService.runCompute(any(), any()))
+                .thenReturn(AppComputeResponse.builder().isSuccessful(false).build());
+        when(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).thenReturn(true);
+
+        ReplicateActionResponse replicateActionResponse =
+                taskManagerService.compute(CHAIN_TASK_ID);
+
+        verify(taskDeadlineService).track(CHAIN_TASK_ID);
+        Assertions.assertThat(replicateActionResponse).isEqualTo(
+                ReplicateActionResponse.failure(CONTRIBUTION_TIMEOUT));
+    }
+
+    @Test
+    public void shouldKeepCompletedComputeEvenIfDeadlineReached() {
+        TaskDescription taskDescription = TaskDescription.builder().build();
+
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(iexecHubService.getTaskDescription(CHAIN_TASK_ID))
+                .thenReturn(taskDescription);
+        when(computeManagerService.isAppDownloaded(taskDescription.getAppUri()))
+                .thenReturn(true);
+        when(computeManagerService.runPreCompute(any(), any()))
+                .thenReturn(PreComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runCompute(any(), any()))
+                .thenReturn(AppComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runPostCompute(any(), any()))
+                .thenReturn(PostComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).thenReturn(true);
+
+        ReplicateActionResponse replicateActionResponse =
+                taskManagerService.compute(CHAIN_TASK_ID);
+
+        Assertions.assertThat(replicateActionResponse).isEqualTo(
+                ReplicateActionResponse.successWithStdout("stdout\nstdout\nstdout"));
+        InOrder inOrder = inOrder(taskDeadlineService, computeManagerService);
+        inOrder.verify(taskDeadlineService).startPreemptibleStage(CHAIN_TASK_ID);
+        inOrder.verify(computeManagerService).runCompute(any(), any());
+        inOrder.verify(taskDeadlineService).endPreemptibleStage(CHAIN_TASK_ID);
+        inOrder.verify(computeManagerService).runPostCompute(any(), any());
+    }
+
     @Test
     public void shouldNotComputeSinceCannotContributeStatusIsPresent() {
         ReplicateStatusCause replicateStatusCause =
@@ -731,6 +943,38 @@ public class TaskManagerServiceTests {
                         .failureWithStdout("stdout"));
     }
 
+    @Test
+    public void shouldReportOutputSizeLimitOfStoppedAppInDetails() {
+        TaskDescription taskDescription = TaskDescription.builder().build();
+
+        when(contributionService.getCannotContributeStatusCause(CHAIN_TASK_ID))
+                .thenReturn(Optional.empty());
+        when(iexecHubService.getTaskDescription(CHAIN_TASK_ID))
+                .thenReturn(taskDescription);
+        when(computeManagerService.isAppDownloaded(taskDescription.getAppUri()))
+                .thenReturn(true);
+        when(computeManagerService.runPreCompute(any(), any()))
+                .thenReturn(PreComputeResponse.builder().isSuccessful(true).stdout("stdout").build());
+        when(computeManagerService.runCompute(any(), any()))
+                .thenReturn(AppComputeResponse.builder()
+                        .isSuccessful(false)
+                        .stdout("stdout")
+                        .failureReason(WorkerFailureReason.OUTPUT_SIZE_LIMIT_EXCEEDED)
+                        .build());
+
+        ReplicateActionResponse replicateActionResponse =
+                taskManagerService.compute(CHAIN_TASK_ID);
+
+        assertThat(replicateActionResponse.isSuccess()).isFalse();
+        assertThat(replicateActionResponse.getDetails())
+                .isInstanceOf(WorkerReplicateStatusDetails.class);
+        WorkerReplicateStatusDetails details =
+                (WorkerReplicateStatusDetails) replicateActionResponse.getDetails();
+        assertThat(details.getStdout()).isEqualTo("stdout");
+        assertThat(details.getFailureReason())
+                .isEqualTo(WorkerFailureReason.OUTPUT_SIZE_LIMIT_EXCEEDED);
+    }
+
     @Test
     public void shouldNotComputeSinceFailedPostCompute() {
         TaskDescription taskDescription = TaskDescription.builder().build();
@@ -1150,6 +1394,8 @@ public class TaskManagerServiceTests {
         Assertions.assertThat(replicateActionResponse).isNotNull();
         Assertions.assertThat(replicateActionResponse).isEqualTo(
                 ReplicateActionResponse.success());
+        verify(containerStatsService).removeTaskStats(CHAIN_TASK_ID);
+        verify(cpusetPlacementService).removeTaskPlacements(CHAIN_TASK_ID);
     }
 
     @Test
@@ -1171,6 +1417,10 @@ public class TaskManagerServiceTests {
         boolean isAborted = taskManagerService.abort(CHAIN_TASK_ID);
 
         Assertions.assertThat(isAborted).isTrue();
+        verify(taskCancellationService, times(1)).cancel(CHAIN_TASK_ID, "aborted");
+        verify(dockerService, times(1)).stopRunningContainers(CHAIN_TASK_ID);
+        verify(containerStatsService, times(1)).removeTaskStats(CHAIN_TASK_ID);
+        verify(cpusetPlacementService, times(1)).removeTaskPlacements(CHAIN_TASK_ID);
         verify(resultService, times(1))
                 .removeResult(CHAIN_TASK_ID);
     }
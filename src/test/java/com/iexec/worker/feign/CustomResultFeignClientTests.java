@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.feign;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iexec.common.result.ResultModel;
+import com.iexec.worker.config.PublicConfigurationService;
+import com.iexec.worker.feign.client.ResultClient;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class CustomResultFeignClientTests {
+
+    private static final String CHAIN_TASK_ID = "0xabc";
+    private static final String TOKEN = "token";
+    private static final String LOCATION = "/ipfs/QmResult";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private ResultClient resultClient;
+    @Mock
+    private PublicConfigurationService publicConfigService;
+
+    private HttpServer resultProxy;
+    private CustomResultFeignClient customResultFeignClient;
+    private final AtomicReference<ResultModel> uploaded = new AtomicReference<>();
+    private final AtomicReference<String> authorization = new AtomicReference<>();
+
+    @Before
+    public void beforeEach() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        resultProxy = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        resultProxy.createContext("/", exchange -> {
+            authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+            try (InputStream body = exchange.getRequestBody()) {
+                uploaded.set(new ObjectMapper().readValue(body, ResultModel.class));
+            }
+            byte[] location = LOCATION.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, location.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(location);
+            }
+        });
+        resultProxy.start();
+        when(publicConfigService.getResultRepositoryURL())
+                .thenReturn("http://localhost:" + resultProxy.getAddress().getPort());
+        customResultFeignClient = new CustomResultFeignClient(resultClient, publicConfigService);
+    }
+
+    @After
+    public void afterEach() {
+        resultProxy.stop(0);
+    }
+
+    @Test
+    public void shouldUploadResultStreamedFromDisk() throws IOException {
+        Path zip = temporaryFolder.newFile("result.zip").toPath();
+        Files.write(zip, "zip content".getBytes(StandardCharsets.UTF_8));
+        ResultModel resultModel = ResultModel.builder()
+                .chainTaskId(CHAIN_TASK_ID)
+                .deterministHash("0x123")
+                .build();
+
+        assertThat(customResultFeignClient.uploadResult(TOKEN, resultModel, zip))
+                .isEqualTo(LOCATION);
+        assertThat(authorization.get()).isEqualTo(TOKEN);
+        assertThat(uploaded.get().getChainTaskId()).isEqualTo(CHAIN_TASK_ID);
+        assertThat(uploaded.get().getZip()).isEqualTo(Files.readAllBytes(zip));
+    }
+
+    @Test
+    public void shouldNotUploadMissingResultZip() {
+        ResultModel resultModel = ResultModel.builder().chainTaskId(CHAIN_TASK_ID).build();
+
+        assertThat(customResultFeignClient.uploadResult(TOKEN, resultModel,
+                temporaryFolder.getRoot().toPath().resolve("missing.zip"))).isEmpty();
+        assertThat(uploaded.get()).isNull();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.feign;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iexec.common.result.ResultModel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultModelBodyTests {
+
+    private static final String CHAIN_TASK_ID = "0xabc";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ResultModel resultModel = ResultModel.builder()
+            .chainTaskId(CHAIN_TASK_ID)
+            .image("image")
+            .cmd("echo \"result\"")
+            .deterministHash("0x123")
+            .build();
+
+    private Path createZip(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Path zip = temporaryFolder.newFile().toPath();
+        Files.write(zip, content);
+        return zip;
+    }
+
+    private void assertRoundTrip(int zipSize) throws IOException {
+        Path zip = createZip(zipSize);
+        ResultModelBody body = new ResultModelBody(mapper, resultModel, zip);
+
+        byte[] json;
+        try (InputStream in = body.open()) {
+            json = in.readAllBytes();
+        }
+
+        assertThat((long) json.length).isEqualTo(body.getContentLength());
+        ResultModel uploaded = mapper.readValue(json, ResultModel.class);
+        assertThat(uploaded.getChainTaskId()).isEqualTo(CHAIN_TASK_ID);
+        assertThat(uploaded.getCmd()).isEqualTo(resultModel.getCmd());
+        assertThat(uploaded.getDeterministHash()).isEqualTo(resultModel.getDeterministHash());
+        assertThat(uploaded.getZip()).isEqualTo(Files.readAllBytes(zip));
+    }
+
+    @Test
+    public void shouldStreamResultModelOfEmptyZip() throws IOException {
+        assertRoundTrip(0);
+    }
+
+    @Test
+    public void shouldStreamResultModelWithPaddedZip() throws IOException {
+        assertRoundTrip(ResultModelBody.ENCODING_CHUNK + 1);
+    }
+
+    @Test
+    public void shouldStreamResultModelOfLargeZip() throws IOException {
+        assertRoundTrip(5 * ResultModelBody.ENCODING_CHUNK);
+    }
+
+    @Test
+    public void shouldReopenBodyForEachAttempt() throws IOException {
+        ResultModelBody body = new ResultModelBody(mapper, resultModel, createZip(1024));
+
+        try (InputStream first = body.open(); InputStream second = body.open()) {
+            assertThat(first.readAllBytes()).isEqualTo(second.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.result;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultPackerServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ResultPackerService resultPackerService;
+    private Path output;
+    private Path iexecOut;
+    private byte[] random;
+
+    @Before
+    public void beforeEach() throws IOException {
+        resultPackerService = new ResultPackerService(4, 6);
+        output = temporaryFolder.newFolder("output").toPath();
+        iexecOut = Files.createDirectories(output.resolve("iexec_out"));
+        random = new byte[256 * 1024];
+        new Random(42).nextBytes(random);
+    }
+
+    @After
+    public void afterEach() {
+        resultPackerService.shutdown();
+    }
+
+    private Path zip() {
+        return output.resolve("iexec_out.zip");
+    }
+
+    private void createResult() throws IOException {
+        Files.writeString(iexecOut.resolve("computed.json"), "{}");
+        Files.writeString(iexecOut.resolve("result.txt"), "result ".repeat(100_000));
+        Files.write(iexecOut.resolve("image.png"), random);
+        Files.createDirectories(iexecOut.resolve("sub/dir"));
+        Files.write(iexecOut.resolve("sub/dir/random.bin"), random);
+        Files.createFile(iexecOut.resolve("sub/empty"));
+    }
+
+    private ZipEntry getEntry(String name) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip().toFile())) {
+            return zipFile.getEntry(name);
+        }
+    }
+
+    @Test
+    public void shouldZipResultAsStandardZip() throws IOException {
+        createResult();
+
+        assertThat(resultPackerService.zipIexecOut(CHAIN_TASK_ID,
+                iexecOut.toString(), output.toString())).isTrue();
+
+        List<String> names = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(zip().toFile())) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertThat(in.readAllBytes())
+                            .isEqualTo(Files.readAllBytes(iexecOut.resolve(entry.getName())));
+                }
+            }
+        }
+        assertThat(names).containsExactly("computed.json", "image.png", "result.txt",
+                "sub/dir/random.bin", "sub/empty");
+        // no leftover of the parallel compression
+        try (Stream<Path> files = Files.list(output)) {
+            assertThat(files).containsExactlyInAnyOrder(iexecOut, zip());
+        }
+    }
+
+    @Test
+    public void shouldWriteLocalHeadersReadableByStreamingReaders() throws IOException {
+        createResult();
+        resultPackerService.zipIexecOut(CHAIN_TASK_ID, iexecOut.toString(), output.toString());
+
+        int entries = 0;
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(zip()))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                assertThat(in.readAllBytes())
+                        .isEqualTo(Files.readAllBytes(iexecOut.resolve(entry.getName())));
+                entries++;
+            }
+        }
+        assertThat(entries).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldStoreCompressedAndIncompressibleFiles() throws IOException {
+        createResult();
+        resultPackerService.zipIexecOut(CHAIN_TASK_ID, iexecOut.toString(), output.toString());
+
+        assertThat(getEntry("result.txt").getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        assertThat(getEntry("image.png").getMethod()).isEqualTo(ZipEntry.STORED);
+        assertThat(getEntry("sub/dir/random.bin").getMethod()).isEqualTo(ZipEntry.STORED);
+    }
+
+    @Test
+    public void shouldStoreAllFilesWithoutCompression() throws IOException {
+        createResult();
+        ResultPackerService storingPacker = new ResultPackerService(1, 0);
+
+        try {
+            assertThat(storingPacker.zipIexecOut(CHAIN_TASK_ID,
+                    iexecOut.toString(), output.toString())).isTrue();
+        } finally {
+            storingPacker.shutdown();
+        }
+        assertThat(getEntry("result.txt").getMethod()).isEqualTo(ZipEntry.STORED);
+    }
+
+    @Test
+    public void shouldNotFollowSymbolicLinks() throws IOException {
+        Path secret = temporaryFolder.newFile("secret").toPath();
+        Files.writeString(secret, "host file", StandardCharsets.UTF_8);
+        Files.createSymbolicLink(iexecOut.resolve("link"), secret);
+
+        resultPackerService.zipIexecOut(CHAIN_TASK_ID, iexecOut.toString(), output.toString());
+
+        assertThat(getEntry("link")).isNull();
+    }
+
+    @Test
+    public void shouldZipEmptyResult() throws IOException {
+        assertThat(resultPackerService.zipIexecOut(CHAIN_TASK_ID,
+                iexecOut.toString(), output.toString())).isTrue();
+        try (ZipFile zipFile = new ZipFile(zip().toFile())) {
+            assertThat(zipFile.size()).isZero();
+        }
+    }
+
+    @Test
+    public void shouldNotZipMissingResultFolder() {
+        assertThat(resultPackerService.zipIexecOut(CHAIN_TASK_ID,
+                Paths.get("dummyIexecOut").toString(), output.toString())).isFalse();
+        assertThat(zip()).doesNotExist();
+    }
+}
@@ -27,9 +27,12 @@ import com.iexec.common.task.TaskDescription;
 import com.iexec.common.utils.BytesUtils;
 import com.iexec.common.utils.FileHelper;
 import com.iexec.common.utils.IexecFileHelper;
+import com.iexec.worker.bandwidth.BandwidthSchedulerService;
 import com.iexec.worker.chain.IexecHubService;
 import com.iexec.worker.config.WorkerConfigurationService;
 import com.iexec.worker.feign.CustomResultFeignClient;
+import com.iexec.worker.task.TaskCancellationService;
+import com.iexec.worker.task.TaskTmpfsService;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
@@ -46,6 +49,7 @@ import java.util.Optional;
 import static com.iexec.common.chain.DealParams.DROPBOX_RESULT_STORAGE_PROVIDER;
 import static com.iexec.common.chain.DealParams.IPFS_RESULT_STORAGE_PROVIDER;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 public class ResultServiceTests {
@@ -66,6 +70,12 @@ public class ResultServiceTests {
     private CustomResultFeignClient customResultFeignClient;
     @Mock
     private WorkerConfigurationService workerConfigurationService;
+    @Mock
+    private TaskCancellationService taskCancellationService;
+    @Mock
+    private TaskTmpfsService taskTmpfsService;
+    @Mock
+    private BandwidthSchedulerService bandwidthSchedulerService;
 
     @InjectMocks
     private ResultService resultService;
@@ -77,6 +87,14 @@ public class ResultServiceTests {
         tmp = folderRule.newFolder().getAbsolutePath();
     }
 
+    @Test
+    public void shouldNotUploadResultOfCancelledTask() {
+        when(taskCancellationService.isCancelled(CHAIN_TASK_ID)).thenReturn(true);
+
+        assertThat(resultService.uploadResultAndGetLink(CHAIN_TASK_ID)).isEmpty();
+        verifyNoInteractions(iexecHubService, customResultFeignClient);
+    }
+
     @Test
     public void shouldWriteErrorToIexecOut() {
         when(workerConfigurationService.getTaskIexecOutDir(CHAIN_TASK_ID))
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TaskCancellationServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+
+    private final TaskCancellationService taskCancellationService = new TaskCancellationService();
+
+    @After
+    public void afterEach() {
+        // do not leak an interruption to other tests
+        Thread.interrupted();
+    }
+
+    @Test
+    public void shouldCallCallbacksOnceWhenCancelled() {
+        AtomicInteger calls = new AtomicInteger();
+        taskCancellationService.getToken(CHAIN_TASK_ID).onCancel(calls::incrementAndGet);
+
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(taskCancellationService.isCancelled(CHAIN_TASK_ID)).isTrue();
+        assertThat(taskCancellationService.getToken(CHAIN_TASK_ID).getReason())
+                .isEqualTo("aborted");
+    }
+
+    @Test
+    public void shouldCallCallbackRightAwayWhenAlreadyCancelled() {
+        AtomicInteger calls = new AtomicInteger();
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        taskCancellationService.getToken(CHAIN_TASK_ID).onCancel(calls::incrementAndGet);
+
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCallClosedRegistration() {
+        AtomicInteger calls = new AtomicInteger();
+        taskCancellationService.getToken(CHAIN_TASK_ID)
+                .onCancel(calls::incrementAndGet)
+                .close();
+
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        assertThat(calls.get()).isZero();
+    }
+
+    @Test
+    public void shouldNotBeCancelledAfterRemove() {
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+        taskCancellationService.remove(CHAIN_TASK_ID);
+
+        assertThat(taskCancellationService.isCancelled(CHAIN_TASK_ID)).isFalse();
+    }
+
+    @Test
+    public void shouldRunInterruptibly() {
+        assertThat(taskCancellationService.runInterruptibly(CHAIN_TASK_ID, () -> true))
+                .isTrue();
+    }
+
+    @Test
+    public void shouldNotRunInterruptiblySinceAlreadyCancelled() {
+        AtomicInteger calls = new AtomicInteger();
+        taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+
+        boolean result = taskCancellationService.runInterruptibly(CHAIN_TASK_ID,
+                () -> calls.incrementAndGet() > 0);
+
+        assertThat(result).isFalse();
+        assertThat(calls.get()).isZero();
+    }
+
+    @Test
+    public void shouldInterruptAndClearInterruptionWhenCancelledWhileRunning() {
+        boolean result = taskCancellationService.runInterruptibly(CHAIN_TASK_ID, () -> {
+            taskCancellationService.cancel(CHAIN_TASK_ID, "aborted");
+            return Thread.currentThread().isInterrupted();
+        });
+
+        assertThat(result).isFalse();
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    }
+
+    @Test
+    public void shouldPurgeExpiredTokenWhenCreatingAnotherOne() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        TaskCancellationService service = new TaskCancellationService(now::get);
+        CancellationToken failedTaskToken = service.getToken(CHAIN_TASK_ID);
+
+        now.addAndGet(TaskCancellationService.TOKEN_TTL + 1);
+        service.getToken("otherChainTaskId");
+
+        assertThat(service.getToken(CHAIN_TASK_ID)).isNotSameAs(failedTaskToken);
+    }
+
+    @Test
+    public void shouldKeepTokenBeforeExpiry() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        TaskCancellationService service = new TaskCancellationService(now::get);
+        CancellationToken token = service.getToken(CHAIN_TASK_ID);
+
+        service.getToken("otherChainTaskId");
+
+        assertThat(service.getToken(CHAIN_TASK_ID)).isSameAs(token);
+    }
+}
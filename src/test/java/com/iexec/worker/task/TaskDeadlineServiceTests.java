@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import com.iexec.common.chain.ChainTask;
+import com.iexec.worker.chain.IexecHubService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class TaskDeadlineServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final long MARGIN_SECONDS = 60;
+
+    @Mock
+    private IexecHubService iexecHubService;
+    @Mock
+    private TaskCancellationService taskCancellationService;
+
+    private TaskDeadlineService taskDeadlineService;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        taskDeadlineService = new TaskDeadlineService(iexecHubService,
+                taskCancellationService, MARGIN_SECONDS, new SimpleMeterRegistry());
+    }
+
+    private void mockDeadlineIn(long ms) {
+        ChainTask chainTask = ChainTask.builder()
+                .chainTaskId(CHAIN_TASK_ID)
+                .contributionDeadline(System.currentTimeMillis() + ms)
+                .build();
+        when(iexecHubService.getChainTask(CHAIN_TASK_ID)).thenReturn(Optional.of(chainTask));
+    }
+
+    @Test
+    public void shouldPreemptTaskWithinMarginOfDeadline() throws InterruptedException {
+        mockDeadlineIn(TimeUnit.SECONDS.toMillis(MARGIN_SECONDS) + 50);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isFalse();
+        Thread.sleep(100);
+
+        taskDeadlineService.checkDeadlines();
+
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isTrue();
+        verify(taskCancellationService).cancel(CHAIN_TASK_ID,
+                TaskDeadlineService.PREEMPTION_REASON);
+    }
+
+    @Test
+    public void shouldNotPreemptTaskWithEnoughTimeLeft() {
+        mockDeadlineIn(TimeUnit.SECONDS.toMillis(MARGIN_SECONDS * 10));
+        taskDeadlineService.track(CHAIN_TASK_ID);
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+
+        taskDeadlineService.checkDeadlines();
+
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isFalse();
+        verifyNoInteractions(taskCancellationService);
+    }
+
+    @Test
+    public void shouldPreemptTaskOnlyOnce() {
+        mockDeadlineIn(0);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+
+        taskDeadlineService.checkDeadlines();
+        taskDeadlineService.checkDeadlines();
+
+        verify(taskCancellationService, times(1)).cancel(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldNotPreemptUntrackedTask() {
+        mockDeadlineIn(0);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+        taskDeadlineService.untrack(CHAIN_TASK_ID);
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+
+        taskDeadlineService.checkDeadlines();
+
+        verifyNoInteractions(taskCancellationService);
+    }
+
+    @Test
+    public void shouldPreemptTaskStartingStageWithinMarginOfDeadline() {
+        mockDeadlineIn(0);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isTrue();
+        verify(taskCancellationService).cancel(CHAIN_TASK_ID,
+                TaskDeadlineService.PREEMPTION_REASON);
+    }
+
+    @Test
+    public void shouldNotPreemptTaskOutsideOfPreemptibleStage() {
+        mockDeadlineIn(0);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+
+        taskDeadlineService.checkDeadlines();
+
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isFalse();
+        verifyNoInteractions(taskCancellationService);
+    }
+
+    @Test
+    public void shouldNotPreemptTaskOncePreemptibleStageEnded() throws InterruptedException {
+        mockDeadlineIn(TimeUnit.SECONDS.toMillis(MARGIN_SECONDS) + 50);
+        taskDeadlineService.track(CHAIN_TASK_ID);
+        taskDeadlineService.startPreemptibleStage(CHAIN_TASK_ID);
+        taskDeadlineService.endPreemptibleStage(CHAIN_TASK_ID);
+        Thread.sleep(100);
+
+        taskDeadlineService.checkDeadlines();
+
+        assertThat(taskDeadlineService.isPreempted(CHAIN_TASK_ID)).isFalse();
+        verifyNoInteractions(taskCancellationService);
+    }
+
+    @Test
+    public void shouldNotTrackSinceNoChainTask() {
+        when(iexecHubService.getChainTask(CHAIN_TASK_ID)).thenReturn(Optional.empty());
+
+        assertThat(taskDeadlineService.track(CHAIN_TASK_ID)).isFalse();
+    }
+}
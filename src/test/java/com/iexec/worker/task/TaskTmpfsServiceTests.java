@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.task;
+
+import com.iexec.worker.config.WorkerConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TaskTmpfsServiceTests {
+
+    private static final String CHAIN_TASK_ID = "chainTaskId";
+    private static final String WORKER_NAME = "worker";
+    private static final int MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private WorkerConfigurationService workerConfigService;
+
+    @Before
+    public void beforeEach() throws IOException {
+        workerConfigService = new WorkerConfigurationService(null);
+        ReflectionTestUtils.setField(workerConfigService, "workerName", WORKER_NAME);
+        ReflectionTestUtils.setField(workerConfigService, "workerBaseDir",
+                temporaryFolder.newFolder("disk").getAbsolutePath());
+        ReflectionTestUtils.setField(workerConfigService, "tmpfsDir",
+                temporaryFolder.newFolder("tmpfs").getAbsolutePath());
+    }
+
+    private TaskTmpfsService newService(long budgetMb, long taskFootprintMb) {
+        return new TaskTmpfsService(workerConfigService, true, budgetMb, taskFootprintMb);
+    }
+
+    @Test
+    public void shouldPlaceTaskOnTmpfs() {
+        TaskTmpfsService taskTmpfsService = newService(2, 1);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, 0)).isTrue();
+        assertThat(workerConfigService.getTaskBaseDir(CHAIN_TASK_ID))
+                .isEqualTo(workerConfigService.getTaskTmpfsDir(CHAIN_TASK_ID));
+        assertThat(new File(workerConfigService.getTaskTmpfsDir(CHAIN_TASK_ID))).isDirectory();
+    }
+
+    @Test
+    public void shouldKeepTaskOnDiskSinceBudgetUsed() {
+        TaskTmpfsService taskTmpfsService = newService(1, 1);
+        taskTmpfsService.place("otherTask", 0);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, 0)).isFalse();
+        assertThat(workerConfigService.getTaskBaseDir(CHAIN_TASK_ID))
+                .isEqualTo(workerConfigService.getTaskDiskDir(CHAIN_TASK_ID));
+    }
+
+    @Test
+    public void shouldReserveInputSizeOnTmpfs() {
+        TaskTmpfsService taskTmpfsService = newService(4, 1);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, 2 * MB)).isTrue();
+        assertThat(taskTmpfsService.getReservedSize()).isEqualTo(3 * MB);
+        assertThat(taskTmpfsService.getOutputLimit(CHAIN_TASK_ID)).isEqualTo(MB);
+    }
+
+    @Test
+    public void shouldKeepTaskOnDiskSinceInputsTooBig() {
+        TaskTmpfsService taskTmpfsService = newService(4, 1);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, 4 * MB)).isFalse();
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+        assertThat(new File(workerConfigService.getTaskTmpfsDir(CHAIN_TASK_ID))).doesNotExist();
+        assertThat(taskTmpfsService.getOutputLimit(CHAIN_TASK_ID)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void shouldKeepTaskOnDiskSinceInputSizeUnknown() {
+        TaskTmpfsService taskTmpfsService = newService(4, 1);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, -1)).isFalse();
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+    }
+
+    @Test
+    public void shouldNotPlaceTaskOnTmpfsSinceDisabled() {
+        TaskTmpfsService taskTmpfsService =
+                new TaskTmpfsService(workerConfigService, false, 2, 1);
+
+        assertThat(taskTmpfsService.place(CHAIN_TASK_ID, 0)).isFalse();
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+    }
+
+    @Test
+    public void shouldSpillTaskToDisk() throws IOException {
+        TaskTmpfsService taskTmpfsService = newService(2, 1);
+        taskTmpfsService.place(CHAIN_TASK_ID, 0);
+        Path iexecOut = Paths.get(workerConfigService.getTaskIexecOutDir(CHAIN_TASK_ID));
+        Files.createDirectories(iexecOut);
+        Files.writeString(iexecOut.resolve("result.txt"), "result");
+
+        assertThat(taskTmpfsService.spill(CHAIN_TASK_ID)).isTrue();
+
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+        assertThat(Paths.get(workerConfigService.getTaskIexecOutDir(CHAIN_TASK_ID), "result.txt"))
+                .hasContent("result");
+        assertThat(new File(workerConfigService.getTaskTmpfsDir(CHAIN_TASK_ID))).doesNotExist();
+        assertThat(taskTmpfsService.getReservedSize()).isZero();
+    }
+
+    @Test
+    public void shouldSpillTaskSinceOverFootprint() throws IOException {
+        TaskTmpfsService taskTmpfsService = newService(4, 1);
+        taskTmpfsService.place(CHAIN_TASK_ID, 0);
+        Path input = Paths.get(workerConfigService.getTaskInputDir(CHAIN_TASK_ID));
+        Files.createDirectories(input);
+        Files.write(input.resolve("dataset"), new byte[2 * MB]);
+
+        assertThat(taskTmpfsService.spillIfOverFootprint(CHAIN_TASK_ID)).isTrue();
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+        assertThat(Paths.get(workerConfigService.getTaskInputDir(CHAIN_TASK_ID), "dataset"))
+                .exists();
+    }
+
+    @Test
+    public void shouldNotSpillTaskSinceWithinFootprint() throws IOException {
+        TaskTmpfsService taskTmpfsService = newService(4, 1);
+        taskTmpfsService.place(CHAIN_TASK_ID, 0);
+        Path input = Paths.get(workerConfigService.getTaskInputDir(CHAIN_TASK_ID));
+        Files.createDirectories(input);
+        Files.write(input.resolve("dataset"), new byte[10]);
+
+        assertThat(taskTmpfsService.spillIfOverFootprint(CHAIN_TASK_ID)).isTrue();
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isTrue();
+    }
+
+    @Test
+    public void shouldSpillLeftoversOfPreviousRun() throws IOException {
+        Path leftover = Paths.get(workerConfigService.getTaskTmpfsDir(CHAIN_TASK_ID));
+        Files.createDirectories(leftover);
+        Files.writeString(leftover.resolve("file"), "content");
+
+        newService(2, 1).spillLeftovers();
+
+        assertThat(Paths.get(workerConfigService.getTaskDiskDir(CHAIN_TASK_ID), "file"))
+                .hasContent("content");
+        assertThat(workerConfigService.isTaskOnTmpfs(CHAIN_TASK_ID)).isFalse();
+    }
+}
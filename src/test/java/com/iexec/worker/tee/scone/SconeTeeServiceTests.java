@@ -21,8 +21,10 @@ import com.iexec.common.docker.DockerRunResponse;
 import com.iexec.common.docker.client.DockerClientInstance;
 import com.iexec.worker.config.PublicConfigurationService;
 import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
 import com.iexec.worker.docker.DockerService;
 import com.iexec.worker.sgx.SgxService;
+import com.iexec.worker.tee.TeeImagesWarmupService;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
@@ -63,6 +65,10 @@ public class SconeTeeServiceTests {
     @Mock
     private SgxService sgxService;
     @Mock
+    private TeeImagesWarmupService teeImagesWarmupService;
+    @Mock
+    private ContainerRemovalService containerRemovalService;
+    @Mock
     private DockerClientInstance dockerClientInstanceMock;
 
     @Before
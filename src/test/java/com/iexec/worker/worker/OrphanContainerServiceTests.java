@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 IEXEC BLOCKCHAIN TECH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.iexec.worker.worker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.model.Container;
+import com.iexec.worker.config.WorkerConfigurationService;
+import com.iexec.worker.docker.ContainerRemovalService;
+import com.iexec.worker.docker.DockerService;
+import com.iexec.worker.docker.DockerTransportService;
+import com.iexec.worker.sgx.SgxService;
+import com.iexec.worker.tee.scone.SconeConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class OrphanContainerServiceTests {
+
+    private static final String WORKER_NAME = "worker";
+    private static final String CHAIN_TASK_ID =
+            "0x1111111111111111111111111111111111111111111111111111111111111111";
+    private static final String OTHER_CHAIN_TASK_ID =
+            "0x2222222222222222222222222222222222222222222222222222222222222222";
+    private static final String LAS_CONTAINER_NAME = "iexec-las-0xwallet";
+    private static final String SGX_CHECK_CONTAINER_NAME = "0xwallet-sgx-check";
+
+    @Mock
+    private WorkerConfigurationService workerConfigService;
+    @Mock
+    private SconeConfiguration sconeConfig;
+    @Mock
+    private SgxService sgxService;
+    @Mock
+    private DockerService dockerService;
+    @Mock
+    private DockerTransportService dockerTransportService;
+    @Mock
+    private ContainerRemovalService containerRemovalService;
+
+    private DockerClient dockerClient;
+    private OrphanContainerService orphanContainerService;
+
+    @Before
+    public void beforeEach() {
+        MockitoAnnotations.openMocks(this);
+        dockerClient = mock(DockerClient.class, RETURNS_DEEP_STUBS);
+        when(workerConfigService.getWorkerName()).thenReturn(WORKER_NAME);
+        when(sconeConfig.getLasContainerName()).thenReturn(LAS_CONTAINER_NAME);
+        when(sgxService.getSgxCheckContainerName()).thenReturn(SGX_CHECK_CONTAINER_NAME);
+        when(dockerTransportService.getControlClient()).thenReturn(dockerClient);
+        orphanContainerService = new OrphanContainerService(workerConfigService,
+                sconeConfig, sgxService, dockerService, dockerTransportService,
+                containerRemovalService);
+    }
+
+    private void mockContainers(String... names) {
+        List<Container> containers = new ArrayList<>();
+        for (String name : names) {
+            Container container = mock(Container.class);
+            when(container.getNames()).thenReturn(new String[]{"/" + name});
+            containers.add(container);
+        }
+        when(dockerClient.listContainersCmd().withShowAll(true).exec()).thenReturn(containers);
+    }
+
+    @Test
+    public void shouldFindOrphanContainersOfWorker() {
+        mockContainers(
+                WORKER_NAME + "-" + CHAIN_TASK_ID,
+                WORKER_NAME + "-" + CHAIN_TASK_ID + "-tee-pre-compute",
+                WORKER_NAME + "-" + OTHER_CHAIN_TASK_ID + "-tee-post-compute",
+                LAS_CONTAINER_NAME,
+                SGX_CHECK_CONTAINER_NAME,
+                WORKER_NAME + "-2-" + CHAIN_TASK_ID, // another worker
+                "some-container");
+
+        assertThat(orphanContainerService.findOrphanContainers()).containsExactly(
+                WORKER_NAME + "-" + CHAIN_TASK_ID,
+                WORKER_NAME + "-" + CHAIN_TASK_ID + "-tee-pre-compute",
+                WORKER_NAME + "-" + OTHER_CHAIN_TASK_ID + "-tee-post-compute",
+                LAS_CONTAINER_NAME,
+                SGX_CHECK_CONTAINER_NAME);
+    }
+
+    @Test
+    public void shouldNotConsiderContainerOfCurrentSessionAsOrphan() {
+        mockContainers(LAS_CONTAINER_NAME, WORKER_NAME + "-" + CHAIN_TASK_ID);
+        when(dockerService.isInRunningContainersRecord(LAS_CONTAINER_NAME)).thenReturn(true);
+
+        assertThat(orphanContainerService.findOrphanContainers())
+                .containsExactly(WORKER_NAME + "-" + CHAIN_TASK_ID);
+    }
+
+    @Test
+    public void shouldRemoveOrphanContainers() {
+        String orphan1 = WORKER_NAME + "-" + CHAIN_TASK_ID;
+        String orphan2 = WORKER_NAME + "-" + OTHER_CHAIN_TASK_ID;
+        mockContainers(orphan1, orphan2);
+        when(containerRemovalService.stopAndRemoveAll(List.of(orphan1, orphan2)))
+                .thenReturn(List.of(orphan2));
+
+        assertThat(orphanContainerService.removeOrphanContainers()).containsExactly(orphan1);
+    }
+
+    @Test
+    public void shouldNotRemoveAnythingSinceNoOrphan() {
+        mockContainers("some-container");
+
+        assertThat(orphanContainerService.removeOrphanContainers()).isEmpty();
+        verify(containerRemovalService, never()).stopAndRemoveAll(anyList());
+    }
+}